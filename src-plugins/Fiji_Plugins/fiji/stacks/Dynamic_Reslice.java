@@ -19,6 +19,9 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <h2>Dynamic reslice of a stack.</h2>
@@ -43,6 +46,13 @@ import java.awt.event.WindowListener;
  * <li>Can now be called and managed from scripts
  * <li>Major refactoring
  * </ul>
+ * <li>1.3 - 19 October 2026 -
+ * <ul>
+ * <li>The slices are resliced in parallel
+ * <li>Slices of virtual stacks are cached while the ROI is moved
+ * <li>Large stacks show a preview from every n-th slice first; an update
+ * is abandoned as soon as the ROI moves again
+ * </ul>
  * </ul>
  * 
  * <h3>License: GPL</h3>
@@ -64,7 +74,7 @@ import java.awt.event.WindowListener;
  * 
  * @author Jean-Yves Tinevez (tinevez at mpi-cbg dot de) & Albert Cardona
  * @see Slicer
- * @version 1.2
+ * @version 1.3
  * @category Image > Stacks
  */
 public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
@@ -131,6 +141,24 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 * prevent new  call to the start method.
 	 */
 	private boolean hasStarted = false;
+	/**
+	 * Stacks with more slices than twice this number are previewed from
+	 * every n-th slice before the full reslice is computed.
+	 */
+	private int previewSlices = 128;
+	/**
+	 * Maximum number of slices of a virtual stack kept in memory; if 0, it
+	 * is computed from the free memory when the reslice starts.
+	 */
+	private int cacheSize = 0;
+	/**
+	 * The most recently used slices of a virtual stack, by slice number.
+	 */
+	private LinkedHashMap<Integer, ImageProcessor> cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+			return size() > cacheSize;
+		}
+	};
 
 	/*
 	 * NESTED CLASSES
@@ -144,6 +172,8 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 */
 	private class Updater extends Thread {
 		long request = 0;
+		/** The request being processed by refresh() */
+		long current = 0;
 
 		// Constructor autostarts thread
 		Updater() {
@@ -168,12 +198,21 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 			}
 		}
 
+		/**
+		 * Whether a new update was requested (or the updater quit) while
+		 * the current one is being computed.
+		 */
+		synchronized boolean isOutdated() {
+			return request != current || isInterrupted();
+		}
+
 		public void run() {
 			while (!isInterrupted()) {
 				try {
 					final long r;
 					synchronized (this) {
 						r = request;
+						current = r;
 					}
 					// Call update from this thread
 					if (r > 0)
@@ -263,6 +302,11 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 		// Get type of source window
 		rgb = imp.getType() == ImagePlus.COLOR_RGB;
 		notFloat = !rgb && imp.getType() != ImagePlus.GRAY32;
+		if (cacheSize == 0) {
+			long sliceBytes = (long) imp.getWidth() * imp.getHeight() * imp.getBitDepth() / 8;
+			long free = IJ.maxMemory() - IJ.currentMemory();
+			cacheSize = (int) Math.max(2, Math.min(imp.getStackSize(), free / 4 / Math.max(1, sliceBytes)));
+		}
 
 		// Create the destination ImagePlus dest_imp by get a slice a first time.
 		dest_imp = new ImagePlus("Dynamic Reslice of "+imp.getShortTitle(), getSlice(imp, imp.getRoi()));
@@ -291,6 +335,9 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	public void shutdown() {
 		updater.quit();
 		updater = null;
+		synchronized (cache) {
+			cache.clear();
+		}
 		imp.getCanvas().removeMouseMotionListener(this);
 		imp.getWindow().removeWindowListener(this);
 		dest_imp.getWindow().removeWindowListener(this);
@@ -323,14 +370,32 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 * @return  an ImageProcessor with the resulting slice
 	 */
 	protected ImageProcessor getSlice(ImagePlus imp, Roi roi) {
+		return getSlice(imp, roi, 1);
+	}
+
+	/**
+	 * Create an ImageProcessor containing the reslice of the current stack,
+	 * using only every step-th slice. The rows (or columns, if rotated) of the
+	 * slices in between are copied from the preceding resliced slice, so that
+	 * the result has the same size as the full reslice.
+	 * <p>
+	 * The slices are resliced in parallel. When called from the updater
+	 * thread, the computation is abandoned (and null returned) as soon as
+	 * a newer update is requested.
+	 * 
+	 * @param imp  the ImagePlus to reslice
+	 * @param roi  the Roi to use for reslice
+	 * @param step  reslice every step-th slice
+	 * @return  an ImageProcessor with the resulting slice, or null
+	 */
+	protected ImageProcessor getSlice(final ImagePlus imp, final Roi roi, final int step) {
 
 		if (roi == null) return null;
-		int roiType = roi.getType();
-		ImageStack stack = imp.getStack();
-		int stackSize = stack.getSize();
-		ImageProcessor ip_out = null, ip;
+		final int roiType = roi.getType();
+		final ImageStack stack = imp.getStack();
+		final int stackSize = stack.getSize();
+		ImageProcessor ip_out = null;
 		boolean ortho = false;
-		float[] line = null;
 		double x1 = 0, x2 = 0, y1 = 0, y2 = 0;
 
 		if (roiType == Roi.LINE) {
@@ -340,29 +405,64 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 			x2 = lineRoi.x2d;
 			y2 = lineRoi.y2d;
 			ortho = (x1 == x2 || y1 == y2);
+		} else if (roiType == Roi.POLYLINE || roiType == Roi.FREELINE)
+			doIrregularSetup(roi);
+
+		// Extract the lines from the slices in parallel
+		final float[][] lines = new float[stackSize][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		// shutdown() may reset the field while the slices are resliced
+		final Updater currentUpdater = updater;
+		final boolean cancellable = currentUpdater != null
+			&& Thread.currentThread() == currentUpdater;
+		final boolean isOrtho = ortho;
+		final double lx1 = x1, ly1 = y1, lx2 = x2, ly2 = y2;
+		final int nSlices = (stackSize + step - 1) / step;
+		Thread[] threads = new Thread[Math.min(nSlices, Runtime.getRuntime().availableProcessors())];
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int k = ai.getAndIncrement(); k < nSlices; k = ai.getAndIncrement()) {
+						if (cancellable && currentUpdater.isOutdated())
+							return;
+						int i = k * step;
+						ImageProcessor ip = getProcessor(stack, flip ? stackSize - i : i + 1);
+						if (roiType == Roi.POLYLINE || roiType == Roi.FREELINE)
+							lines[i] = getIrregularProfile(ip);
+						else if (isOrtho) // orthogonal straight line
+							lines[i] = getOrthoLine(ip, (int) lx1, (int) ly1, (int) lx2, (int) ly2);
+						else
+							// no orthogonal straight line
+							lines[i] = getLine(ip, lx1, ly1, lx2, ly2);
+					}
+				}
+			};
+		try {
+			for (int ithread = 0; ithread < threads.length; ithread++) {
+				threads[ithread].setPriority(Thread.NORM_PRIORITY);
+				threads[ithread].start();
+			}
+			for (int ithread = 0; ithread < threads.length; ithread++)
+				threads[ithread].join();
+		} catch (InterruptedException e) {
+			return null;
 		}
+		if (cancellable && currentUpdater.isOutdated())
+			return null;
 
 		// Build output ImageProcessor
+		float[] line = lines[0];
+		ImageProcessor ip = imp.getProcessor();
+		if (rotate)
+			ip_out = ip.createProcessor(stackSize, line.length);
+		else
+			ip_out = ip.createProcessor(line.length, stackSize);
 		for (int i = 0; i < stackSize; i++) {
-			ip = stack.getProcessor(flip ? stackSize - i : i + 1);
-
-			if (roiType == Roi.POLYLINE || roiType == Roi.FREELINE) {
-				line = getIrregularProfile(ip, roi);
-			} else if (ortho) // orthogonal straight line
-				line = getOrthoLine(ip, (int) x1, (int) y1, (int) x2, (int) y2);
-			else
-				// no orthogonal straight line
-				line = getLine(ip, x1, y1, x2, y2);
-
-			if (rotate) {
-				if (i == 0)
-					ip_out = ip.createProcessor(stackSize, line.length);
+			line = lines[i - i % step];
+			if (rotate)
 				putColumn(ip_out, i, 0, line, line.length);
-			} else {
-				if (i == 0)
-					ip_out = ip.createProcessor(line.length, stackSize);
+			else
 				putRow(ip_out, 0, i, line, line.length);
-			}
 		}
 
 		// Deal with calibration
@@ -381,6 +481,30 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 		return ip_out;
 	}
 
+	/**
+	 * Get a slice of the stack. The slices of virtual stacks are cached, so
+	 * that they need not be read again when the ROI moves.
+	 * 
+	 * @param stack  the stack
+	 * @param n  the slice number, starting at 1
+	 * @return  the ImageProcessor of the slice
+	 */
+	private ImageProcessor getProcessor(ImageStack stack, int n) {
+		if (!stack.isVirtual())
+			return stack.getProcessor(n);
+		Integer key = new Integer(n);
+		synchronized (cache) {
+			ImageProcessor ip = cache.get(key);
+			if (ip != null)
+				return ip;
+		}
+		ImageProcessor ip = stack.getProcessor(n);
+		synchronized (cache) {
+			cache.put(key, ip);
+		}
+		return ip;
+	}
+
 
 	/**
 	 * Main method that actually dispatch the work. Update the destination
@@ -391,20 +515,35 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	
 		ImageProcessor ip_out;
 		Roi roi = imp.getRoi();
-		int roiType = roi != null ? roi.getType() : 0;
 
 		/*
-		 * Save calibration
+		 * Do reslice and update dest_imp; large stacks are previewed
+		 * from every n-th slice first
 		 */
+		int stackSize = imp.getStackSize();
+		if (stackSize > 2 * previewSlices) {
+			ip_out = getSlice(imp, roi, (stackSize + previewSlices - 1) / previewSlices);
+			if (ip_out == null)
+				return;
+			dest_imp.setProcessor(null, ip_out);
+			updateCalibration(roi);
+		}
+		ip_out = getSlice(imp, roi, 1);
+		if (ip_out == null)
+			return;
+		dest_imp.setProcessor(null, ip_out);
+		updateCalibration(roi);
+	}
+
+	/**
+	 * Set the calibration of the destination ImagePlus ({@link #dest_imp})
+	 * from the source and the Roi.
+	 */
+	private void updateCalibration(Roi roi) {
+		int roiType = roi != null ? roi.getType() : 0;
 		Calibration origCal = imp.getCalibration();
 		double zSpacing = inputZSpacing / imp.getCalibration().pixelWidth;
 
-		/*
-		 * Do reslice and update dest_imp
-		 */
-		ip_out = getSlice(imp, roi);
-		dest_imp.setProcessor(null, ip_out);
-
 		/*
 		 * Deal with calibration
 		 */
@@ -453,16 +592,16 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 * Generate the profile for this ImageProcessor along the Roi given in
 	 * argument, in the case where the Roi is of type FREELINE or POLYLINE.
 	 * 
+	 * {@link #doIrregularSetup(Roi)} must have been called for the Roi.
+	 * 
 	 * @param ip    the ImageProcessor to extract the profile from
-	 * @param roi   the Roi to use as a profile guide
 	 * @return the profile as a float array
 	 * @see {@link #doIrregularSetup(Roi)},
 	 *      {@link #getLine(ImageProcessor, double, double, double, double) getLine},
 	 *      {@link #getOrthoLine(ImageProcessor, int, int, int, int) getOrthoLine}
 	 */
-	private float[] getIrregularProfile(ImageProcessor ip, Roi roi) {
+	private float[] getIrregularProfile(ImageProcessor ip) {
 
-		doIrregularSetup(roi);
 		float[] values = new float[(int) length];
 		double leftOver = 1.0;
 		double distance = 0.0;
@@ -512,8 +651,8 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 * @param x2  coordinate of the Roi straight line
 	 * @param y2  coordinate of the Roi straight line
 	 * @return  the profile as a float array
-	 * @see {@link #getIrregularProfile(ImageProcessor, Roi) getIrregularProfile getIrregularProfile},
-	 * {@link #getIrregularProfile(ImageProcessor, Roi) getIrregularProfile}
+	 * @see {@link #getIrregularProfile(ImageProcessor) getIrregularProfile},
+	 * {@link #getIrregularProfile(ImageProcessor) getIrregularProfile}
 	 */
 	private float[] getLine(ImageProcessor ip, double x1, double y1, double x2,
 			double y2) {
@@ -551,7 +690,7 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	 * @param y2  coordinate of the Roi straight line
 	 * @return  the profile as a float array
 	 * @see {@link #getLine(ImageProcessor, double, double, double, double) getLine},
-	 * {@link #getIrregularProfile(ImageProcessor, Roi) getIrregularProfile}
+	 * {@link #getIrregularProfile(ImageProcessor) getIrregularProfile}
 	 */
 	private float[] getOrthoLine(ImageProcessor ip, int x1, int y1, int x2,
 			int y2) {
@@ -580,7 +719,7 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 	/**
 	 * In the case of a POLYLINE or FREELINE Roi, generates the content of the
 	 * fields {@link #x} and {@link #y} that will be used by the method
-	 * {@link #getIrregularProfile(Roi, ImageProcessor) getIrregularProfile} to
+	 * {@link #getIrregularProfile(ImageProcessor) getIrregularProfile} to
 	 * get a slice in the case of these Roi types.
 	 * 
 	 * @param roi
@@ -737,6 +876,30 @@ public class Dynamic_Reslice implements PlugIn, MouseMotionListener,
 		this.rotate = _rotate;
 	}
 	
+	/**
+	 * Get the number of slices used for the preview of large stacks.
+	 */
+	public int getPreviewSlices() {
+		return previewSlices;
+	}
+
+	/**
+	 * Set the number of slices used for the preview: stacks with more than
+	 * twice as many slices are first resliced using only every n-th slice.
+	 */
+	public void setPreviewSlices(int _previewSlices) {
+		this.previewSlices = Math.max(1, _previewSlices);
+	}
+
+	/**
+	 * Set the maximum number of slices of a virtual stack that are kept in
+	 * memory. Cannot be changed after the start() method has been called.
+	 */
+	public void setCacheSize(int _cacheSize) {
+		if (hasStarted) return;
+		this.cacheSize = Math.max(1, _cacheSize);
+	}
+
 	public ImagePlus getImagePlus() {
 		return dest_imp;
 	}
@@ -1,6 +1,7 @@
  package FlowJ;
 import ij.*;
 import ij.process.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import volume.*;
 import bijnum.*;
 
@@ -66,6 +67,13 @@ public class FlowJLucas
 	  public static String [] sregul = {  "Gaussian 1D", "Gaussian", "Average 1D" };
 	  protected int           support;
 	  protected boolean 	        includeNormals;
+	  // Streaming: ring buffer with the spatially filtered frames (see filterStream).
+	  protected ImageStack    streamStack;
+	  protected float         streamSigmat, streamSigmas;
+	  // First and next slice (from 1) filtered into the ring buffer.
+	  protected int           streamStart, streamNext;
+	  // Spatially filtered for the x, y and t derivatives, by slot (slice % length).
+	  protected float [][][]  ringx, ringy, ringt;
 
 
           /**
@@ -260,6 +268,216 @@ public class FlowJLucas
                                         break;
                   }
         }
+        /**
+         * Streaming version of filterAll() for Gaussian derivatives, for computing the flow
+         * of consecutive frames of long sequences.
+         * The spatial filtering is done before the temporal filtering, so every frame is filtered
+         * (and converted) only once: the filtered frames are kept in a ring buffer of
+         * temporal support size, and the temporal kernels are applied to the frames in the buffer.
+         * The memory used is bounded by the support, not by the length of the sequence.
+         * Call with increasing center for consecutive frames; other centers (or other
+         * stacks or sigmas) restart the stream.
+         * The result equals that of filterAll(is, center, sigmat, sigmas, GAUSSIANDERIV)
+         * up to rounding (the order of the convolutions is different).
+         * @param is an ImageStack containing the images.
+         * @param center the frame for which to compute the derivatives.
+         * @param sigmat temporal sigma of the kernel.
+         * @param sigmas spatial sigma of the kernel.
+         * @exception FlowJException if there are not enough frames around center.
+         */
+        public void filterStream(ImageStack is, int center, float sigmat, float sigmas)
+        throws FlowJException
+        {
+                if (is != streamStack || sigmat != streamSigmat || sigmas != streamSigmas || ringx == null)
+                {
+                        tgradientKernel = new GaussianDerivative(sigmat);
+                        sgradientKernel = new GaussianDerivative(sigmas);
+                        tKernel = new Gaussian(sigmat);
+                        sKernel = new Gaussian(sigmas);
+                        support = tgradientKernel.support();
+                        int length = 2 * Math.max(tKernel.halfwidth, tgradientKernel.halfwidth) + 1;
+                        ringx = new float[length][][];
+                        ringy = new float[length][][];
+                        ringt = new float[length][][];
+                        streamStack = is;
+                        streamSigmat = sigmat;
+                        streamSigmas = sigmas;
+                        streamStart = streamNext = 0;
+                }
+                // Check enough frames in sequence for filtering.
+                if (is.getSize() < support)
+                        throw new FlowJException("Need at least " +support+" slices in stack.");
+                if ((support > 2) && (center-1 < support/2 || center-1 > (is.getSize()-support/2-1)))
+                        throw new FlowJException("Please select the frame  > "
+                                + support/2 + " and < " + (is.getSize()+1-support/2));
+                // The slices (from 1) around center, as in VolumeFloat.convolvet().
+                int halfwidth = ringx.length / 2;
+                int first = center + 1 - halfwidth;
+                int last = center + 1 + halfwidth;
+                if (streamStart > first || streamNext < first || streamNext > last + 1)
+                        // Not consecutive: start filling the ring buffer again.
+                        streamStart = streamNext = first;
+                for (; streamNext <= last; streamNext++)
+                {
+                        IJ.showStatus("Filtering frame "+streamNext+"...");
+                        filterSpatial(is, streamNext, slot(streamNext));
+                }
+                IJ.showStatus("Computing Gaussian derivatives...");
+                dx = new VolumeFloat(is.getWidth(), is.getHeight(), 1);
+                dy = new VolumeFloat(is.getWidth(), is.getHeight(), 1);
+                dt = new VolumeFloat(is.getWidth(), is.getHeight(), 1);
+                convolvet(dx.v[0], ringx, center + 1, tKernel);
+                convolvet(dy.v[0], ringy, center + 1, tKernel);
+                convolvet(dt.v[0], ringt, center + 1, tgradientKernel);
+                // Same edges as in filterAll.
+                int edge = Math.max(sKernel.halfwidth, sgradientKernel.halfwidth);
+                dx.setEdge(edge);
+                dy.setEdge(edge);
+                dt.setEdge(edge);
+        }
+        /**
+         * Filter a slice spatially into slot of the ring buffer.
+         * Slices outside the stack are zero.
+         */
+        private void filterSpatial(ImageStack is, int slice, int slot)
+        {
+                final int width = is.getWidth(), height = is.getHeight();
+                final float [][] x = new float[height][width];
+                final float [][] y = new float[height][width];
+                final float [][] t = new float[height][width];
+                ringx[slot] = x; ringy[slot] = y; ringt[slot] = t;
+                if (slice < 1 || slice > is.getSize())
+                        return;
+                final float [][] image = new VolumeFloat(is.getProcessor(slice)).v[0];
+                // The edges of the intermediate images and the results, as in filterAll.
+                final int edgeDerivative = sgradientKernel.halfwidth;
+                final int edge = Math.max(sKernel.halfwidth, sgradientKernel.halfwidth);
+                final float [][] derivative = new float[height][width];
+                final float [][] smooth = new float[height][width];
+                final AtomicInteger ai = new AtomicInteger(0);
+                Thread [] threads = newThreads();
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        for (int row = ai.getAndIncrement(); row < height; row = ai.getAndIncrement())
+                                        {
+                                                convolvex(derivative[row], image, row, edgeDerivative, sgradientKernel);
+                                                convolvex(smooth[row], image, row, edge, sKernel);
+                                        }
+                                }
+                        };
+                startAndJoin(threads);
+                ai.set(0);
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        for (int row = ai.getAndIncrement(); row < height; row = ai.getAndIncrement())
+                                        {
+                                                convolvey(x[row], derivative, row, edge, sKernel);
+                                                convolvey(y[row], smooth, row, edge, sgradientKernel);
+                                                convolvey(t[row], smooth, row, edge, sKernel);
+                                        }
+                                }
+                        };
+                startAndJoin(threads);
+        }
+        /**
+         * Convolve row of an image in x, as VolumeFloat.convolvex() does.
+         * Pixels closer than edge to the border are 0.
+         */
+        private static void convolvex(float [] out, float [][] in, int row, int edge, Kernel1D kernel)
+        {
+                int width = out.length;
+                for (int x = 0; x < width; x++)
+                        out[x] = 0;
+                if (row < edge || row >= in.length - edge)
+                        return;
+                float [] line = in[row];
+                for (int x = edge; x < width - edge; x++)
+                {
+                        float s = 0;
+                        for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                s += line[x+k]*kernel.k[k+kernel.halfwidth];
+                        out[x] = s;
+                }
+        }
+        /**
+         * Convolve row of an image in y, as VolumeFloat.convolvey() does.
+         * Pixels closer than edge to the border are 0.
+         */
+        private static void convolvey(float [] out, float [][] in, int row, int edge, Kernel1D kernel)
+        {
+                int width = out.length;
+                for (int x = 0; x < width; x++)
+                        out[x] = 0;
+                if (row < edge || row >= in.length - edge)
+                        return;
+                for (int x = edge; x < width - edge; x++)
+                {
+                        float s = 0;
+                        for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                s += in[row+k][x]*kernel.k[k+kernel.halfwidth];
+                        out[x] = s;
+                }
+        }
+        /**
+         * Convolve the frames in a ring buffer in t, as VolumeFloat.convolvet() does.
+         * @param out the result.
+         * @param ring the filtered frames, by slot.
+         * @param slice the slice (from 1) at the center of the kernel.
+         * @param kernel the temporal kernel.
+         */
+        private void convolvet(final float [][] out, final float [][][] ring, final int slice, final Kernel1D kernel)
+        {
+                final AtomicInteger ai = new AtomicInteger(0);
+                Thread [] threads = newThreads();
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        for (int row = ai.getAndIncrement(); row < out.length; row = ai.getAndIncrement())
+                                        {
+                                                float [] line = out[row];
+                                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                                {
+                                                        float [] frame = ring[slot(slice + k)][row];
+                                                        for (int x = 0; x < line.length; x++)
+                                                                line[x] += frame[x] * kernel.k[k + kernel.halfwidth];
+                                                }
+                                        }
+                                }
+                        };
+                startAndJoin(threads);
+        }
+        /** The ring buffer slot of a slice. */
+        private int slot(int slice)
+        {
+                int slot = slice % ringx.length;
+                return slot < 0 ? slot + ringx.length : slot;
+        }
+        private static Thread [] newThreads()
+        {
+                return new Thread[Runtime.getRuntime().availableProcessors()];
+        }
+        private static void startAndJoin(Thread [] threads)
+        {
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                {
+                        threads[ithread].setPriority(Thread.NORM_PRIORITY);
+                        threads[ithread].start();
+                }
+                try
+                {
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                                threads[ithread].join();
+                }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
+        }
         /**
          * Compute full flow field from the first order gradients in dx, dy, dt
          * for a weighted local neighborhood omega (weighted by G defined by sigmaw)
@@ -328,63 +546,100 @@ public class FlowJLucas
                                                         break;
                   }
 
-                  int total=0; int full=0; int normals = 0;
+                  final int [] counts = new int[3];
+                  final FlowJFlow f = flow;
+                  final VolumeFloat fxx = xx, fxy = xy, fyy = yy, fxt = xt, fyt = yt;
                   flow.v.setEdge(xx.getEdge());
-                  for (int y = 0; y < xx.getHeight(); y++)
+                  // Solve row by row, in parallel.
+                  final AtomicInteger ai = new AtomicInteger(0);
+                  final AtomicInteger rows = new AtomicInteger(0);
+                  Thread [] threads = newThreads();
+                  for (int ithread = 0; ithread < threads.length; ithread++)
                   {
-                                  IJ.showProgress((float) y/(float) xx.getHeight());
-                                  for (int x = 0; x < xx.getWidth(); x++)
+                                  // Only the first thread shows the progress of all.
+                                  final boolean showProgress = ithread == 0;
+                                  threads[ithread] = new Thread()
                                   {
-                                                flow.set(x, y, 0, 0, false);
-                                                if (xx.valid(x,y))
+                                                public void run()
                                                 {
-                                                          float [] b = new float[2];
-                                                          float [][] m = new float[2][2];
-                                                          m[0][0] = xx.v[0][y][x];
-                                                          m[0][1] = xy.v[0][y][x];
-                                                          m[1][0] = xy.v[0][y][x];
-                                                          m[1][1] = yy.v[0][y][x];
-                                                          b[0] = xt.v[0][y][x];
-                                                          b[1] = yt.v[0][y][x];
-                                                          float [][] mi = null; BIJJacobi j = null;
-                                                          try
+                                                          // total, full and normal flows of this thread.
+                                                          int [] c = new int[3];
+                                                          for (int y = ai.getAndIncrement(); y < fxx.getHeight(); y = ai.getAndIncrement())
+                                                          {
+                                                                  computeRow(f, y, fxx, fxy, fyy, fxt, fyt, c);
+                                                                  int done = rows.incrementAndGet();
+                                                                  if (showProgress)
+                                                                          IJ.showProgress((float) done/(float) fxx.getHeight());
+                                                          }
+                                                          synchronized (counts)
                                                           {
-                                                                mi = BIJmatrix.inverse(m);
-                                                                j = new BIJJacobi(m, true);
-                                                                //if (debug && ! BIJMatrix.checkinverse(m, mi))
-                                                                 //              IJ.write("inverse failure! det = "+BIJMatrix.determinant(m)+" "+x+", "+y);
-                                                                 j.compute();
-                                                                 // For debugging. Suppplied by Barron & Beauchemin
-                                                                 //if (debug)	j.check(m);
-                                                                 j.sort();
-                                                                 if (j.eigenvalues[0] >= tau && j.eigenvalues[1] >= tau)
-                                                                 {
-                                                                       // Full velocity if spread of M is small
-                                                                       if (BIJmatrix.determinant(m) > 0)
-                                                                       {
-                                                                                 float [] v = BIJmatrix.mul(mi, b);
-                                                                                 flow.set(x, y, -v[0], v[1], true); // y
-                                                                                 full++;
-                                                                       }
-                                                                 }
-                                                                 else if (includeNormals && j.eigenvalues[0] > tau && Math.abs(BIJmatrix.determinant(m)) > 0.00000001)
-                                                                 {
-                                                                       // Normal velocity.
-                                                                       float [] v = BIJmatrix.mul(mi, b);
-                                                                       // Project v onto that direction
-                                                                       float [] ff = new float[2];
-                                                                       ff[0] = (v[0]*j.eigenvectors[0][0] + v[1]*j.eigenvectors[1][0])*j.eigenvectors[1][0];
-                                                                       ff[1] = (- v[0]*j.eigenvectors[0][0] - v[1]*j.eigenvectors[1][0])*j.eigenvectors[0][0];
-                                                                       flow.set(x, y, ff[0], ff[1], true);
-                                                                       normals++;
-                                                                 }
-                                                          } catch (Exception e) { IJ.write("Inverse or Jacobi error "+e); }
-                                                           total++;
-                                                } // if
-                                  }  // for x
-                  } // for y
+                                                                  for (int i = 0; i < c.length; i++)
+                                                                          counts[i] += c[i];
+                                                          }
+                                                }
+                                  };
+                  }
+                  startAndJoin(threads);
+                  int total = counts[0]; int full = counts[1]; int normals = counts[2];
                   density = (float) full/(float) total;
         } // computeFull
+        /**
+         * Compute the flow of one row from the weighted products of the derivatives.
+         * @param counts the numbers of total, full and normal flows, will be incremented.
+         */
+        private void computeRow(FlowJFlow flow, int y, VolumeFloat xx, VolumeFloat xy, VolumeFloat yy,
+                VolumeFloat xt, VolumeFloat yt, int [] counts)
+        {
+                for (int x = 0; x < xx.getWidth(); x++)
+                {
+                              flow.set(x, y, 0, 0, false);
+                              if (xx.valid(x,y))
+                              {
+                                        float [] b = new float[2];
+                                        float [][] m = new float[2][2];
+                                        m[0][0] = xx.v[0][y][x];
+                                        m[0][1] = xy.v[0][y][x];
+                                        m[1][0] = xy.v[0][y][x];
+                                        m[1][1] = yy.v[0][y][x];
+                                        b[0] = xt.v[0][y][x];
+                                        b[1] = yt.v[0][y][x];
+                                        float [][] mi = null; BIJJacobi j = null;
+                                        try
+                                        {
+                                              mi = BIJmatrix.inverse(m);
+                                              j = new BIJJacobi(m, true);
+                                              //if (debug && ! BIJMatrix.checkinverse(m, mi))
+                                               //              IJ.write("inverse failure! det = "+BIJMatrix.determinant(m)+" "+x+", "+y);
+                                               j.compute();
+                                               // For debugging. Suppplied by Barron & Beauchemin
+                                               //if (debug)	j.check(m);
+                                               j.sort();
+                                               if (j.eigenvalues[0] >= tau && j.eigenvalues[1] >= tau)
+                                               {
+                                                     // Full velocity if spread of M is small
+                                                     if (BIJmatrix.determinant(m) > 0)
+                                                     {
+                                                               float [] v = BIJmatrix.mul(mi, b);
+                                                               flow.set(x, y, -v[0], v[1], true); // y
+                                                               counts[1]++;
+                                                     }
+                                               }
+                                               else if (includeNormals && j.eigenvalues[0] > tau && Math.abs(BIJmatrix.determinant(m)) > 0.00000001)
+                                               {
+                                                     // Normal velocity.
+                                                     float [] v = BIJmatrix.mul(mi, b);
+                                                     // Project v onto that direction
+                                                     float [] ff = new float[2];
+                                                     ff[0] = (v[0]*j.eigenvectors[0][0] + v[1]*j.eigenvectors[1][0])*j.eigenvectors[1][0];
+                                                     ff[1] = (- v[0]*j.eigenvectors[0][0] - v[1]*j.eigenvectors[1][0])*j.eigenvectors[0][0];
+                                                     flow.set(x, y, ff[0], ff[1], true);
+                                                     counts[2]++;
+                                               }
+                                        } catch (Exception e) { IJ.write("Inverse or Jacobi error "+e); }
+                                         counts[0]++;
+                              } // if
+                }  // for x
+        }
         public String toString()
         // Use a format that is compatible with file names.
         {
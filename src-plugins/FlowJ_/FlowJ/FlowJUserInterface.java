@@ -54,6 +54,8 @@ public class FlowJUserInterface extends ImagePlus implements ActionListener, Cli
         private String          description = "";
         private boolean         firstTime;
         private boolean         hasVolume;
+        /** Streams the LK derivatives through consecutive frames when computing all frames. */
+        private FlowJLucas      lkStream;
 
         private final static int   LK = 0;
         private final static int   URAS = 1;
@@ -446,6 +448,7 @@ public class FlowJUserInterface extends ImagePlus implements ActionListener, Cli
                         // Just start at frame 0 to the end; exception will be thrown anyway.
                         int first = FlowJLucas.firstFrame(stack, getFloatField(sigmatField), gradientChoice.getSelectedIndex());
                         int last = FlowJLucas.lastFrame(stack, getFloatField(sigmatField), gradientChoice.getSelectedIndex());
+                        lkStream = new FlowJLucas();
                         for (int frame = 1; frame <= stack.getSize(); frame++)
                         {
                                 if (frame >= first && frame <= last)
@@ -466,6 +469,7 @@ public class FlowJUserInterface extends ImagePlus implements ActionListener, Cli
                                 else
                                         flows.addElement(null);
                         }
+                        lkStream = null;
                 }
                 long elapsedTime = System.currentTimeMillis() - start;
                 float seconds = (float) elapsedTime / 1000;
@@ -502,9 +506,19 @@ public class FlowJUserInterface extends ImagePlus implements ActionListener, Cli
 					  IJ.write(description);
 					  break;
 			  case LK:
-					  FlowJLucas lk = new FlowJLucas();
-					  lk.filterAll(stack, frame, sigmat, sigmas,
+					  FlowJLucas lk;
+					  if (lkStream != null && gradientChoice.getSelectedIndex() == FlowJLucas.GAUSSIANDERIV)
+					  {
+					          // Reuse the filtered frames of the previous frame.
+					          lk = lkStream;
+					          lk.filterStream(stack, frame, sigmat, sigmas);
+					  }
+					  else
+					  {
+					          lk = new FlowJLucas();
+					          lk.filterAll(stack, frame, sigmat, sigmas,
 							gradientChoice.getSelectedIndex());
+					  }
 					  flow = new FlowJFlow(stack.getWidth(), stack.getHeight());
 					  IJ.showStatus("computing flows (LK)...");
 					  lk.computeFull(flow, normalsCheckbox.getState(),
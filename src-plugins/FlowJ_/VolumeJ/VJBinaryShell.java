@@ -77,6 +77,19 @@ public class VJBinaryShell extends Volume
                                 v[z*height*width+y*width+x] = true;
                 }
         }
+        /**
+         * Create a binary shell that shares the cells of shell, but has its own
+         * state for the cell advance algorithm.
+         * Use this to traverse the same shell from several threads.
+         * @param shell the binary shell whose cells are shared.
+         */
+        public VJBinaryShell(VJBinaryShell shell)
+        {
+                depth = shell.depth;
+                height = shell.height;
+                width = shell.width;
+                v = shell.v;
+        }
         /**
          * Get the shell value as a boolean.
          * @param x the x position of the voxel
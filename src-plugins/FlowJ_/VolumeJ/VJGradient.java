@@ -34,6 +34,13 @@ public class VJGradient
 		private int					dimensions;
 		private static final double defaultEpsilon = 0.00000001;
 
+		/**
+                 * Empty gradient of scalar volume, to be filled with set().
+                 */
+		public VJGradient()
+		{
+			dimensions = 1;
+		}
 		public VJGradient(double [] g)
 		/* Gradient of scalar volume. */
 		{
@@ -85,6 +92,17 @@ public class VJGradient
 				mag2 = magnitude(g2x, g2y, g2z);
 			}
 		}
+		/**
+                 * Set this gradient to the gradient of a scalar volume.
+                 * Allows a renderer to reuse one instance for all samples.
+                 * @param gx, gy, gz the gradients in x, y, and z-dimensions.
+                 */
+		public void set(double gx, double gy, double gz)
+		{
+                        g0x = (float) gx; g0y = (float) gy; g0z = (float) gz;
+			mag0 = magnitude(g0x, g0y, g0z); mag1 = 0; mag2 = 0;
+			dimensions = 1;
+		}
 		public float getx() { return g0x; }
 		public float gety() { return g0y; }
 		public float getz() { return g0z; }
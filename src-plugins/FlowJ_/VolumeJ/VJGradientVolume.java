@@ -0,0 +1,282 @@
+package VolumeJ;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import volume.*;
+
+/**
+ * This class contains the precomputed (central difference) gradients of all voxels of a volume,
+ * quantized to 3 bytes per voxel: the direction as a 16 bit normal index (octahedral mapping of the
+ * unit sphere onto a 256x256 grid) and the magnitude as 8 bits relative to the largest magnitude
+ * in the volume.
+ * Interpolating the voxel gradients trilinearly gives the same gradient as VJTrilinear
+ * (up to the quantization error), but needs only 8 instead of 48 voxel reads.
+ * Gradient volumes are built once per volume (in parallel) and cached,
+ * so they are reused by all views of cine and stereo renderings.
+ *
+ * Use VJTrilinearCached to render with a gradient volume.
+ */
+public class VJGradientVolume
+{
+        /** Bytes needed per voxel. */
+        public static final int         BYTES_PER_VOXEL = 3;
+        /** Decoded unit normals (x, y, z) for all normal indices. */
+        private static float []         normals;
+        /** The gradient volumes that have been built, by volume. */
+        private static Map              cache = new WeakHashMap();
+
+        protected int                   width, height, depth;
+        /** Normal index of each voxel. */
+        protected short []              normal;
+        /** Quantized magnitude of each voxel. */
+        protected byte []               magnitude;
+        /** Magnitude of one step of the quantized magnitude. */
+        protected float                 magnitudeStep;
+
+        /**
+         * Get the gradient volume of v. Builds it the first time.
+         * The memory needed is reported before building; if there is not enough memory,
+         * null is returned (also on subsequent calls for the same volume).
+         * @param v the volume.
+         * @return the VJGradientVolume or null if not available.
+         */
+        public static synchronized VJGradientVolume get(Volume v)
+        {
+                if (cache.containsKey(v))
+                        return (VJGradientVolume) cache.get(v);
+                VJGradientVolume gv = null;
+                long needed = memoryNeeded(v);
+                Runtime rt = Runtime.getRuntime();
+                long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+                VJUserInterface.write("Gradient cache: "+(needed / 1024)+"Kb for "
+                        +v.getWidth()+"x"+v.getHeight()+"x"+v.getDepth()+" voxels ("
+                        +(available / 1024)+"Kb available).");
+                if (needed < available)
+                        gv = new VJGradientVolume(v);
+                else
+                        VJUserInterface.write("Gradient cache: not enough memory, computing gradients while rendering.");
+                cache.put(v, gv);
+                return gv;
+        }
+        /**
+         * Remove the gradient volume of v from the cache, e.g. because v has changed.
+         * @param v the volume.
+         */
+        public static synchronized void flush(Volume v)
+        {
+                cache.remove(v);
+        }
+        /**
+         * Number of bytes a gradient volume of v needs.
+         * @param v the volume.
+         * @return the number of bytes.
+         */
+        public static long memoryNeeded(Volume v)
+        {
+                return (long) v.getWidth() * v.getHeight() * v.getDepth() * BYTES_PER_VOXEL;
+        }
+        /**
+         * Build the gradient volume of v. Use get() to share gradient volumes.
+         * @param v a VolumeShort, VolumeFloat or VolumeRGB.
+         */
+        public VJGradientVolume(Volume v)
+        {
+                width = v.getWidth();
+                height = v.getHeight();
+                depth = v.getDepth();
+                normal = new short[width*height*depth];
+                magnitude = new byte[width*height*depth];
+                setupNormals();
+                long start = System.currentTimeMillis();
+                // First pass: largest magnitude, to scale the quantized magnitudes.
+                final Slices max = new Slices(v, false);
+                max.run();
+                magnitudeStep = Math.max(max.maxMagnitude, 1f) / 255f;
+                // Second pass: quantize.
+                new Slices(v, true).run();
+                if (ij.IJ.debugMode)
+                        VJUserInterface.write("Gradient cache built in "+(System.currentTimeMillis() - start)+"ms");
+        }
+        /**
+         * Interpolate the gradient at vl into g.
+         * The gradient points in the same direction as the VJTrilinear gradient (from high to low values).
+         * vl has to be valid for trilinear gradient interpolation.
+         * @param g the VJGradient that will contain the gradient.
+         * @param vl the location where to interpolate.
+         * @return g
+         */
+        public VJGradient gradient(VJGradient g, VJVoxelLoc vl)
+        {
+                vl.getWeights();
+                int wh = width * height;
+                int i = vl.iz*wh + vl.iy*width + vl.ix;
+                float gx = 0, gy = 0, gz = 0;
+                float w;
+                int n;
+                w = vl.tlf * (magnitude[i]&0xff);                       // TLF
+                n = (normal[i]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.blf * (magnitude[i+width]&0xff);                 // BLF
+                n = (normal[i+width]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.trf * (magnitude[i+1]&0xff);                     // TRF
+                n = (normal[i+1]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.brf * (magnitude[i+width+1]&0xff);               // BRF
+                n = (normal[i+width+1]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                i += wh;
+                w = vl.tlb * (magnitude[i]&0xff);                       // TLB
+                n = (normal[i]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.blb * (magnitude[i+width]&0xff);                 // BLB
+                n = (normal[i+width]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.trb * (magnitude[i+1]&0xff);                     // TRB
+                n = (normal[i+1]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                w = vl.brb * (magnitude[i+width+1]&0xff);               // BRB
+                n = (normal[i+width+1]&0xffff) * 3;
+                gx += normals[n] * w; gy += normals[n+1] * w; gz += normals[n+2] * w;
+                g.set(gx * magnitudeStep, gy * magnitudeStep, gz * magnitudeStep);
+                return g;
+        }
+        /**
+         * Encode a direction into a normal index.
+         * @param x, y, z the direction, need not be normalized, but may not be 0.
+         * @return the normal index [0-65535].
+         */
+        protected static int encode(float x, float y, float z)
+        {
+                float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+                float u = x / l1, v = y / l1;
+                if (z < 0)
+                {
+                        float fu = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+                        v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+                        u = fu;
+                }
+                int iu = Math.round((u + 1) * 127.5f);
+                int iv = Math.round((v + 1) * 127.5f);
+                return (iv << 8) | iu;
+        }
+        /**
+         * Compute the unit normals for all normal indices.
+         */
+        private static synchronized void setupNormals()
+        {
+                if (normals != null)
+                        return;
+                float [] table = new float[65536*3];
+                for (int iv = 0; iv < 256; iv++)
+                for (int iu = 0; iu < 256; iu++)
+                {
+                        float u = iu / 127.5f - 1, v = iv / 127.5f - 1;
+                        float z = 1 - Math.abs(u) - Math.abs(v);
+                        if (z < 0)
+                        {
+                                float fu = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+                                v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+                                u = fu;
+                        }
+                        float l = (float) Math.sqrt(u*u + v*v + z*z);
+                        int n = ((iv << 8) | iu) * 3;
+                        table[n] = u / l;
+                        table[n+1] = v / l;
+                        table[n+2] = z / l;
+                }
+                normals = table;
+        }
+        /**
+         * Computes the central difference gradients slice by slice, with one thread per processor.
+         */
+        private class Slices
+        {
+                private float [][][]    fv;
+                private short [][][]    sv;
+                private int             mask;
+                private byte []         bv;
+                private boolean         quantize;
+                private float           maxMagnitude;
+                private AtomicInteger   ai = new AtomicInteger(1);
+
+                Slices(Volume v, boolean quantize)
+                {
+                        this.quantize = quantize;
+                        if (v instanceof VolumeShort)
+                        {
+                                sv = ((VolumeShort) v).v;
+                                mask = ((VolumeShort) v).getIndexed() ? 0x00ff : 0xffff;
+                        }
+                        else if (v instanceof VolumeFloat)
+                                fv = ((VolumeFloat) v).v;
+                        else if (v instanceof VolumeRGB)
+                                bv = ((VolumeRGB) v).b;
+                        else
+                                throw new IllegalArgumentException("unknown Volume type v");
+                }
+                private float voxel(int x, int y, int z)
+                {
+                        if (sv != null)
+                                return sv[z][y][x] & mask;
+                        else if (fv != null)
+                                return fv[z][y][x];
+                        else
+                                return bv[(z*height+y)*width+x] & 0xff;
+                }
+                void run()
+                {
+                        Thread [] threads = new Thread[Runtime.getRuntime().availableProcessors()];
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                                threads[ithread] = new Thread()
+                                {
+                                        public void run()
+                                        {
+                                                float max = 0;
+                                                for (int z = ai.getAndIncrement(); z < depth - 1; z = ai.getAndIncrement())
+                                                        max = Math.max(max, slice(z));
+                                                synchronized (Slices.this)
+                                                {
+                                                        maxMagnitude = Math.max(maxMagnitude, max);
+                                                }
+                                        }
+                                };
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                        {
+                                threads[ithread].setPriority(Thread.NORM_PRIORITY);
+                                threads[ithread].start();
+                        }
+                        try
+                        {
+                                for (int ithread = 0; ithread < threads.length; ithread++)
+                                        threads[ithread].join();
+                        }
+                        catch (InterruptedException e) { throw new RuntimeException(e); }
+                }
+                /**
+                 * Compute (and quantize) the gradients of the interior voxels of slice z.
+                 * @return the largest magnitude in the slice.
+                 */
+                private float slice(int z)
+                {
+                        float max = 0;
+                        for (int y = 1; y < height - 1; y++)
+                        for (int x = 1; x < width - 1; x++)
+                        {
+                                float gx = voxel(x-1, y, z) - voxel(x+1, y, z);
+                                float gy = voxel(x, y-1, z) - voxel(x, y+1, z);
+                                float gz = voxel(x, y, z-1) - voxel(x, y, z+1);
+                                float mag = (float) Math.sqrt(gx*gx + gy*gy + gz*gz);
+                                if (mag > max)
+                                        max = mag;
+                                if (quantize && mag > 0)
+                                {
+                                        int i = (z*height+y)*width+x;
+                                        normal[i] = (short) encode(gx, gy, gz);
+                                        magnitude[i] = (byte) Math.min(255, Math.round(mag / magnitudeStep));
+                                }
+                        }
+                        return max;
+                }
+        }
+}
@@ -70,6 +70,19 @@ public abstract class VJInterpolator
 	 * @return a VJGradient which contains the gradient in v at vl.
 	 */
 	public abstract VJGradient gradient(Volume v, VJVoxelLoc vl);
+	/**
+	 * Interpolate the gradient of v at location vl into g.
+	 * Overload to avoid allocating a new VJGradient for every sample; by default
+	 * the result of gradient(v, vl) is returned and g is left untouched.
+	 * @param g a VJGradient that may be reused for the result.
+	 * @param v a volume
+	 * @param vl a location in the volume.
+	 * @return a VJGradient which contains the gradient in v at vl.
+	 */
+	public VJGradient gradient(VJGradient g, Volume v, VJVoxelLoc vl)
+	{
+		return gradient(v, vl);
+	}
 	public abstract String toString();
 	/**
 	 * This method should not be here, but where:
@@ -37,6 +37,16 @@ public class VJIsosurfaceRender extends VJRenderer
 	private static final float     EPSILON = 0.0001f;
 	// The binary shell.
 	private VJBinaryShell           shell;
+	// The iso value.
+	private float                   iso;
+	// The deltas to step along ray along i-axis, j-axis, k-axis, respectively, in objectspace.
+	private float []                istep, jstep, kstep;
+	// Starting position of first ray in viewspace.
+	private float []                rayvs;
+	// Ray start constants, k position and offsets.
+	private float                   ckx, cky, ckz;
+	// Vector orientation of ray.
+	private float                   dx, dy, dz;
 
 	/**
 	 * Create a new renderer with specified methods.
@@ -102,50 +112,78 @@ public class VJIsosurfaceRender extends VJRenderer
 				* ignore all under threshold voxels.
 		*/
 		running = true;
-		float iso = (float) classifier.getThreshold();
+		iso = (float) classifier.getThreshold();
 		//VJZBuffer kbuffer = new VJZBuffer(width, height);
 		//VJZBuffer kintersectbuffer = new VJZBuffer(width, height);
 		// The final rendering buffer.
 		newViewportBuffer();
-		// Create a place to store extra interpolated voxel information for color rendering.
-		VJValue sample0 = null;
-		if (outputType == COLORINT && v instanceof VolumeRGB)
-		   sample0 = (VJValue) (new VJValueHSB());
-		else
-		   sample0 = new VJValue();
-		VJValue sample1 = new VJValue();
 		// Get the deltas to step along ray along i-axis, j-axis, k-axis, respectively, in objectspace.
-		float [] istep = mi.getColumn(0);
-		float [] jstep = mi.getColumn(1);
-		float [] kstep = mi.getColumn(2);
+		istep = mi.getColumn(0);
+		jstep = mi.getColumn(1);
+		kstep = mi.getColumn(2);
 		// Get the constants for stepping along ray.
 		float [] cstep = mi.getColumn(3);
 		// Compute vector orientation of ray.
-		float dx = (depth-1)*kstep[0];
-		float dy = (depth-1)*kstep[1];
-		float dz = (depth-1)*kstep[2];
-		// Initialize the current cell for this coordinate system.
-		VJCell cell = new VJCell(m, mi);
+		dx = (depth-1)*kstep[0];
+		dy = (depth-1)*kstep[1];
+		dz = (depth-1)*kstep[2];
 		// Starting position of first ray in viewspace.
-		float [] rayvs = VJMatrix.newVector(ioffset, joffset, koffset);
-		// Find starting position of first ray in objectspace.
-		float [] rayos = mi.mul(rayvs);
+		rayvs = VJMatrix.newVector(ioffset, joffset, koffset);
 		// Set ray start constants, k position and offsets.
-		float ckx = koffset * kstep[0] + joffset * jstep[0] + ioffset * istep[0] + cstep[0];
-		float cky = koffset * kstep[1] + joffset * jstep[1] + ioffset * istep[1] + cstep[1];
-		float ckz = koffset * kstep[2] + joffset * jstep[2] + ioffset * istep[2] + cstep[2];
-		// Prepare the shell for casting rays with the direction of the ray (stays constant for this rendering view).
-		shell.advancePrepare(dx, dy, dz);
+		ckx = koffset * kstep[0] + joffset * jstep[0] + ioffset * istep[0] + cstep[0];
+		cky = koffset * kstep[1] + joffset * jstep[1] + ioffset * istep[1] + cstep[1];
+		ckz = koffset * kstep[2] + joffset * jstep[2] + ioffset * istep[2] + cstep[2];
 		// Keep amount of time spent in loop for each viewspacepixel.
 		long start = System.currentTimeMillis();
 		// Traverse the viewpane and cast rays into the cells in the binary shell.
-		for (int j = 0; j < height && running; j++) // step in j direction.
+		renderScanlines();
+		VJUserInterface.progress(1f);
+		traceWrite();
+		pixelms = (float) (System.currentTimeMillis() - start) / (float) (width * height);
+		running = false;
+		//ImageProcessor imprk = new FloatProcessor(width, height, kbuffer.getBuffer(), null); (new ImagePlus("k values (cells with surfaces)"+description, imprk)).show();
+		//ImageProcessor imprki = new FloatProcessor(width, height, kintersectbuffer.getBuffer(), null); (new ImagePlus("kintersect values (cells with 2 intersections)"+description, imprki)).show();
+	}
+	/**
+	 * Create the ray caster for one rendering thread.
+	 */
+	protected Scanline newScanline()
+	{
+		return new IsoCaster();
+	}
+	/**
+	 * Casts the rays of one scanline into the binary shell.
+	 * Every rendering thread has its own cell, its own cursor into the shared binary shell
+	 * and its own samples.
+	 */
+	protected class IsoCaster implements Scanline
+	{
+		private VJValue         sample0, sample1;
+		private VJGradient      gradient;
+		private VJCell          cell;
+		private VJBinaryShell   shell;
+
+		protected IsoCaster()
+		{
+			// Create a place to store extra interpolated voxel information for color rendering.
+			if (outputType == COLORINT && v instanceof VolumeRGB)
+			   sample0 = (VJValue) (new VJValueHSB());
+			else
+			   sample0 = new VJValue();
+			sample1 = new VJValue();
+			gradient = new VJGradient();
+			// Initialize the current cell for this coordinate system.
+			cell = new VJCell(m, mi);
+			// Prepare the shell for casting rays with the direction of the ray (stays constant for this rendering view).
+			shell = new VJBinaryShell(VJIsosurfaceRender.this.shell);
+			shell.advancePrepare(dx, dy, dz);
+		}
+		public void render(int j) // j direction.
 		{
 			// Set ray start j position.
 			float ox = ckx + j * jstep[0];
 			float oy = cky + j * jstep[1];
 			float oz = ckz + j * jstep[2];
-			//if (j % 10 == 0) VJUserInterface.progress((float)j/(float) height);
 			for (int i = 0; i < width; i++) // step in i direction
 			{
 				// Move cell to start of ray in object space.
@@ -194,7 +232,7 @@ public class VJIsosurfaceRender extends VJRenderer
 								VJVoxelLoc vl = bisection(sample0, vlk0, iso, kintersect[0],
 									kintersect[1],  k0sample, k1sample, kstep, 3);
 								// Phong shading. Compute the interpolated gradient.
-								VJGradient g = interpolator.gradient(v, vl);
+								VJGradient g = interpolator.gradient(gradient, v, vl);
 								// Normalize the gradient.
 								g.normalize();
 								// Calculate the shade.
@@ -225,14 +263,7 @@ public class VJIsosurfaceRender extends VJRenderer
 				oy += istep[1];
 				oz += istep[2];
 			}	// i step
-			yield();
-		}	// j step
-		VJUserInterface.progress(1f);
-		traceWrite();
-		pixelms = (float) (System.currentTimeMillis() - start) / (float) (width * height);
-		running = false;
-		//ImageProcessor imprk = new FloatProcessor(width, height, kbuffer.getBuffer(), null); (new ImagePlus("k values (cells with surfaces)"+description, imprk)).show();
-		//ImageProcessor imprki = new FloatProcessor(width, height, kintersectbuffer.getBuffer(), null); (new ImagePlus("kintersect values (cells with 2 intersections)"+description, imprki)).show();
+		}
 	}
 	/**
 	 * Do bisection for a number of steps.
@@ -52,7 +52,8 @@ public class VJRender extends VJRenderer
          *  Voxels can be scalars or indexed scalars (implemented here).
          *  For more sophisticated voxels, such as
          *  vectors, including flow vectors this class can be subclassed as needed.
-         *  Class variables are all inherited from VJRenderer
+         *  Class variables are all inherited from VJRenderer.
+         *  The scanlines are rendered in parallel, see VJRenderer.renderScanlines().
         */
         public synchronized void run()
         {
@@ -61,22 +62,43 @@ public class VJRender extends VJRenderer
                 if (classifier.does() == VJClassifier.RGB)
                         setOutputColor();
                 newViewportBuffer();
-                // Get the third column vector of the inverse matrix.
-                // This contains the deltas for the ray stepper.
-                float [] osstep = mi.getStepperColumn();
                 // prepare a cutout
                 if (cutout instanceof VJCutout)
                         cutout.setup(m, mi);
                 long start = System.currentTimeMillis();
-                VJValue value = null;
-                if (outputType == COLORINT && v instanceof VolumeRGB)
-                        value = new VJValueHSB();
-                else
-                        value = new VJValue();
-                for (int j = 0; j < height && running; j++) // step in j direction (y on image).
+                renderScanlines();
+                VJUserInterface.progress(1f);
+                pixelms = (float) (System.currentTimeMillis() - start) / (float) (width * height);
+                running = false;
+        }
+        /**
+         * Create the ray caster for one rendering thread.
+         */
+        protected Scanline newScanline()
+        {
+                return new RayCaster();
+        }
+        /**
+         * Casts the rays of one scanline. Holds the interpolated voxel value and gradient,
+         * which are reused for all samples of a rendering thread.
+         */
+        protected class RayCaster implements Scanline
+        {
+                // Get the third column vector of the inverse matrix.
+                // This contains the deltas for the ray stepper.
+                protected float []      osstep = mi.getStepperColumn();
+                protected VJValue       value;
+                protected VJGradient    gradient = new VJGradient();
+
+                protected RayCaster()
+                {
+                        if (outputType == COLORINT && v instanceof VolumeRGB)
+                                value = new VJValueHSB();
+                        else
+                                value = new VJValue();
+                }
+                public void render(int j) // j direction (y on image).
                 {
-                        VJUserInterface.status("Render "+message+"("+(100*j)/height+"%)...");
-                        VJUserInterface.progress((float)j/(float) height);
                         for (int i = 0; i < width; i++) // step in i direction (x on image).
                         {
                                 // Viewspace location vector.
@@ -113,7 +135,7 @@ public class VJRender extends VJRenderer
                                                 if (interpolator.isValidGradient(vl, v) && (! classifier.doesIndex() || classifier.visible(value)))
                                                 {
                                                         // Phong: interpolate the gradient.
-                                                        VJGradient g = interpolator.gradient(v, vl);
+                                                        VJGradient g = interpolator.gradient(gradient, v, vl);
                                                         // Classify voxel and gradient.
                                                         VJAlphaColor color = classifier.alphacolor(value, g);
                                                         if (onTrace(i, j))
@@ -155,11 +177,7 @@ public class VJRender extends VJRenderer
                                 // Set the pixel in the viewport buffer.
                                 setPixel(pixel, i, j);
                         }	// i step
-                        yield();
-                }	// j step
-                VJUserInterface.progress(1f);
-                pixelms = (float) (System.currentTimeMillis() - start) / (float) (width * height);
-                running = false;
+                }
         }
         /**
          * Compose the classified voxel color into pixel.
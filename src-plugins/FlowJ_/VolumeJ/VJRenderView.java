@@ -195,6 +195,15 @@ public class VJRenderView extends Thread
                 }
                 catch (Exception e) { VJUserInterface.write("problems!" + e); return null; }
         }
+        /**
+         * Release what the interpolator keeps for this rendering,
+         * i.e. the gradient volume of a VJTrilinearCached.
+         */
+        protected void flushInterpolator()
+        {
+                if (renderer.getInterpolator() instanceof VJTrilinearCached)
+                        ((VJTrilinearCached) renderer.getInterpolator()).flush();
+        }
         /**
          * Stops the shell.
          * Also tries to stop the renderer.
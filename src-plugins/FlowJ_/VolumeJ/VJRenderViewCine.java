@@ -13,6 +13,8 @@ import volume.*;
  * and backed-up in the ImageJ directory under the name "VolumeJ_Cine.tif".
  * If the total cine renderings would be larger than 32 Mb, each rendering is
  * separately saved in the ImageJ directory under the name "VolumeJ_Cine_XXXX.tif".
+ * Each view is rendered by all processors (see VJRenderer.renderScanlines()), while
+ * the previous view is added to the stack or saved in a separate thread.
  *
  * Copyright (c) 2001-2002, Michael Abramoff. All rights reserved.
  * @author: Michael Abramoff
@@ -40,6 +42,9 @@ public class VJRenderViewCine extends VJRenderView
 	protected double                stepx, stepy, stepz;
 	/** Whether the cine rendering will be written to disk only or also displayed. **/
 	protected boolean               toDisk;
+	/** The cine stack and its window (if not written to disk). */
+	protected ImageStack            rs;
+	protected ImagePlus             imp;
 
 	/**
 	 * Instantiates a new rendering shell: a wrapper for a VJRenderer to allow
@@ -80,59 +85,89 @@ public class VJRenderViewCine extends VJRenderView
 		if (toDisk)
 			IJ.showMessage("VolumeJ",
 				"Renderings will not be shown but only written to the ImageJ directory as separate VolumeJ_Cine1xxxx.tif image files.");
-		ImagePlus imp = null;
-		ImageStack rs = null;
+		imp = null;
+		rs = null;
 		float ms = 0;
+		// Stores the previous view while the next one is rendered.
+		Thread writer = null;
 		// Create the views in a stack rs.
 		for (int j = 0; j < n && running; j++)
 		{
 			// Render the view.
 			renderer.setDescription(""+j+"/"+n);
 			renderer.setSequenceNumber(j);
-			ImageProcessor ip = renderToImageProcessor();
+			final ImageProcessor ip = renderToImageProcessor();
 			ms += renderer.getTimePerPixel();
 			// Process the rendered image.
 			if (ip instanceof ImageProcessor)
 			{
-				if (! toDisk)
+				// Wait for the previous view to be stored.
+				join(writer);
+				final int view = j;
+				writer = new Thread("VolumeJ cine writer")
 				{
-					// Update the stack and show in window.
-					if (j == 0)
-					{
-						rs = new ImageStack(ip.getWidth(), ip.getHeight());
-						rs.addSlice(""+j, ip);
-						imp =  new ImagePlus(message, rs);
-						imp.show();
-					}
-					else
-					{
-						// Add the view as the last slice.
-						//VJUserInterface.write("adding rendering as last slice.");
-						rs.addSlice(""+j, ip);
-						imp.setStack(null, rs);
-						// Show the last slice
-						imp.setSlice(j+1);
-					}
-				}
-				else
-				{
-					// Save the rendering to disk as separate images,
-					// do not make stack, do not show.
-					imp = new ImagePlus(message, ip);
-					FileSaver fs = new FileSaver(imp);
-					fs.saveAsTiff("VolumeJ_Cine_"+(10000+j)+".tif");
-				}
+					public void run() { addView(ip, view); }
+				};
+				writer.start();
 			}
 			// Go to the next rendering.
 			nextView(j);
 		}
+		join(writer);
 		float averagems = ms / n;
 		VJUserInterface.write(""+averagems+" ms/pixel.");
+		flushInterpolator();
 
 		// Try  garbage collection.
 		System.gc();
 		IJ.showStatus("memory use "+memoryInUse());
 	}
+	/**
+	 * Add a rendered view to the stack, or write it to disk.
+	 * @param ip the rendering.
+	 * @param j the number of the view.
+	 */
+	protected void addView(ImageProcessor ip, int j)
+	{
+		if (! toDisk)
+		{
+			// Update the stack and show in window.
+			if (j == 0)
+			{
+				rs = new ImageStack(ip.getWidth(), ip.getHeight());
+				rs.addSlice(""+j, ip);
+				imp =  new ImagePlus(message, rs);
+				imp.show();
+			}
+			else
+			{
+				// Add the view as the last slice.
+				//VJUserInterface.write("adding rendering as last slice.");
+				rs.addSlice(""+j, ip);
+				imp.setStack(null, rs);
+				// Show the last slice
+				imp.setSlice(j+1);
+			}
+		}
+		else
+		{
+			// Save the rendering to disk as separate images,
+			// do not make stack, do not show.
+			ImagePlus imp = new ImagePlus(message, ip);
+			FileSaver fs = new FileSaver(imp);
+			fs.saveAsTiff("VolumeJ_Cine_"+(10000+j)+".tif");
+		}
+	}
+	private static void join(Thread thread)
+	{
+		if (thread == null)
+			return;
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e) { VJUserInterface.write("cine rendering interrupted"); }
+	}
 	/**
 	* Prepare for the next rendering in a cine rendering.
 	* In this case, rotate the transformation matrix (i.e. the volume) by
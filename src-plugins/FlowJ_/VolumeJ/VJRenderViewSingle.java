@@ -72,6 +72,7 @@ public class VJRenderViewSingle extends VJRenderView
                 }
                 long elapsedTime = System.currentTimeMillis() - start;
                 report(elapsedTime);
+                flushInterpolator();
 
                 // Try  garbage collection.
                 IJ.showStatus("gc...");
@@ -81,6 +81,7 @@ public class VJRenderViewStereo extends VJRenderView
 
 		long elapsedTime = System.currentTimeMillis() - start;
 		report(elapsedTime);
+		flushInterpolator();
 
 		// Try  garbage collection.
 		IJ.showStatus("gc...");
@@ -1,5 +1,6 @@
 package VolumeJ;
 import java.awt.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import volume.*;
 
 /**
@@ -16,6 +17,8 @@ import volume.*;
  * ioffset, joffset, koffset the offsets of the volume in viewspace.
  * pixels the viewport buffer
  * </pre>
+ * Renderers that can render each scanline independently can implement newScanline()
+ * and call renderScanlines() from run(); the scanlines are then rendered by several threads.
  *
  * Copyright (c) 1999-2002, Michael Abramoff. All rights reserved.
  * @author: Michael Abramoff
@@ -88,6 +91,22 @@ public abstract class VJRenderer extends Thread
         protected int		        tracei, tracej;
         protected String	        traceString;
         protected String	        description;
+        /** Number of threads rendering the scanlines of the viewport. */
+        protected int                   nThreads = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Renders single scanlines of the viewport.
+         * Every rendering thread gets its own instance, so implementations can keep
+         * scratch objects (values, gradients) instead of allocating them for every sample.
+         */
+        protected interface Scanline
+        {
+                /**
+                 * Render row j of the viewport into pixels.
+                 * @param j the row (y on image).
+                 */
+                void render(int j);
+        }
 
         /**
          * Create a new default renderer with specified interpolator, shader and classifier.
@@ -278,6 +297,68 @@ public abstract class VJRenderer extends Thread
         public void run()
         {
         }
+        /**
+         * Create a Scanline for one rendering thread.
+         * Overload when using renderScanlines().
+         * @return a new Scanline, or null if this renderer cannot render scanlines independently.
+         */
+        protected Scanline newScanline()
+        {
+                return null;
+        }
+        /**
+         * Render all scanlines of the viewport with nThreads threads.
+         * The scanlines are handed out one at a time, so that threads that finish early
+         * take over the remaining work (rays through empty space are much cheaper than
+         * rays through the object). Stops when running is set to false.
+         */
+        protected void renderScanlines()
+        {
+                final AtomicInteger ai = new AtomicInteger(0);
+                final AtomicInteger done = new AtomicInteger(0);
+                Thread [] threads = new Thread[Math.max(1, Math.min(nThreads, height))];
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        Scanline scanline = newScanline();
+                                        for (int j = ai.getAndIncrement(); j < height && running; j = ai.getAndIncrement())
+                                        {
+                                                scanline.render(j);
+                                                int n = done.incrementAndGet();
+                                                VJUserInterface.status("Render "+message+"("+(100*n)/height+"%)...");
+                                                VJUserInterface.progress((float)n/(float) height);
+                                        }
+                                }
+                        };
+                if (threads.length == 1)
+                {
+                        // No need for an extra thread.
+                        threads[0].run();
+                        return;
+                }
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                {
+                        threads[ithread].setPriority(Thread.currentThread().getPriority());
+                        threads[ithread].start();
+                }
+                try
+                {
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                                threads[ithread].join();
+                }
+                catch (InterruptedException e)
+                {
+                        running = false;
+                        VJUserInterface.write("rendering interrupted");
+                }
+        }
+        /**
+         * Set the number of threads used to render the viewport.
+         * @param nThreads the number of threads (at least 1).
+         */
+        public void setThreads(int nThreads) { this.nThreads = Math.max(1, nThreads); }
         /**
         * The kill method is called when this renderer is to stop.
         * You can add wrapup method calls in this method.
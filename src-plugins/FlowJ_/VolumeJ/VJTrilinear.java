@@ -119,18 +119,29 @@ public class VJTrilinear extends VJInterpolator
          * @return a VJGradient with the interpolated value(s).
          */
         public VJGradient gradient(Volume v, VJVoxelLoc vl)
+        {
+                return gradient(new VJGradient(), v, vl);
+        }
+        /**
+         * Compute an interpolated gradient from a volume into g.
+         * @param g the VJGradient that will contain the interpolated value(s).
+         * @param v the volume.
+         * @param vl the VJVoxelLoc where to interpolate the gradient
+         * @return g
+         */
+        public VJGradient gradient(VJGradient g, Volume v, VJVoxelLoc vl)
         {
                 if (v instanceof VolumeShort)
                 {
                         if (((VolumeShort) v).getIndexed())
-                                return gradient(((VolumeShort) v).v, 0x000000ff, vl);
+                                return gradient(g, ((VolumeShort) v).v, 0x000000ff, vl);
                         else
-                                return gradient(((VolumeShort) v).v, vl);
+                                return gradient(g, ((VolumeShort) v).v, vl);
                 }
                 else if (v instanceof VolumeFloat)
-                        return gradient(((VolumeFloat) v).v, vl);
+                        return gradient(g, ((VolumeFloat) v).v, vl);
                 else if (v instanceof VolumeRGB)
-                        return gradient(((VolumeRGB) v).b, v.getHeight(), v.getWidth(), vl);
+                        return gradient(g, ((VolumeRGB) v).b, v.getHeight(), v.getWidth(), vl);
                 else
                 {
                         VJUserInterface.error("unknown Volume type v");
@@ -301,11 +312,12 @@ public class VJTrilinear extends VJInterpolator
         }
         /**
          * Interpolate the gradient *xyz* in a float volume.
+         * @param g the VJGradient that will contain the gradient.
          * @param v the volume in which to interpolate
          * @param vl the location where to interpolate.
          * @return the VJGradient containing the 3 dimensional vector of the gradient.
          */
-        protected static VJGradient gradient(float [][][] v, VJVoxelLoc vl)
+        protected static VJGradient gradient(VJGradient g, float [][][] v, VJVoxelLoc vl)
         {
                 // compute the interpolation deltas of the object coordinates
                 vl.getWeights();
@@ -336,20 +348,20 @@ public class VJTrilinear extends VJInterpolator
                         (v[vl.iz][vl.iy+1][vl.ix]-v[vl.iz+2][vl.iy+1][vl.ix]) * vl.blb +     // BLB
                         (v[vl.iz][vl.iy][vl.ix+1]-v[vl.iz+2][vl.iy][vl.ix+1]) * vl.trb +     // TRB
                         (v[vl.iz][vl.iy+1][vl.ix+1]-v[vl.iz+2][vl.iy+1][vl.ix+1]) * vl.brb;  // BRB
-                VJGradient g = new VJGradient(gx, gy, gz);
+                g.set(gx, gy, gz);
                 return g;
         }
         /**
          * Interpolate the gradient *xyz* in a short volume.
+         * @param g the VJGradient that will contain the gradient.
          * @param v the volume in which to interpolate
          * @param vl the location where to interpolate.
          * @return the VJGradient containing the 3 dimensional vector of the gradient.
          */
-        protected static VJGradient gradient(short [][][] v, VJVoxelLoc vl)
+        protected static VJGradient gradient(VJGradient g, short [][][] v, VJVoxelLoc vl)
         {
                 // compute the interpolation deltas of the object coordinates
                 vl.getWeights();
-                VJGradient g = null;
                 try
                 {
                 double gx =
@@ -379,18 +391,19 @@ public class VJTrilinear extends VJInterpolator
                         (((int)v[vl.iz][vl.iy+1][vl.ix]&0xffff)-((int)v[vl.iz+2][vl.iy+1][vl.ix]&0xffff)) * vl.blb +     // BLB
                         (((int)v[vl.iz][vl.iy][vl.ix+1]&0xffff)-((int)v[vl.iz+2][vl.iy][vl.ix+1]&0xffff)) * vl.trb +     // TRB
                         (((int)v[vl.iz][vl.iy+1][vl.ix+1]&0xffff)-((int)v[vl.iz+2][vl.iy+1][vl.ix+1]&0xffff)) * vl.brb;  // BRB
-                g = new VJGradient(gx, gy, gz);
+                g.set(gx, gy, gz);
                 }
-                catch (ArrayIndexOutOfBoundsException e) { System.out.println("gradient error: VoxelLoc="+vl+" error="+e); }
+                catch (ArrayIndexOutOfBoundsException e) { System.out.println("gradient error: VoxelLoc="+vl+" error="+e); return null; }
                 return g;
         }
          /**
          * Interpolate the gradient *xyz* in a byte volume.
+         * @param g the VJGradient that will contain the gradient.
          * @param v the volume in which to interpolate
          * @param vl the location where to interpolate.
          * @return the VJGradient containing the 3 dimensional vector of the gradient.
          */
-        protected static VJGradient gradient(byte [] v, int height, int width, VJVoxelLoc vl)
+        protected static VJGradient gradient(VJGradient g, byte [] v, int height, int width, VJVoxelLoc vl)
         {
                 // compute the interpolation deltas of the object coordinates
                 vl.getWeights();
@@ -423,16 +436,17 @@ public class VJTrilinear extends VJInterpolator
                         (((int)v[(vl.iz)*height*width+(vl.iy+1)*width+(vl.ix)]&0xff)-((int)v[(vl.iz+2)*height*width+(vl.iy+1)*width+(vl.ix)]&0xff)) * vl.blb +// BLB
                         (((int)v[(vl.iz)*height*width+(vl.iy)*width+(vl.ix+1)]&0xff)-((int)v[(vl.iz+2)*height*width+(vl.iy)*width+(vl.ix+1)]&0xff)) * vl.trb +     // TRB
                         (((int)v[(vl.iz)*height*width+(vl.iy+1)*width+(vl.ix+1)]&0xff)-((int)v[(vl.iz+2)*height*width+(vl.iy+1)*width+(vl.ix+1)]&0xff)) * vl.brb; // BRB
-                VJGradient g = new VJGradient(gx, gy, gz);
+                g.set(gx, gy, gz);
                 return g;
         }
          /**
          * Interpolate the gradient *xyz* in a short volume with a mask.
+         * @param g the VJGradient that will contain the gradient.
          * @param v the volume in which to interpolate
          * @param vl the location where to interpolate.
          * @return the VJGradient containing the 3 dimensional vector of the gradient.
          */
-        protected static VJGradient gradient(short [][][] v, int mask, VJVoxelLoc vl)
+        protected static VJGradient gradient(VJGradient g, short [][][] v, int mask, VJVoxelLoc vl)
         {
                 // compute the interpolation deltas of the object coordinates
                 vl.getWeights();
@@ -467,7 +481,7 @@ public class VJTrilinear extends VJInterpolator
                         (((int)v[vl.iz][vl.iy+1][vl.ix]&mask)-((int)v[vl.iz+2][vl.iy+1][vl.ix]&mask)) * vl.blb +     // BLB
                         (((int)v[vl.iz][vl.iy][vl.ix+1]&mask)-((int)v[vl.iz+2][vl.iy][vl.ix+1]&mask)) * vl.trb +     // TRB
                         (((int)v[vl.iz][vl.iy+1][vl.ix+1]&mask)-((int)v[vl.iz+2][vl.iy+1][vl.ix+1]&mask)) * vl.brb;  // BRB
-                VJGradient g = new VJGradient(gx, gy, gz);
+                g.set(gx, gy, gz);
                 return g;
         }
         public String toString() { return " trilinear "; }
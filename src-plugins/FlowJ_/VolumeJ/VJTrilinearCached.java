@@ -0,0 +1,55 @@
+package VolumeJ;
+import volume.*;
+
+/**
+ * Trilinear interpolation with precomputed gradients.
+ * Values are interpolated as in VJTrilinear, gradients are interpolated from
+ * the (quantized) gradient volume of the rendered volume, see VJGradientVolume.
+ * The gradient volume is built at the first gradient interpolation and shared
+ * by all views of a rendering; the render views flush() it when they are done.
+ * If there is not enough memory for the gradient volume, the gradients are computed
+ * as in VJTrilinear.
+ */
+public class VJTrilinearCached extends VJTrilinear
+{
+        /** A gradient volume and the volume it belongs to. */
+        private static class Gradients
+        {
+                final Volume                    v;
+                final VJGradientVolume          gradients;
+
+                Gradients(Volume v, VJGradientVolume gradients) { this.v = v; this.gradients = gradients; }
+        }
+        private volatile Gradients      gradients;
+
+        /**
+         * Compute an interpolated gradient from the gradient volume of v into g.
+         * @param g the VJGradient that will contain the interpolated value(s).
+         * @param v the volume.
+         * @param vl the VJVoxelLoc where to interpolate the gradient
+         * @return g
+         */
+        public VJGradient gradient(VJGradient g, Volume v, VJVoxelLoc vl)
+        {
+                Gradients c = gradients;
+                if (c == null || c.v != v)
+                {
+                        c = new Gradients(v, VJGradientVolume.get(v));
+                        gradients = c;
+                }
+                if (c.gradients == null)
+                        return super.gradient(g, v, vl);
+                return c.gradients.gradient(g, vl);
+        }
+        /**
+         * Release the gradient volume, e.g. when the rendering has ended.
+         */
+        public void flush()
+        {
+                Gradients c = gradients;
+                gradients = null;
+                if (c != null)
+                        VJGradientVolume.flush(c.v);
+        }
+        public String toString() { return " trilinear (cached gradients) "; }
+}
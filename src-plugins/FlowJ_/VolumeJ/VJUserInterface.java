@@ -255,7 +255,7 @@ implements ActionListener, ClipboardOwner, ItemListener, KeyListener
 		String [] saspect = { ""+aspectx, ""+aspecty, ""+aspectz };
 		aspectField = createXYZField(params1, "Aspect ratios:", saspect, 1);
 
-		String [] sinterpolation = { "nearest neighbor", "trilinear" };
+		String [] sinterpolation = { "nearest neighbor", "trilinear", "trilinear (cached gradients)" };
 		interpolationChoice = createChoice(params1, "Interpolation", sinterpolation, 1);
 		cineNField = createTextField(params1, "Cine total rotation(º):", "360", 1);
 		cineField = createTextField(params1, "Cine frame increment(º):", "10", 1);
@@ -383,6 +383,8 @@ implements ActionListener, ClipboardOwner, ItemListener, KeyListener
 			VJInterpolator interpolator = null;
 			if (interpolation == 1)
 				interpolator = new VJTrilinear();
+			else if (interpolation == 2)
+				interpolator = new VJTrilinearCached();
 			else
 				interpolator = new VJNearestNeighbor();
 			// Check the shader.
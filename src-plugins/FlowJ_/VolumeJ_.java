@@ -67,7 +67,7 @@ public class VolumeJ_ implements PlugIn
 	 * a user interface. Straightly sets up a rendering.
 	 * @param algorithm int 0 = RAYTRACE< 1 = ISOSURFACE
 	 * @param mode int 0 = mono, 1 = stereo, 2 = cine
-	 * @param interpolation int 0 = NN, 1 = trilinear
+	 * @param interpolation int 0 = NN, 1 = trilinear, 2 = trilinear with cached gradients
 	 * @param lightx int
 	 * @param lighty int
 	 * @param lightz int
@@ -98,6 +98,8 @@ public class VolumeJ_ implements PlugIn
 	    VJInterpolator interpolator = null;
 	    if (interpolation == 1)
 	      interpolator = new VJTrilinear();
+	    else if (interpolation == 2)
+	      interpolator = new VJTrilinearCached();
 	    else
 	      interpolator = new VJNearestNeighbor();
 	    // Check the shader.
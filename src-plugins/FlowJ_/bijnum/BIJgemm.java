@@ -0,0 +1,283 @@
+package bijnum;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.*;
+
+/**
+ * Cache-blocked, multi-threaded matrix product kernels for large float matrices.
+ * BIJmatrix.mul(), BIJmatrix.mulT() and BIJstats.covariance() use these kernels.
+ *
+ * The products are computed a few result rows at a time (register tiling), on
+ * blocks of columns (or of the inner dimension) that stay in the cache,
+ * with the rows of the result divided over one thread per processor.
+ * Each result element is accumulated in the same order as in the naive
+ * triple loops, so the results are identical to those of the previous versions,
+ * except for a*b', whose products are now formed in double instead of float.
+ * Small products (as in the per pixel computations in FlowJ) are computed
+ * in the calling thread.
+ */
+public class BIJgemm
+{
+        /** Products with fewer multiply-adds than this are computed in the calling thread. */
+        public static int               PARALLEL_WORK = 1 << 20;
+        /** Number of columns of the result computed per pass over the inner dimension. */
+        protected static final int      COLUMNS = 512;
+        /** Length of the blocks of the inner dimension of mulTransposeB. */
+        protected static final int      INNER = 1024;
+        /** Number of rows of the right matrix per block in mulTransposeB. */
+        protected static final int      ROWS = 64;
+
+        /**
+         * Compute the matrix product c = a * b.
+         * @param c a matrix of float[N][M] for the result (not a or b).
+         * @param a a matrix of float[N][P]
+         * @param b a matrix of float[P][M]
+         * @param doShowProgress whether to show the progress.
+         */
+        public static void mul(final float [][] c, final float [][] a, final float [][] b, final boolean doShowProgress)
+        {
+                rows(a.length, (long) a.length * b.length * b[0].length, 4, doShowProgress, new Rows()
+                {
+                        public void compute(int i0, int i1) { mul(c, a, false, b, i0, i1); }
+                });
+        }
+        /**
+         * Compute the matrix product c = a' * b, without transposing a.
+         * @param c a matrix of float[N][M] for the result (not a or b).
+         * @param a a matrix of float[P][N]
+         * @param b a matrix of float[P][M]
+         * @param doShowProgress whether to show the progress.
+         */
+        public static void mulTransposeA(final float [][] c, final float [][] a, final float [][] b, final boolean doShowProgress)
+        {
+                rows(a[0].length, (long) a[0].length * b.length * b[0].length, 4, doShowProgress, new Rows()
+                {
+                        public void compute(int i0, int i1) { mul(c, a, true, b, i0, i1); }
+                });
+        }
+        /**
+         * Compute the matrix product c = a * b' (dot products of the rows of a and b),
+         * accumulated in double.
+         * @param c a matrix of float[N][M] for the result.
+         * @param a a matrix of float[N][P]
+         * @param b a matrix of float[M][P]
+         * @param symmetric true if b == a: only the upper triangle is computed, and then mirrored.
+         * @param doShowProgress whether to show the progress.
+         */
+        public static void mulTransposeB(final float [][] c, final float [][] a, final float [][] b,
+                final boolean symmetric, final boolean doShowProgress)
+        {
+                final int blockRows = 16;
+                rows(a.length, (long) a.length * b.length * a[0].length, blockRows, doShowProgress, new Rows()
+                {
+                        public void compute(int i0, int i1)
+                        {
+                                double [][] s = new double[i1 - i0][ROWS];
+                                for (int j0 = symmetric ? i0 - i0 % ROWS : 0; j0 < b.length; j0 += ROWS)
+                                {
+                                        int j1 = Math.min(b.length, j0 + ROWS);
+                                        mulTransposeB(s, a, i0, i1, b, j0, j1);
+                                        for (int i = i0; i < i1; i++)
+                                        for (int j = j0; j < j1; j++)
+                                                c[i][j] = (float) s[i-i0][j-j0];
+                                }
+                        }
+                });
+                if (symmetric)
+                        for (int i = 0; i < a.length; i++)
+                        for (int j = i + 1; j < a.length; j++)
+                                c[j][i] = c[i][j];
+        }
+        /**
+         * Compute the dot products of rows i0..i1-1 of a with rows j0..j1-1 of b
+         * into s[i-i0][j-j0], in the calling thread. The products are formed and
+         * accumulated in double, which keeps |u|^2 + |d|^2 - 2 u.d accurate for close vectors.
+         * This is the building block of mulTransposeB, e.g. for distance computations.
+         * @param s a double[i1-i0][j1-j0] (or larger) matrix for the result.
+         */
+        public static void mulTransposeB(double [][] s, float [][] a, int i0, int i1, float [][] b, int j0, int j1)
+        {
+                int n = a[i0].length;
+                for (int i = i0; i < i1; i++)
+                for (int j = j0; j < j1; j++)
+                        s[i-i0][j-j0] = 0;
+                for (int k0 = 0; k0 < n; k0 += INNER)
+                {
+                        int k1 = Math.min(n, k0 + INNER);
+                        int i = i0;
+                        // 2x2 tiles.
+                        for (; i + 1 < i1; i += 2)
+                        {
+                                float [] a0 = a[i], a1 = a[i+1];
+                                double [] s0 = s[i-i0], s1 = s[i+1-i0];
+                                int j = j0;
+                                for (; j + 1 < j1; j += 2)
+                                {
+                                        float [] b0 = b[j], b1 = b[j+1];
+                                        double s00 = s0[j-j0], s01 = s0[j+1-j0], s10 = s1[j-j0], s11 = s1[j+1-j0];
+                                        for (int k = k0; k < k1; k++)
+                                        {
+                                                float x0 = a0[k], x1 = a1[k], y0 = b0[k], y1 = b1[k];
+                                                s00 += (double) x0 * y0; s01 += (double) x0 * y1;
+                                                s10 += (double) x1 * y0; s11 += (double) x1 * y1;
+                                        }
+                                        s0[j-j0] = s00; s0[j+1-j0] = s01; s1[j-j0] = s10; s1[j+1-j0] = s11;
+                                }
+                                if (j < j1)
+                                {
+                                        float [] b0 = b[j];
+                                        double s00 = s0[j-j0], s10 = s1[j-j0];
+                                        for (int k = k0; k < k1; k++)
+                                        {
+                                                s00 += (double) a0[k] * b0[k];
+                                                s10 += (double) a1[k] * b0[k];
+                                        }
+                                        s0[j-j0] = s00; s1[j-j0] = s10;
+                                }
+                        }
+                        if (i < i1)
+                        {
+                                float [] a0 = a[i];
+                                double [] s0 = s[i-i0];
+                                for (int j = j0; j < j1; j++)
+                                {
+                                        float [] b0 = b[j];
+                                        double s00 = s0[j-j0];
+                                        for (int k = k0; k < k1; k++)
+                                                s00 += (double) a0[k] * b0[k];
+                                        s0[j-j0] = s00;
+                                }
+                        }
+                }
+        }
+        /**
+         * Compute the matrix vector product r += a * v.
+         * @param r a float[N] vector to which the result is added.
+         * @param a a matrix of float[N][M]
+         * @param v a float[M] vector.
+         */
+        public static void mul(final float [] r, final float [][] a, final float [] v)
+        {
+                rows(r.length, (long) r.length * v.length, 64, false, new Rows()
+                {
+                        public void compute(int i0, int i1)
+                        {
+                                for (int i = i0; i < i1; i++)
+                                {
+                                        float [] ai = a[i];
+                                        float s = r[i];
+                                        for (int k = 0; k < v.length; k++)
+                                                s += ai[k]*v[k];
+                                        r[i] = s;
+                                }
+                        }
+                });
+        }
+        /**
+         * Compute rows i0..i1-1 of c = a * b (or a' * b), 4 rows at a time,
+         * on blocks of COLUMNS columns, accumulating in float in the order of the inner dimension.
+         */
+        private static void mul(float [][] c, float [][] a, boolean transposeA, float [][] b, int i0, int i1)
+        {
+                int p = b.length;
+                int m = b[0].length;
+                for (int j0 = 0; j0 < m; j0 += COLUMNS)
+                {
+                        int j1 = Math.min(m, j0 + COLUMNS);
+                        int i = i0;
+                        for (; i + 3 < i1; i += 4)
+                        {
+                                float [] c0 = c[i], c1 = c[i+1], c2 = c[i+2], c3 = c[i+3];
+                                for (int j = j0; j < j1; j++)
+                                        c0[j] = c1[j] = c2[j] = c3[j] = 0;
+                                for (int k = 0; k < p; k++)
+                                {
+                                        float x0, x1, x2, x3;
+                                        if (transposeA)
+                                        {
+                                                float [] ak = a[k];
+                                                x0 = ak[i]; x1 = ak[i+1]; x2 = ak[i+2]; x3 = ak[i+3];
+                                        }
+                                        else
+                                        {
+                                                x0 = a[i][k]; x1 = a[i+1][k]; x2 = a[i+2][k]; x3 = a[i+3][k];
+                                        }
+                                        float [] bk = b[k];
+                                        for (int j = j0; j < j1; j++)
+                                        {
+                                                float y = bk[j];
+                                                c0[j] += x0 * y;
+                                                c1[j] += x1 * y;
+                                                c2[j] += x2 * y;
+                                                c3[j] += x3 * y;
+                                        }
+                                }
+                        }
+                        for (; i < i1; i++)
+                        {
+                                float [] c0 = c[i];
+                                for (int j = j0; j < j1; j++)
+                                        c0[j] = 0;
+                                for (int k = 0; k < p; k++)
+                                {
+                                        float x0 = transposeA ? a[k][i] : a[i][k];
+                                        float [] bk = b[k];
+                                        for (int j = j0; j < j1; j++)
+                                                c0[j] += x0 * bk[j];
+                                }
+                        }
+                }
+        }
+        /** Computes a range of rows of a result. */
+        protected interface Rows
+        {
+                void compute(int i0, int i1);
+        }
+        /**
+         * Compute n rows in blocks of blockRows rows, in parallel if the work is large enough.
+         * @param n the number of rows.
+         * @param work the number of multiply-adds.
+         */
+        protected static void rows(final int n, long work, final int blockRows, final boolean doShowProgress, final Rows rows)
+        {
+                int nThreads = Runtime.getRuntime().availableProcessors();
+                if (work < PARALLEL_WORK || nThreads < 2 || n <= blockRows)
+                {
+                        for (int i0 = 0; i0 < n; i0 += blockRows)
+                        {
+                                rows.compute(i0, Math.min(n, i0 + blockRows));
+                                if (doShowProgress)
+                                        IJ.showProgress(i0, n);
+                        }
+                        return;
+                }
+                final AtomicInteger ai = new AtomicInteger(0);
+                final AtomicInteger done = new AtomicInteger(0);
+                Thread [] threads = new Thread[Math.min(nThreads, (n + blockRows - 1) / blockRows)];
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        for (int i0 = ai.getAndAdd(blockRows); i0 < n; i0 = ai.getAndAdd(blockRows))
+                                        {
+                                                int i1 = Math.min(n, i0 + blockRows);
+                                                rows.compute(i0, i1);
+                                                int d = done.addAndGet(i1 - i0);
+                                                if (doShowProgress)
+                                                        IJ.showProgress(d, n);
+                                        }
+                                }
+                        };
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                {
+                        threads[ithread].setPriority(Thread.NORM_PRIORITY);
+                        threads[ithread].start();
+                }
+                try
+                {
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                                threads[ithread].join();
+                }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
+        }
+}
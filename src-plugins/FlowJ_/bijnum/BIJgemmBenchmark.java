@@ -0,0 +1,105 @@
+package bijnum;
+
+/**
+ * Compares the BIJgemm kernels with the naive triple loops they replace,
+ * for the products used in PCA (covariance a*a' and eigenimages ev'*a).
+ * Run as
+ * <pre>
+ * java bijnum.BIJgemmBenchmark [rows [columns [repetitions]]]
+ * </pre>
+ * on a random data matrix of rows x columns. Reports the times and the largest
+ * differences between the results (0 for ev'*a; a*a' forms its products in
+ * double, so it differs by rounding only).
+ */
+public class BIJgemmBenchmark
+{
+        public static void main(String [] args)
+        {
+                int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+                int columns = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+                int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+                java.util.Random random = new java.util.Random(1);
+                float [][] a = new float[rows][columns];
+                for (int j = 0; j < rows; j++)
+                for (int i = 0; i < columns; i++)
+                        a[j][i] = random.nextFloat() - 0.5f;
+                float [][] ev = new float[rows][rows];
+                for (int j = 0; j < rows; j++)
+                for (int i = 0; i < rows; i++)
+                        ev[j][i] = random.nextFloat() - 0.5f;
+                System.out.println(rows+"x"+columns+" data matrix, "+Runtime.getRuntime().availableProcessors()+" processors");
+
+                float [][] naive = null, blocked = null;
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < repetitions; r++)
+                {
+                        long start = System.currentTimeMillis();
+                        naive = covariance(a);
+                        best = Math.min(best, System.currentTimeMillis() - start);
+                }
+                System.out.println("a*a'  naive:   "+best+"ms");
+                best = Long.MAX_VALUE;
+                for (int r = 0; r < repetitions; r++)
+                {
+                        long start = System.currentTimeMillis();
+                        blocked = new float[rows][rows];
+                        BIJgemm.mulTransposeB(blocked, a, a, true, false);
+                        best = Math.min(best, System.currentTimeMillis() - start);
+                }
+                System.out.println("a*a'  BIJgemm: "+best+"ms, largest difference "+difference(naive, blocked));
+
+                best = Long.MAX_VALUE;
+                for (int r = 0; r < repetitions; r++)
+                {
+                        long start = System.currentTimeMillis();
+                        naive = mulT(a, ev);
+                        best = Math.min(best, System.currentTimeMillis() - start);
+                }
+                System.out.println("ev'*a naive:   "+best+"ms");
+                best = Long.MAX_VALUE;
+                for (int r = 0; r < repetitions; r++)
+                {
+                        long start = System.currentTimeMillis();
+                        blocked = BIJmatrix.mulT(a, ev, false);
+                        best = Math.min(best, System.currentTimeMillis() - start);
+                }
+                System.out.println("ev'*a BIJgemm: "+best+"ms, largest difference "+difference(naive, blocked));
+        }
+        /** The previous BIJstats.covariance() without normalization. */
+        static float [][] covariance(float [][] m)
+        {
+                float [][] cov = new float[m.length][m.length];
+                for (int j = 0; j < m.length; j++)
+                for (int i = 0; i < m.length; i++)
+                {
+                        double r = 0;
+                        for (int k = 0; k < m[0].length; k++)
+                                 r += m[j][k] * m[i][k];
+                        cov[j][i] = (float) r;
+                }
+                return cov;
+        }
+        /** The previous BIJmatrix.mulT(). */
+        static float [][] mulT(float [][] a, float [][] b)
+        {
+                int iN = a[0].length; int iM = b[0].length;
+                float [][] n = new float[iM][iN];
+                for (int j = 0; j < iN; j++)
+                for (int i = 0; i < iM; i++)
+                {
+                        float r = 0;
+                        for (int k = 0; k < b.length; k++)
+                                 r += a[k][j] * b[k][i];
+                        n[i][j] = r;
+                }
+                return n;
+        }
+        static float difference(float [][] a, float [][] b)
+        {
+                float max = 0;
+                for (int j = 0; j < a.length; j++)
+                for (int i = 0; i < a[0].length; i++)
+                        max = Math.max(max, Math.abs(a[j][i] - b[j][i]));
+                return max;
+        }
+}
@@ -1,6 +1,8 @@
 package bijnum;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.process.*;
 import java.awt.*;
@@ -40,6 +42,12 @@ public class BIJknn
         public int n = 0;
         public static int inserts = 0;
 
+        /** Number of unknown vectors classified together. */
+        protected static final int UNKNOWNS = 32;
+        /** Number of dataset vectors compared to a block of unknown vectors at a time. */
+        protected static final int NEIGHBORS = 256;
+        /** Number of extra candidates that classify() ranks again by their exact distance. */
+        protected static final int RERANK = 8;
         /** Some variables that I do not want to allocate for every element. */
         protected float [] kDistances;
         protected int [] kIndices;
@@ -93,47 +101,119 @@ public class BIJknn
         }
         /**
          * Find the classification of M (N dimensional) vectors unknown in the dataset.
+         * The distances are computed for blocks of unknown and dataset vectors at a time
+         * as |u|^2 + |d|^2 - 2 u.d, with the dot products from BIJgemm,
+         * and the blocks of unknown vectors are classified in parallel.
+         * The k + RERANK nearest candidates are then ranked by their exact distance,
+         * so that the result is the same as that of search().
          * @param unknown a MxN matrix of M vectors to be classified in the dataset.
          * @param k the number of neighbors to use for classification
          * @return classification a vector that will contain the nearest neighbor classificiations for the corresponding vectors in unknown.
          */
-        public float [] classify(float [][] unknown, int k)
+        public float [] classify(final float [][] unknown, final int k)
         {
-                int [] kneighbors = new int[k];
-                float [] kDistances = new float[k];
-                float [] classification = new float[unknown.length];
-                for (int i = 0; i < classification.length; i++)
-                {
-                        search(kneighbors, kDistances, unknown[i], k);
-                        int [] votes = new int[n];
-                        // Tally the votes for each class in kneighbors.
-                        for (int l = 0; l < kneighbors.length; l++)
+                final float [] classification = new float[unknown.length];
+                final double [] dnorms = norms(dataset);
+                final AtomicInteger ai = new AtomicInteger(0);
+                Thread [] threads = new Thread[Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                        (unknown.length + UNKNOWNS - 1) / UNKNOWNS))];
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
                         {
-                                try
+                                public void run()
                                 {
-                                        votes[(int) classset[kneighbors[l]]]++;
-                                }
-                                catch (ArrayIndexOutOfBoundsException e)
-                                {
-                                        System.out.print("knn: index out of bounds. votes.length="+votes.length+" kneighbors.length= "+kneighbors.length+" inserts= "+BIJknn.inserts);
-                                        for (int j = 0; j < kneighbors.length; j++)
+                                        int [][] kneighbors = new int[UNKNOWNS][k + RERANK];
+                                        float [][] kDistances = new float[UNKNOWNS][k + RERANK];
+                                        int [] exactNeighbors = new int[k];
+                                        float [] exactDistances = new float[k];
+                                        int [] found = new int[UNKNOWNS];
+                                        double [][] dots = new double[UNKNOWNS][NEIGHBORS];
+                                        int inserted = 0;
+                                        for (int i0 = ai.getAndAdd(UNKNOWNS); i0 < unknown.length; i0 = ai.getAndAdd(UNKNOWNS))
                                         {
-                                                System.out.print(" kneighbors[i]="+kneighbors[j]);
-                                                System.out.print(" truth[kneighbors[i]]="+classset[kneighbors[j]]);
+                                                int i1 = Math.min(unknown.length, i0 + UNKNOWNS);
+                                                double [] unorms = norms(unknown, i0, i1);
+                                                Arrays.fill(found, 0);
+                                                for (int j0 = 0; j0 < dataset.length; j0 += NEIGHBORS)
+                                                {
+                                                        int j1 = Math.min(dataset.length, j0 + NEIGHBORS);
+                                                        BIJgemm.mulTransposeB(dots, unknown, i0, i1, dataset, j0, j1);
+                                                        for (int i = i0; i < i1; i++)
+                                                        for (int j = j0; j < j1; j++)
+                                                        {
+                                                                float distance = (float) Math.max(0, unorms[i-i0] + dnorms[j] - 2 * dots[i-i0][j-j0]);
+                                                                int n = insert(kneighbors[i-i0], kDistances[i-i0], found[i-i0], j, distance);
+                                                                if (n > 0)
+                                                                {
+                                                                        found[i-i0] = n;
+                                                                        inserted++;
+                                                                }
+                                                        }
+                                                }
+                                                for (int i = i0; i < i1; i++)
+                                                {
+                                                        // Insert the candidates in dataset order, as search() would.
+                                                        int [] candidates = kneighbors[i-i0];
+                                                        Arrays.sort(candidates, 0, found[i-i0]);
+                                                        int n = 0;
+                                                        for (int l = 0; l < found[i-i0]; l++)
+                                                        {
+                                                                int j = candidates[l];
+                                                                int m = insert(exactNeighbors, exactDistances, n, j, distance(unknown[i], dataset[j]));
+                                                                if (m > 0) n = m;
+                                                        }
+                                                        classification[i] = vote(exactNeighbors, n);
+                                                }
                                         }
-                                        System.out.println();
+                                        synchronized (BIJknn.class) { inserts += inserted; }
                                 }
-                        }
-                        int c = 0;
-                        // Find the class with the largest vote.
-                        for (int j = 0; j < votes.length; j++)
-                                if (votes[j] > votes[c]) c = j;
-                        classification[i] = c;
+                        };
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                {
+                        threads[ithread].setPriority(Thread.NORM_PRIORITY);
+                        threads[ithread].start();
                 }
+                try
+                {
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                                threads[ithread].join();
+                }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
                 return classification;
         }
+        /**
+         * Find the class with the largest vote among the first n kneighbors.
+         */
+        protected float vote(int [] kneighbors, int n)
+        {
+                int [] votes = new int[this.n];
+                // Tally the votes for each class in kneighbors.
+                for (int l = 0; l < n; l++)
+                {
+                        try
+                        {
+                                votes[(int) classset[kneighbors[l]]]++;
+                        }
+                        catch (ArrayIndexOutOfBoundsException e)
+                        {
+                                System.out.print("knn: index out of bounds. votes.length="+votes.length+" kneighbors.length= "+kneighbors.length+" inserts= "+BIJknn.inserts);
+                                for (int j = 0; j < n; j++)
+                                {
+                                        System.out.print(" kneighbors[i]="+kneighbors[j]);
+                                        System.out.print(" truth[kneighbors[i]]="+classset[kneighbors[j]]);
+                                }
+                                System.out.println();
+                        }
+                }
+                int c = 0;
+                // Find the class with the largest vote.
+                for (int j = 0; j < votes.length; j++)
+                        if (votes[j] > votes[c]) c = j;
+                return c;
+        }
         /**
          * Find the k-nearest neighbors of vector v (N dimensional) in dataset and put indices in kIndices, distances in kDistances.
+         * If the dataset contains less than k vectors, the remaining indices are -1.
          * @param kIndices a int[] of length k that will contain the indices to the k closest neighbors of v
          * @param kDistances a float[] of length k that will contain the distances to the k closest neighbors of v.
          * @param v the vector to classify
@@ -141,34 +221,59 @@ public class BIJknn
          */
         public void search(int [] kIndices, float [] kDistances, float [] v, int k)
         {
-                kDistances[0] = Float.MAX_VALUE;
-                kIndices[0] = -1;
-                int n = 1;
+                Arrays.fill(kIndices, -1);
+                Arrays.fill(kDistances, Float.MAX_VALUE);
+                int n = 0;
                 for (int j = 0; j < dataset.length; j++)
                 {
-                        float distance = distance(v, dataset[j]);
-                        // Is distance smaller than last neighbor?
-                        if (distance < kDistances[n-1])
+                        int inserted = insert(kIndices, kDistances, n, j, distance(v, dataset[j]));
+                        if (inserted > 0)
                         {
-                                // Yes, find out where exactly.
-                                int i;
-                                for (i = n-2; i >= 0; i--) if (kDistances[i] < distance) break;
-                                // i now points to the neighbor that is smaller than distance, may even be -1 if smallest.
-                                i++;
-                                // i now points to where j will go into.
-                                int l = i;
-                                while (l < (n-1))
-                                {
-                                        // From i, move all of them down one space, keeping room for j.
-                                        kDistances[i+1] = kDistances[i];
-                                        kIndices[i+1] = kIndices[i];
-                                }
-                                kDistances[i] = distance;
-                                kIndices[i] = j;
+                                n = inserted;
                                 inserts++;
-                                if (n < k) n++;
                         }
                 }
+        }
+        /**
+         * Insert neighbor j at distance into the sorted list of the n nearest neighbors so far,
+         * if it is closer than the farthest one, or the list is not full.
+         * @return the new number of neighbors in the list, or 0 if j was not inserted.
+         */
+        protected static int insert(int [] kIndices, float [] kDistances, int n, int j, float distance)
+        {
+                int k = kIndices.length;
+                // Is distance smaller than last neighbor?
+                if (n == k && distance >= kDistances[n-1])
+                        return 0;
+                // Yes, find out where exactly, and move the farther ones down one space.
+                int i = Math.min(n, k-1);
+                for (; i > 0 && kDistances[i-1] > distance; i--)
+                {
+                        kDistances[i] = kDistances[i-1];
+                        kIndices[i] = kIndices[i-1];
+                }
+                kDistances[i] = distance;
+                kIndices[i] = j;
+                return Math.min(n+1, k);
+        }
+        /**
+         * Compute the squared norms of the vectors in m.
+         */
+        protected static double [] norms(float [][] m)
+        {
+                return norms(m, 0, m.length);
+        }
+        protected static double [] norms(float [][] m, int i0, int i1)
+        {
+                double [] norms = new double[i1 - i0];
+                for (int i = i0; i < i1; i++)
+                {
+                        double d = 0;
+                        for (int k = 0; k < m[i].length; k++)
+                                d += (double) m[i][k] * m[i][k];
+                        norms[i-i0] = d;
+                }
+                return norms;
         }
          /**
           * Cleans the dataset
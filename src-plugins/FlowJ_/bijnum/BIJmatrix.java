@@ -63,19 +63,7 @@ public class BIJmatrix
         */
         public static void mul(float [][] m, float [][] a, float [][] b, boolean doShowProgress)
         {
-                int iN = a.length; int iM = b[0].length;
-                for (int j = 0; j < iN; j++)
-                {
-                        for (int i = 0; i < iM; i++)
-                        {
-                                float r = 0;
-                                for (int k = 0; k < b.length; k++)
-                                         r += a[j][k] * b[k][i];
-                                m[j][i] = r;
-                        }
-                        if (doShowProgress)
-                                IJ.showProgress(j, iN);
-                }
+                BIJgemm.mul(m, a, b, doShowProgress);
         }
 	/**
          * Compute the outer product of a matrix and a vector v
@@ -90,9 +78,7 @@ public class BIJmatrix
                 if (a[0].length != v.length)
 	               throw new IllegalArgumentException("mul dimensions do not match: "+a.length+"x"+a[0].length+" "+v.length);
 		float [] n = new float[a.length];
-                for (int i = 0; i < n.length; i++)
-                for (int k = 0; k < v.length; k++)
-                        n[i] += a[i][k]*v[k];
+                BIJgemm.mul(n, a, v);
                 return n;
         }
         /**
@@ -166,20 +152,9 @@ public class BIJmatrix
         */
         public static float [][] mulT(float [][] a, float [][] b, boolean doShowProgress)
         {
-                int iN = a[0].length; int iM = b[0].length;
-                float [][] n = new float[iM][iN];
-                for (int j = 0; j < iN; j++)
-                {
-                        for (int i = 0; i < iM; i++)
-                        {
-                                float r = 0;
-                                for (int k = 0; k < b.length; k++)
-                                         r += a[k][j] * b[k][i];
-                                n[i][j] = r;
-                        }
-                        if (doShowProgress)
-                                IJ.showProgress(j, iN);
-                }
+                float [][] n = new float[b[0].length][a[0].length];
+                // n = b' * a
+                BIJgemm.mulTransposeA(n, b, a, doShowProgress);
                 return n;
         }
         /**
@@ -243,9 +218,7 @@ public class BIJmatrix
         {
                 if (a[0].length != v.length)
                        throw new IllegalArgumentException("mul dimensions do not match: "+a.length+"x"+a[0].length+" "+v.length);
-                for (int i = 0; i < a.length; i++)
-                for (int k = 0; k < v.length; k++)
-                        r[i] += a[i][k]*v[k];
+                BIJgemm.mul(r, a, v);
         }
         /**
 	* Flatten a float[][] matrix into a float[] matrix of rows each of m[0].width.
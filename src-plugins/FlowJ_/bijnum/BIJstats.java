@@ -50,17 +50,8 @@ public class BIJstats
 	public static float [][] covariance(float [][] m, boolean doShowProgress)
 	{
                 float [][] cov = new float[m.length][m.length];
-                for (int j = 0; j < m.length; j++)
-                for (int i = 0; i < m.length; i++)
-                {
-                        if (doShowProgress)
-                                IJ.showProgress(j, m.length);
-                        double r = 0;
-                        // Multiply m with its own transpose.
-                        for (int k = 0; k < m[0].length; k++)
-                                 r += m[j][k] * m[i][k];
-                        cov[j][i] = (float) r;
-                }
+                // Multiply m with its own transpose.
+                BIJgemm.mulTransposeB(cov, m, m, true, doShowProgress);
                 // Normalize.
                 BIJmatrix.mul(cov, cov, 1f/m.length);
                 return cov;
@@ -0,0 +1,112 @@
+package volume;
+
+/**
+ * Compares the separable convolution of VolumeFloatFlat (used by VolumeFloat.convolvexyz())
+ * with the previous, single-threaded VolumeFloat implementation.
+ * Run as
+ * <pre>
+ * java volume.ConvolutionBenchmark [size [sigma [repetitions]]]
+ * </pre>
+ * on a random cubic volume of size^3 voxels. Reports the time per convolution
+ * and the largest difference between the results (should be 0).
+ */
+public class ConvolutionBenchmark
+{
+        public static void main(String [] args)
+        {
+                int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+                double sigma = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+                int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+                Gaussian kernel = new Gaussian(sigma);
+                VolumeFloat original = new VolumeFloat(size, size, size);
+                java.util.Random random = new java.util.Random(1);
+                for (int z = 0; z < size; z++)
+                for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                        original.v[z][y][x] = random.nextFloat() * 255;
+                System.out.println(size+"x"+size+"x"+size+" voxels, "+kernel+" (halfwidth "+kernel.halfwidth+"), "
+                        +Runtime.getRuntime().availableProcessors()+" processors");
+                VolumeFloat v = null;
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < repetitions; i++)
+                {
+                        v = new VolumeFloat(original);
+                        long start = System.currentTimeMillis();
+                        convolvexyz(v, kernel);
+                        best = Math.min(best, System.currentTimeMillis() - start);
+                }
+                System.out.println("previous convolvexyz:        "+best+"ms");
+                VolumeFloatFlat flat = null;
+                int processors = Runtime.getRuntime().availableProcessors();
+                int [] threads = processors > 1 ? new int [] { 1, processors } : new int [] { 1 };
+                for (int t = 0; t < threads.length; t++)
+                {
+                        best = Long.MAX_VALUE;
+                        for (int i = 0; i < repetitions; i++)
+                        {
+                                flat = new VolumeFloatFlat(original);
+                                flat.setThreads(threads[t]);
+                                long start = System.currentTimeMillis();
+                                flat.convolvexyz(kernel);
+                                best = Math.min(best, System.currentTimeMillis() - start);
+                        }
+                        System.out.println("VolumeFloatFlat.convolvexyz: "+best+"ms ("+threads[t]+" threads)");
+                }
+                float max = 0;
+                for (int z = 0; z < size; z++)
+                for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                        max = Math.max(max, Math.abs(v.v[z][y][x] - flat.v[(z*size+y)*size+x]));
+                System.out.println("largest difference: "+max);
+        }
+        /**
+         * The previous VolumeFloat.convolvexyz(Kernel1D), for reference.
+         */
+        static void convolvexyz(VolumeFloat vf, Kernel1D kernel)
+        {
+                float [][][] v = vf.v;
+                int width = vf.getWidth(), height = vf.getHeight(), depth = vf.getDepth();
+                if (kernel.halfwidth > vf.getEdge()) vf.setEdge(kernel.halfwidth);
+                // copy into buffer volume t1.
+                VolumeFloat t1 = new VolumeFloat(v);
+                // Convolve in x direction.
+                for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                {
+                        double s = 0;
+                        if (vf.valid(x, y, z))
+                        {
+                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                        s += t1.v[z][y][x+k]*kernel.k[k+kernel.halfwidth];
+                        }
+                        v[z][y][x] = (float) s;
+                }
+                // Convolve in y direction.
+                for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                {
+                        double s = 0;
+                        if (vf.valid(x, y, z))
+                        {
+                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                        s += v[z][y+k][x]*kernel.k[k+kernel.halfwidth];
+                        }
+                        t1.v[z][y][x] = (float) s;
+                }
+                // Convolve in z direction.
+                for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                {
+                        double s = 0;
+                        if (vf.valid(x, y, z))
+                        {
+                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                                        s += t1.v[z+k][y][x]*kernel.k[k+kernel.halfwidth];
+                        }
+                        v[z][y][x] = (float) s;
+                }
+        }
+}
@@ -286,56 +286,18 @@ public class VolumeFloat extends Volume
         }
         /**
          * XYZ convolution with separated 1D kernel.
+         * The convolution is done in a (multi-threaded) VolumeFloatFlat.
          * @param kernel a 1D convolution kernel.
          */
         public void convolvexyz(Kernel1D kernel)
         // 1D xyz convolution.
         {
-                if (kernel.halfwidth > edge) edge = kernel.halfwidth;
-                // copy into buffer volume t1.
-                VolumeFloat t1 = new VolumeFloat(v);
-                // Convolve in x direction.
-                for (int z = 0; z < depth; z++)
-                for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                {
-                        double s = 0;
-                        if (valid(x, y, z))
-                        {
-                                // Around x, convolve over -kernel.halfwidth ..x.. +kernel.halfwidth.
-                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
-                                        s += t1.v[z][y][x+k]*kernel.k[k+kernel.halfwidth];
-                        }
-                        v[z][y][x] = (float) s;
-                }
-                // Convolve in y direction.
+                VolumeFloatFlat t1 = new VolumeFloatFlat(this);
+                t1.convolvexyz(kernel);
+                edge = t1.getEdge();
                 for (int z = 0; z < depth; z++)
                 for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                {
-                        double s = 0;
-                        if (valid(x, y, z))
-                        {
-                                // Around y, convolve over -kernel.halfwidth ..y.. +kernel.halfwidth.
-                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
-                                        s += v[z][y+k][x]*kernel.k[k+kernel.halfwidth];
-                        }
-                        t1.v[z][y][x] = (float) s;
-                }
-                // Convolve in z direction.
-                for (int z = 0; z < depth; z++)
-                for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                {
-                        double s = 0;
-                        if (valid(x, y, z))
-                        {
-                                // Around z, convolve over -kernel.halfwidth ..  x .. +kernel.halfwidth.
-                                for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
-                                        s += t1.v[z+k][y][x]*kernel.k[k+kernel.halfwidth];
-                        }
-                        v[z][y][x] = (float) s;
-	        }
+                        System.arraycopy(t1.v, (z*height+y)*width, v[z][y], 0, width);
         } // convolvexyz
 	public void convolvex(VolumeFloat v1, Kernel1D kernel)
     /*
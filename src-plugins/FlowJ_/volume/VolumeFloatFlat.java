@@ -0,0 +1,203 @@
+package volume;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.*;
+
+/**
+ * This class implements float volumes stored in a single contiguous array,
+ * with fast separable convolutions.
+ *
+ * The voxels are stored as one 1D vector of width*height*depth, x varying fastest,
+ * so that each separable pass streams through memory. The convolutions are split in
+ * slabs of consecutive slices that are processed in parallel, one thread per processor.
+ * The voxels outside the edge are set to 0 in separate loops, so that the inner loops
+ * do not have to check boundaries.
+ *
+ * The results are the same as those of the corresponding VolumeFloat methods.
+ * Use VolumeFloatFlat(VolumeFloat) and toVolumeFloat() to convert.
+ *
+ * @see VolumeFloat
+ */
+public class VolumeFloatFlat extends Volume
+{
+        /** Number of slices processed by a thread at a time. */
+        protected static final int      SLAB = 4;
+        /** The voxels, index (z*height+y)*width+x. */
+        public  float []                v;
+        /** Number of threads used for the convolutions. */
+        protected int                   nThreads = Runtime.getRuntime().availableProcessors();
+
+        /**
+        * Creates a float volume of defined size and aspect ratio.
+        * @param width, height, depth the dimensions of the volume
+        * @param aspectx, aspecty, aspectz the aspect ratios of the volume dimensions.
+        */
+        public VolumeFloatFlat(int width, int height, int depth, double aspectx, double aspecty, double aspectz)
+        {
+                this.width = width; this.height = height; this.depth = depth;
+                v = new float[width*height*depth];
+                setAspects(aspectx, aspecty, aspectz);
+        }
+        /**
+        * Creates a float volume of defined size and default aspect ratios.
+        * @param width, height, depth the dimensions of the volume
+        */
+        public VolumeFloatFlat(int width, int height, int depth)
+        {
+                this(width, height, depth, 1.0, 1.0, 1.0);
+        }
+        /**
+        * Creates a flat float volume with the same contents, aspect ratios and edge as v1.
+        * @param v1 the VolumeFloat to be copied.
+        */
+        public VolumeFloatFlat(VolumeFloat v1)
+        {
+                this(v1.getWidth(), v1.getHeight(), v1.getDepth(), v1.getAspectx(), v1.getAspecty(), v1.getAspectz());
+                edge = v1.getEdge();
+                for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                        System.arraycopy(v1.v[z][y], 0, v, (z*height+y)*width, width);
+        }
+        /**
+        * Creates a float volume from an ImageJ ImageStack.
+        * @param s the ImageStack to be used.
+        */
+        public VolumeFloatFlat(ImageStack s)
+        {
+                this(new VolumeFloat(s));
+        }
+        /**
+         * Convert into a VolumeFloat with the same contents, aspect ratios and edge.
+         * @return the VolumeFloat.
+         */
+        public VolumeFloat toVolumeFloat()
+        {
+                VolumeFloat v1 = new VolumeFloat(width, height, depth, aspectx, aspecty, aspectz);
+                v1.setEdge(edge);
+                for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                        System.arraycopy(v, (z*height+y)*width, v1.v[z][y], 0, width);
+                return v1;
+        }
+        public Object get(int x, int y, int z) { return new Float(v[(z*height+y)*width+x]); }
+        public void set(Object value, int x, int y, int z) { v[(z*height+y)*width+x] = ((Number) value).floatValue(); }
+        /**
+         * Set the number of threads used for the convolutions.
+         * @param nThreads the number of threads, at least 1.
+         */
+        public void setThreads(int nThreads) { this.nThreads = Math.max(1, nThreads); }
+        /**
+         * XYZ convolution with separated 1D kernel.
+         * Same result as VolumeFloat.convolvexyz(kernel).
+         * @param kernel a 1D convolution kernel.
+         */
+        public void convolvexyz(Kernel1D kernel)
+        {
+                if (kernel.halfwidth > edge) edge = kernel.halfwidth;
+                float [] t1 = new float[v.length];
+                convolve(t1, v, kernel, 1);
+                convolve(v, t1, kernel, width);
+                convolve(t1, v, kernel, width*height);
+                v = t1;
+        }
+        /**
+         * X convolution with a 1D kernel. Voxels outside the edges are set to 0.
+         * @param kernel a 1D convolution kernel.
+         */
+        public void convolvex(Kernel1D kernel) { convolve(kernel, 1); }
+        /**
+         * Y convolution with a 1D kernel. Voxels outside the edges are set to 0.
+         * @param kernel a 1D convolution kernel.
+         */
+        public void convolvey(Kernel1D kernel) { convolve(kernel, width); }
+        /**
+         * Z convolution with a 1D kernel. Voxels outside the edges are set to 0.
+         * @param kernel a 1D convolution kernel.
+         */
+        public void convolvez(Kernel1D kernel) { convolve(kernel, width*height); }
+        private void convolve(Kernel1D kernel, int step)
+        {
+                if (kernel.halfwidth > edge) edge = kernel.halfwidth;
+                float [] t1 = new float[v.length];
+                convolve(t1, v, kernel, step);
+                v = t1;
+        }
+        /**
+         * Convolve source with kernel along the axis with index step step (1, width or width*height)
+         * into dest, for all voxels within the edges; the other voxels of dest are set to 0.
+         * The sums are accumulated in double, in the same order as in VolumeFloat.
+         */
+        protected void convolve(final float [] dest, final float [] source, final Kernel1D kernel, final int step)
+        {
+                final AtomicInteger ai = new AtomicInteger(0);
+                Thread [] threads = new Thread[Math.max(1, Math.min(nThreads, (depth + SLAB - 1) / SLAB))];
+                for (int ithread = 0; ithread < threads.length; ithread++)
+                        threads[ithread] = new Thread()
+                        {
+                                public void run()
+                                {
+                                        double [] row = new double[width];
+                                        for (int slab = ai.getAndIncrement(); slab * SLAB < depth; slab = ai.getAndIncrement())
+                                        for (int z = slab * SLAB; z < Math.min(depth, (slab + 1) * SLAB); z++)
+                                                convolveSlice(dest, source, kernel, step, z, row);
+                                }
+                        };
+                if (threads.length == 1)
+                        threads[0].run();
+                else
+                {
+                        for (int ithread = 0; ithread < threads.length; ithread++)
+                        {
+                                threads[ithread].setPriority(Thread.NORM_PRIORITY);
+                                threads[ithread].start();
+                        }
+                        try
+                        {
+                                for (int ithread = 0; ithread < threads.length; ithread++)
+                                        threads[ithread].join();
+                        }
+                        catch (InterruptedException e) { throw new RuntimeException(e); }
+                }
+        }
+        /**
+         * Convolve slice z. row is a buffer of width doubles.
+         */
+        private void convolveSlice(float [] dest, float [] source, Kernel1D kernel, int step, int z, double [] row)
+        {
+                int slice = z*height*width;
+                // Border: slices and rows outside the edges.
+                if (z < edge || z >= depth - edge || width - edge <= edge)
+                {
+                        for (int i = slice; i < slice + height*width; i++)
+                                dest[i] = 0;
+                        return;
+                }
+                for (int y = 0; y < height; y++)
+                {
+                        int offset = slice + y*width;
+                        if (y < edge || y >= height - edge)
+                        {
+                                for (int x = 0; x < width; x++)
+                                        dest[offset+x] = 0;
+                                continue;
+                        }
+                        for (int x = 0; x < edge; x++)
+                        {
+                                dest[offset+x] = 0;
+                                dest[offset+width-1-x] = 0;
+                        }
+                        // Interior, one kernel element at a time over the whole row.
+                        int x0 = edge, x1 = width - edge;
+                        for (int x = x0; x < x1; x++)
+                                row[x] = 0;
+                        for (int k = -kernel.halfwidth; k <= kernel.halfwidth; k++)
+                        {
+                                double c = kernel.k[k+kernel.halfwidth];
+                                int o = offset + k*step;
+                                for (int x = x0; x < x1; x++)
+                                        row[x] += source[o+x]*c;
+                        }
+                        for (int x = x0; x < x1; x++)
+                                dest[offset+x] = (float) row[x];
+                }
+        }
+}
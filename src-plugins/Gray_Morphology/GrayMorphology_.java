@@ -54,23 +54,28 @@ import mmorpho.*;
 public class GrayMorphology_ implements PlugInFilter, Constants {
     ImagePlus imp;
     public String kernelText = " 0 0 0 0 0\n 0 0 255 0 0\n 0 255 255 255 0\n 0 0 255 0 0\n 0 0 0 0 0\n";
-    private static final String R="SE_r", SHOW="show_SE", SETYPE="SE_type", OPER="MOper";
+    private static final String R="SE_r", SHOW="show_SE", SETYPE="SE_type", OPER="MOper",
+    ZR="SE_zr", DO3D="do_3D";
     boolean canceled = true;
     private static final int[] offset=OFFSET0;
     public StructureElement se, minus_se, plus_se, down_se, up_se;
     MorphoProcessor mp;
+    FastMorphoProcessor fmp;
     ImageWindow win;
     private static float radius=(float)Prefs. getDouble(R,1);
     private static int options=Prefs.getInt(SETYPE,0);
     private static boolean showoptions=Prefs.getBoolean(SHOW,false);
     private static int morphoptions=Prefs.getInt(OPER,0);
+    private static float zradius=(float)Prefs.getDouble(ZR,1);
+    private static boolean do3D=Prefs.getBoolean(DO3D,false);
+    boolean process3D=false;
     public final static String[] strelitems={"circle","diamond","square","hor line","ver line","2p h","2p v","free form"};
     public final static int[] constitems={CIRCLE,DIAMOND,SQARE,HLINE,VLINE,HPOINTS,VPOINTS,FREE};
     public final static String[] morphitems={"erode","dilate","open","close",
-    "fast erode","fast dilate","fast open","fast close"};
+    "fast erode","fast dilate","fast open","fast close","tophat","black tophat"};
     
     public final static int ERODE=0, DILATE=1,OPEN=2,CLOSE=3,
-    FERODE=4,FDILATE=5,FOPEN=6,FCLOSE=7;
+    FERODE=4,FDILATE=5,FOPEN=6,FCLOSE=7,TOPHAT=8,BTOPHAT=9;
     private Roi roi;
     boolean isLineRoi;
     int slice=0;
@@ -97,7 +102,10 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
                 return DONE;
             }
             else {
-                return DOES_8G+DOES_STACKS;
+                // 3D processing handles the whole stack in one call
+                if (process3D)
+                    return DOES_8G+DOES_16+DOES_32+NO_UNDO;
+                return DOES_8G+DOES_16+DOES_32+DOES_STACKS;
             }
         }
     }
@@ -115,6 +123,11 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         gd.addChoice("Type of structure element", strelitems, strelitems[options]);
         gd.addCheckbox("Show mask", showoptions);
         gd.addChoice("Operator", morphitems, morphitems[morphoptions]);
+        boolean isStack=imp.getStackSize()>1;
+        if (isStack) {
+            gd.addCheckbox("Process stack in 3D (circle=ball, square=cuboid)", do3D);
+            gd.addNumericField("Radius in z (slices):", zradius, 1);
+        }
 
         gd.showDialog();
         radius=(float)gd.getNextNumber();
@@ -122,6 +135,11 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         
         showoptions=gd.getNextBoolean();
         morphoptions=gd.getNextChoiceIndex();
+        if (isStack) {
+            do3D=gd.getNextBoolean();
+            zradius=(float)gd.getNextNumber();
+        }
+        process3D=isStack && do3D;
 
         
         if (gd.wasCanceled())
@@ -205,6 +223,10 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         {IJ.beep(); return;}
         //IJ.log( "options SE "+strelitems[options]+ " "+ constitems[options]);
         int eltype=constitems[options];
+        if (process3D) {
+            run3D(eltype);
+            return;
+        }
         if (eltype==FREE) {
         	 se=inputSE();
         } else {
@@ -214,6 +236,14 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         }
         if (se!=null) {
              mp=new MorphoProcessor(se);
+             // flat, row-convex elements use the van Herk/Gil-Werman path
+             fmp=FastMorphoProcessor.isDecomposable(se) ?
+                 new FastMorphoProcessor(se) : null;
+             if (fmp==null && !(ip instanceof ByteProcessor)) {
+                 IJ.error("Gray Morphology", "16-bit and 32-bit images require\n"+
+                     "a circle, diamond, square or line structure element");
+                 return;
+             }
              if ((showoptions) && (!seshown)){
                 minus_se =mp.getSE(-1); 
                 plus_se=mp.getSE(1);
@@ -232,9 +262,16 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
 	        	doOptions(ip, mp, morphoptions);
 	         } // end if
 	         else if (!isLineRoi) {
-            	ImageProcessor ipmask = getMask((ByteProcessor)ip,r);
+            	ImageProcessor ipmask = (ip instanceof ByteProcessor) ?
+            			getMask((ByteProcessor)ip,r) : ip.crop();
+            	// restore the pixels outside a non-rectangular roi
+            	ImageProcessor mask = ip.getMask();
+            	if (mask!=null)
+            		ip.snapshot();
             	doOptions(ipmask, mp, morphoptions);
             	ip.insert(ipmask,r.x,r.y);
+            	if (mask!=null)
+            		ip.reset(mask);
 	         } // end if
 	        
             if (slice== imp.getImageStackSize())
@@ -243,20 +280,56 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
     }
 
     private void doOptions(ImageProcessor ip, MorphoProcessor mp, int morphoptions){
+        // the fast MorphoProcessor operators are 8-bit only; 16-bit and
+        // 32-bit images take the van Herk/Gil-Werman path instead
+        if (!(ip instanceof ByteProcessor) && morphoptions>=FERODE && morphoptions<=FCLOSE)
+            morphoptions-=FERODE;
         switch (morphoptions) {
         
         case ERODE: {
-            mp.erode(ip);
+            if (fmp!=null)
+                fmp.erode(ip);
+            else
+                mp.erode(ip);
             break;}
         case DILATE:{
-            mp.dilate(ip);
+            if (fmp!=null)
+                fmp.dilate(ip);
+            else
+                mp.dilate(ip);
             break;}
         case OPEN:{
-            mp.open(ip);
+            if (fmp!=null)
+                fmp.open(ip);
+            else
+                mp.open(ip);
             break;
         }
         case CLOSE:{
-            mp.close(ip);
+            if (fmp!=null)
+                fmp.close(ip);
+            else
+                mp.close(ip);
+            break;
+        }
+        case TOPHAT:{
+            if (fmp!=null)
+                fmp.tophat(ip);
+            else {
+                ImageProcessor orig=ip.duplicate();
+                mp.open(ip);
+                ip.copyBits(orig, 0, 0, Blitter.DIFFERENCE);
+            }
+            break;
+        }
+        case BTOPHAT:{
+            if (fmp!=null)
+                fmp.blackTophat(ip);
+            else {
+                ImageProcessor orig=ip.duplicate();
+                mp.close(ip);
+                ip.copyBits(orig, 0, 0, Blitter.DIFFERENCE);
+            }
             break;
         }
         
@@ -301,6 +374,46 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
     	
     }
     
+    /* Processes the whole stack at once with a ball or cuboid
+     * at the native bit depth
+     */
+    private void run3D(int eltype) {
+        if (eltype!=CIRCLE && eltype!=SQARE) {
+            IJ.error("Gray Morphology", "3D processing requires a circle (ball)\n"+
+                "or square (cuboid) structure element");
+            return;
+        }
+        StructureElement3D se3D=new StructureElement3D(eltype, radius, zradius);
+        FastMorphoProcessor fmp3D=new FastMorphoProcessor(se3D);
+        ImageStack stack=imp.getStack();
+        IJ.showStatus(imp.getTitle()+" : "+morphitems[morphoptions]+" (3D)");
+        switch (morphoptions) {
+        case ERODE:
+        case FERODE:
+            fmp3D.erode(stack);
+            break;
+        case DILATE:
+        case FDILATE:
+            fmp3D.dilate(stack);
+            break;
+        case OPEN:
+        case FOPEN:
+            fmp3D.open(stack);
+            break;
+        case CLOSE:
+        case FCLOSE:
+            fmp3D.close(stack);
+            break;
+        case TOPHAT:
+            fmp3D.tophat(stack);
+            break;
+        case BTOPHAT:
+            fmp3D.blackTophat(stack);
+            break;
+        }
+        imp.updateAndDraw();
+    }
+
         /* Creates a StructureElement
          * from text input; must be delimited
          *
@@ -340,6 +453,8 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
             prefs.put(SHOW,Boolean.toString(showoptions));
             prefs.put(SETYPE, Integer.toString(options));
             prefs.put(OPER, Integer.toString(morphoptions));
+            prefs.put(ZR, Double.toString(zradius));
+            prefs.put(DO3D, Boolean.toString(do3D));
   
     }
      
@@ -364,7 +479,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         void showAbout() {
             IJ.showMessage("Gray Morphology version  2.3",
             "This plugin performs the basic morphologic operations on grayscale images \n  "+
-            "erosion, dilation, opening and closing with several types of structuring elements.\n" +
+            "erosion, dilation, opening, closing and top-hat with several types of structuring elements.\n" +
             "It is build upon the StructureElement class. \n"+
             "The develpoment of this alogorithm was inspired by the book of Jean Serra \n" +
             "\"Image Analysis and Mathematical Morphology\""
@@ -0,0 +1,462 @@
+/*
+ * FastMorphoProcessor.java
+ *
+ *      This library is free software; you can redistribute it and/or
+ *      modify it under the terms of the GNU Lesser General Public
+ *      License as published by the Free Software Foundation; either
+ *      version 2.1 of the License, or (at your option) any later version.
+ *
+ *      This library is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *       Lesser General Public License for more details.
+ */
+
+package mmorpho;
+import ij.*;
+import ij.process.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gray level erosion and dilation with flat structuring elements based on
+ * the van Herk / Gil-Werman algorithm.
+ *
+ * The structuring element is decomposed into horizontal runs
+ * (see <code>StructureElement.getRuns()</code>). Every run is handled by a
+ * one-dimensional running minimum (maximum) that needs three comparisons
+ * per pixel independent of the run length. Rectangular elements (squares,
+ * lines, cuboids) are fully separable and processed as one pass per axis;
+ * other row-convex elements (circles, diamonds, balls) cost one pass per
+ * distinct run length plus one comparison per element row.
+ *
+ * 8-bit, 16-bit and float images are supported at their native bit depth;
+ * stacks can be processed with a StructureElement3D. All passes are
+ * distributed over the rows of all slices.
+ *
+ * The results are identical to <code>MorphoProcessor.erode()</code> and
+ * <code>MorphoProcessor.dilate()</code>: pixels outside of the image are
+ * ignored.
+ */
+public class FastMorphoProcessor implements Constants {
+    private StructureElement se;
+    private StructureElement3D se3D;
+    // {dz, dy, dx0, dx1}
+    private int[][] runs;
+    private boolean rectangle;
+
+    /** Creates a new instance of FastMorphoProcessor
+     * @param se a flat, row-convex StructureElement
+     */
+    public FastMorphoProcessor(StructureElement se) {
+        this.se=se;
+        int[][] runs2D=se.getRuns();
+        if (runs2D==null)
+            throw new IllegalArgumentException("The structure element "
+                + "cannot be decomposed into line segments");
+        runs=new int[runs2D.length][];
+        for (int i=0; i<runs.length; i++)
+            runs[i]=new int[] {0, runs2D[i][0], runs2D[i][1], runs2D[i][2]};
+        rectangle=se.isRectangle();
+    }
+
+    /** Creates a new instance of FastMorphoProcessor for stacks
+     * @param se a ball or cuboid
+     */
+    public FastMorphoProcessor(StructureElement3D se) {
+        this.se3D=se;
+        runs=se.getRuns();
+        rectangle=se.isCuboid();
+    }
+
+    /** Returns true if the element can be handled by this class */
+    public static boolean isDecomposable(StructureElement se) {
+        return se.getRuns()!=null;
+    }
+
+    public StructureElement getSE() {
+        return se;
+    }
+
+    public StructureElement3D getSE3D() {
+        return se3D;
+    }
+
+    /** Performs gray level erosion */
+    public void erode(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        setPixels(ip, filter(getPixels(ip), w, h, ERODE, false));
+    }
+
+    /** Performs gray level dilation */
+    public void dilate(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        setPixels(ip, filter(getPixels(ip), w, h, DILATE, false));
+    }
+
+    /** Performs gray level erosion followed by dilation with the
+     *  reflected element, so that the result never exceeds the input
+     */
+    public void open(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        setPixels(ip, open(getPixels(ip), w, h));
+    }
+
+    /** Performs gray level dilation followed by erosion with the
+     *  reflected element, so that the result is never below the input
+     */
+    public void close(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        setPixels(ip, close(getPixels(ip), w, h));
+    }
+
+    /** White top-hat: the image minus its opening */
+    public void tophat(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        float[][] f=getPixels(ip);
+        setPixels(ip, subtract(f, open(f, w, h)));
+    }
+
+    /** Black top-hat: the closing of the image minus the image */
+    public void blackTophat(ImageProcessor ip) {
+        int w=ip.getWidth(), h=ip.getHeight();
+        float[][] f=getPixels(ip);
+        setPixels(ip, subtract(close(f, w, h), f));
+    }
+
+    /** Performs 3D gray level erosion of the whole stack */
+    public void erode(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        setPixels(stack, filter(getPixels(stack), w, h, ERODE, false));
+    }
+
+    /** Performs 3D gray level dilation of the whole stack */
+    public void dilate(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        setPixels(stack, filter(getPixels(stack), w, h, DILATE, false));
+    }
+
+    /** Performs 3D gray level opening of the whole stack */
+    public void open(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        setPixels(stack, open(getPixels(stack), w, h));
+    }
+
+    /** Performs 3D gray level closing of the whole stack */
+    public void close(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        setPixels(stack, close(getPixels(stack), w, h));
+    }
+
+    /** 3D white top-hat, e.g. for background subtraction */
+    public void tophat(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        float[][] f=getPixels(stack);
+        setPixels(stack, subtract(f, open(f, w, h)));
+    }
+
+    /** 3D black top-hat */
+    public void blackTophat(ImageStack stack) {
+        int w=stack.getWidth(), h=stack.getHeight();
+        float[][] f=getPixels(stack);
+        setPixels(stack, subtract(close(f, w, h), f));
+    }
+
+    float[][] open(float[][] f, int w, int h) {
+        return filter(filter(f, w, h, ERODE, false), w, h, DILATE, true);
+    }
+
+    float[][] close(float[][] f, int w, int h) {
+        return filter(filter(f, w, h, DILATE, false), w, h, ERODE, true);
+    }
+
+    /* Returns a-b as a new volume */
+    private static float[][] subtract(float[][] a, float[][] b) {
+        float[][] result=new float[a.length][];
+        for (int z=0; z<a.length; z++) {
+            result[z]=new float[a[z].length];
+            for (int i=0; i<a[z].length; i++)
+                result[z][i]=a[z][i]-b[z][i];
+        }
+        return result;
+    }
+
+    /** Filters a volume (a single plane is a volume of depth 1).
+     *
+     * @param src the pixels, slice by slice and row by row
+     * @param type ERODE or DILATE
+     * @param reflect whether to use the reflected structuring element
+     * @return a new volume holding the result
+     */
+    float[][] filter(final float[][] src, final int w, final int h,
+            final int type, final boolean reflect) {
+        final boolean max=(type==DILATE);
+        int d=src.length;
+        if (rectangle) {
+            int dz0=runs[0][0], dz1=runs[runs.length-1][0];
+            int dy0=runs[0][1], dy1=runs[runs.length-1][1];
+            int dx0=runs[0][2], dx1=runs[0][3];
+            if (reflect) {
+                int t=dx0; dx0=-dx1; dx1=-t;
+                t=dy0; dy0=-dy1; dy1=-t;
+                t=dz0; dz0=-dz1; dz1=-t;
+            }
+            float[][] tmp=newVolume(d, w*h);
+            float[][] dst=newVolume(d, w*h);
+            lines(src, tmp, w, h, X, dx0, dx1, max);
+            lines(tmp, dst, w, h, Y, dy0, dy1, max);
+            if (dz0!=0 || dz1!=0) {
+                lines(dst, tmp, w, h, Z, dz0, dz1, max);
+                return tmp;
+            }
+            return dst;
+        }
+
+        final float[][] dst=newVolume(d, w*h);
+        for (int z=0; z<d; z++)
+            java.util.Arrays.fill(dst[z], max ? Float.NEGATIVE_INFINITY
+                : Float.POSITIVE_INFINITY);
+        final float[][] tmp=newVolume(d, w*h);
+        boolean[] done=new boolean[runs.length];
+        for (int r=0; r<runs.length; r++) {
+            if (done[r]) continue;
+            // collect all rows sharing the same run
+            int count=0;
+            int[][] shifts=new int[runs.length][];
+            for (int s=r; s<runs.length; s++)
+                if (runs[s][2]==runs[r][2] && runs[s][3]==runs[r][3]) {
+                    shifts[count++]=reflect ?
+                        new int[] {-runs[s][0], -runs[s][1]} :
+                        new int[] {runs[s][0], runs[s][1]};
+                    done[s]=true;
+                }
+            int dx0=reflect ? -runs[r][3] : runs[r][2];
+            int dx1=reflect ? -runs[r][2] : runs[r][3];
+            lines(src, tmp, w, h, X, dx0, dx1, max);
+            combine(tmp, dst, w, h, shifts, count, max);
+        }
+        return dst;
+    }
+
+    private static float[][] newVolume(int d, int size) {
+        float[][] v=new float[d][];
+        for (int z=0; z<d; z++)
+            v[z]=new float[size];
+        return v;
+    }
+
+    /* Merges the horizontally filtered volume, shifted by each of the
+     * given {dz, dy} offsets, into dst
+     */
+    private void combine(final float[][] tmp, final float[][] dst,
+            final int w, final int h, final int[][] shifts, final int count,
+            final boolean max) {
+        final int d=dst.length;
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int ithread=0; ithread<threads.length; ithread++)
+            threads[ithread]=new Thread() {
+                public void run() {
+                    for (int line=ai.getAndIncrement(); line<d*h;
+                            line=ai.getAndIncrement()) {
+                        int z=line/h, y=line%h;
+                        float[] out=dst[z];
+                        int o=y*w;
+                        for (int k=0; k<count; k++) {
+                            int zz=z+shifts[k][0];
+                            int yy=y+shifts[k][1];
+                            if (zz<0 || zz>=d || yy<0 || yy>=h) continue;
+                            float[] in=tmp[zz];
+                            int i=yy*w;
+                            if (max) {
+                                for (int x=0; x<w; x++)
+                                    if (in[i+x]>out[o+x])
+                                        out[o+x]=in[i+x];
+                            } else {
+                                for (int x=0; x<w; x++)
+                                    if (in[i+x]<out[o+x])
+                                        out[o+x]=in[i+x];
+                            }
+                        }
+                    }
+                }
+            };
+        startAndJoin(threads);
+    }
+
+    private final static int X=0, Y=1, Z=2;
+
+    /* Runs the 1D filter along one axis on all lines of the volume,
+     * in parallel.
+     */
+    static void lines(final float[][] src, final float[][] dst,
+            final int w, final int h, final int axis,
+            final int a, final int b, final boolean max) {
+        final int d=src.length;
+        final int n, nLines;
+        switch (axis) {
+            case X: n=w; nLines=h*d; break;
+            case Y: n=h; nLines=w*d; break;
+            default: n=d; nLines=w*h; break;
+        }
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int ithread=0; ithread<threads.length; ithread++)
+            threads[ithread]=new Thread() {
+                public void run() {
+                    int m=n+b-a;
+                    float[] line=new float[n];
+                    float[] ext=new float[m];
+                    float[] g=new float[m];
+                    float[] hh=new float[m];
+                    for (int i=ai.getAndIncrement(); i<nLines;
+                            i=ai.getAndIncrement()) {
+                        switch (axis) {
+                            case X: {
+                                float[] in=src[i/h], out=dst[i/h];
+                                int off=(i%h)*w;
+                                System.arraycopy(in, off, line, 0, w);
+                                vhgw(line, n, a, b, max, ext, g, hh);
+                                System.arraycopy(line, 0, out, off, w);
+                                break;
+                            }
+                            case Y: {
+                                float[] in=src[i/w], out=dst[i/w];
+                                int x=i%w;
+                                for (int y=0; y<h; y++)
+                                    line[y]=in[x+y*w];
+                                vhgw(line, n, a, b, max, ext, g, hh);
+                                for (int y=0; y<h; y++)
+                                    out[x+y*w]=line[y];
+                                break;
+                            }
+                            default: {
+                                for (int z=0; z<d; z++)
+                                    line[z]=src[z][i];
+                                vhgw(line, n, a, b, max, ext, g, hh);
+                                for (int z=0; z<d; z++)
+                                    dst[z][i]=line[z];
+                            }
+                        }
+                    }
+                }
+            };
+        startAndJoin(threads);
+    }
+
+    /** van Herk / Gil-Werman running minimum (maximum), in place:
+     *  line(x) = min { line(x+a) ... line(x+b) }, ignoring samples outside
+     *  of the line.
+     *
+     * @param n number of samples
+     * @param ext, g, hh scratch buffers of at least n+b-a elements
+     */
+    static void vhgw(float[] line, int n, int a, int b, boolean max,
+            float[] ext, float[] g, float[] hh) {
+        int len=b-a+1;
+        int m=n+len-1;
+        float pad=max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        for (int i=0; i<m; i++) {
+            int x=i+a;
+            ext[i]=(x<0 || x>=n) ? pad : line[x];
+        }
+        if (len==1) {
+            System.arraycopy(ext, 0, line, 0, n);
+            return;
+        }
+        // prefix and suffix extrema within blocks of len samples
+        for (int i=0; i<m; i++) {
+            if (i%len==0)
+                g[i]=ext[i];
+            else
+                g[i]=max ? Math.max(g[i-1], ext[i])
+                    : Math.min(g[i-1], ext[i]);
+        }
+        for (int i=m-1; i>=0; i--) {
+            if (i==m-1 || i%len==len-1)
+                hh[i]=ext[i];
+            else
+                hh[i]=max ? Math.max(hh[i+1], ext[i])
+                    : Math.min(hh[i+1], ext[i]);
+        }
+        for (int x=0; x<n; x++)
+            line[x]=max ? Math.max(hh[x], g[x+len-1])
+                : Math.min(hh[x], g[x+len-1]);
+    }
+
+    /* Float represents all 8-bit and 16-bit values exactly */
+    static float[] toFloat(Object pixels) {
+        float[] f;
+        if (pixels instanceof byte[]) {
+            byte[] p=(byte[])pixels;
+            f=new float[p.length];
+            for (int i=0; i<p.length; i++)
+                f[i]=p[i]&0xFF;
+        } else if (pixels instanceof short[]) {
+            short[] p=(short[])pixels;
+            f=new float[p.length];
+            for (int i=0; i<p.length; i++)
+                f[i]=p[i]&0xFFFF;
+        } else if (pixels instanceof float[]) {
+            f=(float[])((float[])pixels).clone();
+        } else
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and "
+                + "float images are supported");
+        return f;
+    }
+
+    static void fromFloat(float[] f, Object pixels) {
+        if (pixels instanceof byte[]) {
+            byte[] p=(byte[])pixels;
+            for (int i=0; i<p.length; i++) {
+                float v=f[i];
+                p[i]=(byte)(v<=0 ? 0 : v>=255 ? 255 : (int)v);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p=(short[])pixels;
+            for (int i=0; i<p.length; i++) {
+                float v=f[i];
+                p[i]=(short)(v<=0 ? 0 : v>=65535 ? 65535 : (int)v);
+            }
+        } else
+            System.arraycopy(f, 0, (float[])pixels, 0, f.length);
+    }
+
+    static float[][] getPixels(ImageProcessor ip) {
+        return new float[][] { toFloat(ip.getPixels()) };
+    }
+
+    static void setPixels(ImageProcessor ip, float[][] f) {
+        fromFloat(f[0], ip.getPixels());
+    }
+
+    static float[][] getPixels(ImageStack stack) {
+        float[][] f=new float[stack.getSize()][];
+        for (int z=0; z<f.length; z++)
+            f[z]=toFloat(stack.getPixels(z+1));
+        return f;
+    }
+
+    static void setPixels(ImageStack stack, float[][] f) {
+        for (int z=0; z<f.length; z++)
+            fromFloat(f[z], stack.getPixels(z+1));
+    }
+
+    static Thread[] newThreads() {
+        int nthread=Runtime.getRuntime().availableProcessors();
+        return new Thread[nthread];
+    }
+
+    static void startAndJoin(Thread[] threads) {
+        for (int ithread=0; ithread<threads.length; ++ithread) {
+            threads[ithread].setPriority(Thread.NORM_PRIORITY);
+            threads[ithread].start();
+        }
+
+        try {
+            for (int ithread=0; ithread<threads.length; ++ithread)
+                threads[ithread].join();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+}
@@ -544,4 +544,55 @@ public class StructureElement  implements Constants  {
             return vect;//calcVect(this.mask , this.width);
     }
     
+    /** Decomposes a flat structuring element into horizontal runs.
+     *  Every row of the mask that contains foreground pixels must contain
+     *  a single contiguous run of 255 values; circles, diamonds, squares
+     *  and lines all satisfy this.
+     *  The offsets follow the same centering as <code>getVect()</code>.
+     *
+     * @return array of {dy, dx0, dx1} triplets, one per non-empty row,
+     *         or null if the element cannot be decomposed this way
+     */
+    public int[][] getRuns() {
+        int w=this.width;
+        int h=mask.length/w;
+        int p=h/2;
+        int q=w/2;
+        int n=0;
+        int[][] tmp=new int[h][];
+        for (int i=0; i<h; i++) {
+            int first=-1, last=-1;
+            for (int j=0; j<w; j++) {
+                int v=mask[i*w+j];
+                if (v==0) continue;
+                // only flat elements can be decomposed
+                if (v!=255) return null;
+                if (first<0) first=j;
+                else if (last!=j-1) return null;
+                last=j;
+            }
+            if (first>=0)
+                tmp[n++]=new int[] {i-p, first-q, last-q};
+        }
+        if (n==0) return null;
+        int[][] runs=new int[n][];
+        System.arraycopy(tmp, 0, runs, 0, n);
+        return runs;
+    }
+    
+    /** Returns true if the element is a flat, filled rectangle
+     *  (squares and horizontal or vertical lines), i.e. it is separable
+     *  into one horizontal and one vertical line segment.
+     */
+    public boolean isRectangle() {
+        int[][] runs=getRuns();
+        if (runs==null) return false;
+        for (int i=1; i<runs.length; i++)
+            if (runs[i][0]!=runs[i-1][0]+1 || runs[i][1]!=runs[0][1]
+                    || runs[i][2]!=runs[0][2])
+                return false;
+        return true;
+    }
+    
+    
 }
@@ -0,0 +1,101 @@
+/*
+ * StructureElement3D.java
+ *
+ *      This library is free software; you can redistribute it and/or
+ *      modify it under the terms of the GNU Lesser General Public
+ *      License as published by the Free Software Foundation; either
+ *      version 2.1 of the License, or (at your option) any later version.
+ *
+ *      This library is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *       Lesser General Public License for more details.
+ */
+package mmorpho;
+
+/**
+ * Flat three-dimensional structuring elements.
+ *
+ * CIRCLE gives a ball (an ellipsoid if the z radius differs from the
+ * in-plane radius), SQARE a cuboid. The in-plane section of the ball at
+ * dz=0 is the same disk as the one of a CIRCLE StructureElement with
+ * shift 1, as GrayMorphology_ creates it.
+ */
+public class StructureElement3D implements Constants {
+    private int type;
+    private float radius, zradius;
+    private int[][] runs;
+
+    /** Creates a new instance of a StructureElement3D
+     * @param type CIRCLE (ball) or SQARE (cuboid)
+     * @param radius the in-plane radius in pixels
+     * @param zradius the radius along z in slices
+     */
+    public StructureElement3D(int type, float radius, float zradius) {
+        if (type!=CIRCLE && type!=SQARE)
+            throw new IllegalArgumentException("Only balls and cuboids "
+                + "are supported in 3D");
+        this.type=type;
+        this.radius=radius;
+        this.zradius=zradius;
+        runs=calcRuns();
+    }
+
+    private int[][] calcRuns() {
+        int rz=(int)zradius;
+        java.util.ArrayList list=new java.util.ArrayList();
+        if (type==SQARE) {
+            int r=(int)radius;
+            for (int dz=-rz; dz<=rz; dz++)
+                for (int dy=-r; dy<=r; dy++)
+                    list.add(new int[] {dz, dy, -r, r});
+        } else {
+            double r2=radius*radius+1;
+            // the half width of the 2D mask, see createCircularMask()
+            int r=(int)(radius+1.5);
+            for (int dz=-rz; dz<=rz; dz++) {
+                double z=zradius>0 ? dz*radius/zradius : 0;
+                for (int dy=-r; dy<=r; dy++) {
+                    int dx=0;
+                    if (dy*dy+z*z>=r2) continue;
+                    while (dx+1<=r && (dx+1)*(dx+1)+dy*dy+z*z<r2)
+                        dx++;
+                    list.add(new int[] {dz, dy, -dx, dx});
+                }
+            }
+        }
+        int[][] result=new int[list.size()][];
+        list.toArray(result);
+        return result;
+    }
+
+    /** Returns the element as horizontal runs.
+     * @return array of {dz, dy, dx0, dx1}, one per non-empty row
+     */
+    public int[][] getRuns() {
+        return runs;
+    }
+
+    public boolean isCuboid() {
+        return type==SQARE;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public double getR() {
+        return radius;
+    }
+
+    public double getZR() {
+        return zradius;
+    }
+
+    public int getArea() {
+        int area=0;
+        for (int i=0; i<runs.length; i++)
+            area+=runs[i][3]-runs[i][2]+1;
+        return area;
+    }
+}
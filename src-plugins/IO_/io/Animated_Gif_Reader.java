@@ -9,8 +9,16 @@ import java.io.*;
 import java.util.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Animated_Gif_Reader implements PlugIn {
+	// Open local files as a virtual stack, decoding the frames when they
+	// are needed. Files whose frames do not fit into the free memory are
+	// always opened like this.
+	public boolean virtualStack = false;
+
 	public void run(String arg) {
 		String name;
 		if (arg == null || arg.equals("")) {
@@ -24,6 +32,29 @@ public class Animated_Gif_Reader implements PlugIn {
 		else
 			name = arg.substring(arg.lastIndexOf('/') + 1);
 		GifDecoder d = new GifDecoder();
+		ImageStack stack = null;
+		// Local files are indexed first; the frames are then decoded
+		// from the index, or when they are needed in a virtual stack.
+		if (arg.indexOf("://") < 0) {
+			IJ.showStatus("Indexing " + name);
+			d.index(arg);
+			int n = d.getFrameCount();
+			long size = (long)n * d.width * d.height * 4;
+			if (n > 0 && (virtualStack
+					|| size > IJ.maxMemory() - IJ.currentMemory()))
+				stack = new GifVirtualStack(d, new File(arg));
+			else if (n > 0) try {
+				stack = decodeIndexed(d, new File(arg));
+			} catch (IOException e) {
+				IJ.error("Could not read " + arg + ": " + e);
+				return;
+			}
+		}
+		if (stack != null) {
+			new ImagePlus(name, stack).show();
+			return;
+		}
+		d = new GifDecoder();
 		int status = d.read(arg);
 		int n = d.getFrameCount();
 		if (n == 0) {
@@ -31,7 +62,6 @@ public class Animated_Gif_Reader implements PlugIn {
 					+ " does not contain any frames");
 			return;
 		}
-		ImageStack stack = null;
 		for (int i=0; i < n; i++) {
 			ImageProcessor frame = d.getFrame(i);
 			if (i==0)
@@ -42,6 +72,32 @@ public class Animated_Gif_Reader implements PlugIn {
 		if (stack!=null) new ImagePlus(name, stack).show();
 	}
 
+	// Decodes all frames recorded by GifDecoder.index(), in order.
+	static ImageStack decodeIndexed(GifDecoder d, File file)
+			throws IOException {
+		ImageStack stack = new ImageStack(d.width, d.height);
+		ImageProcessor previous = null, beforePrevious = null;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = d.getFrameCount();
+			for (int i = 0; i < n; i++) {
+				IJ.showProgress(i, n);
+				GifFrameInfo info = d.getFrameInfo(i);
+				in.getChannel().position(info.offset);
+				ImageProcessor frame = d.decodeFrame(info,
+					new BufferedInputStream(in),
+					previous, beforePrevious);
+				stack.addSlice(null, frame);
+				beforePrevious = previous;
+				previous = frame;
+			}
+		} finally {
+			in.close();
+			IJ.showProgress(1.0);
+		}
+		return stack;
+	}
+
 }
 
 /**
@@ -65,6 +121,10 @@ public class Animated_Gif_Reader implements PlugIn {
  * @version 1.0 January 2001
  *
  *  June 2001: Updated to work with ImageJ and JDK 1.1
+ *
+ *  index() scans a file without decoding it, recording for each frame
+ *  where its data starts and the state needed to decode it later with
+ *  decodeFrame(); see GifVirtualStack.
  */
 
 class GifDecoder {
@@ -132,6 +192,13 @@ class GifDecoder {
     protected Vector frames;      // frames read from current file
     protected int frameCount;
 
+    protected boolean indexOnly;    // only record where the frames are
+    protected Vector frameInfos;    // frames indexed in current file
+    protected ImageProcessor imageBeforeLast;  // when decoding a single frame
+    protected int[] lastTable;      // last frame's color table, to share it
+    protected int[] lastTableSource;
+    protected int lastTableTransIndex;
+
    /**
      * Gets display duration for specified frame.
      *
@@ -242,6 +309,73 @@ class GifDecoder {
     }
 
 
+    /**
+     * Indexes the frames of a GIF file without decoding them.
+     *
+     * @param name File name
+     * @return int read status code
+     */
+    public int index(String name) {
+        status = STATUS_OK;
+        indexOnly = true;
+        try {
+            status = read(new PositionInputStream(new FileInputStream(name.trim())));
+        } catch (IOException e) {
+            status = STATUS_OPEN_ERROR;
+        } finally {
+            indexOnly = false;
+        }
+        return status;
+    }
+
+
+    /**
+     * Gets what index() recorded about frame n.
+     *
+     * @return GifFrameInfo of frame n, or null if n is invalid.
+     */
+    public GifFrameInfo getFrameInfo(int n) {
+        if ((n >= 0) && (n < frameInfos.size()))
+            return (GifFrameInfo) frameInfos.elementAt(n);
+        return null;
+    }
+
+
+    /**
+     * Decodes a frame recorded by index(), reading its data from is.
+     * The previous frames are needed to start from, depending on the
+     * frame's disposal code: previous is the decoded frame before this
+     * one, beforePrevious the one before that (or null, if none).
+     *
+     * @return ImageProcessor containing the frame
+     */
+    public ImageProcessor decodeFrame(GifFrameInfo info, BufferedInputStream is,
+            ImageProcessor previous, ImageProcessor beforePrevious) {
+        status = STATUS_OK;
+        in = is;
+        frameCount = 0;
+        ix = info.ix;
+        iy = info.iy;
+        iw = info.iw;
+        ih = info.ih;
+        interlace = info.interlace;
+        act = info.table;
+        lastDispose = info.lastDispose;
+        lastRect = info.lastRect;
+        lastBgColor = info.lastBgColor;
+        lastImage = previous;
+        imageBeforeLast = beforePrevious;
+        try {
+            decodeImageData();
+            image = new ColorProcessor(width, height);
+            setPixels();
+        } finally {
+            lastImage = imageBeforeLast = null;
+        }
+        return image;
+    }
+
+
     /**
      * Decodes LZW image data into pixel array.
      * Adapted from John Cristy's ImageMagick.
@@ -378,6 +512,8 @@ class GifDecoder {
          status = STATUS_OK;
         frameCount = 0;
         frames = new Vector();
+        frameInfos = new Vector();
+        lastTable = null;
         gct = null;
         lct = null;
     }
@@ -574,6 +710,11 @@ class GifDecoder {
 
         if (err()) return;
 
+        if (indexOnly) {
+            indexImage(save);
+            return;
+        }
+
         decodeImageData();            // decode pixel data
         skip();
 
@@ -595,6 +736,50 @@ class GifDecoder {
     }
 
 
+    /**
+     * Records the current frame and skips its data (in index mode).
+     *
+     * @param save the active table's color at the transparent index
+     */
+    protected void indexImage(int save) {
+        GifFrameInfo info = new GifFrameInfo();
+        info.offset = ((PositionInputStream) in).getPosition();
+        info.ix = ix;
+        info.iy = iy;
+        info.iw = iw;
+        info.ih = ih;
+        info.interlace = interlace;
+        info.delay = delay;
+        info.lastDispose = lastDispose;
+        info.lastRect = lastRect;
+        info.lastBgColor = lastBgColor;
+        info.independent = lastDispose == 0 || (ix == 0 && iy == 0
+                && iw >= width && ih >= height);
+
+        // the active table with the transparent color set; frames using
+        // the same table share it
+        int trans = transparency ? transIndex : -1;
+        if (lastTable == null || lastTableSource != act
+                || lastTableTransIndex != trans) {
+            lastTable = (int[]) act.clone();
+            lastTableSource = act;
+            lastTableTransIndex = trans;
+        }
+        info.table = lastTable;
+
+        read();    // LZW minimum code size
+        skip();    // image data
+        if (err()) return;
+
+        frameCount++;
+        frameInfos.addElement(info);
+
+        if (transparency)
+            act[transIndex] = save;
+        resetFrame();
+    }
+
+
     /**
      * Reads Logical Screen Descriptor
      */
@@ -669,7 +854,9 @@ class GifDecoder {
         if (lastDispose > 0) {
             if (lastDispose == 3) {  // use image before last
                 int n = frameCount - 2;
-                if (n > 0)
+                if (imageBeforeLast != null)
+                    lastImage = imageBeforeLast;
+                else if (n > 0)
                     lastImage = getFrame(n-1);
                 else
                     lastImage = null;
@@ -751,3 +938,239 @@ class GifDecoder {
         public int delay;
     }
 
+
+/**
+ * Where a frame's data starts in the file, and the decoder state needed to
+ * decode it on its own (see GifDecoder.index()).
+ */
+ class GifFrameInfo {
+        public long offset;            // position of the LZW data
+        public int ix, iy, iw, ih;     // image rectangle
+        public boolean interlace;
+        public int[] table;            // active color table, transparent color set
+        public int delay;
+        public int lastDispose;        // of the previous frame
+        public Rectangle lastRect;
+        public int lastBgColor;
+        public boolean independent;    // does not start from the previous frame
+    }
+
+
+/**
+ * A BufferedInputStream that knows its position in the underlying stream.
+ */
+ class PositionInputStream extends BufferedInputStream {
+        protected long fetched;        // bytes read into the buffer so far
+
+        public PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getPosition() {
+            return fetched - (count - pos);
+        }
+
+        // after each read or skip, set fetched so that the position moved
+        // by the number of bytes returned
+        public synchronized int read() throws IOException {
+            long position = getPosition();
+            int b = super.read();
+            if (b >= 0)
+                fetched = position + 1 + (count - pos);
+            return b;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            long position = getPosition();
+            int n = super.read(b, off, len);
+            if (n > 0)
+                fetched = position + n + (count - pos);
+            return n;
+        }
+
+        public synchronized long skip(long n) throws IOException {
+            long position = getPosition();
+            long skipped = super.skip(n);
+            if (skipped > 0)
+                fetched = position + skipped + (count - pos);
+            return skipped;
+        }
+    }
+
+
+/**
+ * A virtual stack of the frames of a GIF file indexed by GifDecoder.index().
+ * A frame is decoded when it is requested. As a frame may be drawn over its
+ * predecessor (depending on the disposal codes), decoding starts from the
+ * closest earlier frame that is independent of its predecessor, cached, or
+ * has a checkpoint. Every CHECKPOINT_INTERVAL-th frame passed while decoding
+ * is kept as a (compressed) checkpoint, so that random access does not need
+ * to replay from the first frame; only CACHE_SIZE decoded frames are kept.
+ * The checkpoints use at most an eighth of the free memory; the least
+ * recently used ones are dropped first.
+ */
+ class GifVirtualStack extends VirtualStack {
+        public static final int CHECKPOINT_INTERVAL = 32;
+        public static final int CACHE_SIZE = 4;
+
+        protected GifDecoder decoder;
+        protected File file;
+        protected int nFrames;
+        protected LinkedHashMap checkpoints = new LinkedHashMap(16, 0.75f, true);   // frame -> deflated pixels
+        protected long checkpointBytes, maxCheckpointBytes;
+        protected LinkedHashMap cache = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        public GifVirtualStack(GifDecoder decoder, File file) {
+            super(decoder.width, decoder.height, null, file.getParent());
+            this.decoder = decoder;
+            this.file = file;
+            nFrames = decoder.getFrameCount();
+            maxCheckpointBytes = Math.max(0, (IJ.maxMemory() - IJ.currentMemory()) / 8);
+        }
+
+        public int getSize() {
+            return nFrames;
+        }
+
+        public String getSliceLabel(int n) {
+            return null;
+        }
+
+        public void deleteSlice(int n) {
+            if (n < 1 || n > nFrames)
+                throw new IllegalArgumentException("Argument out of range: " + n);
+            if (n != nFrames)
+                throw new IllegalArgumentException("Can only delete the last frame of a GIF stack");
+            nFrames--;
+        }
+
+        public Object getPixels(int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        /**
+         * Returns frame n (1 <= n <= getSize()). The pixels are a copy, so
+         * changing them does not affect later calls.
+         */
+        public synchronized ImageProcessor getProcessor(int n) {
+            if (n < 1 || n > nFrames)
+                throw new IllegalArgumentException("Argument out of range: " + n);
+            int[] pixels;
+            try {
+                pixels = decode(n - 1);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read frame " + n + " of " + file + ": " + e);
+            }
+            return new ColorProcessor(getWidth(), getHeight(), (int[]) pixels.clone());
+        }
+
+        protected int[] decode(int frame) throws IOException {
+            int[] pixels = (int[]) cache.get(new Integer(frame));
+            if (pixels != null)
+                return pixels;
+
+            // find where to start
+            int start = frame;
+            int[] previous = null, beforePrevious = null;
+            for (; !decoder.getFrameInfo(start).independent; start--) {
+                previous = getDecoded(start - 1);
+                if (previous == null)
+                    continue;
+                // disposal code 3 needs the frame before the previous one
+                if (decoder.getFrameInfo(start).lastDispose != 3 || start < 2)
+                    break;
+                beforePrevious = getDecoded(start - 2);
+                if (beforePrevious != null)
+                    break;
+            }
+            if (decoder.getFrameInfo(start).independent)
+                previous = beforePrevious = null;
+
+            FileInputStream in = new FileInputStream(file);
+            try {
+                for (int i = start; i <= frame; i++) {
+                    GifFrameInfo info = decoder.getFrameInfo(i);
+                    in.getChannel().position(info.offset);
+                    ImageProcessor ip = decoder.decodeFrame(info, new BufferedInputStream(in),
+                            wrap(previous), wrap(beforePrevious));
+                    pixels = (int[]) ip.getPixels();
+                    Integer key = new Integer(i);
+                    if (i % CHECKPOINT_INTERVAL == 0 && !info.independent
+                            && !checkpoints.containsKey(key))
+                        addCheckpoint(key, pixels);
+                    cache.put(key, pixels);
+                    beforePrevious = previous;
+                    previous = pixels;
+                }
+            } finally {
+                in.close();
+            }
+            return pixels;
+        }
+
+        protected void addCheckpoint(Integer key, int[] pixels) {
+            byte[] compressed = compress(pixels);
+            checkpoints.put(key, compressed);
+            checkpointBytes += compressed.length;
+            for (Iterator it = checkpoints.values().iterator();
+                    checkpointBytes > maxCheckpointBytes && it.hasNext(); ) {
+                checkpointBytes -= ((byte[]) it.next()).length;
+                it.remove();
+            }
+        }
+
+        /** Gets a frame from the cache or a checkpoint, or null. */
+        protected int[] getDecoded(int frame) {
+            Integer key = new Integer(frame);
+            int[] pixels = (int[]) cache.get(key);
+            if (pixels == null && checkpoints.containsKey(key))
+                pixels = uncompress((byte[]) checkpoints.get(key));
+            return pixels;
+        }
+
+        protected ImageProcessor wrap(int[] pixels) {
+            return pixels == null ? null : new ColorProcessor(getWidth(), getHeight(), pixels);
+        }
+
+        protected static byte[] compress(int[] pixels) {
+            byte[] bytes = new byte[4 * pixels.length];
+            for (int i = 0, j = 0; i < pixels.length; i++) {
+                bytes[j++] = (byte) (pixels[i] >> 24);
+                bytes[j++] = (byte) (pixels[i] >> 16);
+                bytes[j++] = (byte) (pixels[i] >> 8);
+                bytes[j++] = (byte) pixels[i];
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 8);
+            byte[] buffer = new byte[65536];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            deflater.end();
+            return out.toByteArray();
+        }
+
+        protected int[] uncompress(byte[] compressed) {
+            byte[] bytes = new byte[4 * getWidth() * getHeight()];
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            try {
+                for (int n = 0; n < bytes.length && !inflater.finished(); )
+                    n += inflater.inflate(bytes, n, bytes.length - n);
+            } catch (DataFormatException e) {
+                return null;
+            } finally {
+                inflater.end();
+            }
+            int[] pixels = new int[bytes.length / 4];
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 4)
+                pixels[i] = (bytes[j] << 24) | ((bytes[j + 1] & 0xff) << 16)
+                    | ((bytes[j + 2] & 0xff) << 8) | (bytes[j + 3] & 0xff);
+            return pixels;
+        }
+    }
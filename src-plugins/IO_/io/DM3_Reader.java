@@ -1,6 +1,9 @@
 package io;
 
 import java.io.*; 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.*;  // for the Vector and Hashtable classes
 import java.awt.*; 
 import ij.*; 
@@ -131,6 +134,15 @@ import ij.measure.*;
 // - Fixed a bug in which tag hashes were not cleared when reading a new file
 // - Small speed improvement by converting tags to String via StringBuffer
 // - Both thanks to report by Eric Olson at UIUC
+// ------------------------------------
+// v 1.4.0 261019
+// - Tags are parsed from a memory-mapped buffer instead of byte by byte
+//   from a RandomAccessFile; the tag tables of recently opened files are
+//   cached, so reopening a file does not parse it again
+// - Stacks (3 dimensional images) are opened as stacks
+// - Image data can be opened as a virtual stack (virtualStack = true),
+//   which maps the slices from the file when they are shown; this is
+//   done automatically when the image data does not fit into memory
      
 public class DM3_Reader extends ImagePlus implements PlugIn 
 {
@@ -139,12 +151,17 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	// I find Gatan more reliable
 	public boolean useGatanMinMax = true;
 
+	// Open the image data as a virtual stack, mapping each slice from the
+	// file when it is needed. Images that do not fit into the available
+	// memory are always opened like this.
+	public boolean virtualStack = false;
+
 	private boolean littleEndian = true;  // default for .dm3 files
 	// nb all tags are written big-endian, it is only the actual data 
 	// attached to each tag that may be little-endian (and will be for PC files)
 	//private String directory;
 	//private String fileName;
-	private RandomAccessFile f;  // This stream will be used for reading by parseDM3()
+	private MappedInput f;  // This will be used for reading by parseDM3()
 
 	private FileInfo fi;
 
@@ -170,6 +187,14 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	// Will use these to store tags
 	private Vector storedTags = new Vector();
 	private Hashtable tagHash = new Hashtable();
+
+	// The tags of the most recently parsed files, by path
+	private static final int MAXCACHEDFILES = 32;
+	private static Map tagCache = new LinkedHashMap(MAXCACHEDFILES, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAXCACHEDFILES;
+		}
+	};
 	
 	// Set up constants for the different encoded data types used in DM3 files
 	private static final int SHORT   = 2;
@@ -269,8 +294,14 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		if(debugLevel>1) IJ.write("Chosen image = "+chosenImage);
 
 		// Open the image!
-		FileOpener fo = new FileOpener(fi);  
-		ImagePlus imp = fo.open(false);
+		ImagePlus imp;
+		if (virtualStack || MappedVirtualStack.exceedsMemory(fi)) {
+			if(debugLevel>1) IJ.write("Opening as virtual stack");
+			imp = MappedVirtualStack.open(fi, fileName);
+		} else {
+			FileOpener fo = new FileOpener(fi);  
+			imp = fo.open(false);
+		}
 		//if(debugLevel>5) if(imp==null) IJ.write("Image load failed!");
 		
 		// Write out the contents of the storedTags list
@@ -338,11 +369,24 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		// This reads through the DM3 file, extracting useful tags
 		// which allow one to determine the data offset etc.
 		
-		// alternative way to read from file - allows seeks!
+		// Reuse the tags if this file was parsed before and has not changed since
+		File file = new File(directory+fileName);
+		String key = file.getAbsolutePath();
+		synchronized (tagCache) {
+			CachedTags cached = (CachedTags) tagCache.get(key);
+			if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+				if(debugLevel>0) IJ.write("Using cached tags of "+key);
+				littleEndian = cached.littleEndian;
+				storedTags = (Vector) cached.storedTags.clone();
+				tagHash = (Hashtable) cached.tagHash.clone();
+				return;
+			}
+		}
+
+		// Map the file into memory - allows seeks!
 		// and therefore keeps track of position (use long getFilePointer())
-		// also has DataInput Interface allowing
-		// reading of specific types
-		f = new RandomAccessFile(directory+fileName,"r");
+		// and reads the tags without a system call per field
+		f = new MappedInput(directory+fileName);
 		if(debugLevel>0) IJ.write("Directory = "+directory);
 		if(debugLevel>0) IJ.write("File = "+fileName);
 
@@ -379,6 +423,24 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		
 		// Close the input stream
     	f.close();
+
+		CachedTags cached = new CachedTags();
+		cached.length = file.length();
+		cached.lastModified = file.lastModified();
+		cached.littleEndian = littleEndian;
+		cached.storedTags = (Vector) storedTags.clone();
+		cached.tagHash = (Hashtable) tagHash.clone();
+		synchronized (tagCache) {
+			tagCache.put(key, cached);
+		}
+	}
+
+	// The result of parsing a file, see parseDM3()
+	private static class CachedTags {
+		long length, lastModified;
+		boolean littleEndian;
+		Vector storedTags;
+		Hashtable tagHash;
 	}
 
 	FileInfo getDM3FileInfo(String directory, String fileName) throws IOException {
@@ -528,9 +590,13 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		// I'm assuming they are ordered width then height
 		fi.width = ((Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.Dimensions.0")).intValue();
 		fi.height = ((Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.Dimensions.1")).intValue();
+		// and the number of slices if this is a stack
+		Integer depth = (Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.Dimensions.2");
+		if (depth!=null) fi.nImages = depth.intValue();
 		
 		// Get the offset of the Image Data for chosen image
-		fi.offset = ((Long) tagHash.get(IMGLIST+chosenImage+".ImageData.Data.Offset")).intValue();
+		// nb this can be beyond 2GB
+		fi.longOffset = ((Long) tagHash.get(IMGLIST+chosenImage+".ImageData.Data.Offset")).longValue();
 
 		return fi;
 	}		
@@ -559,8 +625,9 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		
 		cal.pixelWidth = ((Float) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.0.Scale")).doubleValue();
 		cal.pixelHeight = ((Float) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.1.Scale")).doubleValue();
-		// not yet implemented stacks - if they exist
-		//cal.pixelDepth = 
+		// and the slice spacing of stacks
+		Float depthScale = (Float) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.2.Scale");
+		if (depthScale!=null) cal.pixelDepth = depthScale.doubleValue();
 		return cal;
 	}
 	
@@ -986,16 +1053,13 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	
 	// ********************************************************	
 	// the bl methods will check value of littleEndian and read
-	// from the RandomAccessFile f accordingly.
+	// from the mapped file f accordingly.
 	// (bl for big/little - ie can cope with either endian format)
 	// ********************************************************	
   
 	short blreadShort() throws IOException
 	{
-		if (!littleEndian) return f.readShort(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		return ( (short) (((b2 & 0xff) << 8) | (b1 & 0xff)) );
+		return f.buffer(2, littleEndian).getShort();
 	}
 	short blreadUShort() throws IOException
 	// Identical to blreadShort - is this correct?
@@ -1005,52 +1069,27 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	// to convert, but then they would have to be stored as 4 byte ints
 	// or something.
 	{
-		if (!littleEndian) return (short) f.readUnsignedShort(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		return ( (short) (((b2 & 0xff) << 8) | (b1 & 0xff)) );
+		return f.buffer(2, littleEndian).getShort();
 	}
 
 	int blreadInt() throws IOException 
 	{
-		if (!littleEndian) return f.readInt(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		byte b3 = f.readByte();
-		byte b4 = f.readByte();
-		return ( (((b4 & 0xff) << 24) | ((b3 & 0xff) << 16) | ((b2 & 0xff) << 8) | (b1 & 0xff)) );
+		return f.buffer(4, littleEndian).getInt();
 	}
 
-
 	long blreadLong() throws IOException
-	// New fn, not quite sure if the little endian version is correct
-	// OK Corrected now as far as I can tell
 	{
-		if (!littleEndian) return f.readLong(); 
-		int i1=blreadInt();
-		int i2=blreadInt();
-
-		// need to convert intermediates to long explicitly since the standard
-		// is presumably just to work with them as int
-		return ( ((long) (i2 & 0xffffffff) << 32) | (long) (i1 & 0xffffffff) );
-		
+		return f.buffer(8, littleEndian).getLong();
 	}
 	
 	double blreadDouble() throws IOException 
-	// new fn to read 8 byte doubles using blreadLong as a base
 	{
-		if (!littleEndian) return f.readDouble();  
-		
-		long orig = blreadLong();
-		return (Double.longBitsToDouble(orig));
+		return f.buffer(8, littleEndian).getDouble();
 	}
 	
 	float blreadFloat() throws IOException 
 	{
-		if (!littleEndian) return f.readFloat();  
-
-		int orig = blreadInt();
-		return (Float.intBitsToFloat(orig));
+		return f.buffer(4, littleEndian).getFloat();
 	}
 
 	// used to read in field labels
@@ -1070,4 +1109,60 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		return (  Long.toHexString( f.getFilePointer() )  );	
 	}
 
+	// ********************************************************
+	// Reads the file through memory-mapped windows of up to WINDOW bytes,
+	// with the methods of RandomAccessFile that parseDM3() needs.
+	// Tags are big-endian; use buffer() to read data in the other order.
+	// ********************************************************
+	static class MappedInput {
+		private static final int WINDOW = 1 << 24;
+		private FileChannel channel;
+		private long length;
+		private long base;  // file position of the start of buf
+		private ByteBuffer buf = ByteBuffer.allocate(0);
+
+		MappedInput(String path) throws IOException {
+			channel = new RandomAccessFile(path, "r").getChannel();
+			length = channel.size();
+		}
+
+		// Make sure that the next n bytes are mapped, and return
+		// the buffer positioned at them
+		ByteBuffer buffer(int n, boolean littleEndian) throws IOException {
+			if (buf.remaining() < n) {
+				long pos = getFilePointer();
+				if (pos + n > length) throw new EOFException("Unexpected end of file at 0x"+Long.toHexString(pos));
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(length - pos, Math.max(n, WINDOW)));
+				base = pos;
+			}
+			buf.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			return buf;
+		}
+
+		long getFilePointer() {
+			return base + buf.position();
+		}
+
+		void seek(long pos) {
+			if (pos >= base && pos <= base + buf.limit()) {
+				buf.position((int) (pos - base));
+			} else {
+				base = pos;
+				buf = ByteBuffer.allocate(0);
+			}
+		}
+
+		byte readByte() throws IOException { return buffer(1, false).get(); }
+		short readShort() throws IOException { return buffer(2, false).getShort(); }
+		int readInt() throws IOException { return buffer(4, false).getInt(); }
+
+		int read(byte[] b, int off, int len) throws IOException {
+			buffer(len, false).get(b, off, len);
+			return len;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
 }
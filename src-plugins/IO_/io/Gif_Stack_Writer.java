@@ -7,6 +7,12 @@ import java.awt.Color;
 import java.awt.Point;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ij.*;
 import ij.io.*;
@@ -83,12 +89,17 @@ import ij.plugin.PlugIn;
  *    e.addFrame(image2);
  *      "           "             "
  *    e.finish();
+ *
+ * or, to quantize and encode the frames of a stack on all processors:
+ *    e.start(outputFileName);
+ *    e.addFrames(stack);
+ *    e.finish();
  * </pre>
  *
  *
  */
 
-class AnimatedGifEncoder2 {
+class AnimatedGifEncoder2 implements Cloneable {
 
    protected int width;                 // image size
    protected int height;
@@ -121,6 +132,9 @@ class AnimatedGifEncoder2 {
   protected boolean GCTsetTransparent = false; //If true then Color table transparency index is set
   protected boolean GCToverideIndex = false; //If true Transparent index is set to index with closest colors
   protected boolean GCToverideColor = false; //if true Color at Transparent index is set to GCTred, GCTgrn GCTbl
+   protected boolean GCTlearned = false; // Set if global color table is to be learned from a sample of the stack frames
+   protected int nThreads = Runtime.getRuntime().availableProcessors(); // threads encoding frames in addFrames
+   public static final int GCT_SAMPLE_FRAMES = 10; // frames the global color table is learned from
    
    /**
     * Adds next GIF frame.  The frame is not written immediately, but is
@@ -190,6 +204,92 @@ class AnimatedGifEncoder2 {
 
       return ok;
    }
+
+   /**
+    * Adds all slices of the stack as frames.  The first frame is added
+    * by <code>addFrame()</code>, which also writes the global color table
+    * if one is used.  The other frames are independent of each other:
+    * they are quantized (or mapped to the global color table) and LZW
+    * encoded on <code>nThreads</code> threads, each into a buffer, and
+    * the buffers are written in order.
+    *
+    * @param stack the 8-bit or RGB slices
+    * @return true if successful.
+    */
+   public boolean addFrames(ImageStack stack) {
+      int n = stack.getSize();
+      if (n == 0 || !started) return false;
+      boolean ok = addFrame(new ImagePlus("", stack.getProcessor(1)));
+      IJ.showProgress(1, n);
+      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+      LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+      int written = 1;
+      try {
+         for (int i = 2; i <= n; i++) {
+            // the stack is read by this thread only, it may be virtual
+            final ImagePlus frame = new ImagePlus("", stack.getProcessor(i));
+            final AnimatedGifEncoder2 encoder = frameEncoder();
+            pending.add(pool.submit(new Callable<byte[]>() {
+               public byte[] call() throws IOException {
+                  ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                  encoder.out = buffer;
+                  if (!encoder.addFrame(frame))
+                     throw new IOException("Could not encode frame");
+                  return buffer.toByteArray();
+               }
+            }));
+            // limit the frames held in memory
+            while (pending.size() > 2 * nThreads) {
+               ok &= writeFrame(pending.removeFirst());
+               IJ.showProgress(++written, n);
+            }
+         }
+         while (!pending.isEmpty()) {
+            ok &= writeFrame(pending.removeFirst());
+            IJ.showProgress(++written, n);
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+      return ok;
+   }
+
+   /*
+      Writes a frame encoded by another thread
+   */
+   protected boolean writeFrame(Future<byte[]> frame) {
+      try {
+         out.write(frame.get());
+         return true;
+      } catch (ExecutionException e) {
+         IJ.showMessage("Save as gif", ""+e.getCause());
+      } catch (InterruptedException e) {
+         IJ.showMessage("Save as gif", ""+e);
+      } catch (IOException e) { }
+      return false;
+   }
+
+   /*
+      Returns an encoder with the settings (and global color table) of this
+      one, to encode a frame after the first one into its own stream
+   */
+   protected AnimatedGifEncoder2 frameEncoder() {
+      AnimatedGifEncoder2 encoder;
+      try {
+         encoder = (AnimatedGifEncoder2)clone();
+      } catch (CloneNotSupportedException e) {
+         throw new RuntimeException(e);
+      }
+      encoder.firstFrame = false;
+      encoder.closeStream = false;
+      encoder.out = null;
+      if (gct != null) encoder.gct = (byte[])gct.clone();
+      if (gctused) encoder.colorTab = encoder.gct;
+      encoder.pixels = null;
+      encoder.indexedPixels = null;
+      return encoder;
+   }
+
  /*
  
  	Handles transparency color Index
@@ -242,7 +342,7 @@ public boolean setoptions(){
 
 
     String[] GCTtype = {"Do not use","Load from Current Image", "Load from another Image RGB or 8 Bit",
-     "Use another RGB to create a new color table " };
+     "Use another RGB to create a new color table ", "Learn from a sample of the stack frames (RGB)" };
     String[] DisposalType = { "No Disposal","Do not Dispose", "Restore to Background", "Restore to previous" };
     String[] TransparencyType ={"No Transparency", "Automatically Set if Available (8 bit only)", "Set to Index",
     			"Set to index with specified color", "Set to the index that is closest to specified color"};
@@ -252,6 +352,7 @@ public boolean setoptions(){
 	if(GCTloadedExternal) gctType = 2;
 	if(GCTextracted&&GCTloadedExternal) gctType =3;
 	if(gctused&&!(GCTextracted||GCTloadedExternal))gctType=1;
+	if(GCTlearned) gctType=4;
 	setTrans=1;
 	if(!(autotransparent||GCTsetTransparent||GCToverideIndex||GCToverideColor)) setTrans=0;
 	if(GCTsetTransparent&& !(GCToverideIndex||GCToverideColor)) setTrans = 2;
@@ -361,8 +462,9 @@ public boolean setoptions(){
  	gctused = false; // Set to true to use Global color table
 	GCTextracted = false; // Set if global color table extracted from rgb image 
         GCTloadedExternal = false; // Set if global color table loaded directly from external image 
+        GCTlearned = gctType==4; // learned by learnGCTrgb before the first frame
         if(gctType==1)gctused=true;
-        else if(gctType>=2){
+        else if(gctType==2||gctType==3){
         	ImagePlus img = WindowManager.getImage(wList[index1]);
         	if(img == null){
 	    		IJ.error("No window selected for generating color table");
@@ -507,6 +609,36 @@ void Process8bitCLT(ImagePlus image){
       analyzePixels();  	// build color table 
       pixels = null;
     }
+
+/*
+    * Function to learn the Global Color Table from up to nFrames evenly
+    * spaced frames of an RGB stack
+    * This function has to be called before addFrame
+    */
+   public void learnGCTrgb(ImageStack stack, int nFrames){
+      int n = Math.max(1, Math.min(nFrames, stack.getSize()));
+      int len = stack.getWidth()*stack.getHeight();
+      pixels = new byte[n*len*3];
+      for(int f=0; f<n; f++){
+         Object p = stack.getPixels(1 + (int)((long)f*stack.getSize()/n));
+         if(!(p instanceof int[]))
+            throw new IllegalArgumentException("Color Table can only be learned from RGB stacks");
+         int[] pix = (int[])p;
+         int k = f*len*3;
+         for(int i=0; i<len; i++){
+            pixels[k++] = (byte)(pix[i] & 0x0000ff); //blue
+            pixels[k++] = (byte)((pix[i] & 0x00ff00)>>8); //green
+            pixels[k++] = (byte)((pix[i] & 0xff0000)>>16);   //red
+         }
+      }
+      gctused = true;
+      GCTextracted = true;
+      GCTloadedExternal = true;
+      gct = null;
+      OverRideQuality(n*len);
+      analyzePixels();  	// build color table
+      pixels = null;
+   }
     
 void packrgb(ImagePlus image){
 	int len = image.getWidth()*image.getHeight();
@@ -996,23 +1128,23 @@ public void run(String arg) {
 		String directory = sd.getDirectory();
 
 		ImageStack stack = imp.getStack();
-		ImagePlus tmp = new ImagePlus();
 		int nSlices = stack.getSize();
 		//String path = directory+name;
+		if (fr.GCTlearned) {
+			if (imp.getType() != ImagePlus.COLOR_RGB) {
+				IJ.error("A color table can only be learned from an RGB stack.");
+				return;
+			}
+			IJ.showStatus("learning color table");
+			fr.learnGCTrgb(stack, AnimatedGifEncoder2.GCT_SAMPLE_FRAMES);
+		}
 	        fr.start(directory+file);
 		
- 		for (int i=1; i<=nSlices; i++) {
-			IJ.showStatus("writing: "+i+"/"+nSlices);
-			IJ.showProgress((double)i/nSlices);
-			tmp.setProcessor(null, stack.getProcessor(i));
-			
-			try {
-					fr.addFrame(tmp);
-			} catch(Exception e)  {
-				IJ.showMessage("Save as "+type, ""+e);
-			}
-
-			System.gc();
+		IJ.showStatus("writing: "+nSlices+" frames");
+		try {
+			fr.addFrames(stack);
+		} catch(Exception e)  {
+			IJ.showMessage("Save as "+type, ""+e);
 		}
 		fr.finish();
 		IJ.showStatus("");
@@ -0,0 +1,170 @@
+package io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.ImageReader;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A virtual stack of uncompressed slices stored contiguously in a file.
+ *
+ * The slices are described by a FileInfo (type, size, byte order, offset of
+ * the first slice, number of slices and gap between them). Opening the stack
+ * does not read anything; each slice is memory-mapped and decoded by ImageJ's
+ * ImageReader when it is displayed or processed.
+ */
+public class MappedVirtualStack extends VirtualStack {
+	/** Describes a single slice, without offset */
+	protected FileInfo fi;
+	protected ColorModel cm;
+	protected File file;
+	protected long offset, sliceBytes;
+	protected int nSlices;
+
+	public MappedVirtualStack(FileInfo fi) {
+		super(fi.width, fi.height, null, fi.directory);
+		file = new File(fi.directory, fi.fileName);
+		offset = fi.getOffset();
+		nSlices = Math.max(1, fi.nImages);
+		sliceBytes = (long)fi.width * fi.height * fi.getBytesPerPixel();
+		if (fi.fileType == FileInfo.BITMAP)
+			sliceBytes = (long)((fi.width + 7) / 8) * fi.height;
+
+		this.fi = (FileInfo)fi.clone();
+		this.fi.nImages = 1;
+		this.fi.offset = 0;
+		this.fi.longOffset = 0;
+		cm = new FileOpener(this.fi).createColorModel(this.fi);
+	}
+
+	public int getSize() {
+		return nSlices;
+	}
+
+	public void deleteSlice(int n) {
+		if (n < 1 || n > nSlices)
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		if (n != nSlices)
+			throw new IllegalArgumentException("Can only delete the last slice of a mapped stack");
+		nSlices--;
+	}
+
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		if (n < 1 || n > nSlices)
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		long offset = this.offset + (n - 1) * (sliceBytes + fi.gapBetweenImages);
+		Object pixels;
+		try {
+			pixels = new ImageReader(fi).readPixels(new ByteBufferInputStream(map(offset, sliceBytes)));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map slice " + n + " of " + file + ": " + e);
+		}
+		if (pixels instanceof byte[])
+			return new ByteProcessor(fi.width, fi.height, (byte[])pixels, cm);
+		if (pixels instanceof short[])
+			return new ShortProcessor(fi.width, fi.height, (short[])pixels, cm);
+		if (pixels instanceof float[])
+			return new FloatProcessor(fi.width, fi.height, (float[])pixels, cm);
+		if (pixels instanceof int[])
+			return new ColorProcessor(fi.width, fi.height, (int[])pixels);
+		throw new RuntimeException("Unsupported file type " + fi.fileType + " in " + file);
+	}
+
+	/** Map length bytes of the file, starting at offset. */
+	protected ByteBuffer map(long offset, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open the slices described by fi as a virtual stack.
+	 *
+	 * @param fi the FileInfo of the (uncompressed) slices
+	 * @param title the title of the image
+	 */
+	public static ImagePlus open(FileInfo fi, String title) {
+		ImagePlus imp = new ImagePlus(title, new MappedVirtualStack(fi));
+		setCalibration(imp.getCalibration(), fi);
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
+	/**
+	 * Whether the slices described by fi need more than the free memory,
+	 * so that they should be opened as a virtual stack.
+	 */
+	public static boolean exceedsMemory(FileInfo fi) {
+		long size = (long)fi.width * fi.height * fi.getBytesPerPixel() * Math.max(1, fi.nImages);
+		return size > IJ.maxMemory() - IJ.currentMemory();
+	}
+
+	/**
+	 * Set the calibration function that FileOpener would have set for
+	 * signed 16-bit data; ImageReader adds 32768 to those values.
+	 */
+	public static void setCalibration(Calibration cal, FileInfo fi) {
+		if (fi.fileType == FileInfo.GRAY16_SIGNED)
+			cal.setFunction(Calibration.STRAIGHT_LINE, new double[] { -32768, 1 }, "gray value");
+	}
+
+	/** Reads a ByteBuffer (e.g. a mapped slice) as a stream. */
+	public static class ByteBufferInputStream extends InputStream {
+		protected ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			n = Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + (int)n);
+			return n;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
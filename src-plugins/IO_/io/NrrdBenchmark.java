@@ -0,0 +1,70 @@
+package io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+
+/**
+ * Compares writing and reading a 16-bit NRRD stack with raw, gzip
+ * (one GZIPOutputStream/GZIPInputStream) and parallel gzip encodings.
+ * Run as
+ * <pre>
+ * java io.NrrdBenchmark [width [slices [directory]]]
+ * </pre>
+ * on a noisy gradient of width x width x slices voxels. Reports the times,
+ * the file sizes and whether the read images equal the written one.
+ */
+public class NrrdBenchmark {
+	public static void main(String[] args) throws Exception {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int slices = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		String directory = args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir");
+		if (!directory.endsWith(File.separator))
+			directory += File.separator;
+
+		ImageStack stack = new ImageStack(width, width);
+		java.util.Random random = new java.util.Random(1);
+		for (int z = 0; z < slices; z++) {
+			short[] pixels = new short[width * width];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (short)((i % width) * 8 + z * 16 + random.nextInt(64));
+			stack.addSlice(null, new ShortProcessor(width, width, pixels, null));
+		}
+		ImagePlus imp = new ImagePlus("benchmark", stack);
+		System.out.println(width + "x" + width + "x" + slices + " 16-bit voxels, "
+			+ Runtime.getRuntime().availableProcessors() + " processors");
+
+		String[] names = { "raw", "gzip", "parallel gzip" };
+		for (int i = 0; i < names.length; i++) {
+			String file = "nrrd-benchmark-" + i + ".nrrd";
+			Nrrd_Writer writer = new Nrrd_Writer();
+			writer.setNrrdEncoding(i == 0 ? "raw" : "gzip");
+			writer.parallelGzip = i == 2;
+			long start = System.currentTimeMillis();
+			writer.save(imp, directory, file);
+			long writeTime = System.currentTimeMillis() - start;
+
+			Nrrd_Reader reader = new Nrrd_Reader();
+			reader.parallelGzip = i == 2;
+			start = System.currentTimeMillis();
+			ImagePlus read = reader.load(directory, file);
+			long readTime = System.currentTimeMillis() - start;
+
+			File f = new File(directory, file);
+			System.out.println(names[i] + ": write " + writeTime + "ms, read " + readTime + "ms, "
+				+ (f.length() / 1024) + "kB, " + (equal(imp.getStack(), read.getStack()) ? "identical" : "DIFFERENT"));
+			f.delete();
+		}
+	}
+
+	static boolean equal(ImageStack a, ImageStack b) {
+		if (a.getSize() != b.getSize())
+			return false;
+		for (int z = 1; z <= a.getSize(); z++)
+			if (!java.util.Arrays.equals((short[])a.getPixels(z), (short[])b.getPixels(z)))
+				return false;
+		return true;
+	}
+}
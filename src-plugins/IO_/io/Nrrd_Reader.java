@@ -53,6 +53,12 @@ public class Nrrd_Reader extends ImagePlus implements PlugIn
 	public String headerPath=null;
 	public String imagePath=null;
 	public String imageName=null;
+	// inflate data written by Nrrd_Writer in parallel
+	public boolean parallelGzip=true;
+	// Open raw encoded data as a virtual stack, mapping each slice from the
+	// file when it is needed. Images that do not fit into the available
+	// memory are always opened like this.
+	public boolean virtualStack=false;
 	
 	public void run(String arg) {
 		String directory = "", name = arg;
@@ -112,9 +118,26 @@ public class Nrrd_Reader extends ImagePlus implements PlugIn
 		
 		IJ.showStatus("Loading Nrrd File: " + directory + fileName);
 		
-		ImagePlus imp; FlexibleFileOpener gzfo;
+		ImagePlus imp=null; FlexibleFileOpener gzfo;
 		
-		if(fi.encoding.equals("gzip") && detachedHeader) {
+		if(fi.encoding.equals("raw") && (virtualStack || MappedVirtualStack.exceedsMemory(fi)))
+			imp = MappedVirtualStack.open(fi, fi.fileName);
+		
+		// Nrrd_Writer compresses in independent gzip members, which can be
+		// inflated in parallel. (With a detached header, byte skip refers to
+		// the uncompressed data, which is only supported by FlexibleFileOpener)
+		if(imp==null && fi.encoding.equals("gzip") && parallelGzip && (!detachedHeader || fi.longOffset==0)) {
+			try {
+				imp = ParallelGZIPReader.openImage(fi, detachedHeader?0:fi.longOffset);
+			} catch (IOException e) {
+				IJ.error("Nrrd_Reader", "Could not read "+fi.fileName+": "+e.getMessage());
+				return null;
+			}
+		}
+		
+		if(imp!=null) {
+			// already read
+		} else if(fi.encoding.equals("gzip") && detachedHeader) {
 			// call my nice gzip opener plugin which has had the 
 			// createInputStream method overloaded.
 			gzfo = new FlexibleFileOpener(fi,FlexibleFileOpener.GZIP);
@@ -19,6 +19,9 @@ package io;
 // to raw/gzip encoded monolithic nrrd file
 // - Writes key spatial calibration information	including
 //   spacings, centers, units, axis mins
+// v0.2 2026-10-19
+// - gzip encoded data is compressed on all processors, in independent
+//   gzip members (still a valid gzip stream, see ParallelGZIPOutputStream)
 
 // TODO
 // - Support for multichannel images, time data
@@ -57,6 +60,8 @@ public class Nrrd_Writer implements PlugIn {
 	public static final int NRRD_VERSION = 4;	
 	private String imgTypeString=null;	
 	String nrrdEncoding="raw";
+	// compress gzip encoded data on all processors, see ParallelGZIPOutputStream
+	boolean parallelGzip=true;
 	// See http://teem.sourceforge.net/nrrd/format.html#centers
 	static final String defaultNrrdCentering="node";	
 	
@@ -138,7 +143,9 @@ public class Nrrd_Writer implements PlugIn {
 		// Then the image data
 		ImageWriter writer = new ImageWriter(fi);
 		if(nrrdEncoding.equals("gzip")) {
-			GZIPOutputStream zStream = new GZIPOutputStream(new BufferedOutputStream( out ));
+			OutputStream zStream = parallelGzip ?
+				new ParallelGZIPOutputStream(new BufferedOutputStream( out )) :
+				new GZIPOutputStream(new BufferedOutputStream( out ));
 			writer.write(zStream);
 			zStream.close();
 		} else {
@@ -0,0 +1,197 @@
+package io;
+
+// ParallelGZIPOutputStream
+// ------------------------
+// Compresses the data in chunks on all processors, writing each chunk as
+// an independent gzip member. Concatenated gzip members are a valid gzip
+// stream (RFC 1952), so the output can be read by GZIPInputStream, gunzip
+// and teem as usual.
+//
+// Each member header carries an extra field (subfield "FJ") with the
+// compressed size of the member and the uncompressed size of the chunk,
+// so that ParallelGZIPReader can find the members without inflating
+// them and decode them in parallel.
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ParallelGZIPOutputStream extends OutputStream {
+	/** Uncompressed bytes per gzip member; a multiple of 8 so that no pixel is split */
+	public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+	// Gzip header with FEXTRA set and the sizes subfield
+	static final int HEADER_SIZE = 24;
+	static final int TRAILER_SIZE = 8;
+	static final byte SUBFIELD_ID1 = 'F', SUBFIELD_ID2 = 'J';
+
+	protected OutputStream out;
+	protected int chunkSize;
+	protected int level;
+	protected byte[] chunk;
+	protected int count;
+	protected int nThreads;
+	protected ExecutorService pool;
+	// the members being compressed, in order
+	protected LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	protected int members;
+	protected boolean closed;
+
+	public ParallelGZIPOutputStream(OutputStream out) {
+		this(out, DEFAULT_CHUNK_SIZE, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param out the stream to write the gzip members to
+	 * @param chunkSize the number of uncompressed bytes per member
+	 * @param level the Deflater compression level
+	 * @param nThreads the number of compressing threads
+	 */
+	public ParallelGZIPOutputStream(OutputStream out, int chunkSize, int level, int nThreads) {
+		this.out = out;
+		this.chunkSize = chunkSize;
+		this.level = level;
+		this.nThreads = Math.max(1, nThreads);
+		chunk = new byte[chunkSize];
+		pool = Executors.newFixedThreadPool(this.nThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "gzip");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void write(int b) throws IOException {
+		chunk[count++] = (byte)b;
+		if (count == chunkSize)
+			submit();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, chunkSize - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == chunkSize)
+				submit();
+		}
+	}
+
+	/** Writes the members that are compressed so far; the current chunk is kept. */
+	public void flush() throws IOException {
+		while (!pending.isEmpty())
+			writeMember();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// an empty stream still needs one member
+			if (count > 0 || members == 0)
+				submit();
+			flush();
+		} finally {
+			pool.shutdown();
+			out.close();
+		}
+	}
+
+	protected void submit() throws IOException {
+		final byte[] data = chunk;
+		final int length = count;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return compress(data, length, level);
+			}
+		}));
+		members++;
+		chunk = new byte[chunkSize];
+		count = 0;
+		// limit the memory used by chunks waiting to be written
+		while (pending.size() > 2 * nThreads)
+			writeMember();
+	}
+
+	protected void writeMember() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing: " + e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress: " + e.getCause());
+		}
+	}
+
+	/** Compress data[0..length-1] into a complete gzip member. */
+	public static byte[] compress(byte[] data, int length, int level) {
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		byte[] member = new byte[HEADER_SIZE + length + length / 1000 + 64 + TRAILER_SIZE];
+		int size = HEADER_SIZE;
+		while (!deflater.finished()) {
+			if (size == member.length - TRAILER_SIZE) {
+				byte[] bigger = new byte[member.length * 2];
+				System.arraycopy(member, 0, bigger, 0, size);
+				member = bigger;
+			}
+			size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+		}
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		size += TRAILER_SIZE;
+
+		// header: magic, deflate, FEXTRA, no mtime, no extra flags, unknown OS
+		member[0] = (byte)0x1f;
+		member[1] = (byte)0x8b;
+		member[2] = 8;
+		member[3] = 4;
+		member[9] = (byte)255;
+		putShort(member, 10, 12); // XLEN
+		member[12] = SUBFIELD_ID1;
+		member[13] = SUBFIELD_ID2;
+		putShort(member, 14, 8);
+		putInt(member, 16, size);
+		putInt(member, 20, length);
+
+		putInt(member, size - 8, (int)crc.getValue());
+		putInt(member, size - 4, length);
+
+		if (size == member.length)
+			return member;
+		byte[] result = new byte[size];
+		System.arraycopy(member, 0, result, 0, size);
+		return result;
+	}
+
+	static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte)value;
+		b[offset + 1] = (byte)(value >> 8);
+	}
+
+	static void putInt(byte[] b, int offset, int value) {
+		for (int i = 0; i < 4; i++)
+			b[offset + i] = (byte)(value >> (8 * i));
+	}
+
+	static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8
+			| (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+	}
+}
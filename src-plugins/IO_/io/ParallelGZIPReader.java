@@ -0,0 +1,316 @@
+package io;
+
+// ParallelGZIPReader
+// ------------------
+// Reads raw image data written by ParallelGZIPOutputStream: the gzip
+// members are found from the sizes in their headers, and inflated on all
+// processors directly into the preallocated pixel arrays of the slices.
+//
+// Data that was not written as such members (e.g. by GZIPOutputStream or
+// teem) is not recognised; use a GZIPInputStream for that.
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class ParallelGZIPReader {
+	protected File file;
+	// position in the file, compressed and uncompressed size of each member
+	protected long[] offsets;
+	protected int[] compressedSizes, sizes;
+	protected long totalSize;
+
+	protected ParallelGZIPReader(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Index the gzip members starting at offset.
+	 *
+	 * @return the reader, or null if the file does not consist of members
+	 * written by ParallelGZIPOutputStream from offset to its end
+	 */
+	public static ParallelGZIPReader open(File file, long offset) throws IOException {
+		ParallelGZIPReader reader = new ParallelGZIPReader(file);
+		return reader.index(offset) ? reader : null;
+	}
+
+	protected boolean index(long offset) throws IOException {
+		ArrayList<long[]> members = new ArrayList<long[]>();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			byte[] header = new byte[ParallelGZIPOutputStream.HEADER_SIZE];
+			while (offset < length) {
+				if (offset + header.length > length)
+					return false;
+				raf.seek(offset);
+				raf.readFully(header);
+				if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b
+						|| header[2] != 8 || header[3] != 4
+						|| header[10] != 12 || header[11] != 0
+						|| header[12] != ParallelGZIPOutputStream.SUBFIELD_ID1
+						|| header[13] != ParallelGZIPOutputStream.SUBFIELD_ID2)
+					return false;
+				int compressedSize = ParallelGZIPOutputStream.getInt(header, 16);
+				int size = ParallelGZIPOutputStream.getInt(header, 20);
+				if (compressedSize < header.length + ParallelGZIPOutputStream.TRAILER_SIZE || size < 0)
+					return false;
+				members.add(new long[] { offset, compressedSize, size });
+				offset += compressedSize;
+			}
+		} finally {
+			raf.close();
+		}
+		if (members.size() == 0)
+			return false;
+
+		offsets = new long[members.size()];
+		compressedSizes = new int[offsets.length];
+		sizes = new int[offsets.length];
+		for (int i = 0; i < offsets.length; i++) {
+			long[] member = members.get(i);
+			offsets[i] = member[0];
+			compressedSizes[i] = (int)member[1];
+			sizes[i] = (int)member[2];
+			totalSize += sizes[i];
+		}
+		return true;
+	}
+
+	/**
+	 * Open the raw image data that was written with ParallelGZIPOutputStream.
+	 *
+	 * @param fi describes the (uncompressed) data; its offset is ignored
+	 * @param offset the position of the first gzip member in the file
+	 * @return the image, or null if the data was not written by
+	 * ParallelGZIPOutputStream or has an unsupported type
+	 */
+	public static ImagePlus openImage(FileInfo fi, long offset) throws IOException {
+		if (pixelsClass(fi.fileType) == null)
+			return null;
+		ParallelGZIPReader reader = open(new File(fi.directory, fi.fileName), offset);
+		if (reader == null)
+			return null;
+
+		int bytesPerPixel = fi.getBytesPerPixel();
+		for (int i = 0; i < reader.sizes.length - 1; i++)
+			if (reader.sizes[i] % bytesPerPixel != 0)
+				return null;
+
+		int nImages = Math.max(1, fi.nImages);
+		long needed = (long)fi.width * fi.height * bytesPerPixel * nImages;
+		if (reader.totalSize < needed)
+			throw new IOException("Compressed data too short: " + reader.totalSize + " < " + needed + " bytes");
+
+		Object[] slices = new Object[nImages];
+		for (int i = 0; i < nImages; i++)
+			slices[i] = java.lang.reflect.Array.newInstance(pixelsClass(fi.fileType), fi.width * fi.height);
+		reader.read(new Slices(fi, slices), needed);
+
+		ImageStack stack = new ImageStack(fi.width, fi.height, new FileOpener(fi).createColorModel(fi));
+		for (int i = 0; i < nImages; i++)
+			stack.addSlice(null, slices[i]);
+		ImagePlus imp = new ImagePlus(fi.fileName, stack);
+		MappedVirtualStack.setCalibration(imp.getCalibration(), fi);
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
+	/** Receives the inflated bytes. */
+	protected interface Output {
+		/** Store length bytes of buffer, which start at position of the uncompressed data. */
+		void store(byte[] buffer, int length, long position);
+	}
+
+	/**
+	 * Inflate the members in parallel, as far as they are needed for
+	 * the first length bytes of uncompressed data.
+	 */
+	protected void read(final Output output, final long length) throws IOException {
+		final long[] positions = new long[sizes.length];
+		int n = 0;
+		for (long position = 0; n < sizes.length && position < length; n++) {
+			positions[n] = position;
+			position += sizes[n];
+		}
+		final int nMembers = n;
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final FileChannel channel = raf.getChannel();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[Math.min(nMembers, Runtime.getRuntime().availableProcessors())];
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread] = new Thread() {
+				public void run() {
+					Inflater inflater = new Inflater(true);
+					CRC32 crc = new CRC32();
+					byte[] compressed = new byte[0], inflated = new byte[0];
+					try {
+						for (int i = ai.getAndIncrement(); i < nMembers && failure[0] == null; i = ai.getAndIncrement()) {
+							if (compressed.length < compressedSizes[i])
+								compressed = new byte[compressedSizes[i]];
+							if (inflated.length < sizes[i])
+								inflated = new byte[sizes[i]];
+							inflate(channel, i, inflater, crc, compressed, inflated);
+							int valid = (int)Math.min(sizes[i], length - positions[i]);
+							output.store(inflated, valid, positions[i]);
+						}
+					} catch (Throwable t) {
+						failure[0] = t;
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		try {
+			for (int ithread = 0; ithread < threads.length; ithread++) {
+				threads[ithread].setPriority(Thread.NORM_PRIORITY);
+				threads[ithread].start();
+			}
+			for (int ithread = 0; ithread < threads.length; ithread++)
+				threads[ithread].join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading " + file);
+		} finally {
+			raf.close();
+		}
+		if (failure[0] instanceof IOException)
+			throw (IOException)failure[0];
+		if (failure[0] != null)
+			throw new IOException("Could not read " + file + ": " + failure[0]);
+	}
+
+	protected void inflate(FileChannel channel, int i, Inflater inflater, CRC32 crc, byte[] compressed, byte[] inflated) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, compressedSizes[i]);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offsets[i] + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + file);
+
+		int dataSize = compressedSizes[i] - ParallelGZIPOutputStream.HEADER_SIZE - ParallelGZIPOutputStream.TRAILER_SIZE;
+		inflater.reset();
+		inflater.setInput(compressed, ParallelGZIPOutputStream.HEADER_SIZE, dataSize);
+		int size = 0;
+		try {
+			while (size < sizes[i] && !inflater.finished()) {
+				int n = inflater.inflate(inflated, size, sizes[i] - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				size += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member " + i + " in " + file + ": " + e.getMessage());
+		}
+
+		crc.reset();
+		crc.update(inflated, 0, size);
+		int trailer = compressedSizes[i] - ParallelGZIPOutputStream.TRAILER_SIZE;
+		if (size != sizes[i] || (int)crc.getValue() != ParallelGZIPOutputStream.getInt(compressed, trailer))
+			throw new IOException("Corrupt gzip member " + i + " in " + file);
+	}
+
+	/** The type of the pixel arrays ImageJ uses for a file type, or null if not supported. */
+	protected static Class pixelsClass(int fileType) {
+		switch (fileType) {
+		case FileInfo.GRAY8:
+		case FileInfo.COLOR8:
+			return byte.class;
+		case FileInfo.GRAY16_SIGNED:
+		case FileInfo.GRAY16_UNSIGNED:
+			return short.class;
+		case FileInfo.GRAY32_INT:
+		case FileInfo.GRAY32_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+		case FileInfo.GRAY64_FLOAT:
+			return float.class;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Converts the inflated bytes into the pixels of the slices, as ImageJ's
+	 * ImageReader would (signed 16-bit values are offset by 32768, 32-bit
+	 * integers and doubles are converted to float).
+	 */
+	protected static class Slices implements Output {
+		protected FileInfo fi;
+		protected Object[] slices;
+		protected int bytesPerPixel;
+		protected long sliceBytes;
+		protected ByteOrder order;
+
+		Slices(FileInfo fi, Object[] slices) {
+			this.fi = fi;
+			this.slices = slices;
+			bytesPerPixel = fi.getBytesPerPixel();
+			sliceBytes = (long)fi.width * fi.height * bytesPerPixel;
+			order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		}
+
+		public void store(byte[] buffer, int length, long position) {
+			int offset = 0;
+			while (offset < length) {
+				int slice = (int)(position / sliceBytes);
+				int within = (int)(position % sliceBytes);
+				int n = (int)Math.min(length - offset, sliceBytes - within);
+				convert(ByteBuffer.wrap(buffer, offset, n).order(order), slices[slice], within / bytesPerPixel, n / bytesPerPixel);
+				offset += n;
+				position += n;
+			}
+		}
+
+		protected void convert(ByteBuffer buffer, Object pixels, int index, int count) {
+			switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+				buffer.get((byte[])pixels, index, count);
+				break;
+			case FileInfo.GRAY16_UNSIGNED:
+				buffer.asShortBuffer().get((short[])pixels, index, count);
+				break;
+			case FileInfo.GRAY16_SIGNED: {
+				short[] p = (short[])pixels;
+				for (int i = index; i < index + count; i++)
+					p[i] = (short)(buffer.getShort() + 32768);
+				break;
+			}
+			case FileInfo.GRAY32_FLOAT:
+				buffer.asFloatBuffer().get((float[])pixels, index, count);
+				break;
+			case FileInfo.GRAY32_INT: {
+				float[] p = (float[])pixels;
+				for (int i = index; i < index + count; i++)
+					p[i] = buffer.getInt();
+				break;
+			}
+			case FileInfo.GRAY32_UNSIGNED: {
+				float[] p = (float[])pixels;
+				for (int i = index; i < index + count; i++)
+					p[i] = buffer.getInt() & 0xffffffffL;
+				break;
+			}
+			case FileInfo.GRAY64_FLOAT: {
+				float[] p = (float[])pixels;
+				for (int i = index; i < index + count; i++)
+					p[i] = (float)buffer.getDouble();
+				break;
+			}
+			}
+		}
+	}
+}
@@ -25,11 +25,19 @@ import java.util.zip.GZIPInputStream;
 // 2007-02-16
 // Fixed reading of signed 16 bit images
 
+// 2026-10-19
+// Uncompressed data that does not fit into memory is opened as a
+// memory-mapped virtual stack
+
 public class TorstenRaw_GZ_Reader extends ImagePlus implements PlugIn
 {
 	public String imageName=null;
 	protected File headerFile=null;
 	protected File dataFile=null;
+	// Open uncompressed (.bin) data as a virtual stack, mapping each slice
+	// from the file when it is needed. Images that do not fit into the
+	// available memory are always opened like this.
+	public boolean virtualStack=false;
 
 	public void run(String arg) {
 		String directory = "", name = arg;
@@ -86,15 +94,19 @@ public class TorstenRaw_GZ_Reader extends ImagePlus implements PlugIn
 
 		ImagePlus imp;
 		FileOpener fo;
-		// if running ImageJ >=1.38s then use built in FileOpener
-		// else call my gzip opener plugin which has had the
-		// createInputStream method overloaded.
-		if(name.toLowerCase().endsWith(".gz")  && (IJ.getVersion().compareTo("1.38s")<0)) {
-			fo=new GZIPFileOpener(fi);
+		if(!name.toLowerCase().endsWith(".gz") && (virtualStack || MappedVirtualStack.exceedsMemory(fi))) {
+			imp = MappedVirtualStack.open(fi, name);
 		} else {
-			fo = new FileOpener(fi);
+			// if running ImageJ >=1.38s then use built in FileOpener
+			// else call my gzip opener plugin which has had the
+			// createInputStream method overloaded.
+			if(name.toLowerCase().endsWith(".gz")  && (IJ.getVersion().compareTo("1.38s")<0)) {
+				fo=new GZIPFileOpener(fi);
+			} else {
+				fo = new FileOpener(fi);
+			}
+			imp = fo.open(false);
 		}
-		imp = fo.open(false);
 		if(imp==null) return null;
 
 		// Copy over the spatial scale info which we found in readHeader
@@ -0,0 +1,87 @@
+/* Opens a chunked Image5D file (see Save_Image5D_Chunked), or a part of it.
+ * Only the chunks needed for the selected region are read. As virtual Image5D,
+ * the planes are read when they are displayed. */
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+
+import i5d.ChunkedImage5DReader;
+import i5d.Image5D;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+public class Open_Image5D_Chunked implements PlugIn {
+
+    static boolean virtual = true;
+
+    public void run(String arg) {
+        OpenDialog od = new OpenDialog("Open Image5D Chunked", arg);
+        String name = od.getFileName();
+        if (name==null)
+            return;
+        File file = new File(od.getDirectory(), name);
+
+        ChunkedImage5DReader reader;
+        try {
+            reader = new ChunkedImage5DReader(file);
+        } catch (IOException e) {
+            IJ.error("Open Image5D Chunked", e.getMessage());
+            return;
+        }
+        int[] dims = reader.getDimensions();
+
+        GenericDialog gd = new GenericDialog("Open Image5D Chunked");
+        gd.addMessage(dims[0]+" x "+dims[1]+" pixels, "+dims[2]+" channels, "
+                +dims[3]+" slices, "+dims[4]+" frames");
+        gd.addNumericField("x", 0, 0);
+        gd.addNumericField("y", 0, 0);
+        gd.addNumericField("width", dims[0], 0);
+        gd.addNumericField("height", dims[1], 0);
+        gd.addNumericField("First channel", 1, 0);
+        gd.addNumericField("Last channel", dims[2], 0);
+        gd.addNumericField("First slice", 1, 0);
+        gd.addNumericField("Last slice", dims[3], 0);
+        gd.addNumericField("First frame", 1, 0);
+        gd.addNumericField("Last frame", dims[4], 0);
+        gd.addCheckbox("Virtual", virtual);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            close(reader);
+            return;
+        }
+        Rectangle r = new Rectangle((int)gd.getNextNumber(), (int)gd.getNextNumber(),
+                (int)gd.getNextNumber(), (int)gd.getNextNumber());
+        int[] range = new int[6];
+        for (int i=0; i<6; i++)
+            range[i] = (int)gd.getNextNumber();
+        virtual = gd.getNextBoolean();
+
+        Image5D i5d;
+        try {
+            i5d = reader.createImage5D(r, range[0], range[1], range[2], range[3], range[4], range[5], virtual);
+        } catch (IOException e) {
+            close(reader);
+            IJ.error("Open Image5D Chunked", e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            close(reader);
+            IJ.error("Open Image5D Chunked", "The selected region is empty.");
+            return;
+        }
+        // A virtual Image5D keeps reading from the file until it is closed.
+        if (!virtual)
+            close(reader);
+        i5d.show();
+    }
+
+    void close(ChunkedImage5DReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            IJ.log("Could not close "+reader.getFile()+": "+e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/* Saves an Image5D as chunked file, which can be opened in parts by
+ * Open_Image5D_Chunked. */
+
+import java.io.File;
+import java.io.IOException;
+
+import i5d.ChunkedImage5DReader;
+import i5d.ChunkedImage5DWriter;
+import i5d.Image5D;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+
+public class Save_Image5D_Chunked implements PlugIn {
+
+    static int[] chunkSize = (int[])ChunkedImage5DWriter.DEFAULT_CHUNK_SIZE.clone();
+    static boolean compress = true;
+
+    public void run(String arg) {
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp==null) {
+            IJ.error("No Image selected.");
+            return;
+        } else if (!(imp instanceof Image5D)) {
+            IJ.error("Image is not an Image5D.");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Save Image5D Chunked");
+        gd.addNumericField("Chunk width", chunkSize[0], 0);
+        gd.addNumericField("Chunk height", chunkSize[1], 0);
+        gd.addNumericField("Chunk channels", chunkSize[2], 0);
+        gd.addNumericField("Chunk slices", chunkSize[3], 0);
+        gd.addNumericField("Chunk frames", chunkSize[4], 0);
+        gd.addCheckbox("Compress", compress);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        for (int i=0; i<5; i++)
+            chunkSize[i] = Math.max(1, (int)gd.getNextNumber());
+        compress = gd.getNextBoolean();
+
+        SaveDialog sd = new SaveDialog("Save Image5D Chunked", imp.getTitle(), ChunkedImage5DWriter.EXTENSION);
+        String name = sd.getFileName();
+        if (name==null)
+            return;
+        String directory = sd.getDirectory();
+
+        ChunkedImage5DWriter writer = new ChunkedImage5DWriter();
+        writer.setChunkSize(chunkSize);
+        writer.setCompression(compress ? ChunkedImage5DReader.COMPRESSION_DEFLATE
+                : ChunkedImage5DReader.COMPRESSION_NONE);
+        IJ.showStatus("Saving "+name+"...");
+        long start = System.currentTimeMillis();
+        try {
+            writer.write((Image5D)imp, new File(directory, name));
+        } catch (IOException e) {
+            IJ.error("An error occured writing the file.\n \n" + e);
+            return;
+        }
+        IJ.showStatus("Saved "+name+" in "+(System.currentTimeMillis()-start)+"ms");
+    }
+}
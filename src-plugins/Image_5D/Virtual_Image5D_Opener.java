@@ -176,7 +176,7 @@ public class Virtual_Image5D_Opener implements PlugIn {
             case 2: nFrames = nLast; break;
         }
         
-        I5DVirtualStack newStack = new I5DVirtualStack(stack.getWidth(), stack.getHeight(), stack.getColorModel(), directory);
+        I5DVirtualStack newStack = new I5DVirtualStack(stack.getWidth(), stack.getHeight(), stack.getColorModel(), stack.getCache());
 
         // Sort: loop with channel changing fastest. Read appropriate slice filename from stack and 
         // add to virtual stack.
@@ -0,0 +1,469 @@
+package i5d;
+import i5d.cal.ChannelDisplayProperties;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+Reads an Image5D from a chunked file, as written by ChunkedImage5DWriter.
+<p>
+The image is divided into chunks of a fixed size in x, y, z, channel and time
+(smaller at the borders), which are compressed independently. The header holds
+the dimensions, calibration and channel display settings, and an index of the
+position and length of every chunk. A plane or sub-volume is read by
+decompressing only the chunks it intersects, so that parts of very large
+images can be opened without reading the whole file.
+<p>
+File layout (big-endian):
+<pre>
+"I5DC", int version, long index offset
+int type (ImagePlus.GRAY8, GRAY16 or GRAY32), width, height, channels, slices, frames
+int chunk width, height, channels, slices, frames
+int compression (COMPRESSION_NONE or COMPRESSION_DEFLATE)
+double pixel width, height, depth, frame interval; UTF unit
+double x, y and z origin (since version 2)
+per channel: UTF label, double min, max, 256 red, green and blue LUT bytes
+chunks: pixels ordered by frame, slice, channel, row, column
+index: per chunk (column chunks fastest, frame chunks slowest) long offset, int length
+</pre>
+*/
+public class ChunkedImage5DReader {
+    public static final int MAGIC = 0x49354443; // "I5DC"
+    public static final int VERSION = 2;
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_DEFLATE = 1;
+    static final int INDEX_ENTRY_SIZE = 12;
+    static final int N_LOCKS = 64;
+
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+
+    int type, bytesPerPixel;
+    int[] dimensions = new int[5];  // x, y, ch, z, t as in Image5D
+    int[] chunkSize = new int[5];
+    int[] nChunks = new int[5];
+    int compression;
+    Calibration calibration = new Calibration();
+    String[] channelLabels;
+    double[] channelMin, channelMax;
+    IndexColorModel[] channelLUTs;
+    long[] chunkOffsets;
+    int[] chunkLengths;
+
+    // decompressed chunks, most recently used last
+    long cacheBytes, maxCacheBytes;
+    LinkedHashMap<Integer, byte[]> chunks = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    // chunks are decompressed once even if several threads need them
+    Object[] locks = new Object[N_LOCKS];
+
+    /** Opens the file and reads its header and chunk index. */
+    public ChunkedImage5DReader(File file) throws IOException {
+        this.file = file;
+        for (int i=0; i<N_LOCKS; i++)
+            locks[i] = new Object();
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        maxCacheBytes = Math.max(8L*getChunkBytes(), (ij.IJ.maxMemory()-ij.IJ.currentMemory())/4);
+    }
+
+    void readHeader() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(0))));
+        if (in.readInt()!=MAGIC)
+            throw new IOException(file+" is not a chunked Image5D file.");
+        int version = in.readInt();
+        if (version>VERSION)
+            throw new IOException("Unsupported chunked Image5D version "+version+" in "+file);
+        long indexOffset = in.readLong();
+        type = in.readInt();
+        switch (type) {
+            case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+            case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+            case ImagePlus.GRAY32: bytesPerPixel = 4; break;
+            default: throw new IOException("Unsupported image type "+type+" in "+file);
+        }
+        for (int i=0; i<5; i++)
+            dimensions[i] = in.readInt();
+        for (int i=0; i<5; i++) {
+            chunkSize[i] = in.readInt();
+            if (dimensions[i]<1 || chunkSize[i]<1)
+                throw new IOException("Invalid dimensions in "+file);
+            nChunks[i] = (dimensions[i]+chunkSize[i]-1)/chunkSize[i];
+        }
+        compression = in.readInt();
+        if (compression!=COMPRESSION_NONE && compression!=COMPRESSION_DEFLATE)
+            throw new IOException("Unsupported compression "+compression+" in "+file);
+        calibration.pixelWidth = in.readDouble();
+        calibration.pixelHeight = in.readDouble();
+        calibration.pixelDepth = in.readDouble();
+        calibration.frameInterval = in.readDouble();
+        calibration.setUnit(in.readUTF());
+        if (version>=2) {
+            calibration.xOrigin = in.readDouble();
+            calibration.yOrigin = in.readDouble();
+            calibration.zOrigin = in.readDouble();
+        }
+
+        int nChannels = dimensions[2];
+        channelLabels = new String[nChannels];
+        channelMin = new double[nChannels];
+        channelMax = new double[nChannels];
+        channelLUTs = new IndexColorModel[nChannels];
+        for (int c=0; c<nChannels; c++) {
+            channelLabels[c] = in.readUTF();
+            channelMin[c] = in.readDouble();
+            channelMax[c] = in.readDouble();
+            byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+            in.readFully(r);
+            in.readFully(g);
+            in.readFully(b);
+            channelLUTs[c] = new IndexColorModel(8, 256, r, g, b);
+        }
+
+        long n = (long)nChunks[0]*nChunks[1]*nChunks[2]*nChunks[3]*nChunks[4];
+        if (n>Integer.MAX_VALUE || indexOffset+n*INDEX_ENTRY_SIZE>raf.length())
+            throw new IOException("Invalid chunk index in "+file);
+        ByteBuffer index = ByteBuffer.allocate((int)n*INDEX_ENTRY_SIZE);
+        while (index.hasRemaining())
+            if (channel.read(index, indexOffset+index.position())<0)
+                throw new IOException("Unexpected end of "+file);
+        index.flip();
+        chunkOffsets = new long[(int)n];
+        chunkLengths = new int[(int)n];
+        for (int i=0; i<n; i++) {
+            chunkOffsets[i] = index.getLong();
+            chunkLengths[i] = index.getInt();
+        }
+    }
+
+    /** Closes the file. */
+    public void close() throws IOException {
+        synchronized (chunks) {
+            chunks.clear();
+            cacheBytes = 0;
+        }
+        raf.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the ImagePlus type: GRAY8, GRAY16 or GRAY32. */
+    public int getType() {
+        return type;
+    }
+
+    /** Returns width, height, nChannels, nSlices and nFrames. */
+    public int[] getDimensions() {
+        return (int[])dimensions.clone();
+    }
+
+    /** Returns the chunk size in x, y, channels, slices and frames. */
+    public int[] getChunkSize() {
+        return (int[])chunkSize.clone();
+    }
+
+    public Calibration getCalibration() {
+        return calibration.copy();
+    }
+
+    /** Sets the number of bytes of decompressed chunks kept in memory. */
+    public void setCacheSize(long bytes) {
+        synchronized (chunks) {
+            maxCacheBytes = Math.max(0, bytes);
+            trimCache();
+        }
+    }
+
+    long getChunkBytes() {
+        long bytes = bytesPerPixel;
+        for (int i=0; i<5; i++)
+            bytes *= Math.min(chunkSize[i], dimensions[i]);
+        return bytes;
+    }
+
+    /** Returns the bytes of the chunks that a plane of the rectangle r intersects. */
+    long getChunkBytes(Rectangle r) {
+        long columns = (r.x+r.width-1)/chunkSize[0]-r.x/chunkSize[0]+1;
+        long rows = (r.y+r.height-1)/chunkSize[1]-r.y/chunkSize[1]+1;
+        return columns*rows*getChunkBytes();
+    }
+
+    /** Returns the pixels of plane <channel, slice, frame> (starting at 1). */
+    public Object readPlane(int channel, int slice, int frame) throws IOException {
+        return readPlane(new Rectangle(0, 0, dimensions[0], dimensions[1]), channel, slice, frame);
+    }
+
+    /** Returns the pixels of the rectangle r of plane <channel, slice, frame> (starting at 1).
+     * Only the chunks intersecting the rectangle are read. */
+    public Object readPlane(Rectangle r, int channel, int slice, int frame) throws IOException {
+        r = r.intersection(new Rectangle(0, 0, dimensions[0], dimensions[1]));
+        if (r.isEmpty() || channel<1 || channel>dimensions[2] || slice<1 || slice>dimensions[3]
+                || frame<1 || frame>dimensions[4])
+            throw new IllegalArgumentException("Out of range: "+r+" <"+channel+", "+slice+", "+frame+">");
+        int[] position = {0, 0, channel-1, slice-1, frame-1};
+        byte[] bytes = new byte[r.width*r.height*bytesPerPixel];
+        int[] chunk = new int[5];
+        for (int i=2; i<5; i++)
+            chunk[i] = position[i]/chunkSize[i];
+        for (chunk[1]=r.y/chunkSize[1]; chunk[1]<=(r.y+r.height-1)/chunkSize[1]; chunk[1]++)
+            for (chunk[0]=r.x/chunkSize[0]; chunk[0]<=(r.x+r.width-1)/chunkSize[0]; chunk[0]++)
+                copyRows(getChunk(chunk), chunk, position, r, bytes);
+        return toPixels(bytes, r.width*r.height);
+    }
+
+    /** Copies the rows of the chunk that are inside r to the plane bytes. */
+    void copyRows(byte[] data, int[] chunk, int[] position, Rectangle r, byte[] bytes) {
+        int[] origin = new int[5], extent = new int[5];
+        getChunkBounds(chunk, origin, extent);
+        int x0 = Math.max(r.x, origin[0]), x1 = Math.min(r.x+r.width, origin[0]+extent[0]);
+        int y0 = Math.max(r.y, origin[1]), y1 = Math.min(r.y+r.height, origin[1]+extent[1]);
+        int c = position[2]-origin[2], z = position[3]-origin[3], t = position[4]-origin[4];
+        int planeOffset = ((t*extent[3]+z)*extent[2]+c)*extent[1];
+        int rowBytes = (x1-x0)*bytesPerPixel;
+        for (int y=y0; y<y1; y++) {
+            int from = ((planeOffset+y-origin[1])*extent[0]+x0-origin[0])*bytesPerPixel;
+            int to = ((y-r.y)*r.width+x0-r.x)*bytesPerPixel;
+            System.arraycopy(data, from, bytes, to, rowBytes);
+        }
+    }
+
+    /** Gets origin and extent (clipped at the image border) of a chunk. */
+    void getChunkBounds(int[] chunk, int[] origin, int[] extent) {
+        for (int i=0; i<5; i++) {
+            origin[i] = chunk[i]*chunkSize[i];
+            extent[i] = Math.min(chunkSize[i], dimensions[i]-origin[i]);
+        }
+    }
+
+    int getChunkIndex(int[] chunk) {
+        int index = 0;
+        for (int i=4; i>=0; i--)
+            index = index*nChunks[i]+chunk[i];
+        return index;
+    }
+
+    /** Returns the decompressed chunk, from the cache if possible. */
+    byte[] getChunk(int[] chunk) throws IOException {
+        int index = getChunkIndex(chunk);
+        Integer key = new Integer(index);
+        synchronized (locks[index%N_LOCKS]) {
+            byte[] data;
+            synchronized (chunks) {
+                data = chunks.get(key);
+            }
+            if (data!=null)
+                return data;
+            int[] origin = new int[5], extent = new int[5];
+            getChunkBounds(chunk, origin, extent);
+            int size = bytesPerPixel;
+            for (int i=0; i<5; i++)
+                size *= extent[i];
+            data = readChunk(index, size);
+            synchronized (chunks) {
+                chunks.put(key, data);
+                cacheBytes += data.length;
+                trimCache();
+            }
+            return data;
+        }
+    }
+
+    void trimCache() {
+        while (cacheBytes>maxCacheBytes && !chunks.isEmpty()) {
+            Integer eldest = chunks.keySet().iterator().next();
+            cacheBytes -= chunks.remove(eldest).length;
+        }
+    }
+
+    byte[] readChunk(int index, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkLengths[index]);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, chunkOffsets[index]+buffer.position())<0)
+                throw new IOException("Unexpected end of "+file);
+        byte[] compressed = buffer.array();
+        if (compression==COMPRESSION_NONE) {
+            if (compressed.length!=size)
+                throw new IOException("Corrupt chunk "+index+" in "+file);
+            return compressed;
+        }
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n<size && !inflater.finished()) {
+                int count = inflater.inflate(data, n, size-n);
+                if (count==0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += count;
+            }
+            if (n!=size)
+                throw new IOException("Corrupt chunk "+index+" in "+file);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk "+index+" in "+file+": "+e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    Object toPixels(byte[] bytes, int n) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return bytes;
+            case ImagePlus.GRAY16:
+                short[] shorts = new short[n];
+                buffer.asShortBuffer().get(shorts);
+                return shorts;
+            default:
+                float[] floats = new float[n];
+                buffer.asFloatBuffer().get(floats);
+                return floats;
+        }
+    }
+
+    ImageProcessor createProcessor(int width, int height, Object pixels) {
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return new ByteProcessor(width, height, (byte[])pixels, null);
+            case ImagePlus.GRAY16:
+                return new ShortProcessor(width, height, (short[])pixels, null);
+            default:
+                return new FloatProcessor(width, height, (float[])pixels, null);
+        }
+    }
+
+    /** Opens the whole image; see createImage5D(Rectangle, int, int, int, int, int, int, boolean). */
+    public Image5D createImage5D(boolean virtual) throws IOException {
+        return createImage5D(null, 1, dimensions[2], 1, dimensions[3], 1, dimensions[4], virtual);
+    }
+
+    /**
+     * Opens a sub-volume as Image5D. Channels, slices and frames start at 1; the ranges
+     * include both ends.
+     * @param r: the region in x and y, or null for the whole plane
+     * @param virtual: if true, the planes are read (and read ahead) when they are displayed;
+     * otherwise they are all read now.
+     */
+    public Image5D createImage5D(Rectangle r, int firstChannel, int lastChannel, int firstSlice, int lastSlice,
+            int firstFrame, int lastFrame, boolean virtual) throws IOException {
+        if (r==null)
+            r = new Rectangle(0, 0, dimensions[0], dimensions[1]);
+        r = r.intersection(new Rectangle(0, 0, dimensions[0], dimensions[1]));
+        firstChannel = Math.max(1, firstChannel);
+        lastChannel = Math.min(dimensions[2], lastChannel);
+        firstSlice = Math.max(1, firstSlice);
+        lastSlice = Math.min(dimensions[3], lastSlice);
+        firstFrame = Math.max(1, firstFrame);
+        lastFrame = Math.min(dimensions[4], lastFrame);
+        if (r.isEmpty() || firstChannel>lastChannel || firstSlice>lastSlice || firstFrame>lastFrame)
+            throw new IllegalArgumentException("Empty sub-volume");
+
+        ColorModel cm = ChannelDisplayProperties.createModelFromColor(java.awt.Color.white);
+        ImageStack stack;
+        if (virtual) {
+            I5DVirtualStack virtualStack = new I5DVirtualStack(r.width, r.height, cm, new ChunkedPlaneCache(this, r));
+            for (int t=firstFrame; t<=lastFrame; t++)
+                for (int z=firstSlice; z<=lastSlice; z++)
+                    for (int c=firstChannel; c<=lastChannel; c++)
+                        virtualStack.addSlice(ChunkedPlaneCache.getName(c, z, t));
+            stack = virtualStack;
+        } else {
+            stack = new ImageStack(r.width, r.height, cm);
+            int n = 0, total = (lastFrame-firstFrame+1)*(lastSlice-firstSlice+1)*(lastChannel-firstChannel+1);
+            for (int t=firstFrame; t<=lastFrame; t++)
+                for (int z=firstSlice; z<=lastSlice; z++)
+                    for (int c=firstChannel; c<=lastChannel; c++) {
+                        ij.IJ.showProgress(n++, total);
+                        stack.addSlice(ChunkedPlaneCache.getName(c, z, t), readPlane(r, c, z, t));
+                    }
+            ij.IJ.showProgress(1.0);
+        }
+
+        String title = file.getName();
+        if (title.endsWith(ChunkedImage5DWriter.EXTENSION))
+            title = title.substring(0, title.length()-ChunkedImage5DWriter.EXTENSION.length());
+        Image5D i5d = new Image5D(title, stack, lastChannel-firstChannel+1, lastSlice-firstSlice+1,
+                lastFrame-firstFrame+1);
+        Calibration cal = calibration.copy();
+        cal.xOrigin -= r.x;
+        cal.yOrigin -= r.y;
+        cal.zOrigin -= firstSlice-1;
+        i5d.setCalibration(cal);
+        for (int c=firstChannel; c<=lastChannel; c++) {
+            int channel = c-firstChannel+1;
+            i5d.getChannelCalibration(channel).setLabel(channelLabels[c-1]);
+            i5d.setChannelColorModel(channel, channelLUTs[c-1]);
+            i5d.setChannelMinMax(channel, channelMin[c-1], channelMax[c-1]);
+        }
+        i5d.setCurrentPosition(0, 0, 0, 0, 0);
+        return i5d;
+    }
+
+    /** Reads the planes of a virtual Image5D from the chunked file. */
+    static class ChunkedPlaneCache extends I5DPlaneCache {
+        ChunkedImage5DReader reader;
+        Rectangle r;
+
+        ChunkedPlaneCache(ChunkedImage5DReader reader, Rectangle r) {
+            super(reader.getFile().getParent(), r.width, r.height);
+            this.reader = reader;
+            this.r = r;
+            // the planes are cached here; the reader only needs to keep the chunks
+            // of the planes being read (ahead), not a second copy of the image
+            reader.setCacheSize(Math.min(reader.maxCacheBytes, 2*reader.getChunkBytes(r)));
+        }
+
+        static String getName(int channel, int slice, int frame) {
+            return "c"+channel+"_z"+slice+"_t"+frame;
+        }
+
+        protected ImageProcessor read(String name) throws IOException {
+            String[] parts = name.split("_");
+            int channel = Integer.parseInt(parts[0].substring(1));
+            int slice = Integer.parseInt(parts[1].substring(1));
+            int frame = Integer.parseInt(parts[2].substring(1));
+            return reader.createProcessor(r.width, r.height, reader.readPlane(r, channel, slice, frame));
+        }
+
+        /** Also closes the file. */
+        public void close() {
+            super.close();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                IJ.log("Could not close "+reader.getFile()+": "+e);
+            }
+        }
+    }
+}
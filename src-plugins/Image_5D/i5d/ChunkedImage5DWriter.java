@@ -0,0 +1,231 @@
+package i5d;
+import i5d.cal.ChannelDisplayProperties;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.awt.image.ColorModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+Writes an Image5D to a chunked file that ChunkedImage5DReader can read in parts;
+see there for the file layout.
+<p>
+The chunks are gathered and compressed on all processors and written in order.
+Only a few chunks per thread are held in memory at a time, so virtual Image5Ds
+can be written as well.
+*/
+public class ChunkedImage5DWriter {
+    public static final String EXTENSION = ".i5c";
+    /** Default chunk size in x, y, channels, slices and frames */
+    public static final int[] DEFAULT_CHUNK_SIZE = {256, 256, 1, 16, 1};
+
+    int[] chunkSize = (int[])DEFAULT_CHUNK_SIZE.clone();
+    int compression = ChunkedImage5DReader.COMPRESSION_DEFLATE;
+    int level = Deflater.DEFAULT_COMPRESSION;
+    int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Sets the chunk size in x, y, channels, slices and frames. */
+    public void setChunkSize(int[] size) {
+        if (size.length!=5)
+            throw new IllegalArgumentException("Chunk size needs 5 dimensions");
+        for (int i=0; i<5; i++)
+            chunkSize[i] = Math.max(1, size[i]);
+    }
+
+    public int[] getChunkSize() {
+        return (int[])chunkSize.clone();
+    }
+
+    /** Sets ChunkedImage5DReader.COMPRESSION_NONE or COMPRESSION_DEFLATE. */
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    /** Sets the Deflater compression level. */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public void setThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /** Writes the Image5D to file. */
+    public void write(Image5D i5d, File file) throws IOException {
+        int type = i5d.getType();
+        int bytesPerPixel;
+        switch (type) {
+            case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+            case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+            case ImagePlus.GRAY32: bytesPerPixel = 4; break;
+            default: throw new IllegalArgumentException("Unsupported image type.");
+        }
+        final int[] dimensions = i5d.getDimensions();
+        final int[] nChunks = new int[5];
+        int total = 1;
+        for (int i=0; i<5; i++) {
+            nChunks[i] = (dimensions[i]+chunkSize[i]-1)/chunkSize[i];
+            total *= nChunks[i];
+        }
+        long[] offsets = new long[total];
+        int[] lengths = new int[total];
+
+        // Make sure the channel properties are up to date.
+        i5d.storeCurrentChannelProperties();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            long offset = writeHeader(out, i5d, type, dimensions);
+
+            LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+            int written = 0;
+            for (int index=0; index<total; index++) {
+                pending.add(pool.submit(chunkCompressor(i5d, index, nChunks, dimensions, bytesPerPixel)));
+                // limit the memory used by chunks waiting to be written
+                while (pending.size()>2*nThreads || (index==total-1 && !pending.isEmpty())) {
+                    byte[] chunk = pending.removeFirst().get();
+                    out.write(chunk);
+                    offsets[written] = offset;
+                    lengths[written++] = chunk.length;
+                    offset += chunk.length;
+                    IJ.showProgress(written, total);
+                }
+            }
+
+            long indexOffset = offset;
+            for (int i=0; i<total; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.close();
+            out = null;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(8);
+                raf.writeLong(indexOffset);
+            } finally {
+                raf.close();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing "+file);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Could not write "+file+": "+e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (out!=null)
+                out.close();
+            IJ.showProgress(1.0);
+        }
+    }
+
+    /** Writes the header with a placeholder for the index offset; returns its length. */
+    long writeHeader(DataOutputStream out, Image5D i5d, int type, int[] dimensions) throws IOException {
+        out.writeInt(ChunkedImage5DReader.MAGIC);
+        out.writeInt(ChunkedImage5DReader.VERSION);
+        out.writeLong(0);
+        out.writeInt(type);
+        for (int i=0; i<5; i++)
+            out.writeInt(dimensions[i]);
+        for (int i=0; i<5; i++)
+            out.writeInt(chunkSize[i]);
+        out.writeInt(compression);
+        Calibration cal = i5d.getCalibration();
+        out.writeDouble(cal.pixelWidth);
+        out.writeDouble(cal.pixelHeight);
+        out.writeDouble(cal.pixelDepth);
+        out.writeDouble(cal.frameInterval);
+        out.writeUTF(cal.getUnit());
+        out.writeDouble(cal.xOrigin);
+        out.writeDouble(cal.yOrigin);
+        out.writeDouble(cal.zOrigin);
+        for (int c=1; c<=dimensions[2]; c++) {
+            String label = i5d.getChannelCalibration(c).getLabel();
+            out.writeUTF(label!=null ? label : "");
+            ChannelDisplayProperties props = i5d.getChannelDisplayProperties(c);
+            out.writeDouble(props.getMinValue());
+            out.writeDouble(props.getMaxValue());
+            ColorModel cm = props.getColorModel();
+            for (int v=0; v<256; v++)
+                out.writeByte(cm.getRed(v));
+            for (int v=0; v<256; v++)
+                out.writeByte(cm.getGreen(v));
+            for (int v=0; v<256; v++)
+                out.writeByte(cm.getBlue(v));
+        }
+        out.flush();
+        return out.size();
+    }
+
+    /** Gathers the pixels of a chunk from the planes of the Image5D and compresses them. */
+    Callable<byte[]> chunkCompressor(final Image5D i5d, final int index, final int[] nChunks,
+            final int[] dimensions, final int bytesPerPixel) {
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                int[] origin = new int[5], extent = new int[5];
+                int rest = index;
+                int size = bytesPerPixel;
+                for (int i=0; i<5; i++) {
+                    origin[i] = (rest%nChunks[i])*chunkSize[i];
+                    rest /= nChunks[i];
+                    extent[i] = Math.min(chunkSize[i], dimensions[i]-origin[i]);
+                    size *= extent[i];
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (int t=origin[4]; t<origin[4]+extent[4]; t++)
+                    for (int z=origin[3]; z<origin[3]+extent[3]; z++)
+                        for (int c=origin[2]; c<origin[2]+extent[2]; c++) {
+                            Object pixels = i5d.getPixels(c+1, z+1, t+1);
+                            if (pixels==null)
+                                throw new IOException("Could not get plane <"+(c+1)+", "+(z+1)+", "+(t+1)+">");
+                            for (int y=origin[1]; y<origin[1]+extent[1]; y++) {
+                                int offset = y*dimensions[0]+origin[0];
+                                if (pixels instanceof byte[])
+                                    buffer.put((byte[])pixels, offset, extent[0]);
+                                else if (pixels instanceof short[])
+                                    buffer.asShortBuffer().put((short[])pixels, offset, extent[0]);
+                                else
+                                    buffer.asFloatBuffer().put((float[])pixels, offset, extent[0]);
+                                if (!(pixels instanceof byte[]))
+                                    buffer.position(buffer.position()+extent[0]*bytesPerPixel);
+                            }
+                        }
+                byte[] data = buffer.array();
+                if (compression==ChunkedImage5DReader.COMPRESSION_NONE)
+                    return data;
+                Deflater deflater = new Deflater(level);
+                try {
+                    deflater.setInput(data);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length/2+64);
+                    byte[] block = new byte[65536];
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(block);
+                        compressed.write(block, 0, n);
+                    }
+                    return compressed.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+}
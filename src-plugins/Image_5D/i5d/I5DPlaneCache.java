@@ -0,0 +1,159 @@
+package i5d;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+This class reads the images of an I5DVirtualStack and keeps the most recently
+used ones in memory. Images can be requested ahead of time; they are then
+read on background threads, so that they are ready when they are displayed.
+A plane that is being read when it is requested is not read a second time.
+*/
+public class I5DPlaneCache {
+    /** The background threads, shared by all caches. */
+    static ExecutorService pool;
+
+    String path;
+    int maxPlanes;
+    LinkedHashMap<String, Future<ImageProcessor>> planes;
+    // Read-ahead requests that may not have started yet
+    LinkedList<Future<ImageProcessor>> pending = new LinkedList<Future<ImageProcessor>>();
+
+    /** Creates a cache for the images in directory path.
+        At most a quarter of the free memory is used for width x height images. */
+    public I5DPlaneCache(String path, int width, int height) {
+        this(path, (int)Math.max(8, Math.min(Integer.MAX_VALUE,
+                (IJ.maxMemory()-IJ.currentMemory())/4/Math.max(1L, 4L*width*height))));
+    }
+
+    /** Creates a cache for the images in directory path that keeps at most maxPlanes images. */
+    public I5DPlaneCache(String path, int maxPlanes) {
+        this.path = path;
+        this.maxPlanes = Math.max(1, maxPlanes);
+        planes = new LinkedHashMap<String, Future<ImageProcessor>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Future<ImageProcessor>> eldest) {
+                return size() > I5DPlaneCache.this.maxPlanes;
+            }
+        };
+    }
+
+    /** Returns the directory of the images. */
+    public String getPath() {
+        return path;
+    }
+
+    /** Returns the maximum number of images kept in memory. */
+    public int getMaxPlanes() {
+        return maxPlanes;
+    }
+
+    /** Returns the image read from the file name, or null if it could not be read.
+        Waits for the image if it is being read in the background. */
+    public ImageProcessor get(String name) {
+        Future<ImageProcessor> future;
+        FutureTask<ImageProcessor> task = null;
+        synchronized (this) {
+            future = planes.get(name);
+            if (future==null || future.isCancelled()) {
+                task = new FutureTask<ImageProcessor>(reader(name));
+                planes.put(name, task);
+                future = task;
+            }
+        }
+        if (task!=null)
+            task.run();
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            // A read-ahead request that prefetch() dropped before it started;
+            // it is replaced by one that is read in this thread.
+            return get(name);
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            IJ.log("Could not read "+name+": "+e.getCause());
+            return null;
+        }
+    }
+
+    /** Reads the images in the list on the background threads, in this order.
+        Images of the previous list that are not being read yet are dropped,
+        so that only the latest positions are read ahead. */
+    public synchronized void prefetch(List<String> names) {
+        for (Iterator<Future<ImageProcessor>> it = pending.iterator(); it.hasNext(); ) {
+            Future<ImageProcessor> future = it.next();
+            it.remove();
+            if (!future.isDone())
+                future.cancel(false);
+        }
+        // dropped requests are read again when needed
+        for (Iterator<Future<ImageProcessor>> it = planes.values().iterator(); it.hasNext(); )
+            if (it.next().isCancelled())
+                it.remove();
+        for (String name : names) {
+            if (planes.containsKey(name))
+                continue;
+            Future<ImageProcessor> future = getPool().submit(reader(name));
+            planes.put(name, future);
+            pending.add(future);
+        }
+    }
+
+    /** Removes all images from memory. */
+    public synchronized void clear() {
+        for (Future<ImageProcessor> future : pending)
+            future.cancel(false);
+        pending.clear();
+        planes.clear();
+    }
+
+    /** Removes all images from memory and releases what is needed to read them.
+        Called when the Image5D is flushed; the cache is not used afterwards. */
+    public void close() {
+        clear();
+    }
+
+    /** Reads the image name; returns null if it could not be read. 
+        Called on the background threads, so it has to be thread-safe. */
+    protected ImageProcessor read(String name) throws Exception {
+        ImagePlus imp = new Opener().openImage(path, name);
+        return imp!=null ? imp.getProcessor() : null;
+    }
+
+    Callable<ImageProcessor> reader(final String name) {
+        return new Callable<ImageProcessor>() {
+            public ImageProcessor call() throws Exception {
+                return read(name);
+            }
+        };
+    }
+
+    static synchronized ExecutorService getPool() {
+        if (pool==null) {
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Image5D read-ahead");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY-1);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+}
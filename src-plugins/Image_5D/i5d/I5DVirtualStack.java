@@ -1,24 +1,34 @@
 package i5d;
-import ij.ImagePlus;
 import ij.ImageStack;
-import ij.io.Opener;
 import ij.process.ImageProcessor;
 
 import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
 This class represents an array of disk-resident images.
+The images are read through an I5DPlaneCache, which may be shared with other
+stacks of the same files (e.g. the stack of the current channel and frame of
+a virtual Image5D).
 */
 public class I5DVirtualStack extends ImageStack{
     static final int INITIAL_SIZE = 100;
     String path;
     int nSlices;
     String[] names;
+    I5DPlaneCache cache;
     
     /** Creates a new, empty virtual stack. */
     public I5DVirtualStack(int width, int height, ColorModel cm, String path) {
+        this(width, height, cm, new I5DPlaneCache(path, width, height));
+    }
+
+    /** Creates a new, empty virtual stack that reads its images through cache. */
+    public I5DVirtualStack(int width, int height, ColorModel cm, I5DPlaneCache cache) {
         super(width, height, cm);
-        this.path = path;
+        this.path = cache.getPath();
+        this.cache = cache;
         names = new String[INITIAL_SIZE];
         //IJ.log("VirtualStack: "+path);
     }
@@ -86,14 +96,31 @@ public class I5DVirtualStack extends ImageStack{
     */
     public ImageProcessor getProcessor(int n) {
         //IJ.log("getProcessor: "+n+"  "+names[n-1]);
-        ImagePlus imp = new Opener().openImage(path, names[n-1]);
-        if (imp!=null && this.getColorModel()!=null) {
-            imp.getProcessor().setColorModel(this.getColorModel());
+        ImageProcessor ip = cache.get(names[n-1]);
+        if (ip!=null && this.getColorModel()!=null) {
+            // Copy, so that changes to the pixels do not end up in the cache.
+            ip = ip.duplicate();
+            ip.setColorModel(this.getColorModel());
         } else
             return null;
-        return imp.getProcessor();
+        return ip;
      }
 
+    /** Starts reading the specified slices (1<=n<=nslices) in the background,
+        in this order. Replaces the slices requested by the previous call. */
+    public void prefetch(int[] n) {
+        List<String> list = new ArrayList<String>(n.length);
+        for (int i=0; i<n.length; i++)
+            if (n[i]>=1 && n[i]<=nSlices)
+                list.add(names[n[i]-1]);
+        cache.prefetch(list);
+    }
+
+    /** Returns the cache through which the images are read. */
+    public I5DPlaneCache getCache() {
+        return cache;
+    }
+
     /** Returns the directory of the stack. */
        public String getPath() {
            return path;
@@ -78,6 +78,11 @@ public class Image5D extends ImagePlus {
 	// (e.g. currentSlice = currentPosition[2]+1)
 	protected int[] currentPosition = new int[nDimensions];
 
+	// For virtual stacks: number of positions read ahead in z and t, and the
+	// directions in which z and t were last changed.
+	protected int prefetchDepth = 2;
+	private int zDirection = 1, tDirection = 1;
+
     protected ChannelImagePlus[] channelImps = new ChannelImagePlus[1];
 	// Array of ImageProcessors. One for each channel. 
 	// The one of the current channel is always the current ip from getProcessor().
@@ -469,6 +474,10 @@ public class Image5D extends ImagePlus {
 		boolean channelChanged = (oldChannel != newChannel);
 		boolean stackChanged = channelChanged | (currentPosition[4] != position[4]);
 
+        if (imageStack instanceof I5DVirtualStack) {
+            prefetch(position);
+        }
+
         // Change the nominal current position.
 		for(int i=0; i<nDimensions; i++) {
 			currentPosition[i] = position[i];
@@ -491,7 +500,7 @@ public class Image5D extends ImagePlus {
             } else {
                 I5DVirtualStack newStack = new I5DVirtualStack(width, height, 
                             chDisplayProps[position[colorDimension]].getColorModel(), 
-                            ((I5DVirtualStack)imageStack).getPath());
+                            ((I5DVirtualStack)imageStack).getCache());
                 int offs = getCurrentStackOffset();
                 int incr = getCurrentStackIncrement();
                 for (int i=0; i<getNSlices(); ++i) {
@@ -677,6 +686,44 @@ public class Image5D extends ImagePlus {
         return pixelsArray;
     }
 	
+	/** Virtual stacks: starts reading all channels at position in parallel, followed by the 
+	 * next prefetchDepth positions in the directions in which z and t were last changed. 
+	 * Has to be called before currentPosition is set to position.
+	 */
+	protected void prefetch(int[] position) {
+		if (position[3] != currentPosition[3])
+			zDirection = position[3] > currentPosition[3] ? 1 : -1;
+		if (position[4] != currentPosition[4])
+			tDirection = position[4] > currentPosition[4] ? 1 : -1;
+		int nChannels = getNChannels();
+		int nSlices = getNSlices();
+		int nFrames = getNFrames();
+		int[] indices = new int[nChannels*(1+2*prefetchDepth)];
+		int n = 0;
+		for (int c=0; c<nChannels; c++)
+			indices[n++] = getImageStackIndex(c+1, position[3]+1, position[4]+1);
+		for (int i=1; i<=prefetchDepth; i++) {
+			int z = position[3] + i*zDirection;
+			int t = position[4] + i*tDirection;
+			for (int c=0; c<nChannels && z>=0 && z<nSlices; c++)
+				indices[n++] = getImageStackIndex(c+1, z+1, position[4]+1);
+			for (int c=0; c<nChannels && t>=0 && t<nFrames; c++)
+				indices[n++] = getImageStackIndex(c+1, position[3]+1, t+1);
+		}
+		int[] list = new int[n];
+		System.arraycopy(indices, 0, list, 0, n);
+		((I5DVirtualStack)imageStack).prefetch(list);
+	}
+
+	/** Sets how many positions in z and t are read ahead for virtual stacks. */
+	public void setPrefetchDepth(int depth) {
+		prefetchDepth = Math.max(0, depth);
+	}
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
 	public int getColorDimension() {
 		return colorDimension;
 	}	
@@ -1101,6 +1148,9 @@ public class Image5D extends ImagePlus {
         if (imageStackArrays!=null)
             for (int i=0; i<imageStackArrays.length; i++)
                 imageStackArrays[i] = null;
+        // Release the files of a virtual Image5D.
+        if (imageStack instanceof I5DVirtualStack)
+            ((I5DVirtualStack)imageStack).getCache().close();
         
         dummyImage = null;
 
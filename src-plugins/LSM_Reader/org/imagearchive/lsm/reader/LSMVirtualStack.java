@@ -0,0 +1,184 @@
+package org.imagearchive.lsm.reader;
+
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A virtual stack of the planes of an LSM file. Only the index of the planes
+ * (strip offset, strip length, type and compression) is kept; a plane is read
+ * and decoded when it is requested. The most recently used planes are kept in
+ * a small cache, so that e.g. all channels of a composite image are read only
+ * once per position.
+ */
+public class LSMVirtualStack extends VirtualStack {
+
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	private File file;
+
+	private ArrayList<Plane> planes = new ArrayList<Plane>();
+
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+
+	private LinkedHashMap<Plane, Object> cache = new LinkedHashMap<Plane, Object>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Plane, Object> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private static class Plane {
+		long offset;
+		int length;
+		int fileType;
+		int compression;
+		String label;
+	}
+
+	public LSMVirtualStack(int width, int height, ColorModel cm, File file) {
+		super(width, height, cm, file.getParent());
+		this.file = file;
+	}
+
+	/**
+	 * Adds a plane stored in one strip.
+	 *
+	 * @param offset
+	 *            the position of the strip in the file
+	 * @param length
+	 *            the number of bytes of the strip
+	 * @param fileType
+	 *            the FileInfo type of the pixels
+	 * @param compression
+	 *            FileInfo.COMPRESSION_NONE, LZW or LZW_WITH_DIFFERENCING
+	 */
+	public void addPlane(long offset, int length, int fileType,
+			int compression) {
+		Plane plane = new Plane();
+		plane.offset = offset;
+		plane.length = length;
+		plane.fileType = fileType;
+		plane.compression = compression;
+		planes.add(plane);
+	}
+
+	/** Sets the number of decoded planes that are kept in memory. */
+	public synchronized void setCacheSize(int cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+		while (cache.size() > this.cacheSize)
+			cache.remove(cache.keySet().iterator().next());
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	public int getSize() {
+		return planes.size();
+	}
+
+	public void deleteSlice(int n) {
+		if (n < 1 || n > planes.size())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		synchronized (this) {
+			cache.remove(planes.remove(n - 1));
+		}
+	}
+
+	public String getSliceLabel(int n) {
+		if (n < 1 || n > planes.size())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		return planes.get(n - 1).label;
+	}
+
+	public void setSliceLabel(String label, int n) {
+		if (n < 1 || n > planes.size())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		planes.get(n - 1).label = label;
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	/**
+	 * Returns the plane n (1 <= n <= getSize()). The pixels are a copy of the
+	 * cached plane, so changing them does not affect later calls.
+	 */
+	public ImageProcessor getProcessor(int n) {
+		if (n < 1 || n > planes.size())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		Plane plane = planes.get(n - 1);
+		Object pixels;
+		synchronized (this) {
+			pixels = cache.get(plane);
+		}
+		if (pixels == null) {
+			try {
+				pixels = readPlane(plane);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not read plane " + n
+						+ " of " + file + ": " + e.getMessage());
+			}
+			if (pixels == null)
+				throw new RuntimeException("Could not decode plane " + n
+						+ " of " + file);
+			synchronized (this) {
+				if (cacheSize > 0)
+					cache.put(plane, pixels);
+			}
+		}
+		int width = getWidth(), height = getHeight();
+		ColorModel cm = getColorModel();
+		if (pixels instanceof byte[])
+			return new ByteProcessor(width, height, ((byte[]) pixels).clone(),
+					cm);
+		if (pixels instanceof short[])
+			return new ShortProcessor(width, height,
+					((short[]) pixels).clone(), cm);
+		return new FloatProcessor(width, height, ((float[]) pixels).clone(),
+				cm);
+	}
+
+	private Object readPlane(Plane plane) throws IOException {
+		FileInfo fi = new FileInfo();
+		fi.width = getWidth();
+		fi.height = getHeight();
+		fi.fileType = plane.fileType;
+		fi.compression = plane.compression;
+		fi.intelByteOrder = true;
+		fi.nImages = 1;
+		fi.stripOffsets = new int[] { 0 };
+		fi.stripLengths = new int[] { plane.length };
+
+		int length = plane.length;
+		if (plane.compression <= FileInfo.COMPRESSION_NONE)
+			length = fi.width * fi.height * fi.getBytesPerPixel();
+		byte[] bytes;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			// compressed strips may claim more bytes than the file has
+			length = (int) Math.min(length, in.length() - plane.offset);
+			bytes = new byte[Math.max(0, length)];
+			in.seek(plane.offset);
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return new ImageReader(fi).readPixels(new ByteArrayInputStream(bytes));
+	}
+}
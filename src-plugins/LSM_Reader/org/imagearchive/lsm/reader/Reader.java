@@ -35,6 +35,13 @@ public class Reader {
 
 	public static String micrometer = micro + "m";
 
+	/*
+	 * Open the planes as an LSMVirtualStack, reading them only when they are
+	 * needed. Images that do not fit into the free memory, and files larger
+	 * than 2 GB, are always opened like this.
+	 */
+	public boolean virtualStack = false;
+
 	public ImagePlus open(String arg, boolean verbose) {
 		File file = null;
 		ImagePlus imp = null;
@@ -87,11 +94,13 @@ public class Reader {
 			lsm.fileName = filename;
 			lsm.directory = directory;
 			if (isLSMfile(stream)) {
-				ImageDirectory imDir = readImageDirectoy(stream, 8, thumb);
+				long position = 8;
+				ImageDirectory imDir = readImageDirectoy(stream, position, thumb);
 				lsm.imageDirectories.add(imDir);
 				while (imDir.OFFSET_NEXT_DIRECTORY != 0) {
-					imDir = readImageDirectoy(stream,
-							imDir.OFFSET_NEXT_DIRECTORY, thumb);
+					position = unwrapOffset(imDir.OFFSET_NEXT_DIRECTORY,
+							position);
+					imDir = readImageDirectoy(stream, position, thumb);
 					lsm.imageDirectories.add(imDir);
 				}
 				imp = open(stream, lsm, verbose, thumb);
@@ -124,7 +133,7 @@ public class Reader {
 	private long getTagCount(RandomAccessStream stream, long position) {
 		long tags = 0;
 		try {
-			stream.seek((int) position);
+			stream.seek(position);
 			tags = swap(stream.readShort());
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -148,7 +157,7 @@ public class Reader {
 
 		for (int i = 0; i < tags; i++) {
 			currentTagPosition = startPosition + 2 + i * 12;
-			tag = readTag(stream, (int) currentTagPosition);
+			tag = readTag(stream, currentTagPosition);
 			tagtype = ((tag[1] & MASK) << 8) | ((tag[0] & MASK) << 0);
 
 			switch (tagtype) {
@@ -226,9 +235,9 @@ public class Reader {
 					(int) imDir.TIF_STRIPBYTECOUNTS_LENGTH);
 
 		try {
-			stream.seek((int) (currentTagPosition + 12));
+			stream.seek(currentTagPosition + 12);
 			int offset_next_directory = swap(stream.readInt());
-			imDir.OFFSET_NEXT_DIRECTORY = offset_next_directory;
+			imDir.OFFSET_NEXT_DIRECTORY = offset_next_directory & 0xffffffffL;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -240,7 +249,7 @@ public class Reader {
 		return imDir;
 	}
 
-	private byte[] readTag(RandomAccessStream stream, int position) {
+	private byte[] readTag(RandomAccessStream stream, long position) {
 		byte[] tag = new byte[12];
 		try {
 			stream.seek(position);
@@ -255,15 +264,27 @@ public class Reader {
 			int count) {
 		long[] offsets = new long[count];
 		try {
-			stream.seek((int) position);
+			stream.seek(position);
 			for (int i = 0; i < count; i++)
-				offsets[i] = swap(stream.readInt());
+				offsets[i] = swap(stream.readInt()) & 0xffffffffL;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return offsets;
 	}
 
+	/*
+	 * unwrapOffset, LSM files larger than 4 GB store offsets modulo 2^32. The
+	 * directories and planes are written one after the other, so an offset
+	 * smaller than the previous one has wrapped around.
+	 */
+	private long unwrapOffset(long offset, long previous) {
+		offset += previous & ~0xffffffffL;
+		if (offset < previous)
+			offset += 0x100000000L;
+		return offset;
+	}
+
 	private CZLSMInfo getCZ_LSMINFO(RandomAccessStream stream, long position,
 			boolean thumb) {
 		CZLSMInfo cz = new CZLSMInfo();
@@ -586,12 +607,20 @@ public class Reader {
 		else
 			st = new ImageStack((int) cz.ThumbnailX, (int) cz.ThumbnailY, cm);
 
+		File file = new File(lsmFi.directory, lsmFi.fileName);
+		boolean virtual = !thumb
+				&& (virtualStack || file.length() > Integer.MAX_VALUE || exceedsMemory(
+						lsmFi, cz));
+		if (virtual)
+			st = createVirtualStack(lsmFi, cz, cm, file);
+
 		firstImDir = null;
 		ImageReader reader = null;
 		int flength = 0;
 		lsmFi.stripOffsets = new int[1];
 		lsmFi.stripLengths = new int[1];
-		for (int imageCounter = 0; imageCounter < lsmFi.imageDirectories.size(); imageCounter++) {
+		for (int imageCounter = 0; !virtual
+				&& imageCounter < lsmFi.imageDirectories.size(); imageCounter++) {
 			ImageDirectory imDir = (ImageDirectory) lsmFi.imageDirectories
 					.get(imageCounter);
 			for (int i = 0; i < imDir.TIF_STRIPBYTECOUNTS.length; i++)
@@ -727,6 +756,67 @@ public class Reader {
 		return imp;
 	}
 
+	private boolean exceedsMemory(LSMFileInfo lsmFi, CZLSMInfo cz) {
+		long size = cz.DimensionX * cz.DimensionY * lsmFi.getBytesPerPixel()
+				* cz.DimensionChannels * Math.max(1, cz.DimensionZ)
+				* Math.max(1, cz.DimensionTime);
+		return size > IJ.maxMemory() - IJ.currentMemory();
+	}
+
+	/*
+	 * createVirtualStack, indexes the planes of all channels in the image
+	 * directories (skipping the thumbnails) without reading them.
+	 */
+	private LSMVirtualStack createVirtualStack(LSMFileInfo lsmFi,
+			CZLSMInfo cz, ColorModel cm, File file) {
+		ImageDirectory firstImDir = (ImageDirectory) lsmFi.imageDirectories
+				.get(0);
+		lsmFi.width = (int) firstImDir.TIF_IMAGEWIDTH;
+		lsmFi.height = (int) firstImDir.TIF_IMAGELENGTH;
+		LSMVirtualStack st = new LSMVirtualStack(lsmFi.width, lsmFi.height,
+				cm, file);
+		long previous = 0;
+		for (int imageCounter = 0; imageCounter < lsmFi.imageDirectories
+				.size(); imageCounter++) {
+			ImageDirectory imDir = (ImageDirectory) lsmFi.imageDirectories
+					.get(imageCounter);
+			if (imDir.TIF_NEWSUBFILETYPE != 0)
+				continue;
+			int compression = FileInfo.COMPRESSION_NONE;
+			if (imDir.TIF_COMPRESSION == 5)
+				compression = imDir.TIF_PREDICTOR == 2 ? FileInfo.LZW_WITH_DIFFERENCING
+						: FileInfo.LZW;
+			for (int channelCount = 0; channelCount < (int) (cz.DimensionChannels)
+					&& channelCount < imDir.TIF_STRIPOFFSETS_LENGTH; channelCount++) {
+				long offset = unwrapOffset(
+						imDir.TIF_STRIPOFFSETS[channelCount], previous);
+				st.addPlane(offset,
+						(int) imDir.TIF_STRIPBYTECOUNTS[channelCount],
+						getFileType(cz, channelCount), compression);
+				previous = offset;
+			}
+		}
+		// keep at least two positions of all channels
+		st.setCacheSize(Math.max(LSMVirtualStack.DEFAULT_CACHE_SIZE,
+				2 * (int) cz.DimensionChannels));
+		return st;
+	}
+
+	private int getFileType(CZLSMInfo cz, int channel) {
+		int datatype = (int) cz.IntensityDataType;
+		if (datatype == 0)
+			datatype = cz.OffsetChannelDataTypesValues[channel];
+		switch (datatype) {
+		case 2:
+		case 3:
+			return FileInfo.GRAY16_UNSIGNED;
+		case 5:
+			return FileInfo.GRAY32_FLOAT;
+		default:
+			return FileInfo.GRAY8;
+		}
+	}
+
 	public ImagePlus setInfo(ImagePlus imp, LSMFileInfo lsm) {
 		ImageDirectory imDir = (ImageDirectory) lsm.imageDirectories.get(0);
 		if (imDir == null)
@@ -2,7 +2,10 @@ package org.imagearchive.lsm.toolbox;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
+import ij.io.TiffDecoder;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -15,6 +18,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.imagearchive.lsm.reader.info.CZLSMInfo;
 import org.imagearchive.lsm.reader.info.ImageDirectory;
@@ -28,6 +36,82 @@ public class BatchConverter {
 
 	private MasterModel masterModel;
 
+	/** Number of threads reading, processing and saving planes */
+	public int readers = 2;
+
+	public int processors = Runtime.getRuntime().availableProcessors();
+
+	public int writers = 2;
+
+	/** Bytes of planes that may be waiting between the stages */
+	public long memoryBudget = Math.max(IJ.maxMemory() / 4, 64 << 20);
+
+	/**
+	 * Skip planes whose output file exists in the same format, e.g. to resume
+	 * an interrupted conversion. Planes are written to a ".part" file first
+	 * and renamed when complete, so an existing output is never a partially
+	 * written one.
+	 */
+	public boolean resume = false;
+
+	private ArrayList<Conversion> conversions = new ArrayList<Conversion>();
+
+	private static class Conversion {
+		String file, outputDir, format;
+
+		boolean verbose, sepDir;
+	}
+
+	private static class Plane {
+		ImagePlus imp;
+
+		String title, format;
+
+		File output;
+
+		long bytes;
+
+		int permits;
+	}
+
+	// tells a stage that there are no more planes
+	private static final Plane END = new Plane();
+
+	private static class Stage {
+		String name;
+
+		AtomicLong planes = new AtomicLong(), bytes = new AtomicLong(),
+				nanos = new AtomicLong();
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		void done(Plane plane, long start) {
+			planes.incrementAndGet();
+			bytes.addAndGet(plane.bytes);
+			nanos.addAndGet(System.nanoTime() - start);
+		}
+
+		String report(double seconds) {
+			double mb = bytes.get() / 1048576.0;
+			double busy = nanos.get() / 1e9;
+			return name + ": " + planes.get() + " planes, " + IJ.d2s(mb, 1)
+					+ " MB, " + IJ.d2s(mb / Math.max(seconds, 1e-3), 1)
+					+ " MB/s (" + IJ.d2s(mb / Math.max(busy, 1e-3), 1)
+					+ " MB/s per thread)";
+		}
+	}
+
+	private Semaphore budget;
+
+	private int budgetPermits;
+
+	private AtomicInteger skipped = new AtomicInteger();
+
+	private Stage reading = new Stage("read"), processing = new Stage(
+			"process"), writing = new Stage("write");
+
 	public BatchConverter(MasterModel masterModel) {
 		super();
 		this.masterModel = masterModel;
@@ -35,39 +119,282 @@ public class BatchConverter {
 
 	public void convertFile(String file, String outputDir, String format,
 			boolean verbose, boolean sepDir) {
-		String finalDir = "";
-		File f = new File(file);
-
-		/*ImagePlus imp = new Reader(masterModel).open(f.getParent(),
-				f.getName(), verbose, false);*/
-		org.imagearchive.lsm.reader.Reader r = new org.imagearchive.lsm.reader.Reader();
-		ImagePlus imp = r.open(f.getParent(), f.getName(), false, false);
-		if (imp != null && imp.getStackSize() > 0) {
-			LSMFileInfo lsm = (LSMFileInfo) imp.getOriginalFileInfo();
-			CZLSMInfo cz = (CZLSMInfo)((ImageDirectory)lsm.imageDirectories.get(0)).TIF_CZ_LSMINFO;
-			if (sepDir) {
-				finalDir = outputDir + System.getProperty("file.separator")
-						+ f.getName();
-				File fdir = new File(finalDir);
-				if (!fdir.exists())
-					fdir.mkdirs();
-			} else
-				finalDir = outputDir;
-			int position = 1;
-			for (int i = 1; i <= cz.DimensionTime; i++)
-				for (int j = 1; j <= cz.DimensionZ; j++)
-					for (int k = 1; k <= cz.DimensionChannels; k++) {
-						// imp.setPosition(k, j, i);
-						// int stackPosition = imp.getCurrentSlice();
-						String title = lsm.fileName + " - "
-								+ cz.channelNamesAndColors.ChannelNames[k - 1]
-								+ " - C" + new Integer(k).toString() + " Z"
-								+ new Integer(j).toString() + " T"
-								+ new Integer(i).toString();
-						save(new ImagePlus(title, imp.getImageStack()
-								.getProcessor(position++)), finalDir, format,
-								title);
+		addFile(file, outputDir, format, verbose, sepDir);
+		convert();
+	}
+
+	/** Queues a file for the next convert() */
+	public void addFile(String file, String outputDir, String format,
+			boolean verbose, boolean sepDir) {
+		Conversion c = new Conversion();
+		c.file = file;
+		c.outputDir = outputDir;
+		c.format = format;
+		c.verbose = verbose;
+		c.sepDir = sepDir;
+		conversions.add(c);
+	}
+
+	/***************************************************************************
+	 * method : convert, converts the queued files in a pipeline. Reader
+	 * threads open the files (as virtual stacks) and read their planes,
+	 * processor threads pass them through process() and writer threads save
+	 * them; the planes between the stages are limited by memoryBudget.
+	 **************************************************************************/
+	public void convert() {
+		final ArrayList<Conversion> conversions = this.conversions;
+		this.conversions = new ArrayList<Conversion>();
+		if (conversions.size() == 0)
+			return;
+
+		// permits are kB, so that the budget fits into an int
+		budgetPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1,
+				memoryBudget >> 10));
+		budget = new Semaphore(budgetPermits);
+		skipped.set(0);
+		reading = new Stage("read");
+		processing = new Stage("process");
+		writing = new Stage("write");
+		final LinkedBlockingQueue<Plane> toProcess = new LinkedBlockingQueue<Plane>();
+		final LinkedBlockingQueue<Plane> toWrite = new LinkedBlockingQueue<Plane>();
+		final AtomicInteger ai = new AtomicInteger(0);
+		long start = System.currentTimeMillis();
+
+		Thread[] readerThreads = new Thread[Math.max(1, Math.min(readers,
+				conversions.size()))];
+		for (int ithread = 0; ithread < readerThreads.length; ithread++)
+			readerThreads[ithread] = new Thread() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < conversions.size(); i = ai
+							.getAndIncrement())
+						if (!read(conversions.get(i), toProcess))
+							return;
+				}
+			};
+		Thread[] processorThreads = new Thread[Math.max(1, processors)];
+		for (int ithread = 0; ithread < processorThreads.length; ithread++)
+			processorThreads[ithread] = new Thread() {
+				public void run() {
+					process(toProcess, toWrite);
+				}
+			};
+		Thread[] writerThreads = new Thread[Math.max(1, writers)];
+		for (int ithread = 0; ithread < writerThreads.length; ithread++)
+			writerThreads[ithread] = new Thread() {
+				public void run() {
+					write(toWrite);
+				}
+			};
+
+		IJ.showStatus("Conversion started");
+		try {
+			startAll(readerThreads);
+			startAll(processorThreads);
+			startAll(writerThreads);
+			joinAll(readerThreads);
+			for (int i = 0; i < processorThreads.length; i++)
+				toProcess.put(END);
+			joinAll(processorThreads);
+			for (int i = 0; i < writerThreads.length; i++)
+				toWrite.put(END);
+			joinAll(writerThreads);
+		} catch (InterruptedException e) {
+			interruptAll(readerThreads);
+			interruptAll(processorThreads);
+			interruptAll(writerThreads);
+			IJ.log("Conversion interrupted; run it again to resume.");
+			Thread.currentThread().interrupt();
+		}
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		IJ.log("Converted " + conversions.size() + " file(s) in "
+				+ IJ.d2s(seconds, 1) + " s, " + writing.planes.get()
+				+ " planes written, " + skipped.get()
+				+ " already converted");
+		IJ.log("  " + reading.report(seconds));
+		IJ.log("  " + processing.report(seconds));
+		IJ.log("  " + writing.report(seconds));
+		IJ.showStatus("Conversion done");
+	}
+
+	private void startAll(Thread[] threads) {
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+	}
+
+	private void joinAll(Thread[] threads) throws InterruptedException {
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread].join();
+	}
+
+	private void interruptAll(Thread[] threads) {
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread].interrupt();
+	}
+
+	/* Reading stage; returns false when interrupted */
+	private boolean read(Conversion c, LinkedBlockingQueue<Plane> toProcess) {
+		File f = new File(c.file);
+		String finalDir = c.outputDir;
+		if (c.sepDir) {
+			finalDir = c.outputDir + System.getProperty("file.separator")
+					+ f.getName();
+			File fdir = new File(finalDir);
+			if (!fdir.exists())
+				fdir.mkdirs();
+		}
+		// open the planes lazily, so that each is read only when it is queued
+		Reader r = new Reader(masterModel);
+		r.virtualStack = true;
+		ImagePlus imp = r.open(f.getParent(), f.getName(), c.verbose, false);
+		if (imp == null || imp.getStackSize() == 0)
+			return true;
+		LSMFileInfo lsm = (LSMFileInfo) imp.getOriginalFileInfo();
+		CZLSMInfo cz = (CZLSMInfo) ((ImageDirectory) lsm.imageDirectories
+				.get(0)).TIF_CZ_LSMINFO;
+		ImageStack stack = imp.getImageStack();
+		int bytesPerPixel = imp.getBitDepth() == 24 ? 4
+				: imp.getBitDepth() / 8;
+		String extension = getExtension(c.format);
+		int bitDepth = imp.getBitDepth();
+		int position = 1;
+		for (int i = 1; i <= cz.DimensionTime; i++)
+			for (int j = 1; j <= cz.DimensionZ; j++)
+				for (int k = 1; k <= cz.DimensionChannels
+						&& position <= stack.getSize(); k++) {
+					String title = lsm.fileName + " - "
+							+ cz.channelNamesAndColors.ChannelNames[k - 1]
+							+ " - C" + new Integer(k).toString() + " Z"
+							+ new Integer(j).toString() + " T"
+							+ new Integer(i).toString();
+					File output = new File(finalDir, title + extension);
+					if (resume && isConverted(output, c.format, bitDepth)) {
+						skipped.incrementAndGet();
+						position++;
+						continue;
 					}
+					Plane plane = new Plane();
+					plane.title = title;
+					plane.format = c.format;
+					plane.output = output;
+					plane.bytes = (long) stack.getWidth() * stack.getHeight()
+							* bytesPerPixel;
+					plane.permits = (int) Math.max(1, Math.min(budgetPermits,
+							plane.bytes >> 10));
+					try {
+						budget.acquire(plane.permits);
+					} catch (InterruptedException e) {
+						return false;
+					}
+					long start = System.nanoTime();
+					boolean queued = false;
+					try {
+						plane.imp = new ImagePlus(title, stack
+								.getProcessor(position++));
+						reading.done(plane, start);
+						toProcess.add(plane);
+						queued = true;
+					} catch (RuntimeException e) {
+						IJ.log("Could not read " + title + ": "
+								+ e.getMessage());
+					} catch (OutOfMemoryError e) {
+						IJ.log("Could not read " + title + ": " + e);
+					} finally {
+						// the later stages release the permits of queued planes
+						if (!queued)
+							budget.release(plane.permits);
+					}
+				}
+		return true;
+	}
+
+	/* Processing stage */
+	private void process(LinkedBlockingQueue<Plane> toProcess,
+			LinkedBlockingQueue<Plane> toWrite) {
+		try {
+			for (Plane plane = toProcess.take(); plane != END; plane = toProcess
+					.take()) {
+				long start = System.nanoTime();
+				boolean queued = false;
+				try {
+					ImagePlus imp = process(plane.imp);
+					if (imp != null) {
+						plane.imp = imp;
+						processing.done(plane, start);
+						toWrite.add(plane);
+						queued = true;
+					}
+				} catch (RuntimeException e) {
+					IJ.log("Could not process " + plane.title + ": "
+							+ e.getMessage());
+				} catch (OutOfMemoryError e) {
+					IJ.log("Could not process " + plane.title + ": " + e);
+				} finally {
+					if (!queued) {
+						plane.imp = null;
+						budget.release(plane.permits);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/* Writing stage; saves to a .part file which is renamed when complete */
+	private void write(LinkedBlockingQueue<Plane> toWrite) {
+		try {
+			for (Plane plane = toWrite.take(); plane != END; plane = toWrite
+					.take()) {
+				long start = System.nanoTime();
+				try {
+					String extension = getExtension(plane.format);
+					File part = new File(plane.output.getParent(), plane.title
+							+ ".part" + extension);
+					if (saveAs(plane.imp, part.getPath(), plane.format)) {
+						plane.output.delete();
+						if (part.renameTo(plane.output))
+							writing.done(plane, start);
+						else
+							IJ.log("Could not rename " + part + " to "
+									+ plane.output);
+					}
+				} catch (RuntimeException e) {
+					IJ.log("Could not save " + plane.title + ": "
+							+ e.getMessage());
+				} catch (OutOfMemoryError e) {
+					IJ.log("Could not save " + plane.title + ": " + e);
+				} finally {
+					plane.imp = null;
+					budget.release(plane.permits);
+				}
+				IJ.showStatus("Converted " + writing.planes.get() + " planes");
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/*
+	 * Whether output was written in format by an earlier run. "Tiff" and
+	 * "8-bit Tiff" share the extension, so the bit depth of an existing TIFF
+	 * has to match as well.
+	 */
+	private boolean isConverted(File output, String format, int bitDepth) {
+		if (!output.exists())
+			return false;
+		if (!getExtension(format).equals(".tif"))
+			return true;
+		int expected = format.equals("8-bit Tiff") ? 8 : bitDepth;
+		try {
+			FileInfo[] info = new TiffDecoder(output.getParent(), output
+					.getName()).getTiffInfo();
+			if (info == null || info.length == 0)
+				return false;
+			int bytesPerPixel = info[0].getBytesPerPixel();
+			return (bytesPerPixel == 3 ? 24 : 8 * bytesPerPixel) == expected;
+		} catch (IOException e) {
+			return false;
 		}
 	}
 
@@ -91,14 +418,12 @@ public class BatchConverter {
 				boolean verbose = false, createSepDir = false;
 				if (!(arr[3].equals("0"))) verbose = true;
 				if (!(arr[4].equals("0"))) createSepDir = true;
-				IJ.showStatus("Conversion started");
-				IJ.showStatus("Converting "+new File(inputFile).getName());
-				convertFile(inputFile,outputDir,format,verbose,createSepDir);
-					IJ.showStatus("Conversion done");
+				addFile(inputFile,outputDir,format,verbose,createSepDir);
 			}
 		} catch (IOException e) {
 			IJ.error("Incompatible batch file format");
 			IJ.log("IOException error: " + e.getMessage());
+			conversions.clear();
 
 		} finally {
 			if (br != null) {
@@ -110,6 +435,7 @@ public class BatchConverter {
 				}
 			}
 		}
+		convert();
 	}
 
 	/***************************************************************************
@@ -119,7 +445,8 @@ public class BatchConverter {
 
 	/**
 	 * This is the place to add code to process each image. The image is not
-	 * written if this method returns null.
+	 * written if this method returns null. It is called by several threads at
+	 * once, each with a different image.
 	 */
 	public ImagePlus process(ImagePlus imp) {
 		/* No processing defined for this plugin */
@@ -132,23 +459,38 @@ public class BatchConverter {
 
 	public void save(ImagePlus img, String dir, String format, String fileName) {
 		String path = dir + System.getProperty("file.separator") + fileName;
+		saveAs(img, path + getExtension(format), format);
+	}
+
+	boolean saveAs(ImagePlus img, String path, String format) {
 		if (format.equals("Tiff"))
-			new FileSaver(img).saveAsTiff(path + ".tif");
+			return new FileSaver(img).saveAsTiff(path);
 		else if (format.equals("8-bit Tiff"))
-			saveAs8bitTiff(img, path + ".tif");
+			return saveAs8bitTiff(img, path);
 		else if (format.equals("Zip"))
-			new FileSaver(img).saveAsZip(path + ".zip");
+			return new FileSaver(img).saveAsZip(path);
+		else if (format.equals("Raw"))
+			return new FileSaver(img).saveAsRaw(path);
+		else if (format.equals("Jpeg"))
+			return new FileSaver(img).saveAsJpeg(path);
+		return false;
+	}
+
+	public static String getExtension(String format) {
+		if (format.equals("Zip"))
+			return ".zip";
 		else if (format.equals("Raw"))
-			new FileSaver(img).saveAsRaw(path + ".raw");
+			return ".raw";
 		else if (format.equals("Jpeg"))
-			new FileSaver(img).saveAsJpeg(path + ".jpg");
+			return ".jpg";
+		return ".tif";
 	}
 
 	/***************************************************************************
 	 * method : saveAs8bitTiff, image processing for 8-bit Tiff saving
 	 **************************************************************************/
 
-	void saveAs8bitTiff(ImagePlus img, String path) {
+	boolean saveAs8bitTiff(ImagePlus img, String path) {
 		ImageProcessor ip = img.getProcessor();
 		if (ip instanceof ColorProcessor) {
 			ip = reduceColors(ip);
@@ -158,7 +500,7 @@ public class BatchConverter {
 			ip = ip.convertToByte(true);
 			img.setProcessor(null, ip);
 		}
-		new FileSaver(img).saveAsTiff(path);
+		return new FileSaver(img).saveAsTiff(path);
 	}
 
 	/***************************************************************************
@@ -43,6 +43,12 @@ public class Reader {
 
 	private MasterModel masterModel;
 
+	/*
+	 * Open the planes lazily as a virtual stack, see
+	 * org.imagearchive.lsm.reader.Reader.virtualStack
+	 */
+	public boolean virtualStack = false;
+
 	public Reader(MasterModel masterModel) {
 		this.masterModel = masterModel;
 	}
@@ -97,6 +103,7 @@ public class Reader {
 			boolean verbose, boolean thumb) {
 		ImagePlus imp = null;
 		org.imagearchive.lsm.reader.Reader r = new org.imagearchive.lsm.reader.Reader();
+		r.virtualStack = virtualStack;
 		imp = r.open(directory,filename, false,false);
 		return imp;
 	}
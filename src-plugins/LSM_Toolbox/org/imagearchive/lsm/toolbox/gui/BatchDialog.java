@@ -69,6 +69,20 @@ public class BatchDialog extends JDialog {
 
 	private JCheckBox dirCB;
 
+	private JCheckBox resumeCB;
+
+	private JLabel threadsLabel;
+
+	private JTextField readersTF;
+
+	private JTextField processorsTF;
+
+	private JTextField writersTF;
+
+	private JLabel memoryLabel;
+
+	private JTextField memoryTF;
+
 	private JFrame parent;
 
 	public BatchDialog(Object parent, MasterModel masterModel) {
@@ -98,6 +112,15 @@ public class BatchDialog extends JDialog {
 		formatCombo = new JComboBox(masterModel.supportedBatchTypes);
 		verboseCB = new JCheckBox("Verbose (popups on error!)");
 		dirCB = new JCheckBox("Output each image to separate directory");
+		resumeCB = new JCheckBox("Skip planes already saved in this format (resume)");
+		BatchConverter defaults = new BatchConverter(masterModel);
+		resumeCB.setSelected(defaults.resume);
+		threadsLabel = new JLabel("Threads (read, process, write):");
+		readersTF = new JTextField("" + defaults.readers, 3);
+		processorsTF = new JTextField("" + defaults.processors, 3);
+		writersTF = new JTextField("" + defaults.writers, 3);
+		memoryLabel = new JLabel("Memory for waiting planes (MB):");
+		memoryTF = new JTextField("" + (defaults.memoryBudget >> 20), 6);
 		buttonsPanel = new JPanel();
 		mainPanel = new JPanel();
 		//sourceTableModel = new DefaultTableModel();
@@ -142,6 +165,26 @@ public class BatchDialog extends JDialog {
 		mainPanel = (JPanel) GUIMaker.addComponentToGrid(verboseCB, mainPanel, 0, 8,
 				3,1, GridBagConstraints.HORIZONTAL,GridBagConstraints.CENTER, 0.125d, 0.5d);
 
+		mainPanel = (JPanel) GUIMaker.addComponentToGrid(resumeCB, mainPanel, 0, 9,
+				3,1, GridBagConstraints.HORIZONTAL,GridBagConstraints.CENTER, 0.125d, 0.5d);
+
+		JPanel threadsPanel = new JPanel();
+		threadsPanel.add(readersTF);
+		threadsPanel.add(processorsTF);
+		threadsPanel.add(writersTF);
+
+		mainPanel = (JPanel) GUIMaker.addComponentToGrid(threadsLabel, mainPanel, 0, 10,
+				1, 1,GridBagConstraints.HORIZONTAL,GridBagConstraints.CENTER, 0.125d, 0.5d);
+
+		mainPanel = (JPanel) GUIMaker.addComponentToGrid(threadsPanel, mainPanel, 1, 10,
+				1, 1,GridBagConstraints.NONE,GridBagConstraints.WEST, 0.125d, 0.5d);
+
+		mainPanel = (JPanel) GUIMaker.addComponentToGrid(memoryLabel, mainPanel, 0, 11,
+				1, 1,GridBagConstraints.HORIZONTAL,GridBagConstraints.CENTER, 0.125d, 0.5d);
+
+		mainPanel = (JPanel) GUIMaker.addComponentToGrid(memoryTF, mainPanel, 1, 11,
+				1, 1,GridBagConstraints.NONE,GridBagConstraints.WEST, 0.125d, 0.5d);
+
 		buttonsPanel.add(resetButton);
 		buttonsPanel.add(okButton);
 		buttonsPanel.add(cancelButton);
@@ -222,19 +265,34 @@ public class BatchDialog extends JDialog {
 
 	public void doConvert(ArrayList list, File outputDir){
 		BatchConverter converter = new BatchConverter(masterModel);
-		IJ.showStatus("Conversion started");
 		for (int i = 0; i < list.size(); i++){
-			 IJ.showStatus("Converting "+i+"/"+list.size());
-			 converter.convertFile(((File)list.get(i)).getAbsolutePath(),outputDir.getAbsolutePath(),
+			 converter.addFile(((File)list.get(i)).getAbsolutePath(),outputDir.getAbsolutePath(),
 					 (String)formatCombo.getSelectedItem(),verboseCB.isSelected(),
 					 dirCB.isSelected());
 		 }
+		converter.resume = resumeCB.isSelected();
+		converter.readers = getNumber(readersTF, converter.readers);
+		converter.processors = getNumber(processorsTF, converter.processors);
+		converter.writers = getNumber(writersTF, converter.writers);
+		converter.memoryBudget = (long) getNumber(memoryTF,
+				(int) (converter.memoryBudget >> 20)) << 20;
+		 converter.convert();
 		 IJ.showProgress(1.0);
 	     IJ.showStatus("Conversion done");
 	     IJ.showMessage("Conversion done");
 	     this.dispose();
 	}
 
+	/* Returns the positive number in the field, or defaultValue */
+	private int getNumber(JTextField field, int defaultValue) {
+		try {
+			int value = Integer.parseInt(field.getText().trim());
+			return value > 0 ? value : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 	public LsmImageTableModel processPath(LsmImageTableModel tm, File path) {
         if (path.isDirectory()) {
             String[] children = path.list();
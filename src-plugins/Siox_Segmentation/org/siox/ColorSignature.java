@@ -39,13 +39,11 @@ import java.util.*;
 class ColorSignature
 {
 	// CHANGELOG
+	// 2026-10-19 1.03 cluster lists are local to allow concurrent use
 	// 2005-11-02 1.02 add further comments
 	// 2005-11-02 1.01 changed clusters1 and cluster2 from Vector to ArrayList
 	// 2005-11-02 1.00 initial release
 
-	private static ArrayList clusters1=new ArrayList();
-	private static ArrayList clusters2=new ArrayList();
-
 	/**
 	 * Stage one of clustering.
 	 * @param points float[][] the input points in LAB space
@@ -186,8 +184,9 @@ class ColorSignature
 	 */
 	static float[][] createSignature(float[][] input, int length, float[] limits, float threshold)
 	{
-		clusters1.clear();
-		clusters2.clear();
+		// local, so that signatures can be created concurrently
+		final ArrayList clusters1=new ArrayList();
+		final ArrayList clusters2=new ArrayList();
 		stageone(input, 0, clusters1, limits, length);
 
 		float[][] centroids=new float[clusters1.size()][];
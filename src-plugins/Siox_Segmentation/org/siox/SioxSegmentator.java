@@ -19,6 +19,7 @@ package org.siox;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.siox.util.*;
 
@@ -56,11 +57,15 @@ import org.siox.util.*;
  * Algorithm idea by Gerald Friedland.
  *
  * @author Gerald Friedland, Kristian Jantz, Lars Knipping
- * @version 1.13
+ * @version 1.15
  */
 public class SioxSegmentator
 {
 	// CHANGELOG
+	// 2026-10-19 1.15 added incremental segmentatevideo_nextframe() that only
+	//                 reclassifies pixels whose color changed
+	// 2026-10-19 1.14 classification looks up the signatures in k-d trees
+	//                 and runs in parallel
 	// 2006-26-04 1.13 added method segmentatevideo_firstframe() and segmentatevideo_nextframe()
 	//                 for quick video segmentation.
 	// 2006-01-16 1.12 fixed bug in subpixelrefine that handled the sure regions improperly
@@ -152,6 +157,24 @@ public class SioxSegmentator
 	/** A flag that stores if the segmentation algorithm has already ran.*/
 	private boolean segmentated;
 
+	/**
+	 * Colors the classification of the last video frame is based on.
+	 * Only pixels whose color changed noticeably are updated.
+	 */
+	private int[] referenceImage;
+
+	/** Input confidences of the last video frame. */
+	private float[] lastInput;
+
+	/** Classification of the last video frame before postprocessing. */
+	private float[] lastClassification;
+
+	/** Smoothed classification of the last video frame. */
+	private float[] lastSmoothed;
+
+	/** Result of the last video frame. */
+	private float[] lastResult;
+
 	/**
 	 * Constructs a SioxSegmentator Object to be used for image segmentation.
 	 *
@@ -212,6 +235,7 @@ public class SioxSegmentator
 	{
 		segmentated=false;
 		hs.clear();
+		lastClassification=null;
 
 		// save image for drb
 		origImage=new int[image.length];
@@ -235,59 +259,7 @@ public class SioxSegmentator
 
 		// classify using color signatures,
 		// classification cached in hashmap for drb and speedup purposes
-		for (int i=0; i<cm.length; i++) {
-			if (cm[i]>=FOREGROUND_CONFIDENCE) {
-				cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
-				continue;
-			}
-			if (cm[i]>BACKGROUND_CONFIDENCE) {
-				Tupel tupel=(Tupel)hs.get(image[i]);
-				boolean isBackground=true;
-				if (tupel==null) {
-					tupel=new Tupel(0f, 0, 0f, 0);
-					final float[] lab=Utils.rgbToClab(image[i]);
-					float minBg=Utils.sqrEuclidianDist(lab, bgSignature[0]);
-					int minIndex=0;
-					for (int j=1; j<bgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, bgSignature[j]);
-						if (d<minBg) {
-							minBg=d;
-							minIndex=j;
-						}
-					}
-					tupel.minBgDist=minBg;
-					tupel.indexMinBg=minIndex;
-					float minFg=Float.MAX_VALUE;
-					minIndex=-1;
-					for (int j=0; j<fgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, fgSignature[j]);
-						if (d<minFg) {
-							minFg=d;
-							minIndex=j;
-						}
-					}
-					tupel.minFgDist=minFg;
-					tupel.indexMinFg=minIndex;
-					if (fgSignature.length==0) {
-						isBackground=(minBg<=clusterSize);
-						// remove next line to force behaviour of old algorithm
-						throw new IllegalStateException("foreground signature does not exist");
-					} else {
-						isBackground=minBg<minFg;
-					}
-					hs.put(image[i], tupel);
-				} else {
-					isBackground=tupel.minBgDist<=tupel.minFgDist;
-				}
-				if (isBackground) {
-					cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
-				} else {
-					cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
-				}
-			} else {
-				cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
-			}
-		}
+		classify(image, cm, null);
 
 		// postprocessing
 		Utils.smoothcm(cm, imgWidth, imgHeight, 0.33f, 0.33f, 0.33f); // average
@@ -367,65 +339,20 @@ public class SioxSegmentator
 			return false;
 		}
 
+		// remember the frame for incremental segmentation of the next one
+		referenceImage=(int[])origImage.clone();
+		lastInput=(float[])cm.clone();
+
 		// classify using color signatures,
 		// classification cached in hashmap for drb and speedup purposes
-		for (int i=0; i<cm.length; i++) {
-			if (cm[i]>=FOREGROUND_CONFIDENCE) {
-				cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
-				continue;
-			}
-			if (cm[i]>BACKGROUND_CONFIDENCE) {
-				Tupel tupel=(Tupel)hs.get(image[i]);
-				boolean isBackground=true;
-				if (tupel==null) {
-					tupel=new Tupel(0f, 0, 0f, 0);
-					final float[] lab=Utils.rgbToClab(image[i]);
-					float minBg=Utils.sqrEuclidianDist(lab, bgSignature[0]);
-					int minIndex=0;
-					for (int j=1; j<bgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, bgSignature[j]);
-						if (d<minBg) {
-							minBg=d;
-							minIndex=j;
-						}
-					}
-					tupel.minBgDist=minBg;
-					tupel.indexMinBg=minIndex;
-					float minFg=Float.MAX_VALUE;
-					minIndex=-1;
-					for (int j=0; j<fgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, fgSignature[j]);
-						if (d<minFg) {
-							minFg=d;
-							minIndex=j;
-						}
-					}
-					tupel.minFgDist=minFg;
-					tupel.indexMinFg=minIndex;
-					if (fgSignature.length==0) {
-						isBackground=(minBg<=clusterSize);
-						// remove next line to force behaviour of old algorithm
-						throw new IllegalStateException("foreground signature does not exist");
-					} else {
-						isBackground=minBg<minFg;
-					}
-					hs.put(image[i], tupel);
-				} else {
-					isBackground=tupel.minBgDist<=tupel.minFgDist;
-				}
-				if (isBackground) {
-					cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
-				} else {
-					cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
-				}
-			} else {
-				cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
-			}
-		}
+		classify(image, cm, null);
+		lastClassification=(float[])cm.clone();
 		// postprocessing
 		Utils.smoothcm(cm, imgWidth, imgHeight, 0.33f, 0.33f, 0.33f); // average
+		lastSmoothed=(float[])cm.clone();
 		Utils.normalizeMatrix(cm);
 		keepOnlyLargeComponents(cm, UNKNOWN_REGION_CONFIDENCE, sizeFactorToKeep);
+		lastResult=(float[])cm.clone();
 		segmentated=true;
 		return true;
 	}
@@ -468,70 +395,269 @@ public class SioxSegmentator
 		// save image for drb
 		origImage=new int[image.length];
 		System.arraycopy(image, 0, origImage, 0, image.length);
+		// the next incremental frame has no classification to start from
+		lastClassification=null;
 
 		// classify using color signatures,
 		// classification cached in hashmap for drb and speedup purposes
+		classify(image, cm, null);
+		// postprocessing
+		Utils.smoothcm(cm, imgWidth, imgHeight, 0.33f, 0.33f, 0.33f); // average
+		Utils.normalizeMatrix(cm);
+		keepOnlyLargeComponents(cm, UNKNOWN_REGION_CONFIDENCE, sizeFactorToKeep);
+		segmentated=true;
+		return true;
+	}
+
+
+	/**
+	 * Segmentates the further frames of a scene in a video incrementally.
+	 * Like <tt>segmentatevideo_nextframe(int[], float[], double)</tt>, but
+	 * only pixels whose color differs from the one the previous
+	 * classification is based on by more than <code>colorTolerance</code>
+	 * (euclidian distance in CLAB space), or whose input confidence changed,
+	 * are classified again. The smoothing is only recomputed around those
+	 * pixels. If nothing changed, the result of the previous frame is
+	 * returned.
+	 * <P>
+	 * The reference color of a pixel is only updated when the pixel is
+	 * reclassified, so slow drifts of the color are still detected.
+	 * With a tolerance of zero, every changed pixel is reclassified.
+	 * <P>
+	 * Frames must be passed in order, after a call to
+	 * <tt>segmentatevideo_firstframe()</tt>. After <tt>segmentate()</tt> or
+	 * <tt>segmentatevideo_nextframe(int[], float[], double)</tt>, the first
+	 * call classifies the whole frame.
+	 *
+	 * @param image Pixel data of the image to be segmentated.
+	 *        Every integer represents one ARGB-value.
+	 * @param cm Confidence matrix specifying the probability of an image
+	 *        belonging to the foreground before and after the segmentation.
+	 * @param sizeFactorToKeep Segmentation retains the largest connected
+	 *        foreground component plus any component with size at least
+	 *        <CODE>sizeOfLargestComponent/sizeFactorToKeep</CODE>.
+	 * @param colorTolerance Color differences up to this value do not
+	 *        trigger a reclassification.
+	 * @return <CODE>true</CODE> if the segmentation algorithm succeeded,
+	 *         <CODE>false</CODE> if segmentation is impossible
+	 * @exception IllegalStateException if no color signature has been defined
+	 * before calling this method.
+	 */
+	public boolean segmentatevideo_nextframe(int[] image, float[] cm, double sizeFactorToKeep, float colorTolerance)
+	{
+		if (!segmentated) throw new IllegalStateException("This method cannot be called before color signatures have been created.");
+
+		// save image for drb
+		origImage=new int[image.length];
+		System.arraycopy(image, 0, origImage, 0, image.length);
+
+		final boolean first=lastClassification==null;
+		if (first) {
+			referenceImage=new int[cm.length];
+			lastInput=new float[cm.length];
+			lastClassification=new float[cm.length];
+			lastSmoothed=new float[cm.length];
+			lastResult=new float[cm.length];
+		}
+
+		// find the pixels to reclassify and their bounding box
+		final float tolerance=colorTolerance*colorTolerance;
+		final boolean[] dirty=new boolean[cm.length];
+		int x0=imgWidth, y0=imgHeight, x1=-1, y1=-1;
+		for (int y=0, i=0; y<imgHeight; y++) {
+			for (int x=0; x<imgWidth; x++, i++) {
+				if (first || cm[i]!=lastInput[i] || (image[i]!=referenceImage[i]
+						&& Utils.labcolordiffsq(image[i], referenceImage[i])>tolerance)) {
+					dirty[i]=true;
+					referenceImage[i]=image[i];
+					if (x<x0) x0=x;
+					if (x>x1) x1=x;
+					if (y<y0) y0=y;
+					if (y>y1) y1=y;
+				}
+			}
+		}
+		System.arraycopy(cm, 0, lastInput, 0, cm.length);
+		if (x1<0) {
+			System.arraycopy(lastResult, 0, cm, 0, cm.length);
+			return true;
+		}
+
+		classify(image, cm, dirty);
 		for (int i=0; i<cm.length; i++) {
-			if (cm[i]>=FOREGROUND_CONFIDENCE) {
-				cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
-				continue;
+			if (dirty[i]) {
+				lastClassification[i]=cm[i];
 			}
-			if (cm[i]>BACKGROUND_CONFIDENCE) {
-				Tupel tupel=(Tupel)hs.get(image[i]);
-				boolean isBackground=true;
-				if (tupel==null) {
-					tupel=new Tupel(0f, 0, 0f, 0);
-					final float[] lab=Utils.rgbToClab(image[i]);
-					float minBg=Utils.sqrEuclidianDist(lab, bgSignature[0]);
-					int minIndex=0;
-					for (int j=1; j<bgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, bgSignature[j]);
-						if (d<minBg) {
-							minBg=d;
-							minIndex=j;
+		}
+
+		// postprocessing
+		smoothRegion(x0, y0, x1, y1);
+		System.arraycopy(lastSmoothed, 0, cm, 0, cm.length);
+		Utils.normalizeMatrix(cm);
+		keepOnlyLargeComponents(cm, UNKNOWN_REGION_CONFIDENCE, sizeFactorToKeep);
+		System.arraycopy(cm, 0, lastResult, 0, cm.length);
+		segmentated=true;
+		return true;
+	}
+
+	/**
+	 * Updates <code>lastSmoothed</code> after the classification changed in
+	 * the given rectangle.
+	 * <P>
+	 * Each pass of <tt>Utils.smoothcm()</tt> only reads the two
+	 * neighbours in its direction, so the result changes at most two pixels
+	 * around the rectangle, and a window with another margin of two pixels
+	 * smoothes these exactly like the whole image does.
+	 */
+	private void smoothRegion(int x0, int y0, int x1, int y1)
+	{
+		final int r=2;
+		final int cx0=Math.max(0, x0-r), cx1=Math.min(imgWidth-1, x1+r);
+		final int cy0=Math.max(0, y0-r), cy1=Math.min(imgHeight-1, y1+r);
+		final int wx0=Math.max(0, cx0-r), wx1=Math.min(imgWidth-1, cx1+r);
+		final int wy0=Math.max(0, cy0-r), wy1=Math.min(imgHeight-1, cy1+r);
+		final int w=wx1-wx0+1, h=wy1-wy0+1;
+
+		final float[] window=new float[w*h];
+		for (int y=0; y<h; y++) {
+			System.arraycopy(lastClassification, (wy0+y)*imgWidth+wx0, window, y*w, w);
+		}
+		Utils.smoothcm(window, w, h, 0.33f, 0.33f, 0.33f); // average
+		for (int y=cy0; y<=cy1; y++) {
+			System.arraycopy(window, (y-wy0)*w+cx0-wx0, lastSmoothed, y*imgWidth+cx0, cx1-cx0+1);
+		}
+	}
+
+
+	/**
+	 * Classifies the pixels of unknown affiliation by their nearest
+	 * centroids in the background and foreground signatures.
+	 * <P>
+	 * The image is split into one chunk of rows per thread. Each thread
+	 * looks up colors in <code>hs</code> (which is only read during the
+	 * parallel phase) and caches new colors in its own map; the new colors
+	 * are merged into <code>hs</code> afterwards.
+	 *
+	 * @param image Pixel data of the image to be segmentated.
+	 * @param cm Confidence matrix, overwritten with certain confidences.
+	 * @param dirty The pixels to classify, or <code>null</code> for all;
+	 *        the other entries of <code>cm</code> are left alone.
+	 * @exception IllegalStateException if the confidence matrix defines no
+	 *         image foreground.
+	 */
+	private void classify(final int[] image, final float[] cm, final boolean[] dirty)
+	{
+		final KdTree bgTree=new KdTree(bgSignature, 3);
+		final KdTree fgTree=new KdTree(fgSignature, 3);
+		final Thread[] threads=new Thread[Runtime.getRuntime().availableProcessors()];
+		final IntHashMap[] newColors=new IntHashMap[threads.length];
+		final IntArrayList[] newColorList=new IntArrayList[threads.length];
+		final boolean[] noForeground=new boolean[1];
+		final AtomicInteger ai=new AtomicInteger(0);
+
+		for (int t=0; t<threads.length; t++) {
+			threads[t]=new Thread() {
+				public void run() {
+					final int chunk=ai.getAndIncrement();
+					final int from=(int)((long)cm.length*chunk/threads.length);
+					final int to=(int)((long)cm.length*(chunk+1)/threads.length);
+					final IntHashMap local=new IntHashMap();
+					final IntArrayList localList=new IntArrayList();
+					newColors[chunk]=local;
+					newColorList[chunk]=localList;
+					for (int i=from; i<to; i++) {
+						if ((dirty!=null && !dirty[i])
+								|| cm[i]<=BACKGROUND_CONFIDENCE || cm[i]>=FOREGROUND_CONFIDENCE
+								|| hs.containsKey(image[i]) || local.containsKey(image[i])) {
+							continue;
 						}
-					}
-					tupel.minBgDist=minBg;
-					tupel.indexMinBg=minIndex;
-					float minFg=Float.MAX_VALUE;
-					minIndex=-1;
-					for (int j=0; j<fgSignature.length; j++) {
-						final float d=Utils.sqrEuclidianDist(lab, fgSignature[j]);
-						if (d<minFg) {
-							minFg=d;
-							minIndex=j;
+						if (fgSignature.length==0) {
+							noForeground[0]=true;
+							return;
 						}
+						final float[] lab=Utils.rgbToClab(image[i]);
+						final int indexMinBg=bgTree.nearest(lab);
+						final int indexMinFg=fgTree.nearest(lab);
+						final Tupel tupel=new Tupel(Utils.sqrEuclidianDist(lab, bgSignature[indexMinBg]), indexMinBg,
+													Utils.sqrEuclidianDist(lab, fgSignature[indexMinFg]), indexMinFg);
+						tupel.firstPixel=i;
+						local.put(image[i], tupel);
+						localList.add(image[i]);
 					}
-					tupel.minFgDist=minFg;
-					tupel.indexMinFg=minIndex;
-					if (fgSignature.length==0) {
-						isBackground=(minBg<=clusterSize);
-						// remove next line to force behaviour of old algorithm
-						throw new IllegalStateException("foreground signature does not exist");
-					} else {
-						isBackground=minBg<minFg;
-					}
-					hs.put(image[i], tupel);
-				} else {
-					isBackground=tupel.minBgDist<=tupel.minFgDist;
 				}
-				if (isBackground) {
-					cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
-				} else {
-					cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
+			};
+		}
+		startAndJoin(threads);
+		if (noForeground[0]) {
+			throw new IllegalStateException("foreground signature does not exist");
+		}
+
+		// merge the new colors, remembering where each occurred first
+		for (int t=0; t<newColors.length; t++) {
+			for (int k=0; k<newColorList[t].size(); k++) {
+				final int color=newColorList[t].get(k);
+				final Tupel tupel=(Tupel)newColors[t].get(color);
+				final Tupel known=(Tupel)hs.get(color);
+				if (known==null) {
+					hs.put(color, tupel);
+				} else if (known.firstPixel>tupel.firstPixel) {
+					known.firstPixel=tupel.firstPixel;
 				}
-			} else {
-				cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
 			}
 		}
-		// postprocessing
-		Utils.smoothcm(cm, imgWidth, imgHeight, 0.33f, 0.33f, 0.33f); // average
-		Utils.normalizeMatrix(cm);
-		keepOnlyLargeComponents(cm, UNKNOWN_REGION_CONFIDENCE, sizeFactorToKeep);
-		segmentated=true;
-		return true;
+
+		ai.set(0);
+		for (int t=0; t<threads.length; t++) {
+			threads[t]=new Thread() {
+				public void run() {
+					final int chunk=ai.getAndIncrement();
+					final int from=(int)((long)cm.length*chunk/threads.length);
+					final int to=(int)((long)cm.length*(chunk+1)/threads.length);
+					for (int i=from; i<to; i++) {
+						if (dirty!=null && !dirty[i]) {
+							continue;
+						}
+						if (cm[i]>=FOREGROUND_CONFIDENCE) {
+							cm[i]=CERTAIN_FOREGROUND_CONFIDENCE;
+						} else if (cm[i]>BACKGROUND_CONFIDENCE) {
+							final Tupel tupel=(Tupel)hs.get(image[i]);
+							// a color seen for the first time breaks
+							// ties in favour of the foreground
+							final boolean isBackground=tupel.firstPixel==i ?
+								tupel.minBgDist<tupel.minFgDist :
+								tupel.minBgDist<=tupel.minFgDist;
+							cm[i]=isBackground ? CERTAIN_BACKGROUND_CONFIDENCE : CERTAIN_FOREGROUND_CONFIDENCE;
+						} else {
+							cm[i]=CERTAIN_BACKGROUND_CONFIDENCE;
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+
+		// only the current frame may break ties
+		for (int t=0; t<newColorList.length; t++) {
+			for (int k=0; k<newColorList[t].size(); k++) {
+				((Tupel)hs.get(newColorList[t].get(k))).firstPixel=-1;
+			}
+		}
 	}
 
+	private static void startAndJoin(Thread[] threads)
+	{
+		for (int ithread=0; ithread<threads.length; ++ithread) {
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+		try {
+			for (int ithread=0; ithread<threads.length; ++ithread) {
+				threads[ithread].join();
+			}
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+	}
 
 	/**
 	 * Clears given confidence matrix except entries for the largest connected
@@ -843,6 +969,8 @@ public class SioxSegmentator
 		int indexMinBg;
 		float minFgDist;
 		int indexMinFg;
+		/** Pixel where the color occurred first in the current frame, or -1. */
+		int firstPixel=-1;
 
 		Tupel(float minBgDist, int indexMinBg, float minFgDist, int indexMinFg)
 		{
@@ -0,0 +1,155 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.siox.util;
+
+/**
+ * Static k-d tree for nearest neighbour queries on a small set of points,
+ * e.g. the cluster centroids of a color signature.
+ * <P>
+ * Only the first <code>dims</code> coordinates of each point are used;
+ * further entries (like the cardinality stored in signatures) are ignored.
+ * Distances are computed with <code>Utils.sqrEuclidianDist()</code>, so the
+ * result is the same as that of a linear scan, including the preference
+ * for the smallest index in case of ties.
+ * <P>
+ * Instances are immutable and can be queried from several threads.
+ */
+public class KdTree
+{
+	/** Subtrees with at most this many points are scanned linearly. */
+	private final static int LEAF_SIZE=8;
+
+	private final float[][] points;
+	private final int dims;
+
+	/** Point indices, arranged as an implicit balanced tree. */
+	private final int[] index;
+
+	/**
+	 * Builds the tree.
+	 *
+	 * @param points The points; must not be modified afterwards.
+	 * @param dims Number of coordinates to use.
+	 */
+	public KdTree(float[][] points, int dims)
+	{
+		this.points=points;
+		this.dims=dims;
+		index=new int[points.length];
+		for (int i=0; i<index.length; i++) {
+			index[i]=i;
+		}
+		build(0, index.length, 0);
+	}
+
+	private void build(int from, int to, int depth)
+	{
+		if (to-from<=LEAF_SIZE) {
+			return;
+		}
+		final int axis=depth%dims;
+		final int mid=(from+to)/2;
+		select(from, to, mid, axis);
+		build(from, mid, depth+1);
+		build(mid+1, to, depth+1);
+	}
+
+	/* Partially sorts index[from..to) so that index[k] is the median. */
+	private void select(int from, int to, int k, int axis)
+	{
+		int lo=from, hi=to-1;
+		while (hi>lo) {
+			final float pivot=points[index[(lo+hi)/2]][axis];
+			int i=lo, j=hi;
+			while (i<=j) {
+				while (points[index[i]][axis]<pivot) {
+					i++;
+				}
+				while (points[index[j]][axis]>pivot) {
+					j--;
+				}
+				if (i<=j) {
+					final int t=index[i];
+					index[i++]=index[j];
+					index[j--]=t;
+				}
+			}
+			if (k<=j) {
+				hi=j;
+			} else if (k>=i) {
+				lo=i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/** Returns the number of points in the tree. */
+	public int size()
+	{
+		return points.length;
+	}
+
+	/**
+	 * Finds the point nearest to <code>p</code>.
+	 *
+	 * @param p The query point.
+	 * @return The index of the nearest point, or -1 if the tree is empty.
+	 */
+	public int nearest(float[] p)
+	{
+		if (points.length==0) {
+			return -1;
+		}
+		final int[] best={-1};
+		final float[] bestDist={Float.MAX_VALUE};
+		search(p, 0, index.length, 0, best, bestDist);
+		return best[0];
+	}
+
+	private void search(float[] p, int from, int to, int depth, int[] best, float[] bestDist)
+	{
+		if (to-from<=LEAF_SIZE) {
+			for (int i=from; i<to; i++) {
+				consider(p, index[i], best, bestDist);
+			}
+			return;
+		}
+		final int axis=depth%dims;
+		final int mid=(from+to)/2;
+		final float diff=p[axis]-points[index[mid]][axis];
+		consider(p, index[mid], best, bestDist);
+		if (diff<=0) {
+			search(p, from, mid, depth+1, best, bestDist);
+			if (diff*diff<=bestDist[0]) {
+				search(p, mid+1, to, depth+1, best, bestDist);
+			}
+		} else {
+			search(p, mid+1, to, depth+1, best, bestDist);
+			if (diff*diff<=bestDist[0]) {
+				search(p, from, mid, depth+1, best, bestDist);
+			}
+		}
+	}
+
+	private void consider(float[] p, int i, int[] best, float[] bestDist)
+	{
+		final float d=Utils.sqrEuclidianDist(p, points[i]);
+		if (d<bestDist[0] || (d==bestDist[0] && i<best[0])) {
+			bestDist[0]=d;
+			best[0]=i;
+		}
+	}
+}
@@ -27,14 +27,41 @@ public class Utils
 {
 
 	// CHANGELOG
+	// 2026-10-19 1.05 bounded, thread-safe RGB->CIELAB cache
 	// 2005-11-09 1.04 further clean up
 	// 2005-11-09 1.03 fixed some Javadoc comments
 	// 2005-11-03 1.02 further clean up
 	// 2005-11-02 1.01 cleaned up a bit
 	// 2005-10-25 1.00 initial release
 
-	/** Caches color conversion values to spped up RGB->CIELAB conversion.*/
-	private final static IntHashMap RGB_TO_LAB=new IntHashMap(100000);
+	/**
+	 * Caches color conversion values to spped up RGB->CIELAB conversion.
+	 * <P>
+	 * This is a direct mapped cache of fixed size (a colliding color
+	 * replaces the previous entry), so it can be shared by any number of
+	 * segmentations without growing. The entries are immutable, which
+	 * makes it safe to use from several threads without locking.
+	 */
+	private final static LabEntry[] RGB_TO_LAB=new LabEntry[1<<17];
+
+	/** Cache entry of the RGB->CIELAB conversion. */
+	private final static class LabEntry
+	{
+		final int rgb;
+		final float[] lab;
+
+		LabEntry(int rgb, float[] lab)
+		{
+			this.rgb=rgb;
+			this.lab=lab;
+		}
+	}
+
+	/** Slot of the given color in the RGB->CIELAB cache. */
+	private static int labCacheSlot(int rgb)
+	{
+		return (rgb*0x9e3779b1)>>>(32-17);
+	}
 
 	/** Prevent outside instantiation. */
 	private Utils() {}
@@ -308,17 +335,21 @@ public class Utils
 	 * <a href="http://www.easyrgb.com/math.php?MATH=M7#text7">CLAB Conversion</a>
 	 * for reference white D65. Note that that the conversion is computational
 	 * expensive. Result are cached to speed up further conversion calls.
+	 * <P>
+	 * This method is thread-safe. The returned array is shared and must
+	 * not be modified.
 	 *
 	 * @param rgb RGB color value,
 	 * @return CLAB color value tripel.
 	 */
 	public static float[] rgbToClab(int rgb)
 	{
-		float lab[]=(float[])RGB_TO_LAB.get(rgb);
-	if (lab!=null) {
-		return lab;
+		final int slot=labCacheSlot(rgb);
+		final LabEntry entry=RGB_TO_LAB[slot];
+	if (entry!=null && entry.rgb==rgb) {
+		return entry.lab;
 	}
-	lab=new float[3];
+	final float[] lab=new float[3];
 	final int R=getRed(rgb);
 	final int G=getGreen(rgb);
 	final int B=getBlue(rgb);
@@ -374,7 +405,7 @@ public class Utils
 	lab[1]=500f*(var_X-var_Y);
 	lab[2]=200f*(var_Y-var_Z);
 
-	RGB_TO_LAB.put(rgb, lab);
+	RGB_TO_LAB[slot]=new LabEntry(rgb, lab);
 	return lab;
 	}
 
@@ -0,0 +1,218 @@
+/**
+ * Siox_Segmentation plug-in for ImageJ and Fiji.
+ * 2009 Ignacio Arganda-Carreras, Johannes Schindelin, Stephan Saalfeld
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+package siox;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.siox.SioxSegmentator;
+
+/**
+ * Segments all frames of an RGB stack with SIOX and returns the masks.
+ * <P>
+ * The color signatures are learned from the first frame, using the
+ * current selection as foreground (and the image border as background).
+ * The following frames reuse the signatures and only reclassify the
+ * pixels whose color changed by more than the given tolerance.
+ * <P>
+ * The frames are read by a separate thread, so that reading the next
+ * frames of a virtual stack overlaps with the segmentation. All
+ * parameters can be passed as macro options, e.g.
+ * <pre>
+ * makeRectangle(100, 80, 50, 60);
+ * run("SIOX Video Segmentation", "color_tolerance=2 read_ahead=4 multipart");
+ * </pre>
+ *
+ * @author Ignacio Arganda-Carreras (ignacio.arganda at gmail.com)
+ *
+ */
+public class Siox_Video_Segmentation implements PlugIn
+{
+	/** tolerance of the color change (in CLAB units) */
+	private static double colorTolerance = 2;
+	/** number of frames to read ahead */
+	private static int readAhead = 4;
+	/** keep all large components instead of only the largest one */
+	private static boolean multipart = false;
+
+	/** marks the end of the frame queue */
+	private static final Object END_OF_STACK = new Object();
+
+	//@Override
+	public void run(String arg)
+	{
+		final ImagePlus imp = IJ.getImage();
+		if (imp.getType() != ImagePlus.COLOR_RGB) {
+			IJ.error("Siox Video Segmentation", "RGB image required");
+			return;
+		}
+		final Roi roi = imp.getRoi();
+		if (roi == null || !roi.isArea()) {
+			IJ.error("Siox Video Segmentation", "ERROR: no foreground selected!");
+			return;
+		}
+
+		final GenericDialog gd = new GenericDialog("Siox Video Segmentation");
+		gd.addNumericField("Color tolerance:", colorTolerance, 2);
+		gd.addNumericField("Read ahead (frames):", readAhead, 0);
+		gd.addCheckbox("Multipart", multipart);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		colorTolerance = gd.getNextNumber();
+		readAhead = Math.max(1, (int)gd.getNextNumber());
+		multipart = gd.getNextBoolean();
+
+		final ImageStack masks = segment(imp.getStack(), roi, (float)colorTolerance, readAhead, multipart);
+		if (masks == null)
+			IJ.error("Siox Video Segmentation", "The segmentation failed!");
+		else {
+			final ImagePlus result = new ImagePlus("Mask of " + imp.getTitle(), masks);
+			result.setCalibration(imp.getCalibration());
+			result.show();
+		}
+	}
+
+	/**
+	 * Segment all slices of a stack.
+	 *
+	 * @param stack the frames; non-RGB slices are converted
+	 * @param foreground the known foreground in the first frame
+	 * @param colorTolerance color differences up to this value (in CLAB units) are ignored
+	 * @param readAhead maximum number of frames read before they are segmented
+	 * @param multipart whether to keep all large components
+	 * @return the masks (255 for foreground), or null if the segmentation failed
+	 */
+	public static ImageStack segment(final ImageStack stack, final Roi foreground,
+			final float colorTolerance, final int readAhead, final boolean multipart)
+	{
+		final int w = stack.getWidth(), h = stack.getHeight();
+		final int n = stack.getSize();
+		final double sizeFactorToKeep = multipart ? 4 : 0;
+
+		final BlockingQueue queue = new ArrayBlockingQueue(readAhead);
+		final Throwable[] failure = new Throwable[1];
+		final Thread reader = new Thread("Siox frame reader") {
+			public void run() {
+				try {
+					for (int z = 1; z <= n && !isInterrupted(); z++)
+						queue.put(getPixels(stack.getProcessor(z)));
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+				try {
+					queue.put(END_OF_STACK);
+				} catch (InterruptedException e) { /* ignore */ }
+			}
+		};
+		reader.start();
+
+		final ImageStack masks = new ImageStack(w, h);
+		final SioxSegmentator siox = new SioxSegmentator(w, h, null);
+		final float[] cm = new float[w * h];
+		try {
+			for (int z = 1; ; z++) {
+				final Object frame = queue.take();
+				if (frame == END_OF_STACK)
+					break;
+				IJ.showStatus("Segmenting frame " + z + "/" + n);
+				IJ.showProgress(z - 1, n);
+
+				final int[] pixels = (int[])frame;
+				boolean success;
+				if (z == 1) {
+					initConfidence(cm, w, h, foreground);
+					success = siox.segmentatevideo_firstframe(pixels, cm, sizeFactorToKeep);
+				}
+				else {
+					java.util.Arrays.fill(cm, SioxSegmentator.UNKNOWN_REGION_CONFIDENCE);
+					success = siox.segmentatevideo_nextframe(pixels, cm, sizeFactorToKeep, colorTolerance);
+				}
+				if (!success)
+					return null;
+				masks.addSlice(stack.getSliceLabel(z), toMask(cm, w, h));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			reader.interrupt();
+			IJ.showProgress(1.0);
+		}
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+		return masks;
+	}
+
+	/**
+	 * Fill the confidence matrix of the first frame: the ROI is known foreground,
+	 * the remaining border pixels are known background, the rest is unknown.
+	 */
+	private static void initConfidence(final float[] cm, final int w, final int h, final Roi foreground)
+	{
+		final FloatProcessor confMatrix = new FloatProcessor(w, h, cm, null);
+		confMatrix.setValue(SioxSegmentator.UNKNOWN_REGION_CONFIDENCE);
+		confMatrix.fill();
+		confMatrix.setValue(SioxSegmentator.CERTAIN_FOREGROUND_CONFIDENCE);
+		confMatrix.fill(foreground);
+
+		// select border pixels which are not foreground as background (as in SegmentationGUI)
+		for (int i = 0; i < w; i++) {
+			if (cm[i] < 0.8f)
+				cm[i] = 0;
+			if (cm[i + w * (h - 1)] < 0.8f)
+				cm[i + w * (h - 1)] = 0;
+		}
+		for (int i = 0; i < h; i++) {
+			if (cm[w * i] < 0.8f)
+				cm[w * i] = 0;
+			if (cm[w - 1 + w * i] < 0.8f)
+				cm[w - 1 + w * i] = 0;
+		}
+	}
+
+	private static int[] getPixels(ImageProcessor ip)
+	{
+		if (ip.getPixels() instanceof int[])
+			return (int[])ip.getPixels();
+		return (int[])ip.convertToRGB().getPixels();
+	}
+
+	private static ByteProcessor toMask(final float[] cm, final int w, final int h)
+	{
+		final byte[] mask = new byte[w * h];
+		for (int i = 0; i < mask.length; i++)
+			if (cm[i] >= SioxSegmentator.UNKNOWN_REGION_CONFIDENCE)
+				mask[i] = (byte)255;
+		return new ByteProcessor(w, h, mask, null);
+	}
+}
@@ -1,5 +1,6 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
@@ -16,6 +17,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /*
  * The Statistical Region Merging algorithm is described in
  *
@@ -28,15 +31,22 @@ public class SRM_ implements PlugInFilter {
 
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G | NO_CHANGES;
+		return DOES_8G | DOES_16 | NO_CHANGES;
 	}
 
 	public void run(ImageProcessor ip) {
-		// TODO: implement 3D version, let user choose
+		boolean isStack = image.getStackSize() > 1;
+		boolean is16bit = ip instanceof ShortProcessor;
 
 		GenericDialog gd = new GenericDialog("SRM");
 		gd.addNumericField("Q", Q, 2);
 		gd.addCheckbox("showAverages", true);
+		if (isStack)
+			gd.addCheckbox("3D", true);
+		if (is16bit)
+			gd.addNumericField("bins", bins, 0);
+		gd.addNumericField("pairBuffer (MB)",
+				(long)pairBufferSize * PAIR_BYTES >> 20, 0);
 		gd.showDialog();
 
 		if (gd.wasCanceled())
@@ -44,12 +54,40 @@ public class SRM_ implements PlugInFilter {
 
 		Q = (float)gd.getNextNumber();
 		boolean showAverages = gd.getNextBoolean();
-		srm2D(ip, showAverages).show();
+		boolean do3D = isStack && gd.getNextBoolean();
+		if (is16bit)
+			bins = (int)gd.getNextNumber();
+		pairBufferSize = (int)Math.min(Integer.MAX_VALUE - 8,
+				Math.max(1, (long)gd.getNextNumber() << 20)
+				/ PAIR_BYTES);
+
+		if (do3D)
+			srm3D(image.getStack(), showAverages).show();
+		else
+			srm2D(ip, showAverages).show();
 	}
 
-	final float g = 256; // number of different intensity values
+	float g = 256; // number of different intensity values
 	protected float Q = 25; //25; // complexity of the assumed distributions
-	protected float delta;
+
+	/*
+	 * Intensity differences are bucketed into this many bins (for 8-bit
+	 * images, every difference gets its own bin).
+	 */
+	protected int bins = 1024;
+
+	/*
+	 * Maximal number of neighbor pairs held in memory at a time.  The
+	 * pairs are sorted into the buffer bin by bin; each fill is one pass
+	 * over the image.
+	 *
+	 * Besides input and result, the segmentation needs 8 bytes per voxel
+	 * (average and region index), i.e. 8 GB for 1024^3 voxels, plus
+	 * PAIR_BYTES per buffered pair: 640 MB with the default buffer.  A
+	 * smaller buffer needs more passes.
+	 */
+	protected int pairBufferSize = 1 << 27;
+	protected final static int PAIR_BYTES = 5;
 
 	/*
 	 * The predicate: is the difference of the averages of the two
@@ -67,11 +105,18 @@ public class SRM_ implements PlugInFilter {
 	protected float factor, logDelta;
 
 	/*
-	 * For performance reasons, these are held in w * h arrays
+	 * For performance reasons, these are held in w * h * d arrays
 	 */
 	float[] average;
-	int[] count;
-	int[] regionIndex; // if < 0, it is -1 - actual_regionIndex
+	/*
+	 * This is a union-find structure: if < 0, it is -1 - parent_index,
+	 * otherwise the voxel is the representative of its region, and the
+	 * value is the number of voxels in the region.
+	 *
+	 * By construction, the representative is the smallest voxel index
+	 * of the region.
+	 */
+	int[] regionIndex;
 
 	/*
 	 * The statistical region merging wants to merge regions in a specific
@@ -82,182 +127,450 @@ public class SRM_ implements PlugInFilter {
 	 * to (by construction, the regions must be distinct) should be merged.
 	 *
 	 * For efficiency, we do it by bucket sorting, because there are only
-	 * g + 1 possible differences.
-	 *
-	 * After sorting, for each difference the pixel pair with the largest
-	 * index is stored in neighborBuckets[difference], and every
-	 * nextNeighbor[index] points to the pixel pair with the same
-	 * difference and the next smaller index (or -1 if there is none).
-	 *
-	 * The pixel pairs are identified by
+	 * a limited number of (binned) differences.
 	 *
-	 *     2 * (x + (w - 1) * y) + direction
+	 * A pixel pair is identified by the smaller pixel index and the
+	 * direction: 0 means "right neighbor", 1 means "lower neighbor" and
+	 * 2 means "neighbor in the next slice".  (We do not need "left",
+	 * "up" or "previous slice", as the order within the pair is not
+	 * important.)
 	 *
-	 * where direction = 0 means "right neighbor", and direction = 1 means
-	 * " lower neighbor".  (We do not need "left" or "up", as the order
-	 * within the pair is not important.)
-	 *
-	 * In n dimensions, it must be n * pixel_count, and "direction"
-	 * specifies the Cartesian unit vector (axis) determining the neighbor.
+	 * Storing all 3 * voxel_count pairs would need more memory than the
+	 * volume itself, so the sorted pairs are produced in several passes
+	 * over the volume, each pass handling a range of bins that fits into
+	 * the pair buffer.  Within a bin, pairs are ordered by pixel index,
+	 * then by direction.
 	 */
-	int[] nextNeighbor, neighborBucket;
+	int[] pairIndex;
+	byte[] pairDirection;
+
+	int w, h, d, levels;
+	int minValue;
+	Object[] pixels;
 
 	protected ImagePlus srm2D(ImageProcessor ip, boolean showAverages) {
-		int w = ip.getWidth(), h = ip.getHeight();
+		ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+		stack.addSlice("", ip.getPixels());
+		ImageStack result = srm(stack, showAverages);
+		String title = image.getTitle() + " (SRM Q=" + Q + ")";
+		ImageProcessor resultIP = result.getProcessor(1);
+		resultIP.resetMinAndMax();
+		return new ImagePlus(title, resultIP);
+	}
+
+	protected ImagePlus srm3D(ImageStack stack, boolean showAverages) {
+		ImageStack result = srm(stack, showAverages);
+		String title = image.getTitle() + " (SRM 3D Q=" + Q + ")";
+		ImagePlus imp = new ImagePlus(title, result);
+		imp.setCalibration(image.getCalibration());
+		// display range of the whole stack
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (int z = 1; z <= result.getSize(); z++) {
+			ImageProcessor slice = result.getProcessor(z);
+			slice.resetMinAndMax();
+			min = Math.min(min, slice.getMin());
+			max = Math.max(max, slice.getMax());
+		}
+		imp.getProcessor().setMinAndMax(min, max);
+		return imp;
+	}
+
+	protected ImageStack srm(ImageStack stack, boolean showAverages) {
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		long size = (long)w * h * d;
+		if (size >= Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Volume too large: "
+				+ size + " voxels");
+		int n = (int)size;
+
+		pixels = stack.getImageArray();
+		initializeLevels();
 
-		delta = 1f / (6 * w * h);
 		/*
-		 * This would be the non-relaxed formula:
+		 * This would be the non-relaxed formula, with delta = 1 / (6 n):
 		 *
 		 * factor = g * g / 2 / Q * (float)Math.log(2 / delta);
 		 *
 		 * The paper claims that this is more prone to oversegmenting.
 		 */
 		factor = g * g / 2 / Q;
-		logDelta = 2f * (float)Math.log(6 * w * h);
+		logDelta = 2f * (float)Math.log(6 * (double)n);
 
-		byte[] pixel = (byte[])ip.getPixels();
-		initializeRegions2D(pixel, ip.getWidth(), ip.getHeight());
-		initializeNeighbors2D(pixel, w, h);
-		mergeAllNeighbors2D(w);
+		IJ.showStatus("SRM: initializing regions");
+		initializeRegions(n);
+		mergeAllNeighbors(n);
 
+		ImageStack result = new ImageStack(w, h);
+		int sliceSize = w * h;
 		if (showAverages) {
-			for (int i = 0; i < average.length; i++)
-				average[i] = average[getRegionIndex(i)];
-			ip = new FloatProcessor(w, h, average, null);
+			for (int z = 0; z < d; z++) {
+				float[] slice = new float[sliceSize];
+				for (int i = 0; i < sliceSize; i++)
+					slice[i] = average[getRegionIndex(
+							z * sliceSize + i)];
+				result.addSlice("", slice);
+			}
 		}
 		else {
 			int regionCount = consolidateRegions();
 
-			if (regionCount > 1<<8) {
-				if (regionCount > 1<<16)
-					IJ.showMessage("Found " + regionCount
-						+ " regions, which does not fit"
-						+ " in 16-bit.");
-				short[] pixel16 = new short[w * h];
-				for (int i = 0; i < pixel16.length; i++)
-					pixel16[i] = (short)regionIndex[i];
-				ip = new ShortProcessor(w, h, pixel16, null);
+			for (int z = 0; z < d; z++) {
+				int offset = z * sliceSize;
+				Object slice;
+				if (regionCount > 1<<16) {
+					float[] pixel = new float[sliceSize];
+					for (int i = 0; i < sliceSize; i++)
+						pixel[i] = regionIndex[offset + i];
+					slice = pixel;
+				}
+				else if (regionCount > 1<<8) {
+					short[] pixel = new short[sliceSize];
+					for (int i = 0; i < sliceSize; i++)
+						pixel[i] = (short)regionIndex[offset + i];
+					slice = pixel;
+				}
+				else {
+					byte[] pixel = new byte[sliceSize];
+					for (int i = 0; i < sliceSize; i++)
+						pixel[i] = (byte)regionIndex[offset + i];
+					slice = pixel;
+				}
+				result.addSlice("", slice);
+			}
+			if (regionCount > 1<<24)
+				IJ.showMessage("Found " + regionCount
+					+ " regions, which cannot be represented"
+					+ " exactly as 32-bit float.");
+		}
+
+		average = null;
+		regionIndex = null;
+		pixels = null;
+		IJ.showStatus("");
+		return result;
+	}
+
+	/*
+	 * 8-bit images use 256 levels and one bin per difference;
+	 * 16-bit images use the actual range of values
+	 */
+	void initializeLevels() {
+		if (pixels[0] instanceof byte[]) {
+			minValue = 0;
+			levels = 256;
+			g = 256;
+			bins = 256;
+			return;
+		}
+		int min = 0xffff, max = 0;
+		for (int z = 0; z < d; z++) {
+			short[] slice = (short[])pixels[z];
+			for (int i = 0; i < slice.length; i++) {
+				int v = slice[i] & 0xffff;
+				if (min > v)
+					min = v;
+				if (max < v)
+					max = v;
+			}
+		}
+		minValue = min;
+		levels = max - min + 1;
+		g = levels;
+		if (bins < 1)
+			bins = 1;
+		if (bins > levels)
+			bins = levels;
+	}
+
+	final int getBin(int difference) {
+		if (bins == levels)
+			return difference;
+		return (int)((long)difference * bins / levels);
+	}
+
+	void initializeRegions(int n) {
+		average = new float[n];
+		regionIndex = new int[n];
+
+		int sliceSize = w * h;
+		for (int z = 0; z < d; z++) {
+			int offset = z * sliceSize;
+			if (pixels[z] instanceof byte[]) {
+				byte[] pixel = (byte[])pixels[z];
+				for (int i = 0; i < sliceSize; i++)
+					average[offset + i] = pixel[i] & 0xff;
 			}
 			else {
-				pixel = new byte[w * h];
-				for (int i = 0; i < pixel.length; i++)
-					pixel[i] = (byte)regionIndex[i];
-				ip = new ByteProcessor(w, h, pixel, null);
+				short[] pixel = (short[])pixels[z];
+				for (int i = 0; i < sliceSize; i++)
+					average[offset + i] = pixel[i] & 0xffff;
 			}
 		}
+		Arrays.fill(regionIndex, 1);
+	}
 
-		String title = image.getTitle() + " (SRM Q=" + Q + ")";
-		return new ImagePlus(title, ip);
+	/*
+	 * Calls visitor.pair() for all neighbor pairs whose smaller pixel
+	 * lies in the rows [fromRow, toRow) of the volume (rows are
+	 * counted across slices, i.e. row = y + h * z).
+	 */
+	abstract static class PairVisitor {
+		abstract void pair(int index, int direction, int bin);
 	}
 
-	void initializeRegions2D(byte[] pixel, int w, int h) {
-		average = new float[w * h];
-		count = new int[w * h];
-		regionIndex = new int[w * h];
+	void visitPairs(int fromRow, int toRow, PairVisitor visitor) {
+		int sliceSize = w * h;
+		for (int row = fromRow; row < toRow; row++) {
+			int z = row / h, y = row % h;
+			byte[] b = null, bNext = null;
+			short[] s = null, sNext = null;
+			if (pixels[z] instanceof byte[]) {
+				b = (byte[])pixels[z];
+				if (z < d - 1)
+					bNext = (byte[])pixels[z + 1];
+			}
+			else {
+				s = (short[])pixels[z];
+				if (z < d - 1)
+					sNext = (short[])pixels[z + 1];
+			}
+			boolean hasLower = y < h - 1, hasNext = z < d - 1;
+			int offset = y * w;
+			int index = z * sliceSize + offset;
+			for (int x = 0; x < w; x++, offset++, index++) {
+				int v = b != null ? b[offset] & 0xff
+					: s[offset] & 0xffff;
+				// horizontal
+				if (x < w - 1) {
+					int v2 = b != null ? b[offset + 1] & 0xff
+						: s[offset + 1] & 0xffff;
+					visitor.pair(index, 0,
+						getBin(Math.abs(v - v2)));
+				}
+				// vertical
+				if (hasLower) {
+					int v2 = b != null ? b[offset + w] & 0xff
+						: s[offset + w] & 0xffff;
+					visitor.pair(index, 1,
+						getBin(Math.abs(v - v2)));
+				}
+				// next slice
+				if (hasNext) {
+					int v2 = b != null ? bNext[offset] & 0xff
+						: sNext[offset] & 0xffff;
+					visitor.pair(index, 2,
+						getBin(Math.abs(v - v2)));
+				}
+			}
+		}
+	}
 
-		for (int i = 0; i < average.length; i++) {
-			average[i] = pixel[i] & 0xff;
-			count[i] = 1;
-			regionIndex[i] = i;
+	void mergeAllNeighbors(int n) {
+		final int rows = h * d;
+		Thread[] threads = newThreads();
+		final int chunkCount = Math.min(rows, 4 * threads.length);
+		final int[] chunkStart = new int[chunkCount + 1];
+		for (int c = 0; c <= chunkCount; c++)
+			chunkStart[c] = (int)((long)rows * c / chunkCount);
+
+		// count the pairs per bin, for each chunk of rows
+		IJ.showStatus("SRM: sorting neighbor pairs");
+		final int[][] chunkHistogram = new int[chunkCount][bins];
+		final AtomicInteger ai = new AtomicInteger(0);
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int c = ai.getAndIncrement();
+							c < chunkCount;
+							c = ai.getAndIncrement()) {
+						final int[] histogram =
+							chunkHistogram[c];
+						visitPairs(chunkStart[c],
+								chunkStart[c + 1],
+								new PairVisitor() {
+							void pair(int index,
+									int direction,
+									int bin) {
+								histogram[bin]++;
+							}
+						});
+					}
+				}
+			};
+		startAndJoin(threads);
+
+		long[] binCount = new long[bins];
+		long totalCount = 0;
+		for (int c = 0; c < chunkCount; c++)
+			for (int bin = 0; bin < bins; bin++)
+				binCount[bin] += chunkHistogram[c][bin];
+		for (int bin = 0; bin < bins; bin++)
+			totalCount += binCount[bin];
+
+		int capacity = (int)Math.min(Math.max(1, pairBufferSize),
+				totalCount);
+		pairIndex = new int[capacity];
+		pairDirection = new byte[capacity];
+
+		int firstBin = 0;
+		while (firstBin < bins) {
+			IJ.showProgress(firstBin, bins);
+			if (binCount[firstBin] > capacity) {
+				// too large for the buffer: merge while scanning
+				mergeBin(firstBin);
+				firstBin++;
+				continue;
+			}
+			int lastBin = firstBin;
+			long sum = binCount[firstBin];
+			while (lastBin + 1 < bins &&
+					sum + binCount[lastBin + 1] <= capacity)
+				sum += binCount[++lastBin];
+			int count = collectPairs(firstBin, lastBin,
+					chunkStart, chunkHistogram);
+			mergePairs(count);
+			firstBin = lastBin + 1;
 		}
+		IJ.showProgress(1.0);
+
+		pairIndex = null;
+		pairDirection = null;
 	}
 
-	protected void addNeighborPair(int neighborIndex,
-			byte[] pixel, int i1, int i2) {
-		int difference = Math.abs((pixel[i1] & 0xff)
-				- (pixel[i2] & 0xff));
-		nextNeighbor[neighborIndex] = neighborBucket[difference];
-		neighborBucket[difference] = neighborIndex;
+	/*
+	 * Parallel counting sort of the pairs in the bins
+	 * [firstBin, lastBin] into the pair buffer.
+	 */
+	int collectPairs(final int firstBin, final int lastBin,
+			final int[] chunkStart, final int[][] chunkHistogram) {
+		final int chunkCount = chunkHistogram.length;
+		final int[][] chunkOffset = new int[chunkCount][];
+		int offset = 0;
+		for (int c = 0; c < chunkCount; c++)
+			chunkOffset[c] = new int[lastBin - firstBin + 1];
+		for (int bin = firstBin; bin <= lastBin; bin++)
+			for (int c = 0; c < chunkCount; c++) {
+				chunkOffset[c][bin - firstBin] = offset;
+				offset += chunkHistogram[c][bin];
+			}
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int ithread = 0; ithread < threads.length; ithread++)
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int c = ai.getAndIncrement();
+							c < chunkCount;
+							c = ai.getAndIncrement()) {
+						final int[] cursor =
+							chunkOffset[c];
+						visitPairs(chunkStart[c],
+								chunkStart[c + 1],
+								new PairVisitor() {
+							void pair(int index,
+									int direction,
+									int bin) {
+								if (bin < firstBin ||
+									bin > lastBin)
+									return;
+								int i = cursor[bin
+									- firstBin]++;
+								pairIndex[i] = index;
+								pairDirection[i] =
+									(byte)direction;
+							}
+						});
+					}
+				}
+			};
+		startAndJoin(threads);
+		return offset;
 	}
 
-	void initializeNeighbors2D(byte[] pixel, int w, int h) {
-		nextNeighbor = new int[2 * w * h];
+	final int getNeighbor(int index, int direction) {
+		return index + (direction == 0 ? 1 :
+				direction == 1 ? w : w * h);
+	}
 
-		// bucket sort
-		neighborBucket = new int[256];
-		Arrays.fill(neighborBucket, -1);
+	void mergePairs(int count) {
+		for (int i = 0; i < count; i++) {
+			int i1 = pairIndex[i];
+			int i2 = getNeighbor(i1, pairDirection[i]);
 
-		for (int j = h - 1; j >= 0; j--)
-			for (int i = w - 1; i >= 0; i--) {
-				int index = i + w * j;
-				int neighborIndex = 2 * index;
+			i1 = getRegionIndex(i1);
+			i2 = getRegionIndex(i2);
 
-				// vertical
-				if (j < h - 1)
-					addNeighborPair(neighborIndex + 1,
-						pixel, index, index + w);
+			if (predicate(i1, i2))
+				mergeRegions(i1, i2);
+		}
+	}
 
-				// horizontal
-				if (i < w - 1)
-					addNeighborPair(neighborIndex,
-						pixel, index, index + 1);
+	void mergeBin(final int bin) {
+		visitPairs(0, h * d, new PairVisitor() {
+			void pair(int index, int direction, int pairBin) {
+				if (pairBin != bin)
+					return;
+				int i1 = getRegionIndex(index);
+				int i2 = getRegionIndex(getNeighbor(index,
+							direction));
+				if (predicate(i1, i2))
+					mergeRegions(i1, i2);
 			}
+		});
 	}
 
-	// recursively find out the region index for this pixel
+	// find out the region index for this pixel, compressing the path
 	int getRegionIndex(int i) {
-		i = regionIndex[i];
-		while (i < 0)
-			i = regionIndex[-1 - i];
-		return i;
+		int root = i;
+		while (regionIndex[root] < 0)
+			root = -1 - regionIndex[root];
+		while (i != root) {
+			int next = -1 - regionIndex[i];
+			regionIndex[i] = -1 - root;
+			i = next;
+		}
+		return root;
 	}
 
 	// should regions i1 and i2 be merged?
 	boolean predicate(int i1, int i2) {
 		float difference = average[i1] - average[i2];
+		int count1 = regionIndex[i1], count2 = regionIndex[i2];
 		/*
 		 * This would be the non-relaxed predicate mentioned in the
 		 * paper.
 		 *
 		 * return difference * difference <
-			factor * (1f / count[i1] + 1f / count[i2]);
+			factor * (1f / count1 + 1f / count2);
 		 *
 		 */
-		float log1 = (float)Math.log(1 + count[i1])
-			* (g < count[i1] ? g : count[i1]);
-		float log2 = (float)Math.log(1 + count[i2])
-			* (g < count[i2] ? g : count[i2]);
+		float log1 = (float)Math.log(1 + count1)
+			* (g < count1 ? g : count1);
+		float log2 = (float)Math.log(1 + count2)
+			* (g < count2 ? g : count2);
 		return difference * difference <
-			.1f * factor * ((log1 + logDelta) / count[i1]
-				+ ((log2 + logDelta) / count[i2]));
-	}
-
-	void mergeAllNeighbors2D(int w) {
-		for (int i = 0; i < neighborBucket.length; i++) {
-			int neighborIndex = neighborBucket[i];
-			while (neighborIndex >= 0) {
-				int i1 = neighborIndex / 2;
-				int i2 = i1
-					+ (0 == (neighborIndex & 1) ? 1 : w);
-
-				i1 = getRegionIndex(i1);
-				i2 = getRegionIndex(i2);
-
-				if (predicate(i1, i2))
-					mergeRegions(i1, i2);
-
-				neighborIndex = nextNeighbor[neighborIndex];
-			}
-		}
+			.1f * factor * ((log1 + logDelta) / count1
+				+ ((log2 + logDelta) / count2));
 	}
 
 	void mergeRegions(int i1, int i2) {
 		if (i1 == i2)
 			return;
-		int mergedCount = count[i1] + count[i2];
-		float mergedAverage = (average[i1] * count[i1]
-				+ average[i2] * count[i2]) / mergedCount;
+		int mergedCount = regionIndex[i1] + regionIndex[i2];
+		float mergedAverage = (average[i1] * regionIndex[i1]
+				+ average[i2] * regionIndex[i2]) / mergedCount;
 
 		// merge larger index into smaller index
 		if (i1 > i2) {
 			average[i2] = mergedAverage;
-			count[i2] = mergedCount;
+			regionIndex[i2] = mergedCount;
 			regionIndex[i1] = -1 - i2;
 		}
 		else {
 			average[i1] = mergedAverage;
-			count[i1] = mergedCount;
+			regionIndex[i1] = mergedCount;
 			regionIndex[i2] = -1 - i1;
 		}
 	}
@@ -281,4 +594,23 @@ public class SRM_ implements PlugInFilter {
 				regionIndex[i] = count++;
 		return count;
 	}
+
+	private static Thread[] newThreads() {
+		int nthread = Runtime.getRuntime().availableProcessors();
+		return new Thread[nthread];
+	}
+
+	private static void startAndJoin(Thread[] threads) {
+		for (int ithread = 0; ithread < threads.length; ++ithread) {
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+
+		try {
+			for (int ithread = 0; ithread < threads.length; ++ithread)
+				threads[ithread].join();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+	}
 }
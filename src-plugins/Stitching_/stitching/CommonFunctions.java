@@ -35,6 +35,8 @@ import loci.formats.IFormatReader;
 
 import edu.mines.jtk.dsp.FftComplex;
 import edu.mines.jtk.dsp.FftReal;
+
+import fiji.util.FFT3D;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -573,127 +575,8 @@ public class CommonFunctions
 	
 	public static FloatArray3D pffft3DMT(final FloatArray3D values, final boolean scale)
 	{
-		final int height = values.height;
-		final int width = values.width;
-		final int depth = values.depth;
-		final int complexWidth = (width / 2 + 1) * 2;
-
-		final FloatArray3D result = new FloatArray3D(complexWidth, height, depth);
-
-		// do fft's in x direction
-		final AtomicInteger ai = new AtomicInteger(0);
-		Thread[] threads = newThreads();
-		final int numThreads = threads.length;
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					int myNumber = ai.getAndIncrement();
-
-					float[] tempIn = new float[width];
-					float[] tempOut;
-					FftReal fft = new FftReal(width);
-
-					for (int z = 0; z < depth; z++)
-						if (z % numThreads == myNumber) for (int y = 0; y < height; y++)
-						{
-							tempOut = new float[complexWidth];
-
-							for (int x = 0; x < width; x++)
-								tempIn[x] = values.get(x, y, z);
-
-							fft.realToComplex(-1, tempIn, tempOut);
-
-							if (scale) fft.scale(width, tempOut);
-
-							for (int x = 0; x < complexWidth; x++)
-								result.set(tempOut[x], x, y, z);
-						}
-				}
-			});
-		startAndJoin(threads);
-
-		// do fft's in y direction
-		ai.set(0);
-		threads = newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					float[] tempIn = new float[height * 2];
-					float[] tempOut;
-					FftComplex fftc = new FftComplex(height);
-
-					int myNumber = ai.getAndIncrement();
-
-					for (int z = 0; z < depth; z++)
-						if (z % numThreads == myNumber) for (int x = 0; x < complexWidth / 2; x++)
-						{
-							tempOut = new float[height * 2];
-
-							for (int y = 0; y < height; y++)
-							{
-								tempIn[y * 2] = result.get(x * 2, y, z);
-								tempIn[y * 2 + 1] = result.get(x * 2 + 1, y, z);
-							}
-
-							fftc.complexToComplex(-1, tempIn, tempOut);
-
-							for (int y = 0; y < height; y++)
-							{
-								result.set(tempOut[y * 2], x * 2, y, z);
-								result.set(tempOut[y * 2 + 1], x * 2 + 1, y, z);
-							}
-						}
-				}
-			});
-
-		startAndJoin(threads);
-
-		// do fft's in z direction
-		ai.set(0);
-		threads = newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					float[] tempIn = new float[depth * 2];
-					float[] tempOut;
-					FftComplex fftc = new FftComplex(depth);
-
-					int myNumber = ai.getAndIncrement();
-
-					for (int y = 0; y < height; y++)
-						if (y % numThreads == myNumber) for (int x = 0; x < complexWidth / 2; x++)
-						{
-							tempOut = new float[depth * 2];
-
-							for (int z = 0; z < depth; z++)
-							{
-								tempIn[z * 2] = result.get(x * 2, y, z);
-								tempIn[z * 2 + 1] = result.get(x * 2 + 1, y, z);
-							}
-
-							fftc.complexToComplex(-1, tempIn, tempOut);
-
-							for (int z = 0; z < depth; z++)
-							{
-								result.set(tempOut[z * 2], x * 2, y, z);
-								result.set(tempOut[z * 2 + 1], x * 2 + 1, y, z);
-							}
-						}
-				}
-			});
-
-		startAndJoin(threads);
-
-		return result;
+		FFT3D plan = FFT3D.getPlan(values.width, values.height, values.depth);
+		return new FloatArray3D(plan.forward(values.data, scale), plan.complexWidth, values.height, values.depth);
 	}
 
 	public static FloatArray2D computePhaseCorrelationMatrix(FloatArray2D fft1, FloatArray2D fft2, int width)
@@ -860,131 +743,7 @@ public class CommonFunctions
 
 	public static FloatArray3D pffftInv3DMT(final FloatArray3D values, final int nfft)
 	{
-		final int depth = values.depth;
-		final int height = values.height;
-		final int width = nfft;
-		final int complexWidth = (width / 2 + 1) * 2;
-
-		final FloatArray3D result = new FloatArray3D(width, height, depth);
-
-		// do inverse fft's in z-direction on the complex numbers
-		final AtomicInteger ai = new AtomicInteger(0);
-		Thread[] threads = newThreads();
-		final int numThreads = threads.length;
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					int myNumber = ai.getAndIncrement();
-
-					float[] tempIn = new float[depth * 2];
-					float[] tempOut;
-					FftComplex fftc = new FftComplex(depth);
-
-					for (int y = 0; y < height; y++)
-						if (y % numThreads == myNumber) for (int x = 0; x < complexWidth / 2; x++)
-						{
-							tempOut = new float[complexWidth];
-
-							tempOut = new float[depth * 2];
-
-							for (int z = 0; z < depth; z++)
-							{
-								tempIn[z * 2] = values.get(x * 2, y, z);
-								tempIn[z * 2 + 1] = values.get(x * 2 + 1, y, z);
-							}
-
-							fftc.complexToComplex(1, tempIn, tempOut);
-
-							for (int z = 0; z < depth; z++)
-							{
-								values.set(tempOut[z * 2], x * 2, y, z);
-								values.set(tempOut[z * 2 + 1], x * 2 + 1, y, z);
-							}
-						}
-				}
-			});
-		startAndJoin(threads);
-
-		// do inverse fft's in y-direction on the complex numbers
-		ai.set(0);
-		threads = newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					float[] tempIn = new float[height * 2];
-					float[] tempOut;
-					FftComplex fftc = new FftComplex(height);
-
-					int myNumber = ai.getAndIncrement();
-
-					for (int z = 0; z < depth; z++)
-						if (z % numThreads == myNumber) for (int x = 0; x < complexWidth / 2; x++)
-						{
-							tempOut = new float[height * 2];
-
-							for (int y = 0; y < height; y++)
-							{
-								tempIn[y * 2] = values.get(x * 2, y, z);
-								tempIn[y * 2 + 1] = values.get(x * 2 + 1, y, z);
-							}
-
-							fftc.complexToComplex(1, tempIn, tempOut);
-
-							for (int y = 0; y < height; y++)
-							{
-								values.set(tempOut[y * 2], x * 2, y, z);
-								values.set(tempOut[y * 2 + 1], x * 2 + 1, y, z);
-							}
-						}
-				}
-			});
-		startAndJoin(threads);
-
-		// do inverse fft's in x direction
-		ai.set(0);
-		threads = newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				public void run()
-				{
-					float[] tempIn = new float[complexWidth];
-					float[] tempOut;
-					FftReal fft = new FftReal(width);
-
-					int myNumber = ai.getAndIncrement();
-
-					for (int z = 0; z < depth; z++)
-						if (z % numThreads == myNumber) for (int y = 0; y < height; y++)
-						{
-							tempOut = new float[width];
-
-							for (int x = 0; x < complexWidth; x++)
-								tempIn[x] = values.get(x, y, z);
-
-							fft.complexToReal(1, tempIn, tempOut);
-
-							for (int i = 0; i < tempOut.length; i++)
-								tempOut[i] /= (float) (width * height * depth);
-
-							// fft.scale(width, tempOut);
-
-							for (int x = 0; x < width; x++)
-								result.set(tempOut[x], x, y, z);
-						}
-				}
-			});
-
-		startAndJoin(threads);
-
-		return result;
+		return new FloatArray3D(FFT3D.getPlan(nfft, values.height, values.depth).inverse(values.data), nfft, values.height, values.depth);
 	}
 	
 	public static void startTask(Runnable run, int numThreads)
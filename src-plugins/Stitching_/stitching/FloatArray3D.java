@@ -134,4 +134,20 @@ public class FloatArray3D extends FloatArray
 	{
 		data[getPos(x, y, z)] = value;
 	}
+
+	/**
+	 * Convolve with a kernel in the frequency domain, see FourierConvolution.
+	 */
+	public FloatArray3D convolve(final FloatArray3D kernel)
+	{
+		return FourierConvolution.convolve(this, kernel);
+	}
+
+	/**
+	 * Correlate with a kernel in the frequency domain, see FourierConvolution.
+	 */
+	public FloatArray3D correlate(final FloatArray3D kernel)
+	{
+		return FourierConvolution.correlate(this, kernel);
+	}
 }
@@ -0,0 +1,291 @@
+/**
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * An execption is the FFT implementation of Dave Hale which we use as a library,
+ * wich is released under the terms of the Common Public License - v1.0, which is
+ * available at http://www.eclipse.org/legal/cpl-v10.html
+ */
+package stitching;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+import fiji.util.FFT3D;
+
+/**
+ * Convolution and correlation of 3D images with a kernel in the frequency domain.
+ *
+ * The image is processed in blocks (overlap-save): each block is read including
+ * the margin needed by the kernel, transformed, multiplied with the transform of
+ * the kernel and transformed back, and only the part that is not affected by the
+ * wrap-around is kept. The block size is chosen per dimension to minimize the
+ * work, so a kernel much smaller than the image is convolved in many small
+ * transforms, and a large kernel (e.g. a PSF) in one transform of the whole image.
+ * The transform of the kernel is computed once for all blocks.
+ *
+ * The result has the size of the image; the kernel is centered at
+ * (width / 2, height / 2, depth / 2).
+ */
+public class FourierConvolution
+{
+	/** Smallest transform size chosen by getBlockSize(), smaller blocks are dominated by copying the margins */
+	public static int MIN_BLOCK = 64;
+
+	/**
+	 * Convolve the image with the kernel, mirroring the image at its borders.
+	 *
+	 * @param img the image
+	 * @param kernel the kernel
+	 * @return the convolved image
+	 */
+	public static FloatArray3D convolve(final FloatArray3D img, final FloatArray3D kernel)
+	{
+		return compute(img, kernel, false, true, null);
+	}
+
+	/**
+	 * Correlate the image with the kernel, mirroring the image at its borders.
+	 *
+	 * @param img the image
+	 * @param kernel the kernel
+	 * @return the correlated image
+	 */
+	public static FloatArray3D correlate(final FloatArray3D img, final FloatArray3D kernel)
+	{
+		return compute(img, kernel, true, true, null);
+	}
+
+	/**
+	 * Convolve or correlate the image with the kernel.
+	 *
+	 * @param img the image
+	 * @param kernel the kernel
+	 * @param correlate whether to correlate (multiply with the complex conjugate of the kernel's transform)
+	 * @param mirror whether to mirror the image at its borders; if false, the image is padded with zeros
+	 * @param blockSize the size of the transforms in x, y and z, as supported by the Mines JTK
+	 * transforms; null to choose them with getBlockSize()
+	 * @return the result, of the size of the image
+	 */
+	public static FloatArray3D compute(final FloatArray3D img, final FloatArray3D kernel, final boolean correlate, final boolean mirror, int[] blockSize)
+	{
+		if (blockSize == null)
+			blockSize = new int[] {
+				getBlockSize(img.width, kernel.width, true),
+				getBlockSize(img.height, kernel.height, false),
+				getBlockSize(img.depth, kernel.depth, false) };
+
+		final int bw = blockSize[0];
+		final int bh = blockSize[1];
+		final int bd = blockSize[2];
+
+		if (bw < kernel.width || bh < kernel.height || bd < kernel.depth)
+			throw new IllegalArgumentException("Block size " + bw + "x" + bh + "x" + bd + " smaller than the kernel " + kernel.width + "x" + kernel.height + "x" + kernel.depth);
+
+		final FFT3D plan = FFT3D.getPlan(bw, bh, bd);
+
+		// the transform of the kernel, with its center at the origin
+		final float[] kernelFFT = plan.forward(wrapKernel(kernel, bw, bh, bd), false);
+		if (correlate)
+			CommonFunctions.complexConjugate(kernelFFT);
+
+		// the number of result voxels per block, and where they start in the block
+		final int validW = bw - kernel.width + 1;
+		final int validH = bh - kernel.height + 1;
+		final int validD = bd - kernel.depth + 1;
+		final int lowX = correlate ? kernel.width / 2 : kernel.width - 1 - kernel.width / 2;
+		final int lowY = correlate ? kernel.height / 2 : kernel.height - 1 - kernel.height / 2;
+		final int lowZ = correlate ? kernel.depth / 2 : kernel.depth - 1 - kernel.depth / 2;
+
+		final FloatArray3D result = new FloatArray3D(img.width, img.height, img.depth);
+		final float[] block = new float[bw * bh * bd];
+		final int[] indexX = new int[bw];
+		final int[] indexY = new int[bh];
+		final int[] indexZ = new int[bd];
+
+		for (int z0 = 0; z0 < img.depth; z0 += validD)
+			for (int y0 = 0; y0 < img.height; y0 += validH)
+				for (int x0 = 0; x0 < img.width; x0 += validW)
+				{
+					computeIndices(indexX, x0 - lowX, img.width, mirror);
+					computeIndices(indexY, y0 - lowY, img.height, mirror);
+					computeIndices(indexZ, z0 - lowZ, img.depth, mirror);
+
+					// read the block including the margins
+					for (int z = 0; z < bd; z++)
+						for (int y = 0; y < bh; y++)
+						{
+							final int offset = (z * bh + y) * bw;
+
+							if (indexY[y] < 0 || indexZ[z] < 0)
+							{
+								for (int x = 0; x < bw; x++)
+									block[offset + x] = 0;
+								continue;
+							}
+
+							final int imgOffset = img.getPos(0, indexY[y], indexZ[z]);
+
+							for (int x = 0; x < bw; x++)
+								block[offset + x] = indexX[x] < 0 ? 0 : img.data[imgOffset + indexX[x]];
+						}
+
+					final float[] blockFFT = plan.forward(block, false);
+					CommonFunctions.multiply(blockFFT, kernelFFT, true);
+					final float[] filtered = plan.inverse(blockFFT);
+
+					// keep the part without wrap-around
+					final int w = Math.min(validW, img.width - x0);
+					final int h = Math.min(validH, img.height - y0);
+					final int d = Math.min(validD, img.depth - z0);
+
+					for (int z = 0; z < d; z++)
+						for (int y = 0; y < h; y++)
+							System.arraycopy(filtered, ((z + lowZ) * bh + y + lowY) * bw + lowX, result.data, result.getPos(x0, y0 + y, z0 + z), w);
+				}
+
+		return result;
+	}
+
+	/**
+	 * Choose the transform size for one dimension, minimizing the number of blocks
+	 * times the work per line of a block; at least MIN_BLOCK unless the whole
+	 * (padded) image is smaller.
+	 *
+	 * @param size the size of the image
+	 * @param kernelSize the size of the kernel
+	 * @param real whether this is the dimension of the real-to-complex transform (x)
+	 * @return the transform size
+	 */
+	public static int getBlockSize(final int size, final int kernelSize, final boolean real)
+	{
+		final int max = real ? FftReal.nfftFast(size + kernelSize - 1) : FftComplex.nfftFast(size + kernelSize - 1);
+
+		int best = max;
+		double bestCost = Double.MAX_VALUE;
+
+		for (int n = Math.max(kernelSize, Math.min(MIN_BLOCK, size + kernelSize - 1)); n <= max; n++)
+		{
+			final int blockSize = real ? FftReal.nfftFast(n) : FftComplex.nfftFast(n);
+			final int blocks = (size + blockSize - kernelSize) / (blockSize - kernelSize + 1);
+			final double cost = (double)blocks * blockSize * Math.log(blockSize);
+
+			if (cost < bestCost)
+			{
+				bestCost = cost;
+				best = blockSize;
+			}
+
+			n = blockSize;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Create a normalized Gaussian kernel of 2 * ceil(3 * sigma) + 1 voxels per dimension.
+	 *
+	 * @param sigmaX, sigmaY, sigmaZ the standard deviations in voxels
+	 * @return the kernel
+	 */
+	public static FloatArray3D createGaussianKernel(final double sigmaX, final double sigmaY, final double sigmaZ)
+	{
+		final float[] kx = createGaussianKernel(sigmaX);
+		final float[] ky = createGaussianKernel(sigmaY);
+		final float[] kz = createGaussianKernel(sigmaZ);
+
+		final FloatArray3D kernel = new FloatArray3D(kx.length, ky.length, kz.length);
+
+		for (int z = 0; z < kz.length; z++)
+			for (int y = 0; y < ky.length; y++)
+				for (int x = 0; x < kx.length; x++)
+					kernel.set(kx[x] * ky[y] * kz[z], x, y, z);
+
+		return kernel;
+	}
+
+	protected static float[] createGaussianKernel(final double sigma)
+	{
+		final int radius = sigma > 0 ? (int)Math.ceil(3 * sigma) : 0;
+		final float[] kernel = new float[2 * radius + 1];
+
+		if (radius == 0)
+		{
+			kernel[0] = 1;
+			return kernel;
+		}
+
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+			sum += kernel[i + radius] = (float)Math.exp(-(i * i) / (2 * sigma * sigma));
+
+		for (int i = 0; i < kernel.length; i++)
+			kernel[i] /= sum;
+
+		return kernel;
+	}
+
+	/**
+	 * Put the kernel into a volume of the block size, with its center at the origin
+	 * and the rest wrapped around.
+	 */
+	protected static float[] wrapKernel(final FloatArray3D kernel, final int bw, final int bh, final int bd)
+	{
+		final float[] wrapped = new float[bw * bh * bd];
+
+		for (int z = 0; z < kernel.depth; z++)
+		{
+			final int wz = (z - kernel.depth / 2 + bd) % bd;
+
+			for (int y = 0; y < kernel.height; y++)
+			{
+				final int wy = (y - kernel.height / 2 + bh) % bh;
+
+				for (int x = 0; x < kernel.width; x++)
+				{
+					final int wx = (x - kernel.width / 2 + bw) % bw;
+					wrapped[(wz * bh + wy) * bw + wx] = kernel.get(x, y, z);
+				}
+			}
+		}
+
+		return wrapped;
+	}
+
+	/**
+	 * Compute the image coordinates of the block coordinates starting at start,
+	 * mirrored as in FloatArray3D.getMirror(), or -1 outside the image.
+	 */
+	protected static void computeIndices(final int[] indices, final int start, final int size, final boolean mirror)
+	{
+		final int period = 2 * size - 2;
+
+		for (int i = 0; i < indices.length; i++)
+		{
+			int index = start + i;
+
+			if (index >= 0 && index < size)
+				indices[i] = index;
+			else if (!mirror)
+				indices[i] = -1;
+			else if (size == 1)
+				indices[i] = 0;
+			else
+			{
+				index %= period;
+				if (index < 0) index += period;
+				indices[i] = index < size ? index : period - index;
+			}
+		}
+	}
+}
@@ -55,9 +55,10 @@ import ij.ImageStack;
 import ij.LookUpTable;
 import ij.Macro;
 import ij.WindowManager;
-import ij.gui.NewImage;
+import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.BorderLayout;
@@ -88,6 +89,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.awt.image.MemoryImageSource;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -178,6 +180,13 @@ public final class Volume_Viewer implements PlugIn {
 	private float scale;
 	private float angleX;
 	private float angleZ;
+	private int renderWidth;
+	private int renderHeight;
+	private float opacity;
+	private int frames;
+	private float stepX;
+	private float stepZ;
+	private String savePath;
 	
 	private String[] params   = {
 			"display_mode=",
@@ -190,7 +199,13 @@ public final class Volume_Viewer implements PlugIn {
 			"markers=",
 			"scale=",
 			"angle_x=",
-			"angle_z="
+			"angle_z=",
+			"width=",
+			"height=",
+			"opacity=",
+			"frames=",
+			"step_x=",
+			"step_z="
 	};
 	
 	private float[] paramVals = {
@@ -204,7 +219,13 @@ public final class Volume_Viewer implements PlugIn {
 			1,   // "markers=",
 			1,   // "scale=",
 			115, // "angle_x=",
-			-35  // "angle_z="
+			-35, // "angle_z="
+			512, // "width=",
+			512, // "height=",
+			1,   // "opacity="
+			0,   // "frames=",
+			0,   // "step_x=",
+			0    // "step_z="
 	};
 
 	public int rendered;
@@ -246,6 +267,7 @@ public final class Volume_Viewer implements PlugIn {
 						}
 					}
 				}
+				savePath = Macro.getValue(st, "save", null);
 				calledFormMacro = true;
 			}
 		} catch (NumberFormatException e1) {
@@ -264,6 +286,14 @@ public final class Volume_Viewer implements PlugIn {
 		scale =             paramVals[8];
 		angleX =      (int) paramVals[9];
 		angleZ =      (int) paramVals[10];
+		renderWidth = Math.max(64, (int) paramVals[11]);
+		renderHeight = Math.max(64, (int) paramVals[12]);
+		opacity =           paramVals[13];
+		frames =      (int) paramVals[14];
+		stepX =             paramVals[15];
+		stepZ =             paramVals[16];
+		if (stepX == 0 && stepZ == 0 && frames > 0)
+			stepZ = 360f/frames;
 		
 		
 		imp = WindowManager.getCurrentImage();
@@ -280,6 +310,17 @@ public final class Volume_Viewer implements PlugIn {
 	    	isRGB = true;
 		}
 		
+		if (calledFormMacro && frames > 0) {
+			ImagePlus rotation = renderRotation();
+			if (savePath == null)
+				rotation.show();
+			else if (rotation.getStackSize() > 1)
+				new FileSaver(rotation).saveAsTiffStack(savePath);
+			else
+				new FileSaver(rotation).saveAsTiff(savePath);
+			return;
+		}
+		
 		final CustomWindow  cw = new CustomWindow();
 		
 		cw.init(imp);
@@ -306,8 +347,8 @@ public final class Volume_Viewer implements PlugIn {
 			f.setResizable(false);
 			Insets ins = f.getInsets();
 			
-			cw.totalSize.height = CustomWindow.H + ins.bottom + ins.top + 90;
-			cw.totalSize.width  = CustomWindow.WR + CustomWindow.WL + ins.left + ins.right + 70;
+			cw.totalSize.height = cw.H + ins.bottom + ins.top + 90;
+			cw.totalSize.width  = cw.WR + CustomWindow.WL + ins.left + ins.right + 70;
 			
 			f.setSize(cw.totalSize);
 			
@@ -330,6 +371,42 @@ public final class Volume_Viewer implements PlugIn {
 		}
 	}
 	
+	/**
+	 * Renders a rotation sequence without showing any controls, e.g.
+	 * <pre>
+	 * run("Volume Viewer", "display_mode=6 lut=3 scale=1.5 angle_x=115 angle_z=0 frames=36 step_z=10");
+	 * </pre>
+	 * Frame i is rendered at angle_x + i*step_x and angle_z + i*step_z
+	 * (in degrees); by default, the frames make a full turn around z. 
+	 * With save=[/path/to/rotation.tif], the sequence is written to that
+	 * TIFF file instead of being shown, so that it can be recorded without
+	 * a display, e.g. from a headless or batch mode macro.
+	 */
+	private ImagePlus renderRotation() {
+		final CustomWindow cw = new CustomWindow();
+		cw.initRenderer();
+		
+		int maxDist = (int)(Math.sqrt(vol.zOffa*vol.zOffa*zAspect*zAspect + vol.yOffa*vol.yOffa +vol.xOffa*vol.xOffa));
+		viewDist = Math.min(Math.max(viewDist, -maxDist), maxDist);
+		
+		ImageStack stack = new ImageStack(pic.getWidth(), pic.getHeight());
+		for (int i = 0; i < frames; i++) {
+			IJ.showProgress(i, frames);
+			
+			float ax = angleX + i*stepX;
+			float az = angleZ + i*stepZ;
+			tr.setView(Math.toRadians(az), Math.toRadians(ax));
+			dist = viewDist;
+			pic.newDisplayMode();
+			
+			stack.addSlice("x=" + ax + " z=" + az, imageRegion.paintToImage());
+		}
+		IJ.showProgress(1.0);
+		
+		cw.cleanup();
+		return new ImagePlus("Volume_Viewer rotation of " + imp.getTitle(), stack);
+	}
+	
 	///////////////////////////////////////////////////////////////////////////
 	class CustomWindow extends JPanel implements 
 	MouseListener, MouseMotionListener, ChangeListener, ActionListener, ItemListener {
@@ -364,9 +441,9 @@ public final class Volume_Viewer implements PlugIn {
 		
 		private double distFactor; 
 		
-		//  do not change sizes !
-		private final static int H = 512;
-		private final static int WR = 512; 
+		// size of the rendering (set by the width= and height= options)
+		private final int H = renderHeight;
+		private final int WR = renderWidth; 
 		private final static int WL = 200; 
 		
 		private TurnThread thread;
@@ -398,36 +475,11 @@ public final class Volume_Viewer implements PlugIn {
 			imagePanel = new JPanel();
 			imagePanel.setLayout(new BorderLayout());
 			
-			pic = new Picture(WR, H);
-			pic2 = new Picture(WL, H);
-			
-			cube = new Cube();
-			
-			vol = new Volume();
-			pic.setVol(vol);
-			
-			tr = new Transform(WR, H);	
-			tr.setScale(scale);
-			
-			imageRegion = new ImageRegion();
+			initRenderer();
 			
 			imageRegion.addMouseMotionListener(this);
 			imageRegion.addMouseListener(this);
 			
-			imageRegion.setImage(pic);
-			pic.setImageRegion(imageRegion);
-			
-			imageRegion2 = new ImageRegion();
-			
-			imageRegion2.setImage(pic2);
-			imageRegion2.newLines(3); 
-			pic2.setImageRegion(imageRegion2);
-			
-			pic2.drawPlanarViews();
-			cube.initTextsAndDrawColors(imageRegion);
-			
-			lut.setLut();
-			
 			imagePanel.add(imageRegion,BorderLayout.CENTER);
 			imagePanel.add(imageRegion2,BorderLayout.WEST);
 			
@@ -616,7 +668,7 @@ public final class Volume_Viewer implements PlugIn {
 			validate();
 			
 			JPanel sliderPanel2 = new JPanel();
-			sliderPanel2.setPreferredSize(new Dimension(65, 512));
+			sliderPanel2.setPreferredSize(new Dimension(65, H));
 			sliderPanel2.setLayout(new GridLayout(3,1));
 			int maxDist = (int)(Math.sqrt(vol.zOffa*vol.zOffa*zAspect*zAspect + vol.yOffa*vol.yOffa +vol.xOffa*vol.xOffa));
 			viewDist = Math.min(Math.max(viewDist, -maxDist), maxDist);
@@ -666,6 +718,36 @@ public final class Volume_Viewer implements PlugIn {
 			super.setCursor(defaultCursor);	
 			//pic.newDisplayMode();
 		}
+
+		// sets up everything needed for rendering, but no controls
+		void initRenderer() {
+			pic = new Picture(WR, H);
+			pic2 = new Picture(WL, H);
+			
+			cube = new Cube();
+			
+			vol = new Volume();
+			pic.setVol(vol);
+			
+			tr = new Transform(WR, H);	
+			tr.setScale(scale);
+			
+			imageRegion = new ImageRegion();
+			
+			imageRegion.setImage(pic);
+			pic.setImageRegion(imageRegion);
+			
+			imageRegion2 = new ImageRegion();
+			
+			imageRegion2.setImage(pic2);
+			imageRegion2.newLines(3); 
+			pic2.setImageRegion(imageRegion2);
+			
+			pic2.drawPlanarViews();
+			cube.initTextsAndDrawColors(imageRegion);
+			
+			lut.setLut();
+		}
 		
 		
 		// adapt the dist slider to the size of the volume
@@ -1321,6 +1403,19 @@ public final class Volume_Viewer implements PlugIn {
 			
 			pause = true;
 			
+			String s = "Volume_Viewer_"+plotNumber;
+			
+			ImagePlus plotImage = new ImagePlus(s, paintToImage());
+			
+			plotImage.show();
+			plotImage.updateAndDraw();	
+			
+			plotNumber++;
+			pause = false;
+		}
+		
+		/** Paints the region (with axes and texts) into a new image. */
+		public synchronized ColorProcessor paintToImage() {
 			BufferedImage bufferedImage =  new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 			
 			paint(bufferedImage.createGraphics());
@@ -1330,20 +1425,12 @@ public final class Volume_Viewer implements PlugIn {
 			g2d.drawString("Volume Viewer", width - 100, height - 10); 
 			g2d.dispose();
 			
-			String s = "Volume_Viewer_"+plotNumber;
-			
-			ImagePlus plotImage = NewImage.createRGBImage (s, width, height, 1, NewImage.FILL_BLACK);
+			ColorProcessor cp = new ColorProcessor(width, height);
 			
-			ImageProcessor ip = plotImage.getProcessor();
-			
-			int[] pixels = (int[]) ip.getPixels();
+			int[] pixels = (int[]) cp.getPixels();
 			bufferedImage.getRGB(0, 0, width, height, pixels, 0, width);
 			
-			plotImage.show();
-			plotImage.updateAndDraw();	
-			
-			plotNumber++;
-			pause = false;
+			return cp;
 		}
 		
 		//-------------------------------------------------------------------
@@ -1764,6 +1851,13 @@ public final class Volume_Viewer implements PlugIn {
 			invxyzPosf();
 		}
 		
+		// does not change the state of the transform, so several threads can use it
+		private final void invxyzPosf(int X, int Y, int Z, float[] xyz) {
+			xyz[0] = ai00*X + ai01*Y + ai02*Z + ai03;
+			xyz[1] = ai10*X + ai11*Y + ai12*Z + ai13;
+			xyz[2] = ai20*X + ai21*Y + ai22*Z + ai23;
+		}
+		
 		public void setScale(float scale) {
 			this.scale = scale;		
 			initializeTransformation();
@@ -1873,6 +1967,16 @@ public final class Volume_Viewer implements PlugIn {
 		private int heightS;
 		private int widthS;
 		
+		// empty space skipping: the volume is divided into bricks of 
+		// BRICK_SIZE^3 voxels, brickMax holds the maximum of each brick
+		// including the voxels up to the next brick (read by trilinear()) 
+		private static final int BRICK_SHIFT = 3;
+		private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+		private int bricksX, bricksY, bricksZ;
+		private byte[][] brickMax;        // [channel][brick]
+		private boolean[][] brickEmpty;   // brickMax < brickThresh
+		private int brickThresh = -1;
+		
 		boolean getMinMax() {
 			min = ip.getMin();
 			max = ip.getMax();
@@ -2189,11 +2293,92 @@ public final class Volume_Viewer implements PlugIn {
 				}
 			}
 				
+			
+			initBricks();
 
 			IJ.showProgress(1.0);
 			IJ.showStatus("");
 		}
 		
+		private void initBricks() {
+			bricksX = (widthX  + BRICK_SIZE - 1) >> BRICK_SHIFT;
+			bricksY = (heightY + BRICK_SIZE - 1) >> BRICK_SHIFT;
+			bricksZ = (depthZ  + BRICK_SIZE - 1) >> BRICK_SHIFT;
+			
+			final int nChannels = data3D.length;
+			brickMax = new byte[nChannels][bricksX*bricksY*bricksZ];
+			brickEmpty = new boolean[nChannels][bricksX*bricksY*bricksZ];
+			brickThresh = -1;
+			
+			final AtomicInteger ai = new AtomicInteger(0);
+			final Thread[] threads = newThreads();
+			for (int ithread = 0; ithread < threads.length; ithread++) {
+				threads[ithread] = new Thread() {
+					public void run() {
+						for (int bz = ai.getAndIncrement(); bz < bricksZ; bz = ai.getAndIncrement()) {
+							int z0 = bz << BRICK_SHIFT, z1 = Math.min(z0 + BRICK_SIZE, depthZ - 1);
+							for (int by = 0; by < bricksY; by++) {
+								int y0 = by << BRICK_SHIFT, y1 = Math.min(y0 + BRICK_SIZE, heightY - 1);
+								for (int bx = 0; bx < bricksX; bx++) {
+									int x0 = bx << BRICK_SHIFT, x1 = Math.min(x0 + BRICK_SIZE, widthX - 1);
+									int brick = (bz*bricksY + by)*bricksX + bx;
+									
+									for (int ch = 0; ch < nChannels; ch++) {
+										byte[][][] data = data3D[ch];
+										int max = 0;
+										for (int z = z0; z <= z1; z++)
+											for (int y = y0; y <= y1; y++) {
+												byte[] row = data[z][y];
+												for (int x = x0; x <= x1; x++) {
+													int val = 0xff & row[x];
+													if (val > max)
+														max = val;
+												}
+											}
+										brickMax[ch][brick] = (byte) max;
+									}
+								}
+							}
+						}
+					}
+				};
+			}
+			startAndJoin(threads);
+		}
+		
+		/**
+		 * Returns for each channel which bricks only contain values below thresh.
+		 * The values interpolated from the voxels of such a brick are below
+		 * thresh, too, so the projections can skip them.
+		 */
+		synchronized boolean[][] getEmptyBricks(int thresh) {
+			if (thresh != brickThresh) {
+				for (int ch = 0; ch < brickMax.length; ch++)
+					for (int i = 0; i < brickMax[ch].length; i++)
+						brickEmpty[ch][i] = (0xff & brickMax[ch][i]) < thresh;
+				brickThresh = thresh;
+			}
+			return brickEmpty;
+		}
+		
+		/**
+		 * Returns the number of steps (dx, dy, dz) after which a ray at
+		 * (x, y, z) has left the brick containing that point, at least 1.
+		 */
+		int stepsToLeaveBrick(float x, float y, float z, float dx, float dy, float dz) {
+			float s = Math.min(stepsToLeaveBrick(x, dx), 
+					Math.min(stepsToLeaveBrick(y, dy), stepsToLeaveBrick(z, dz)));
+			return (s < 1) ? 1 : (s > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)s;
+		}
+		
+		private float stepsToLeaveBrick(float v, float dv) {
+			int brick = (int)v >> BRICK_SHIFT;
+			if (dv > 0)
+				return (float)Math.ceil((((brick + 1) << BRICK_SHIFT) - v) / dv);
+			if (dv < 0)
+				return (float)Math.floor((v - (brick << BRICK_SHIFT)) / -dv) + 1;
+			return Float.MAX_VALUE;
+		}
 
 		int getWidth(){
 			return widthX;
@@ -2482,8 +2667,37 @@ public final class Volume_Viewer implements PlugIn {
 	
 	/////////////////////////////////////////////////////////////////////////
 	
+	/** Renders the screen rectangle (xs, ys) - (xe, ye), bounds included. */
+	private interface TileRenderer {
+		void render(int xs, int xe, int ys, int ye);
+	}
+	
+	/** Creates one thread per processor. */
+	private static Thread[] newThreads() {
+		int nthread = Runtime.getRuntime().availableProcessors();
+		return new Thread[nthread];
+	}
+	
+	/** Starts all threads and waits until they are finished. */
+	private static void startAndJoin(Thread[] threads) {
+		for (int ithread = 0; ithread < threads.length; ++ithread) {
+			threads[ithread].setPriority(Thread.NORM_PRIORITY);
+			threads[ithread].start();
+		}
+		
+		try {
+			for (int ithread = 0; ithread < threads.length; ++ithread)
+				threads[ithread].join();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+	}
+	
 	private  class Picture {
 		
+		// side length of the screen tiles which are rendered in parallel
+		private static final int TILE_SIZE = 32;
+		
 		private Image  image;    // AWT-Image
 		
 		private ImageRegion imageRegion = null;
@@ -2717,7 +2931,6 @@ public final class Volume_Viewer implements PlugIn {
 				else {
 					projection_trilinear_back();
 					rendered++;
-					System.out.println(rendered);
 				}
 				move = false;
 			} 
@@ -2864,89 +3077,57 @@ public final class Volume_Viewer implements PlugIn {
 			}
 			
 			xMin = (xMin < 0)   ?   0 : xMin;
-			xMax = (xMax > 511) ? 511 : xMax;
+			xMax = (xMax > width-1)  ? width-1  : xMax;
 			yMin = (yMin < 0)   ?   0 : yMin;
-			yMax = (yMax > 511) ? 511 : yMax;
+			yMax = (yMax > height-1) ? height-1 : yMax;
 			
-			int[] v = new int[3];
+			// draw slice at dist
+			final int z = dist;
 			
-			if (!isRGB) {
-				// draw slice at dist
-				v[2] = dist; // z
-
-				float widthX  = vol.widthX  - 0.5f;
-				float heightY = vol.heightY - 0.5f;
-				float depthZ  = vol.depthZ  - 0.5f;
-
-				for (int y = yMin; y <= yMax; y++) {
-					v[1] = y;
-					for (int x = xMin; x <= xMax; x++) {
-						int pos = y*512 + x;
-						v[0] = x;
-						tr.invxyzPosf(v);
-
-						float x_  = tr.xf; 
-						float y_  = tr.yf; 
-						float z_  = tr.zf; 
-
-
-						if ((x_ >=0  &&  x_ < widthX ) 
-								&& (y_ >=0  &&  y_ < heightY ) 
-								&& (z_ >=0  &&  z_ < depthZ  ) ) { 
-							int val = trilinear(data3D[0], z_, y_, x_);
-
-							pixels[pos] = lut.colors[val];
-						}
-					}
-				}	
-			}
-			else {
-				for (int ch=0; ch<3; ch++) {
-					if (ch == 0 && !isRed)
-						continue;
-					if (ch == 1 && !isGreen)
-						continue;
-					if (ch == 2 && !isBlue)
-						continue;
-					
-					int shift = (2-ch)*8;
+			final float widthX  = vol.widthX  - 0.5f;
+			final float heightY = vol.heightY - 0.5f;
+			final float depthZ  = vol.depthZ  - 0.5f;
+			
+			renderTiles(xMin, xMax, yMin, yMax, new TileRenderer() {
+				public void render(int xs, int xe, int ys, int ye) {
+					float[] p = new float[3];
 					
-					// draw slice at dist
-					v[2] = dist; // z
-
-					float widthX  = vol.widthX  - 0.5f;
-					float heightY = vol.heightY - 0.5f;
-					float depthZ  = vol.depthZ  - 0.5f;
-
-					for (int y = yMin; y <= yMax; y++) {
-						v[1] = y;
-						for (int x = xMin; x <= xMax; x++) {
-							int pos = y*512 + x;
-							v[0] = x;
-							tr.invxyzPosf(v);
-
-							float x_  = tr.xf; 
-							float y_  = tr.yf; 
-							float z_  = tr.zf; 
-
-
-							if ((x_ >=0  &&  x_ < widthX ) 
-									&& (y_ >=0  &&  y_ < heightY ) 
-									&& (z_ >=0  &&  z_ < depthZ  ) ) { 
-								int val = trilinear(data3D[ch], z_, y_, x_);
-
-								pixels[pos] |= 0xFF000000 | (val<<shift);
+					for (int ch = 0; ch < (isRGB ? 3 : 1); ch++) {
+						if (!isChannelShown(ch))
+							continue;
+						
+						int shift = (2-ch)*8;
+						
+						for (int y = ys; y <= ye; y++) {
+							for (int x = xs; x <= xe; x++) {
+								int pos = y*width + x;
+								tr.invxyzPosf(x, y, z, p);
+								
+								float x_  = p[0]; 
+								float y_  = p[1]; 
+								float z_  = p[2]; 
+								
+								if ((x_ >=0  &&  x_ < widthX ) 
+										&& (y_ >=0  &&  y_ < heightY ) 
+										&& (z_ >=0  &&  z_ < depthZ  ) ) { 
+									int val = trilinear(data3D[ch], z_, y_, x_);
+									
+									if (isRGB)
+										pixels[pos] |= 0xFF000000 | (val<<shift);
+									else
+										pixels[pos] = lut.colors[val];
+								}
 							}
 						}
-					}	
+					}
 				}
-			}
+			});
 		}
 
 		public synchronized void projection_trilinear_front(){
-			float width  = vol.widthX  - 0.5f;
-			float height = vol.heightY - 0.5f;
-			float depth  = vol.depthZ  - 0.5f;
+			final float width  = vol.widthX  - 0.5f;
+			final float height = vol.heightY - 0.5f;
+			final float depth  = vol.depthZ  - 0.5f;
 			
 			int zMax = -1000, zMin = 1000;
 			int xMin = 1000, xMax = -1000, yMin = 1000, yMax = -1000;
@@ -2965,90 +3146,89 @@ public final class Volume_Viewer implements PlugIn {
 			}
 			
 			xMin = (xMin < 0)   ?   0 : xMin;
-			xMax = (xMax > 511) ? 511 : xMax;
+			xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 			yMin = (yMin < 0)   ?   0 : yMin;
-			yMax = (yMax > 511) ? 511 : yMax;
-			
-			int[] v1 = new int[3];
-			int[] v2 = new int[3];
+			yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 			
 			if (dist < zMin)
 				dist = zMin;
 			
-			int nd = zMax - dist;
+			final int nd = zMax - dist;
+			if (nd <= 0)
+				return;
 			
-			if (isRGB) {
-
-				for (int ch=0; ch<3; ch++) {
-					if (ch == 0 && !isRed)
-						continue;
-					if (ch == 1 && !isGreen)
-						continue;
-					if (ch == 2 && !isBlue)
-						continue;
-					
-					int shift = (2-ch)*8;
+			final int z1 = dist, z2 = zMax;
+			final float scaleLum = (renderDepth > 1) ? (renderDepth*255/((renderDepth-1)*255f)) : 2;
+			final float nd1 = 1f/nd;
+			
+			final boolean[][] emptyBricks = vol.getEmptyBricks(thresh);
+			final int bricksX = vol.bricksX, bricksY = vol.bricksY;
+			
+			renderTiles(xMin, xMax, yMin, yMax, new TileRenderer() {
+				public void render(int xs, int xe, int ys, int ye) {
+					float[] p1 = new float[3];
+					float[] p2 = new float[3];
 					
-					float dx=0;
-					float dy=0;
-					float dz=0;
-
-
-					if (nd > 0) {
-
-						float scaleLum = (renderDepth > 1) ? (renderDepth*255/((renderDepth-1)*255f)) : 2;;
-						v1[2] = dist; 
-						v2[2] = zMax; 
-
-						float nd1 = 1f/nd;
-						for (int y = yMin; y <= yMax; y++) {
-							v1[1] = v2[1] = y;
-
-							int percent = 100*(y-yMin)/ (yMax-yMin);
-							//IJ.showProgress(percent, 100);
-
-							IJ.showStatus("Rendering : " + percent +"%" );
-
-							for (int x = xMin; x <= xMax; x++) {
+					for (int ch = 0; ch < (isRGB ? 3 : 1); ch++) {
+						if (!isChannelShown(ch))
+							continue;
+						
+						int shift = (2-ch)*8;
+						byte[][][] data = data3D[ch];
+						boolean[] empty = emptyBricks[ch];
+						
+						for (int y = ys; y <= ye; y++) {
+							for (int x = xs; x <= xe; x++) {
 								if (cube.isInside(x, y)) {
-
-									int pos = (y<<9) + x;
-									v1[0] = v2[0] = x;
-
+									
+									int pos = y*Picture.this.width + x;
+									
 									int alpha = 255;
 									int V = 0;
-									tr.invxyzPosf(v1);
-									float x1 = tr.xf;
-									float y1 = tr.yf;
-									float z1 = tr.zf;
-
-									tr.invxyzPosf(v2);
-
-									dx = (tr.xf-x1)*nd1;
-									dy = (tr.yf-y1)*nd1;
-									dz = (tr.zf-z1)*nd1;
-
+									tr.invxyzPosf(x, y, z1, p1);
+									float x1 = p1[0];
+									float y1 = p1[1];
+									float z1 = p1[2];
+									
+									tr.invxyzPosf(x, y, z2, p2);
+									
+									float dx = (p2[0]-x1)*nd1;
+									float dy = (p2[1]-y1)*nd1;
+									float dz = (p2[2]-z1)*nd1;
+									
 									int k = 0;
-
+									
+									// front to back; stops after renderDepth samples
 									for (int n = nd; n >= 0; n-- ) {
 										if (x1 >= 0 && x1 < width &&  
 												y1 >= 0 && y1 < height && 
-												z1 >= 0 && z1 < depth) { 
-											int val = trilinear(data3D[ch], z1, y1, x1);	
-
+												z1 >= 0 && z1 < depth) {
+											if (empty[((((int)z1 >> Volume.BRICK_SHIFT)*bricksY 
+													+ ((int)y1 >> Volume.BRICK_SHIFT))*bricksX) 
+													+ ((int)x1 >> Volume.BRICK_SHIFT)]) {
+												// jump to where the ray leaves the empty brick
+												int steps = vol.stepsToLeaveBrick(x1, y1, z1, dx, dy, dz);
+												n -= steps - 1;
+												x1 += steps*dx;
+												y1 += steps*dy;
+												z1 += steps*dz;
+												continue;
+											}
+											int val = trilinear(data, z1, y1, x1);	
+											
 											if (val >= thresh) {	  
 												int f = (val - thresh) + 50;
 												if (f > 255)
 													f = 255;
-
+												
 												alpha +=f;
 												V += f*val;
-
+												
 												if (++k >= renderDepth)
 													break;
 											}
 										}
-
+										
 										x1 += dx;
 										y1 += dy;
 										z1 += dz;
@@ -3056,96 +3236,24 @@ public final class Volume_Viewer implements PlugIn {
 									int val = (int) (scaleLum * V / alpha);
 									if (val > 255)
 										val = 255;
-									pixels[pos] |= 0xFF000000 | (val << shift);
+									
+									if (isRGB)
+										pixels[pos] |= 0xFF000000 | (val << shift);
+									else
+										pixels[pos] = lut.colors[val];
 								}	
 							}	
-						}		
+						}
 					}
 				}
-			}
-			else {
-
-				float dx=0;
-				float dy=0;
-				float dz=0;
-
-
-				if (nd > 0) {
-
-					float scaleLum = (renderDepth > 1) ? (renderDepth*255/((renderDepth-1)*255f)) : 2;;
-					v1[2] = dist; 
-					v2[2] = zMax; 
-
-					float nd1 = 1f/nd;
-					for (int y = yMin; y <= yMax; y++) {
-						v1[1] = v2[1] = y;
-
-						int percent = 100*(y-yMin)/ (yMax-yMin);
-						//IJ.showProgress(percent, 100);
-
-						IJ.showStatus("Rendering : " + percent +"%" );
-
-						for (int x = xMin; x <= xMax; x++) {
-							if (cube.isInside(x, y)) {
-
-								int pos = (y<<9) + x;
-								v1[0] = v2[0] = x;
-
-								int alpha = 255;
-								int V = 0;
-								tr.invxyzPosf(v1);
-								float x1 = tr.xf;
-								float y1 = tr.yf;
-								float z1 = tr.zf;
-
-								tr.invxyzPosf(v2);
-
-								dx = (tr.xf-x1)*nd1;
-								dy = (tr.yf-y1)*nd1;
-								dz = (tr.zf-z1)*nd1;
-
-								int k = 0;
-
-								for (int n = nd; n >= 0; n-- ) {
-									if (x1 >= 0 && x1 < width &&  
-											y1 >= 0 && y1 < height && 
-											z1 >= 0 && z1 < depth) { 
-										int val = trilinear(data3D[0], z1, y1, x1);	
-
-										if (val >= thresh) {	  
-											int f = (val - thresh) + 50;
-											if (f > 255)
-												f = 255;
-
-											alpha +=f;
-											V += f*val;
-
-											if (++k >= renderDepth)
-												break;
-										}
-									}
-
-									x1 += dx;
-									y1 += dy;
-									z1 += dz;
-								}
-								int val = (int) (scaleLum * V / alpha);
-								if (val > 255)
-									val = 255;
-								pixels[pos] = lut.colors[val];
-							}	
-						}	
-					}		
-				}
-			}
-			IJ.showStatus("");			
+			});
 		}
 
 
 		public synchronized void projection_trilinear_back(){
-			float width  = vol.widthX  - 0.5f;
-			float height = vol.heightY - 0.5f;
-			float depth  = vol.depthZ  - 0.5f;
+			final float width  = vol.widthX  - 0.5f;
+			final float height = vol.heightY - 0.5f;
+			final float depth  = vol.depthZ  - 0.5f;
 			
 			int zMax = -1000, zMin = 1000;
 			int xMin = 1000, xMax = -1000, yMin = 1000, yMax = -1000;
@@ -3164,180 +3272,163 @@ public final class Volume_Viewer implements PlugIn {
 			}
 			
 			xMin = (xMin < 0)   ?   0 : xMin;
-			xMax = (xMax > 511) ? 511 : xMax;
+			xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 			yMin = (yMin < 0)   ?   0 : yMin;
-			yMax = (yMax > 511) ? 511 : yMax;
-			
-			int[] v1 = new int[3];
-			int[] v2 = new int[3];
+			yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 			
 			if (dist < zMin)
 				dist = zMin;
 			
-			int nd = zMax - dist;
+			final int nd = zMax - dist;
+			if (nd <= 0)
+				return;
 			
-			if (isRGB) {
-				for (int ch = 0; ch < 3; ch++) {
-					if (ch == 0 && !isRed)
-						continue;
-					if (ch == 1 && !isGreen)
-						continue;
-					if (ch == 2 && !isBlue)
-						continue;
-					
-					int shift = (2-ch)*8;
+			final int z1 = dist, z2 = zMax;
+			final float nd1 = 1f/nd;
+			
+			final boolean[][] emptyBricks = vol.getEmptyBricks(thresh);
+			final int bricksX = vol.bricksX, bricksY = vol.bricksY;
+			// remaining transparency at which a ray is terminated
+			final float minTransparency = 1 - opacity;
+			
+			renderTiles(xMin, xMax, yMin, yMax, new TileRenderer() {
+				public void render(int xs, int xe, int ys, int ye) {
+					float[] p1 = new float[3];
+					float[] p2 = new float[3];
+					int vals[] = new int [renderDepth+1]; 
 					
-					float dx=0;
-					float dy=0;
-					float dz=0;
-
-					int vals[] = new int [zMax-dist]; 
-
-					if (nd > 0) {
-						v1[2] = dist; 
-						v2[2] = zMax; 
-
-						float nd1 = 1f/nd;
-						for (int y = yMin; y <= yMax; y++) {
-							v1[1] = v2[1] = y;
-
-							int percent = 100*(y-yMin)/ (yMax-yMin);
-							
-							IJ.showStatus("Rendering : " + percent +"%" );
-
-							for (int x = xMin; x <= xMax; x++) {
-								//if (cube.isInside(x, y)) {
+					for (int ch = 0; ch < (isRGB ? 3 : 1); ch++) {
+						if (!isChannelShown(ch))
+							continue;
+						
+						int shift = (2-ch)*8;
+						byte[][][] data = data3D[ch];
+						boolean[] empty = emptyBricks[ch];
+						
+						for (int y = ys; y <= ye; y++) {
+							for (int x = xs; x <= xe; x++) {
 								if (cube.isInside(x, y)) {
-
-									int pos = (y<<9) + x;
-									v1[0] = v2[0] = x;
-
+									
+									int pos = y*Picture.this.width + x;
+									
 									int V = 0;
-									tr.invxyzPosf(v1);
-									float x1 = tr.xf;
-									float y1 = tr.yf;
-									float z1 = tr.zf;
-
-									tr.invxyzPosf(v2);
-
-									dx = (tr.xf-x1)*nd1;
-									dy = (tr.yf-y1)*nd1;
-									dz = (tr.zf-z1)*nd1;
-
+									tr.invxyzPosf(x, y, z1, p1);
+									float x1 = p1[0];
+									float y1 = p1[1];
+									float z1 = p1[2];
+									
+									tr.invxyzPosf(x, y, z2, p2);
+									
+									float dx = (p2[0]-x1)*nd1;
+									float dy = (p2[1]-y1)*nd1;
+									float dz = (p2[2]-z1)*nd1;
+									
+									// collect the samples front to back, until
+									// the ray is opaque enough or renderDepth is reached
 									int k = 0;
+									float transparency = 1;
 									for (int n = nd; n >= 0; n-- ) {
 										if (x1 >= 0 && x1 < width &&  
 												y1 >= 0 && y1 < height && 
-												z1 >= 0 && z1 < depth) { 
-											int val = trilinear(data3D[ch], z1, y1, x1);	
-
+												z1 >= 0 && z1 < depth) {
+											if (empty[((((int)z1 >> Volume.BRICK_SHIFT)*bricksY 
+													+ ((int)y1 >> Volume.BRICK_SHIFT))*bricksX) 
+													+ ((int)x1 >> Volume.BRICK_SHIFT)]) {
+												// jump to where the ray leaves the empty brick
+												int steps = vol.stepsToLeaveBrick(x1, y1, z1, dx, dy, dz);
+												n -= steps - 1;
+												x1 += steps*dx;
+												y1 += steps*dy;
+												z1 += steps*dz;
+												continue;
+											}
+											int val = trilinear(data, z1, y1, x1);	
+											
 											if (val >= thresh) {
 												vals[k++] = val;
-
+												
 												if (k > renderDepth)
 													break;
+												
+												int a = (val - thresh) + 50;
+												if (a > 255)
+													a = 255;
+												transparency *= (255 - a)/255f;
+												if (transparency <= minTransparency)
+													break;
 											}
 										}
-
+										
 										x1 += dx;
 										y1 += dy;
 										z1 += dz;
 									}
+									// composite back to front
 									for (int i = k-1; i>= 0; i--) {
 										int a = (vals[i] - thresh) + 50;
-
+										
 										if (a > 255)
 											a = 255;
-
+										
 										V = (a*vals[i] + V*(255-a))/255;
 									}
-
+									
 									int val = V;
-									pixels[pos] |= 0xFF000000 | (val<<shift);
-
+									if (isRGB)
+										pixels[pos] |= 0xFF000000 | (val<<shift);
+									else
+										pixels[pos] = lut.colors[val];
 								}			
 							}	
-						}		
+						}
 					}
 				}
+			});
+		}
+		
+		private boolean isChannelShown(int ch) {
+			if (!isRGB)
+				return true;
+			return (ch == 0) ? isRed : (ch == 1) ? isGreen : isBlue;
+		}
+		
+		/**
+		 * Renders the screen rectangle from (xMin, yMin) to (xMax, yMax) in
+		 * square tiles. The tiles are distributed dynamically to one thread
+		 * per processor, so expensive parts of the image do not keep a
+		 * single thread busy.
+		 */
+		private void renderTiles(final int xMin, final int xMax, final int yMin, final int yMax, final TileRenderer renderer) {
+			if (xMax < xMin || yMax < yMin)
+				return;
+			
+			final int tilesX = (xMax - xMin + TILE_SIZE) / TILE_SIZE;
+			final int tilesY = (yMax - yMin + TILE_SIZE) / TILE_SIZE;
+			final int nTiles = tilesX * tilesY;
+			
+			final AtomicInteger ai = new AtomicInteger(0);
+			final AtomicInteger done = new AtomicInteger(0);
+			final Thread[] threads = newThreads();
+			for (int ithread = 0; ithread < threads.length; ithread++) {
+				// only the first thread reports the progress of all
+				final boolean showStatus = ithread == 0;
+				threads[ithread] = new Thread() {
+					public void run() {
+						for (int tile = ai.getAndIncrement(); tile < nTiles; tile = ai.getAndIncrement()) {
+							int xs = xMin + (tile % tilesX) * TILE_SIZE;
+							int ys = yMin + (tile / tilesX) * TILE_SIZE;
+							renderer.render(xs, Math.min(xs + TILE_SIZE - 1, xMax), 
+									ys, Math.min(ys + TILE_SIZE - 1, yMax));
+							
+							int finished = done.incrementAndGet();
+							if (showStatus)
+								IJ.showStatus("Rendering : " + (100*finished/nTiles) +"%" );
+						}
+					}
+				};
 			}
-			else {
-
-				float dx=0;
-				float dy=0;
-				float dz=0;
-
-				int vals[] = new int [zMax-dist]; 
-
-				if (nd > 0) {
-					v1[2] = dist; 
-					v2[2] = zMax; 
-
-					float nd1 = 1f/nd;
-					for (int y = yMin; y <= yMax; y++) {
-						v1[1] = v2[1] = y;
-
-						int percent = 100*(y-yMin)/ (yMax-yMin);
-						//IJ.showProgress(percent, 100);
-
-						IJ.showStatus("Rendering : " + percent +"%" );
-
-						for (int x = xMin; x <= xMax; x++) {
-							//if (cube.isInside(x, y)) {
-							if (cube.isInside(x, y)) {
-
-								int pos = (y<<9) + x;
-								v1[0] = v2[0] = x;
-
-								int V = 0;
-								tr.invxyzPosf(v1);
-								float x1 = tr.xf;
-								float y1 = tr.yf;
-								float z1 = tr.zf;
-
-								tr.invxyzPosf(v2);
-
-								dx = (tr.xf-x1)*nd1;
-								dy = (tr.yf-y1)*nd1;
-								dz = (tr.zf-z1)*nd1;
-
-								int k = 0;
-								for (int n = nd; n >= 0; n-- ) {
-									if (x1 >= 0 && x1 < width &&  
-											y1 >= 0 && y1 < height && 
-											z1 >= 0 && z1 < depth) { 
-										int val = trilinear(data3D[0], z1, y1, x1);	
-
-										if (val >= thresh) {
-											vals[k++] = val;
-
-											if (k > renderDepth)
-												break;
-										}
-									}
-
-									x1 += dx;
-									y1 += dy;
-									z1 += dz;
-								}
-								for (int i = k-1; i>= 0; i--) {
-									int a = (vals[i] - thresh) + 50;
-
-									if (a > 255)
-										a = 255;
-
-									V = (a*vals[i] + V*(255-a))/255;
-								}
-
-								int val = V;
-								pixels[pos] = lut.colors[val];
-
-							}			
-						}	
-					}		
-				}
-			}
-			IJ.showStatus("");			
+			startAndJoin(threads);
+			IJ.showStatus("");
 		}
 
 
@@ -3373,9 +3464,9 @@ public final class Volume_Viewer implements PlugIn {
 			
 			
 			xMin = (xMin < 0)   ?   0 : xMin;
-			xMax = (xMax > 511) ? 511 : xMax;
+			xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 			yMin = (yMin < 0)   ?   0 : yMin;
-			yMax = (yMax > 511) ? 511 : yMax;
+			yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 			
 			
 			if (isRGB) {
@@ -3403,7 +3494,7 @@ public final class Volume_Viewer implements PlugIn {
 						v[1] = y;
 
 						for (int x = xMin; x < xMax; x++) {
-							int pos = y*512 + x;
+							int pos = y*this.width + x;
 
 							v[0] = x;
 
@@ -3467,8 +3558,8 @@ public final class Volume_Viewer implements PlugIn {
 										int x_ = (int)(x1);
 										int y_ = (int)(y1);
 
-										if ((x_ & ~511) == 0 && (y_ & ~511) == 0) { // only for w = h = 512 
-											int pos = (y_<<9) | x_;  // only for w = 512 !!!
+										if (x_ >= 0 && x_ < this.width && y_ >= 0 && y_ < this.height) {
+											int pos = y_*this.width + x_;
 
 											if (z_ < pixelsZ[ch][pos]) {
 												pixelsZ[ch][pos] = z_;
@@ -3499,7 +3590,7 @@ public final class Volume_Viewer implements PlugIn {
 					v[1] = y;
 
 					for (int x = xMin; x < xMax; x++) {
-						int pos = y*512 + x;
+						int pos = y*this.width + x;
 
 						v[0] = x;
 
@@ -3563,8 +3654,8 @@ public final class Volume_Viewer implements PlugIn {
 									int x_ = (int)(x1);
 									int y_ = (int)(y1);
 
-									if ((x_ & ~511) == 0 && (y_ & ~511) == 0) { // only for w = h = 512 
-										int pos = (y_<<9) | x_;  // only for w = 512 !!!
+									if (x_ >= 0 && x_ < this.width && y_ >= 0 && y_ < this.height) {
+										int pos = y_*this.width + x_;
 
 										if (z_ < pixelsZ[0][pos]) {
 											pixelsZ[0][pos] = z_;
@@ -3605,9 +3696,9 @@ public final class Volume_Viewer implements PlugIn {
 			yMax ++;
 			
 			xMin = (xMin < 0)   ?   0 : xMin;
-			xMax = (xMax > 511) ? 511 : xMax;
+			xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 			yMin = (yMin < 0)   ?   0 : yMin;
-			yMax = (yMax > 511) ? 511 : yMax;
+			yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 		
 			int[] v = new int[3];
 			
@@ -3633,7 +3724,7 @@ public final class Volume_Viewer implements PlugIn {
 					for (int y = yMin; y <= yMax; y++) {
 						v[1] = y;
 						for (int x = xMin; x <= xMax; x++) {
-							int pos = y*512 + x;
+							int pos = y*this.width + x;
 							v[0] = x;
 							tr.invxyzPosf(v);
 
@@ -3666,9 +3757,9 @@ public final class Volume_Viewer implements PlugIn {
 						if (zi < zMin) zMin = zi;
 					}
 					xMin = (xMin < 0)   ?   0 : xMin;
-					xMax = (xMax > 511) ? 511 : xMax;
+					xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 					yMin = (yMin < 0)   ?   0 : yMin;
-					yMax = (yMax > 511) ? 511 : yMax;
+					yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 
 					for (int y = yMin; y <= yMax; y++) {
 						
@@ -3676,7 +3767,7 @@ public final class Volume_Viewer implements PlugIn {
 						
 						IJ.showStatus("Rendering : " + percent +"%" );
 						for (int x = xMin; x <= xMax; x++) {
-							int pos = (y<<9) + x;
+							int pos = y*this.width + x;
 							if (((pixels[pos] >> shift) & 0xFF) == 0) {
 								boolean found = false;
 								if (cube.isInside(x, y)) {
@@ -3767,7 +3858,7 @@ public final class Volume_Viewer implements PlugIn {
 				for (int y = yMin; y <= yMax; y++) {
 					v[1] = y;
 					for (int x = xMin; x <= xMax; x++) {
-						int pos = y*512 + x;
+						int pos = y*this.width + x;
 						v[0] = x;
 						tr.invxyzPosf(v);
 
@@ -3800,16 +3891,16 @@ public final class Volume_Viewer implements PlugIn {
 					if (zi < zMin) zMin = zi;
 				}
 				xMin = (xMin < 0)   ?   0 : xMin;
-				xMax = (xMax > 511) ? 511 : xMax;
+				xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 				yMin = (yMin < 0)   ?   0 : yMin;
-				yMax = (yMax > 511) ? 511 : yMax;
+				yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 
 				for (int y = yMin; y <= yMax; y++) {
 					int percent = 100*(y-yMin)/ (yMax-yMin);
 					
 					IJ.showStatus("Rendering : " + percent +"%" );
 					for (int x = xMin; x <= xMax; x++) {
-						int pos = (y<<9) + x;
+						int pos = y*this.width + x;
 						if (pixels[pos] == 0) {
 							boolean found = false;
 							if (cube.isInside(x, y)) {
@@ -3930,9 +4021,9 @@ public final class Volume_Viewer implements PlugIn {
 
 					v[2] = dist; // z
 					xMin = (xMin < 0)   ?   0 : xMin;
-					xMax = (xMax > 511) ? 511 : xMax;
+					xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 					yMin = (yMin < 0)   ?   0 : yMin;
-					yMax = (yMax > 511) ? 511 : yMax;
+					yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 
 					for (int x = xMin; x < xMax; x++) {
 						v[0] = x;
@@ -3951,7 +4042,7 @@ public final class Volume_Viewer implements PlugIn {
 
 								int val = 0xff & data3D[ch][z_][y_][x_];						
 
-								pixels[y*512 + x] |= 0xFF000000 | (val << shift);	
+								pixels[y*this.width + x] |= 0xFF000000 | (val << shift);	
 							}	
 						}
 					}
@@ -3980,9 +4071,9 @@ public final class Volume_Viewer implements PlugIn {
 
 				v[2] = dist; // z
 				xMin = (xMin < 0)   ?   0 : xMin;
-				xMax = (xMax > 511) ? 511 : xMax;
+				xMax = (xMax > this.width-1)  ? this.width-1  : xMax;
 				yMin = (yMin < 0)   ?   0 : yMin;
-				yMax = (yMax > 511) ? 511 : yMax;
+				yMax = (yMax > this.height-1) ? this.height-1 : yMax;
 
 				for (int x = xMin; x < xMax; x++) {
 					v[0] = x;
@@ -4001,7 +4092,7 @@ public final class Volume_Viewer implements PlugIn {
 
 							int val = 0xff & data3D[0][z_][y_][x_];						
 
-							pixels[y*512 + x] = lut.colors[val];	
+							pixels[y*this.width + x] = lut.colors[val];	
 						}	
 					}
 				}
@@ -4053,8 +4144,8 @@ public final class Volume_Viewer implements PlugIn {
 									int x_ = (int)(x1);
 									int y_ = (int)(y1);
 
-									if ((x_ & ~511) == 0 && (y_ & ~511) == 0) { // only for w = h = 512 
-										int pos = (y_<<9) | x_;  // only for w = 512 !!!
+									if (x_ >= 0 && x_ < this.width && y_ >= 0 && y_ < this.height) {
+										int pos = y_*this.width + x_;
 
 										if (z_ < pixelsZ[0][pos]) {
 											pixelsZ[0][pos] = z_;
@@ -4128,8 +4219,8 @@ public final class Volume_Viewer implements PlugIn {
 										int x_ = (int)(x1);
 										int y_ = (int)(y1);
 
-										if ((x_ & ~511) == 0 && (y_ & ~511) == 0) { // only for w = h = 512 
-											int pos = (y_<<9) | x_;  // only for w = 512 !!!
+										if (x_ >= 0 && x_ < this.width && y_ >= 0 && y_ < this.height) {
+											int pos = y_*this.width + x_;
 
 											if (z_ < pixelsZ[ch][pos]) {
 												pixelsZ[ch][pos] = z_;
@@ -0,0 +1,255 @@
+package fiji.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Multi-threaded real-to-complex 3D FFT of float volumes stored in one array
+ * (x varying fastest), as used by the 3D registration and the stitching plugins.
+ * <p>
+ * A plan holds the 1D transforms for one volume size and can be reused by all
+ * threads; plans are cached by {@link #getPlan(int, int, int)}. The sizes have to
+ * be supported by the (mixed radix) transforms of the Mines JTK, see
+ * FftReal.nfftFast() and FftComplex.nfftFast().
+ * <p>
+ * The transforms run on a persistent pool of daemon threads, one per processor.
+ * The lines along y and z are transformed in blocks of neighbouring columns,
+ * so that the strided accesses hit the same cache lines.
+ * The results are the same as those of the plugins' previous pffft3DMT() and
+ * pffftInv3DMT() implementations.
+ */
+public class FFT3D {
+	/** Number of neighbouring columns transformed together along y and z */
+	protected final static int BLOCK = 16;
+	/** Maximal number of cached plans */
+	protected final static int MAX_PLANS = 16;
+
+	public final int width, height, depth;
+	/** The width of the complex result, in floats: (width / 2 + 1) * 2 */
+	public final int complexWidth;
+
+	protected final FftReal fftx;
+	protected final FftComplex ffty, fftz;
+
+	protected static Map<String, FFT3D> plans =
+		new LinkedHashMap<String, FFT3D>(MAX_PLANS, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, FFT3D> eldest) {
+				return size() > MAX_PLANS;
+			}
+		};
+
+	protected static ExecutorService pool;
+	protected static int poolSize;
+
+	/**
+	 * Get a (cached) plan for volumes of the given size.
+	 *
+	 * @param width, height, depth the size of the real volume
+	 */
+	public static synchronized FFT3D getPlan(int width, int height, int depth) {
+		String key = width + "x" + height + "x" + depth;
+		FFT3D plan = plans.get(key);
+		if (plan == null) {
+			plan = new FFT3D(width, height, depth);
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+
+	protected FFT3D(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		complexWidth = (width / 2 + 1) * 2;
+		fftx = new FftReal(width);
+		ffty = new FftComplex(height);
+		fftz = new FftComplex(depth);
+	}
+
+	/**
+	 * Forward transform.
+	 *
+	 * @param values the real volume, width * height * depth floats
+	 * @param scale whether to scale the transforms along x by 1 / width
+	 * @return the complex half spectrum, complexWidth * height * depth floats
+	 */
+	public float[] forward(final float[] values, final boolean scale) {
+		final float[] result = new float[complexWidth * height * depth];
+
+		// x direction, real to complex
+		parallel(depth, new Lines() {
+			public void run(int z) {
+				float[] tempIn = new float[width];
+				float[] tempOut = new float[complexWidth];
+				for (int y = 0; y < height; y++) {
+					System.arraycopy(values, (z * height + y) * width, tempIn, 0, width);
+					fftx.realToComplex(-1, tempIn, tempOut);
+					if (scale)
+						fftx.scale(width, tempOut);
+					System.arraycopy(tempOut, 0, result, (z * height + y) * complexWidth, complexWidth);
+				}
+			}
+		});
+		transformY(result, -1);
+		transformZ(result, -1);
+		return result;
+	}
+
+	/**
+	 * Inverse transform, scaled by 1 / (width * height * depth).
+	 *
+	 * @param values the complex half spectrum, complexWidth * height * depth floats;
+	 * it is overwritten
+	 * @return the real volume, width * height * depth floats
+	 */
+	public float[] inverse(final float[] values) {
+		final float[] result = new float[width * height * depth];
+
+		transformZ(values, 1);
+		transformY(values, 1);
+
+		// x direction, complex to real
+		final float norm = (float)(width * height * depth);
+		parallel(depth, new Lines() {
+			public void run(int z) {
+				float[] tempIn = new float[complexWidth];
+				float[] tempOut = new float[width];
+				for (int y = 0; y < height; y++) {
+					System.arraycopy(values, (z * height + y) * complexWidth, tempIn, 0, complexWidth);
+					fftx.complexToReal(1, tempIn, tempOut);
+					int offset = (z * height + y) * width;
+					for (int x = 0; x < width; x++)
+						result[offset + x] = tempOut[x] / norm;
+				}
+			}
+		});
+		return result;
+	}
+
+	/** Transform the complex lines along y, one z plane per task */
+	protected void transformY(final float[] values, final int sign) {
+		parallel(depth, new Lines() {
+			public void run(int z) {
+				float[][] tempIn = new float[BLOCK][height * 2];
+				float[] tempOut = new float[height * 2];
+				int plane = z * height * complexWidth;
+				for (int x0 = 0; x0 < complexWidth; x0 += 2 * BLOCK) {
+					int n = Math.min(BLOCK, (complexWidth - x0) / 2);
+					for (int y = 0; y < height; y++) {
+						int offset = plane + y * complexWidth + x0;
+						for (int b = 0; b < n; b++) {
+							tempIn[b][y * 2] = values[offset + b * 2];
+							tempIn[b][y * 2 + 1] = values[offset + b * 2 + 1];
+						}
+					}
+					for (int b = 0; b < n; b++) {
+						ffty.complexToComplex(sign, tempIn[b], tempOut);
+						System.arraycopy(tempOut, 0, tempIn[b], 0, tempOut.length);
+					}
+					for (int y = 0; y < height; y++) {
+						int offset = plane + y * complexWidth + x0;
+						for (int b = 0; b < n; b++) {
+							values[offset + b * 2] = tempIn[b][y * 2];
+							values[offset + b * 2 + 1] = tempIn[b][y * 2 + 1];
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** Transform the complex lines along z, one y row per task */
+	protected void transformZ(final float[] values, final int sign) {
+		final int planeSize = height * complexWidth;
+		parallel(height, new Lines() {
+			public void run(int y) {
+				float[][] tempIn = new float[BLOCK][depth * 2];
+				float[] tempOut = new float[depth * 2];
+				for (int x0 = 0; x0 < complexWidth; x0 += 2 * BLOCK) {
+					int n = Math.min(BLOCK, (complexWidth - x0) / 2);
+					for (int z = 0; z < depth; z++) {
+						int offset = z * planeSize + y * complexWidth + x0;
+						for (int b = 0; b < n; b++) {
+							tempIn[b][z * 2] = values[offset + b * 2];
+							tempIn[b][z * 2 + 1] = values[offset + b * 2 + 1];
+						}
+					}
+					for (int b = 0; b < n; b++) {
+						fftz.complexToComplex(sign, tempIn[b], tempOut);
+						System.arraycopy(tempOut, 0, tempIn[b], 0, tempOut.length);
+					}
+					for (int z = 0; z < depth; z++) {
+						int offset = z * planeSize + y * complexWidth + x0;
+						for (int b = 0; b < n; b++) {
+							values[offset + b * 2] = tempIn[b][z * 2];
+							values[offset + b * 2 + 1] = tempIn[b][z * 2 + 1];
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** A task working on one line index (a z plane or a y row) */
+	protected interface Lines {
+		void run(int index);
+	}
+
+	/**
+	 * Run the task for all indices 0 .. count - 1 on the thread pool.
+	 * The calling thread takes part, too, and only waits for the indices
+	 * that were taken by the pool threads, so that this can be called
+	 * from a pool thread without dead-locking.
+	 */
+	protected static void parallel(final int count, final Lines task) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(count);
+		final Throwable[] failure = new Throwable[1];
+		Runnable worker = new Runnable() {
+			public void run() {
+				for (int i = ai.getAndIncrement(); i < count; i = ai.getAndIncrement()) try {
+					task.run(i);
+				} catch (Throwable t) {
+					failure[0] = t;
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		ExecutorService pool = getPool();
+		for (int i = 1; i < Math.min(poolSize, count); i++)
+			pool.execute(worker);
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+	}
+
+	protected static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			poolSize = Runtime.getRuntime().availableProcessors();
+			pool = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+				int counter;
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "FFT3D-" + (++counter));
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,45 @@
+#!/bin/sh
+''''exec "$(dirname "$0")"/../fiji --jython "$0" "$@" # (call again with fiji)'''
+
+# BIJknn.classify() computes the distances from dot products; check that it
+# finds the same neighbors as the exact search(), also for vectors that are
+# close together, far from the origin.
+
+from bijnum import BIJknn
+
+from java.lang import Class
+from java.util import Random
+
+import jarray, sys
+
+random = Random(1)
+classes = 3
+size = 40
+base = [100 + 1000 * random.nextFloat() for i in range(size)]
+
+def vector(offset, spread):
+	return jarray.array([base[i] + offset + spread * random.nextFloat() \
+		for i in range(size)], 'f')
+
+classset = jarray.array([random.nextInt(classes) for j in range(2000)], 'f')
+floatArray = Class.forName('[F')
+dataset = jarray.array([vector(0.01 * c, 0.05) for c in classset], floatArray)
+unknown = jarray.array([vector(0, 0.06) for j in range(300)], floatArray)
+
+knn = BIJknn(dataset, classset, classes)
+failures = 0
+for k in [1, 3, 5]:
+	before = failures
+	classification = knn.classify(unknown, k)
+	for j in range(len(unknown)):
+		indices = jarray.zeros(k, 'i')
+		distances = jarray.zeros(k, 'f')
+		knn.search(indices, distances, unknown[j], k)
+		votes = [0] * classes
+		for i in indices:
+			votes[int(classset[i])] += 1
+		if votes.index(max(votes)) != int(classification[j]):
+			failures += 1
+	print 'k =', k, ':', failures - before, 'different classifications'
+
+sys.exit(failures)